@@ -1545,6 +1545,12 @@ public class Project extends DBObject {
 		gd.addSlider("Number of threads for mipmaps", 1, n_mipmap_threads, n_mipmap_threads);
 		int meshResolution = getProperty("mesh_resolution", 32);
 		gd.addSlider("Default mesh resolution for images", 1, 512, meshResolution);
+		int filtered_image_cache = getProperty("filtered_image_cache", 0);
+		gd.addNumericField("Filtered_image_cache:", filtered_image_cache, 0, 6, "MB (0: none)");
+		int mesh_cache = getProperty("mesh_cache", 0);
+		gd.addNumericField("3D_mesh_cache:", mesh_cache, 0, 6, "MB (0: none)");
+		int mesh_detail = getProperty("mesh_detail", 100);
+		gd.addSlider("3D mesh detail (% of triangles)", 1, 100, mesh_detail);
 		//
 		gd.showDialog();
 		//
@@ -1633,6 +1639,30 @@ public class Project extends DBObject {
 				Utils.log("WARNING: ignoring invalid mesh resolution value " + meshResolution2);
 			}
 		}
+		int filtered_image_cache2 = (int)gd.getNextNumber();
+		if (filtered_image_cache != filtered_image_cache2) {
+			if (filtered_image_cache2 >= 0) {
+				setProperty("filtered_image_cache", Integer.toString(filtered_image_cache2));
+			} else {
+				Utils.log("WARNING: ignoring invalid filtered image cache size " + filtered_image_cache2);
+			}
+		}
+		int mesh_cache2 = (int)gd.getNextNumber();
+		if (mesh_cache != mesh_cache2) {
+			if (mesh_cache2 >= 0) {
+				setProperty("mesh_cache", Integer.toString(mesh_cache2));
+			} else {
+				Utils.log("WARNING: ignoring invalid 3D mesh cache size " + mesh_cache2);
+			}
+		}
+		int mesh_detail2 = (int)gd.getNextNumber();
+		if (mesh_detail != mesh_detail2) {
+			if (mesh_detail2 > 0 && mesh_detail2 <= 100) {
+				setProperty("mesh_detail", Integer.toString(mesh_detail2));
+			} else {
+				Utils.log("WARNING: ignoring invalid mesh detail " + mesh_detail2);
+			}
+		}
 	}
 
 	/** Return the Universal Near-Unique Id of this project, which may be null for non-FSLoader projects. */
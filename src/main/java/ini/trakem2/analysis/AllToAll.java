@@ -0,0 +1,473 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+import ini.trakem2.parallel.Process;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+import ini.trakem2.utils.Worker;
+import ini.trakem2.vector.Editions;
+import ini.trakem2.vector.VectorString3D;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Scores every pair of {@link VectorString3D} with {@link Compare#findBestMatch}, for
+ *  thousands of chains: pairs are distributed over a work-stealing {@link ForkJoinPool}
+ *  one row of the half matrix at a time, optional pre-filters skip pairs that
+ *  cannot match, and the scores go to a {@link Sink}, which may be the full matrix
+ *  ({@link Compare#scoreAllToAll}) or only the best matches of every chain
+ *  ({@link #topMatches(int, File, long, Worker)}), which can be checkpointed and resumed. */
+public final class AllToAll {
+
+	/** Receives the score of every compared pair, with {@code i < j}; called concurrently. */
+	static public interface Sink {
+		public void add(int i, int j, float score, long nanos);
+	}
+
+	/** Pairs failing any of these are not compared. Zero or negative values disable a filter. */
+	static public final class Filters {
+		/** Maximal ratio of the longest to the shortest physical length of the two chains. */
+		public double max_length_ratio = 0;
+		/** Maximal distance between the centroids of the points of the two chains. */
+		public double max_centroid_distance = 0;
+		/** Skip pairs whose bounding boxes, expanded by this margin, do not intersect; negative to disable. */
+		public double box_margin = -1;
+	}
+
+	/** Counters of the work done, updated concurrently. */
+	static public final class Stats {
+		public final AtomicLong pairs = new AtomicLong(),
+		                        skipped_by_length = new AtomicLong(),
+		                        skipped_by_centroid = new AtomicLong(),
+		                        skipped_by_box = new AtomicLong(),
+		                        compared = new AtomicLong(),
+		                        nanos = new AtomicLong(),
+		                        max_nanos = new AtomicLong();
+
+		private void compared(final long ns) {
+			compared.incrementAndGet();
+			nanos.addAndGet(ns);
+			for (long max = max_nanos.get(); ns > max && !max_nanos.compareAndSet(max, ns); max = max_nanos.get());
+		}
+
+		@Override
+		public String toString() {
+			final long c = compared.get();
+			return new StringBuilder("pairs: ").append(pairs.get())
+				.append(", skipped by length: ").append(skipped_by_length.get())
+				.append(", by centroid: ").append(skipped_by_centroid.get())
+				.append(", by box: ").append(skipped_by_box.get())
+				.append(", compared: ").append(c)
+				.append(", mean ms per pair: ").append(0 == c ? 0 : nanos.get() / (c * 1000000.0))
+				.append(", max ms: ").append(max_nanos.get() / 1000000.0)
+				.toString();
+		}
+	}
+
+	private final VectorString3D[] vs;
+	private final int distance_type;
+	private final double delta;
+	private final boolean skip_ends;
+	private final int max_mut;
+	private final float min_chunk;
+	private final boolean direct, substring_matching;
+
+	public final Filters filters = new Filters();
+	public final Stats stats = new Stats();
+
+	// Per chain: physical length, centroid and bounding box
+	private double[] length, cx, cy, cz, min_x, min_y, min_z, max_x, max_y, max_z;
+
+	/** See {@link Compare#scoreAllToAll} for the parameters. */
+	public AllToAll(final VectorString3D[] vs, final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching) {
+		this.vs = vs;
+		this.distance_type = distance_type;
+		this.delta = delta;
+		this.skip_ends = skip_ends;
+		this.max_mut = max_mut;
+		this.min_chunk = min_chunk;
+		this.direct = direct;
+		this.substring_matching = substring_matching;
+	}
+
+	private void measure() {
+		final int n = vs.length;
+		length = new double[n];
+		cx = new double[n]; cy = new double[n]; cz = new double[n];
+		min_x = new double[n]; min_y = new double[n]; min_z = new double[n];
+		max_x = new double[n]; max_y = new double[n]; max_z = new double[n];
+		for (int i=0; i<n; i++) {
+			final double[] x = vs[i].getPoints(0),
+			               y = vs[i].getPoints(1),
+			               z = vs[i].getPoints(2);
+			final int len = vs[i].length();
+			min_x[i] = min_y[i] = min_z[i] = Double.MAX_VALUE;
+			max_x[i] = max_y[i] = max_z[i] = -Double.MAX_VALUE;
+			for (int k=0; k<len; k++) {
+				cx[i] += x[k];
+				cy[i] += y[k];
+				cz[i] += z[k];
+				if (x[k] < min_x[i]) min_x[i] = x[k];
+				if (y[k] < min_y[i]) min_y[i] = y[k];
+				if (z[k] < min_z[i]) min_z[i] = z[k];
+				if (x[k] > max_x[i]) max_x[i] = x[k];
+				if (y[k] > max_y[i]) max_y[i] = y[k];
+				if (z[k] > max_z[i]) max_z[i] = z[k];
+				if (k > 0) {
+					final double dx = x[k] - x[k-1], dy = y[k] - y[k-1], dz = z[k] - z[k-1];
+					length[i] += Math.sqrt(dx*dx + dy*dy + dz*dz);
+				}
+			}
+			if (len > 0) {
+				cx[i] /= len;
+				cy[i] /= len;
+				cz[i] /= len;
+			}
+		}
+	}
+
+	/** Whether the pair passes the filters; counts the pairs that don't. */
+	private boolean accept(final int i, final int j) {
+		if (filters.max_length_ratio > 0) {
+			final double a = Math.max(length[i], length[j]),
+			             b = Math.min(length[i], length[j]);
+			if (a > filters.max_length_ratio * b) {
+				stats.skipped_by_length.incrementAndGet();
+				return false;
+			}
+		}
+		if (filters.max_centroid_distance > 0) {
+			final double dx = cx[i] - cx[j], dy = cy[i] - cy[j], dz = cz[i] - cz[j];
+			if (dx*dx + dy*dy + dz*dz > filters.max_centroid_distance * filters.max_centroid_distance) {
+				stats.skipped_by_centroid.incrementAndGet();
+				return false;
+			}
+		}
+		if (filters.box_margin >= 0) {
+			final double m = filters.box_margin;
+			if (min_x[i] - m > max_x[j] || min_x[j] - m > max_x[i]
+			 || min_y[i] - m > max_y[j] || min_y[j] - m > max_y[i]
+			 || min_z[i] - m > max_z[j] || min_z[j] - m > max_z[i]) {
+				stats.skipped_by_box.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Called after every completed row, from any thread. */
+	private interface RowListener {
+		public void done(int row);
+	}
+
+	private final class Rows extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int first, last;
+		private final BitSet skip;
+		private final Sink sink;
+		private final RowListener listener;
+		private final Worker worker;
+
+		Rows(final int first, final int last, final BitSet skip, final Sink sink, final RowListener listener, final Worker worker) {
+			this.first = first;
+			this.last = last;
+			this.skip = skip;
+			this.sink = sink;
+			this.listener = listener;
+			this.worker = worker;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first > 1) {
+				final int mid = (first + last) >>> 1;
+				invokeAll(new Rows(first, mid, skip, sink, listener, worker),
+				          new Rows(mid, last, skip, sink, listener, worker));
+				return;
+			}
+			if (null != skip && skip.get(first)) return;
+			final int i = first;
+			for (int j=i+1; j<vs.length; j++) {
+				if (null != worker && worker.hasQuitted()) return;
+				stats.pairs.incrementAndGet();
+				if (!accept(i, j)) continue;
+				final long t0 = System.nanoTime();
+				final Object[] ob = Compare.findBestMatch(vs[i], vs[j], delta, skip_ends, max_mut, min_chunk, distance_type, direct, substring_matching);
+				final float score = (float)Compare.getScore((Editions)ob[0], skip_ends, max_mut, min_chunk, distance_type);
+				final long ns = System.nanoTime() - t0;
+				stats.compared(ns);
+				sink.add(i, j, score, ns);
+			}
+			if (null != listener) listener.done(i);
+		}
+	}
+
+	/** Score all pairs that pass the {@link #filters} into {@code sink}.
+	 *  Returns false if the {@code worker} quitted before completion. */
+	public boolean run(final Sink sink, final Worker worker) {
+		return run(sink, null, null, worker);
+	}
+
+	private boolean run(final Sink sink, final BitSet skip, final RowListener listener, final Worker worker) {
+		if (vs.length < 2) return true;
+		measure();
+		final ForkJoinPool pool = new ForkJoinPool(Process.NUM_PROCESSORS);
+		try {
+			pool.invoke(new Rows(0, vs.length - 1, skip, sink, listener, worker));
+		} finally {
+			pool.shutdown();
+		}
+		return null == worker || !worker.hasQuitted();
+	}
+
+	/** A match of a chain with chain {@link #index}, which took {@link #nanos} to compute. */
+	static public final class Match {
+		public final int index;
+		public final float score;
+		public final long nanos;
+		Match(final int index, final float score, final long nanos) {
+			this.index = index;
+			this.score = score;
+			this.nanos = nanos;
+		}
+	}
+
+	/** The {@code k} best scoring matches (lowest score) of every chain. Uses memory proportional to the number of chains times {@code k}. */
+	static public final class TopMatches implements Sink {
+		private final int k;
+		private final int[][] index;
+		private final float[][] score;
+		private final long[][] nanos;
+		private final int[] count;
+
+		public TopMatches(final int n, final int k) {
+			this.k = k;
+			this.index = new int[n][k];
+			this.score = new float[n][k];
+			this.nanos = new long[n][k];
+			this.count = new int[n];
+		}
+
+		@Override
+		public void add(final int i, final int j, final float s, final long ns) {
+			insert(i, j, s, ns);
+			insert(j, i, s, ns);
+		}
+
+		/** Keeps each row sorted by score; an index already present is replaced, as happens when resuming from a checkpoint. */
+		private void insert(final int i, final int j, final float s, final long ns) {
+			final int[] ix = index[i];
+			synchronized (ix) {
+				final float[] sc = score[i];
+				final long[] ts = nanos[i];
+				int n = count[i];
+				for (int m=0; m<n; m++) {
+					if (ix[m] == j) {
+						System.arraycopy(ix, m+1, ix, m, n-m-1);
+						System.arraycopy(sc, m+1, sc, m, n-m-1);
+						System.arraycopy(ts, m+1, ts, m, n-m-1);
+						--n;
+						break;
+					}
+				}
+				if (n == k && !(s < sc[n-1])) { // also rejects NaN
+					count[i] = n;
+					return;
+				}
+				int pos = Math.min(n, k - 1);
+				while (pos > 0 && !(sc[pos-1] <= s)) {
+					ix[pos] = ix[pos-1];
+					sc[pos] = sc[pos-1];
+					ts[pos] = ts[pos-1];
+					--pos;
+				}
+				ix[pos] = j;
+				sc[pos] = s;
+				ts[pos] = ns;
+				count[i] = Math.min(n + 1, k);
+			}
+		}
+
+		/** The best matches of chain {@code i}, best first. */
+		public Match[] getMatches(final int i) {
+			synchronized (index[i]) {
+				final Match[] ms = new Match[count[i]];
+				for (int m=0; m<ms.length; m++) ms[m] = new Match(index[i][m], score[i][m], nanos[i][m]);
+				return ms;
+			}
+		}
+
+		public int size() {
+			return count.length;
+		}
+
+		private void write(final DataOutputStream out) throws IOException {
+			for (int i=0; i<count.length; i++) {
+				synchronized (index[i]) {
+					out.writeInt(count[i]);
+					for (int m=0; m<count[i]; m++) {
+						out.writeInt(index[i][m]);
+						out.writeFloat(score[i][m]);
+						out.writeLong(nanos[i][m]);
+					}
+				}
+			}
+		}
+
+		private void read(final DataInputStream in) throws IOException {
+			for (int i=0; i<count.length; i++) {
+				count[i] = in.readInt();
+				if (count[i] < 0 || count[i] > k) throw new IOException("Invalid match count " + count[i]);
+				for (int m=0; m<count[i]; m++) {
+					index[i][m] = in.readInt();
+					score[i][m] = in.readFloat();
+					nanos[i][m] = in.readLong();
+				}
+			}
+		}
+	}
+
+	static private final int MAGIC = 0x54324141; // "T2AA"
+
+	/** Identifies the comparison: the parameters, the filters and the points of all chains. */
+	private long key(final int k) {
+		long h = 1125899906842597L;
+		h = 31 * h + vs.length;
+		h = 31 * h + k;
+		h = 31 * h + distance_type;
+		h = 31 * h + Double.doubleToLongBits(delta);
+		h = 31 * h + (skip_ends ? 1 : 0);
+		h = 31 * h + max_mut;
+		h = 31 * h + Float.floatToIntBits(min_chunk);
+		h = 31 * h + (direct ? 1 : 0);
+		h = 31 * h + (substring_matching ? 1 : 0);
+		h = 31 * h + Double.doubleToLongBits(filters.max_length_ratio);
+		h = 31 * h + Double.doubleToLongBits(filters.max_centroid_distance);
+		h = 31 * h + Double.doubleToLongBits(filters.box_margin);
+		for (final VectorString3D v : vs) {
+			final int len = v.length();
+			h = 31 * h + len;
+			for (int dim=0; dim<3; dim++) {
+				final double[] p = v.getPoints(dim);
+				for (int i=0; i<len; i++) h = 31 * h + Double.doubleToLongBits(p[i]);
+			}
+		}
+		return h;
+	}
+
+	/** Compute the {@code k} best matches of every chain.
+	 *  @param checkpoint If not null, the rows completed and the matches found so far are written
+	 *                    to this file at most every {@code interval} milliseconds, at the end, and when
+	 *                    the {@code worker} quits; a later call with the same chains and parameters resumes from it.
+	 *  @return The matches, or null if the {@code worker} quitted. */
+	public TopMatches topMatches(final int k, final File checkpoint, final long interval, final Worker worker) {
+		final TopMatches top = new TopMatches(vs.length, k);
+		final BitSet done = new BitSet(vs.length);
+		final long key = null == checkpoint ? 0 : key(k);
+		if (null != checkpoint && checkpoint.exists()) {
+			if (load(checkpoint, key, done, top)) Utils.log2("Resuming comparison of " + vs.length + " chains with " + done.cardinality() + " rows done.");
+			else {
+				done.clear();
+				Arrays.fill(top.count, 0);
+			}
+		}
+		final RowListener listener = null == checkpoint ? null : new RowListener() {
+			private long last = System.currentTimeMillis();
+			@Override
+			public void done(final int row) {
+				final BitSet snapshot;
+				synchronized (done) {
+					done.set(row);
+					final long now = System.currentTimeMillis();
+					if (now - last < interval) return;
+					last = now;
+					snapshot = (BitSet)done.clone();
+				}
+				save(checkpoint, key, snapshot, top);
+			}
+		};
+		final boolean completed = run(top, done, listener, worker);
+		if (null != checkpoint) {
+			if (completed) done.set(0, vs.length);
+			save(checkpoint, key, done, top);
+		}
+		return completed ? top : null;
+	}
+
+	/** Rows in {@code done} are complete in {@code top}; rows in progress may be partially present, which is harmless
+	 *  because {@link TopMatches} replaces a repeated index when these rows are computed again. */
+	synchronized private void save(final File f, final long key, final BitSet done, final TopMatches top) {
+		final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+		DataOutputStream out = null;
+		boolean written = false;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			out.writeInt(MAGIC);
+			out.writeLong(key);
+			out.writeInt(vs.length);
+			out.writeInt(top.k);
+			final long[] words = done.toLongArray();
+			out.writeInt(words.length);
+			for (final long w : words) out.writeLong(w);
+			top.write(out);
+			written = true;
+		} catch (final Throwable t) {
+			Utils.log2("Could not write checkpoint " + f + " : " + t);
+		} finally {
+			if (null != out) try { out.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+		if (!written || !(tmp.renameTo(f) || (f.delete() && tmp.renameTo(f)))) tmp.delete();
+	}
+
+	private boolean load(final File f, final long key, final BitSet done, final TopMatches top) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536));
+			if (MAGIC != in.readInt() || key != in.readLong() || vs.length != in.readInt() || top.k != in.readInt()) {
+				Utils.log2("Ignoring checkpoint " + f + " of a different comparison.");
+				return false;
+			}
+			final long[] words = new long[in.readInt()];
+			for (int i=0; i<words.length; i++) words[i] = in.readLong();
+			done.or(BitSet.valueOf(words));
+			top.read(in);
+			return true;
+		} catch (final Throwable t) {
+			Utils.log2("Could not read checkpoint " + f + " : " + t);
+			return false;
+		} finally {
+			if (null != in) try { in.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+	}
+}
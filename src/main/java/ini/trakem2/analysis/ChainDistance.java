@@ -0,0 +1,225 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+import ini.trakem2.vector.VectorString3D;
+
+/** Resampling and edit distance of two open chains on primitive arrays, without allocating per comparison.
+ *  The two chains go into slots 0 and 1, either from a resampled {@link VectorString3D}
+ *  or resampled here from a polyline; {@link #distance(double, double, double, double)} then gives
+ *  the value of {@link ini.trakem2.vector.Editions#getDistance()} for them, computing only a band
+ *  of the edit matrix around its diagonal, widened until no path outside of it can be cheaper.
+ *
+ *  Uses the absolute vectors between consecutive points: not for chains made {@link VectorString3D#relative()}.
+ *  An instance grows its arrays as needed and reuses them; use one per thread. */
+public final class ChainDistance {
+
+	/** The points of each slot, and the vectors between them, the first vector being zero. */
+	private final double[][] px = new double[2][0], py = new double[2][0], pz = new double[2][0],
+	                         vx = new double[2][0], vy = new double[2][0], vz = new double[2][0];
+	private final int[] length = new int[2];
+	/** Two rows of the band of the edit matrix. */
+	private double[] row0 = new double[0], row1 = new double[0];
+	/** The band half-width of the last {@link #distance} call. */
+	private int band = 0;
+
+	/** The band half-width tried first; when the distance found within it may not be exact,
+	 *  the band is widened once, to where that distance is exact. */
+	static public int INITIAL_BAND = 16;
+
+	private void ensure(final int slot, final int n) {
+		if (px[slot].length >= n) return;
+		final int cap = Math.max(n, px[slot].length + (px[slot].length >> 1));
+		px[slot] = new double[cap]; py[slot] = new double[cap]; pz[slot] = new double[cap];
+		vx[slot] = new double[cap]; vy[slot] = new double[cap]; vz[slot] = new double[cap];
+	}
+
+	private void vectors(final int slot) {
+		final int n = length[slot];
+		final double[] x = px[slot], y = py[slot], z = pz[slot],
+		               dx = vx[slot], dy = vy[slot], dz = vz[slot];
+		if (n > 0) dx[0] = dy[0] = dz[0] = 0;
+		for (int i=1; i<n; i++) {
+			dx[i] = x[i] - x[i-1];
+			dy[i] = y[i] - y[i-1];
+			dz[i] = z[i] - z[i-1];
+		}
+	}
+
+	/** Copy the points of an already resampled chain into {@code slot}, in reverse order if {@code reversed}. */
+	public void set(final int slot, final VectorString3D vs, final boolean reversed) {
+		final int n = vs.length();
+		ensure(slot, n);
+		final double[][] src = {vs.getPoints(0), vs.getPoints(1), vs.getPoints(2)},
+		                 dst = {px[slot], py[slot], pz[slot]};
+		for (int d=0; d<3; d++) {
+			if (reversed) for (int i=0; i<n; i++) dst[d][i] = src[d][n-1-i];
+			else System.arraycopy(src[d], 0, dst[d], 0, n);
+		}
+		length[slot] = n;
+		vectors(slot);
+	}
+
+	/** Resample the polyline of the first {@code n} points of {@code x, y, z} into {@code slot}:
+	 *  from its first point, each next point is the first one along the polyline at distance {@code delta}
+	 *  from the previous, and the last point is the end of the polyline, if not already there.
+	 *  Unlike {@link VectorString3D#resample(double)}, does not smooth the chain.
+	 *  @return The number of points.
+	 *  @throws IllegalArgumentException if {@code delta} is not larger than zero. */
+	public int resample(final int slot, final double[] x, final double[] y, final double[] z, final int n, final double delta) {
+		if (!(delta > 0)) throw new IllegalArgumentException("Cannot resample with delta " + delta);
+		if (0 == n) {
+			length[slot] = 0;
+			return 0;
+		}
+		final double dd = delta * delta;
+		int k = 0;
+		double qx = x[0], qy = y[0], qz = z[0];
+		add(slot, k++, qx, qy, qz);
+		// The point of segment s from which to search: the last added point, or vertex s
+		double sx = qx, sy = qy, sz = qz;
+		for (int s=0; s<n-1; ) {
+			final double ex = x[s+1] - qx, ey = y[s+1] - qy, ez = z[s+1] - qz;
+			if (ex*ex + ey*ey + ez*ez < dd) {
+				++s;
+				sx = x[s]; sy = y[s]; sz = z[s];
+				continue;
+			}
+			// The end of the segment is at least delta away and its start at most: solve |f + t * d| = delta for t in [0, 1]
+			final double ddx = x[s+1] - sx, ddy = y[s+1] - sy, ddz = z[s+1] - sz,
+			             fx = sx - qx, fy = sy - qy, fz = sz - qz;
+			final double a = ddx*ddx + ddy*ddy + ddz*ddz,
+			             b = fx*ddx + fy*ddy + fz*ddz,
+			             c = fx*fx + fy*fy + fz*fz - dd;
+			final double t = Math.min(1, (-b + Math.sqrt(Math.max(0, b*b - a*c))) / a);
+			qx = sx + t * ddx;
+			qy = sy + t * ddy;
+			qz = sz + t * ddz;
+			add(slot, k++, qx, qy, qz);
+			sx = qx; sy = qy; sz = qz;
+		}
+		if (qx != x[n-1] || qy != y[n-1] || qz != z[n-1]) add(slot, k++, x[n-1], y[n-1], z[n-1]);
+		length[slot] = k;
+		vectors(slot);
+		return k;
+	}
+
+	private void add(final int slot, final int i, final double x, final double y, final double z) {
+		if (i == px[slot].length) {
+			final int cap = Math.max(16, i + (i >> 1));
+			final double[][] a = {px[slot], py[slot], pz[slot]};
+			for (int d=0; d<3; d++) {
+				final double[] b = new double[cap];
+				System.arraycopy(a[d], 0, b, 0, i);
+				a[d] = b;
+			}
+			px[slot] = a[0]; py[slot] = a[1]; pz[slot] = a[2];
+			vx[slot] = new double[cap]; vy[slot] = new double[cap]; vz[slot] = new double[cap];
+		}
+		px[slot][i] = x;
+		py[slot][i] = y;
+		pz[slot][i] = z;
+	}
+
+	/** The number of points in {@code slot}. */
+	public int length(final int slot) {
+		return length[slot];
+	}
+
+	/** The points of {@code slot} along dimension {@code dim}, valid up to {@link #length(int)}; not a copy. */
+	public double[] getPoints(final int slot, final int dim) {
+		switch (dim) {
+			case 0: return px[slot];
+			case 1: return py[slot];
+			default: return pz[slot];
+		}
+	}
+
+	/** The band half-width with which the last {@link #distance} was found exact. */
+	public int getBand() {
+		return band;
+	}
+
+	/** The minimal cost of editing the chain in slot 0 into the chain in slot 1, as {@link ini.trakem2.vector.Editions}
+	 *  computes it: deleting a vector costs {@code wd * delta}, inserting one {@code wi * delta} and mutating one
+	 *  into another {@code wm} times the length of their difference, except along the first row and column
+	 *  of the edit matrix, where each step costs {@code delta}.
+	 *  Weights must not be negative. */
+	public double distance(final double delta, final double wi, final double wd, final double wm) {
+		final int n = length[0], m = length[1];
+		if (row0.length < m + 1) {
+			row0 = new double[m + 1];
+			row1 = new double[m + 1];
+		}
+		// Any path leaving the band of half-width b has at least |m - n| + 2b + 2 insertions and deletions,
+		// so the cost d of the best path within a band is exact for any band wider than where that reaches d
+		final double min_step = delta * Math.min(1, Math.min(wi, wd));
+		final int full = Math.max(n, m);
+		int b = min_step > 0 ? Math.max(0, Math.min(INITIAL_BAND, full)) : full;
+		for (;;) {
+			final double d = band(b, delta, wi, wd, wm);
+			final double exact_above = (d / min_step - Math.abs(m - n) - 2) / 2;
+			if (b == full || b > exact_above) {
+				band = b;
+				return d;
+			}
+			b = (int)Math.min(full, (long)Math.floor(exact_above) + 1);
+		}
+	}
+
+	/** The cost of the best path within the band of half-width {@code b} around the diagonals from (0, 0) and to (n, m). */
+	private double band(final int b, final double delta, final double wi, final double wd, final double wm) {
+		final int n = length[0], m = length[1];
+		final int lo_off = Math.min(0, m - n) - b,
+		          hi_off = Math.max(0, m - n) + b;
+		final double[] ax = vx[0], ay = vy[0], az = vz[0],
+		               bx = vx[1], by = vy[1], bz = vz[1];
+		final double ins = wi * delta,
+		             del = wd * delta;
+		double[] prev = row0, cur = row1;
+		int hi = Math.min(m, hi_off);
+		for (int j=0; j<=hi; j++) prev[j] = j * delta;
+		if (hi < m) prev[hi+1] = Double.POSITIVE_INFINITY;
+		for (int i=1; i<=n; i++) {
+			final int lo = Math.max(0, i + lo_off);
+			hi = Math.min(m, i + hi_off);
+			int j = lo;
+			if (0 == j) cur[j++] = i * delta;
+			final double x = ax[i-1], y = ay[i-1], z = az[i-1];
+			double left = j > lo ? cur[j-1] : Double.POSITIVE_INFINITY;
+			for (; j<=hi; j++) {
+				final double dx = x - bx[j-1], dy = y - by[j-1], dz = z - bz[j-1];
+				double c = prev[j-1] + wm * Math.sqrt(dx*dx + dy*dy + dz*dz);
+				final double c_del = prev[j] + del;
+				if (c_del < c) c = c_del;
+				final double c_ins = left + ins;
+				if (c_ins < c) c = c_ins;
+				cur[j] = left = c;
+			}
+			if (hi < m) cur[hi+1] = Double.POSITIVE_INFINITY;
+			final double[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+		return prev[m];
+	}
+}
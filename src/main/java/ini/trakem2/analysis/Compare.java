@@ -90,7 +90,6 @@ import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 import ini.trakem2.vector.Editions;
 import ini.trakem2.vector.VectorString3D;
-import mpi.fruitfly.general.MultiThreading;
 import mpicbg.imglib.container.cell.Cell;
 import mpicbg.models.AffineModel3D;
 import mpicbg.models.MovingLeastSquaresTransform;
@@ -851,7 +850,7 @@ public class Compare {
 	}
 
 	/** Zero is best; gets bad towards positive infinite -- including for DISSIMILARITY (1 - similarity) and COMBINED (1 / score). */
-	static private final double getScore(final Editions ed, final boolean skip_ends, final int max_mut, final float min_chunk, final int distance_type) {
+	static final double getScore(final Editions ed, final boolean skip_ends, final int max_mut, final float min_chunk, final int distance_type) {
 		switch (distance_type) {
 			case LEVENSHTEIN: // Levenshtein
 				return ed.getDistance();
@@ -967,6 +966,12 @@ public class Compare {
 		public boolean cut_uneven_ends = true;
 		public int envelope_type = 2;
 		public double delta_envelope = 1;
+		/** When larger than zero, save only this many best matches of every chain instead of the full matrix; see {@link AllToAll}. */
+		public int best_matches = 0;
+		/** Pre-filters for the best matches; see {@link AllToAll.Filters}. */
+		public double max_length_ratio = 0,
+		              max_centroid_distance = 0,
+		              box_margin = -1;
 
 		public CATAParameters() {}
 
@@ -997,6 +1002,10 @@ public class Compare {
 			gd.addNumericField("Min_matches: ", min_matches, 0);
 			if (to_file) {
 				gd.addChoice("File format: ", formats, formats[2]);
+				gd.addNumericField("best_matches per chain, as .csv (0 for the full matrix): ", best_matches, 0);
+				gd.addNumericField("max_length_ratio of best matches (0 for any): ", max_length_ratio, 2);
+				gd.addNumericField("max_centroid_distance of best matches (0 for any): ", max_centroid_distance, 2);
+				gd.addNumericField("bounding_box_margin of best matches (-1 for any): ", box_margin, 2);
 			}
 			gd.addCheckbox("normalize", normalize);
 			gd.addCheckbox("direct", direct);
@@ -1043,7 +1052,14 @@ public class Compare {
 			}
 
 			format = formats[0];
-			if (to_file) format = gd.getNextChoice().trim();
+			best_matches = 0;
+			if (to_file) {
+				format = gd.getNextChoice().trim();
+				best_matches = Math.max(0, (int)gd.getNextNumber());
+				max_length_ratio = gd.getNextNumber();
+				max_centroid_distance = gd.getNextNumber();
+				box_margin = gd.getNextNumber();
+			}
 
 			normalize = gd.getNextBoolean();
 			direct = gd.getNextBoolean();
@@ -1233,6 +1249,9 @@ public class Compare {
 	 * float[][] scores = (float[][])result[0];
 	 * ArrayList&lt;Compare.Chain&gt; chains = (ArrayList&lt;Compare.Chain&gt;)result[1];
 	 * </pre>
+	 * When saving only the best matches of every chain, result[0] is an {@link AllToAll.TopMatches} instead,
+	 * and the comparison is checkpointed next to the file: an interrupted comparison resumes when run again
+	 * with the same parameters and file name.
 	 */
 	static public Bureaucrat compareAllToAll(final boolean to_file, final String regex,
 			                         final String[] ignore, final Project[] projects,
@@ -1302,6 +1321,25 @@ public class Compare {
 		// compare all to all
 		final VectorString3D[] vs = new VectorString3D[n_chains];
 		for (int i=0; i<n_chains; i++) vs[i] = chains.get(i).vs;
+
+		if (cp.best_matches > 0) {
+			final File checkpoint = new File(dir + filename + ".checkpoint");
+			final AllToAll.Filters filters = new AllToAll.Filters();
+			filters.max_length_ratio = cp.max_length_ratio;
+			filters.max_centroid_distance = cp.max_centroid_distance;
+			filters.box_margin = cp.box_margin;
+			final AllToAll.TopMatches top = Compare.scoreAllToAll(vs, cp.distance_type, cp.delta, cp.skip_ends, cp.max_mut, cp.min_chunk, cp.direct, cp.substring_matching, cp.best_matches, filters, checkpoint, this);
+			if (null == top) {
+				Utils.log("Comparison interrupted: run it again with the same parameters and file name to resume from " + checkpoint);
+				finishedWorking();
+				return;
+			}
+			this.result = new Object[]{top, chains};
+			if (writeBestMatches(new File(dir + filename), top, chains, p)) checkpoint.delete();
+			finishedWorking();
+			return;
+		}
+
 		final float[][] scores = Compare.scoreAllToAll(vs, cp.distance_type, cp.delta, cp.skip_ends, cp.max_mut, cp.min_chunk, cp.direct, cp.substring_matching, this);
 
 		if (null == scores) {
@@ -1489,67 +1527,72 @@ public class Compare {
 		return Bureaucrat.createAndStart(worker, p);
 	}
 
+	/** Write the best matches of every chain as .csv, one row per match: the chain, the rank of the match, the matched chain and the score.
+	 *  Chain titles are prefixed with the letter of their project, as in the full matrix. Returns false on error. */
+	static private boolean writeBestMatches(final File f, final AllToAll.TopMatches top, final ArrayList<Chain> chains, final Project[] p) {
+		final List<Project> projects = Arrays.asList(p);
+		final String[] titles = new String[chains.size()];
+		for (int i=0; i<titles.length; i++) {
+			final Chain chain = chains.get(i);
+			titles[i] = new StringBuilder().append('\"').append(Utils.getCharacter(projects.indexOf(chain.getRoot().getProject()) + 1))
+				.append(' ').append(chain.getCellTitle()).append('\"').toString();
+		}
+		OutputStreamWriter dos = null;
+		try {
+			dos = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(f)), "8859_1");
+			dos.write("\"chain\",\"rank\",\"match\",\"score\"\n");
+			final StringBuilder line = new StringBuilder();
+			for (int i=0; i<titles.length; i++) {
+				final AllToAll.Match[] ms = top.getMatches(i);
+				for (int m=0; m<ms.length; m++) {
+					line.setLength(0);
+					line.append(titles[i]).append(',').append(m+1).append(',').append(titles[ms[m].index]).append(',').append(ms[m].score).append('\n');
+					dos.write(line.toString());
+				}
+			}
+			dos.flush();
+			return true;
+		} catch (final Exception e) {
+			IJError.print(e);
+			return false;
+		} finally {
+			if (null != dos) try { dos.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+	}
+
 	/** Returns the half matrix of scores, with values copied from one half matrix to the other, and a diagonal of zeros.
 	 * @param distance_type ranges from 0 to 5, and includes: 0=Levenshtein, 1=Dissimilarity, 2=Average physical distance, 3=Median physical distance, 4=Cummulative physical distance and 5=Standard deviation. */
 	static public float[][] scoreAllToAll(final VectorString3D[] vs, final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching, final Worker worker) {
 		final float[][] scores = new float[vs.length][vs.length];
-
-
-		final AtomicInteger ai = new AtomicInteger(0);
-
-		final Thread[] threads = MultiThreading.newThreads();
-		for (int ithread=0; ithread<threads.length; ithread++) {
-			threads[ithread] = new Thread() { @Override
-            public void run() {
-				////
-
-		for (int i=ai.getAndIncrement(); i<vs.length; i=ai.getAndIncrement()) {
-			final VectorString3D vs1 = vs[i];
-			for (int j=i+1; j<vs.length; j++) {
-				if (null != worker && worker.hasQuitted()) return;
-				final Object[] ob = findBestMatch(vs[i], vs[j], delta, skip_ends, max_mut, min_chunk, distance_type, direct, substring_matching); // TODO should add 'distance_type' as well for the selection of the best match when not direct.
-				/*
-				switch (distance_type) {
-					case 0: // Levenshtein
-						scores[i][j] = (float)((Editions)ob[0]).getDistance();
-						break;
-					case 1: // dissimilarity
-						scores[i][j] = (float)((Double)ob[1]).doubleValue();
-						break;
-					case 2: // average physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getPhysicalDistance(skip_ends, max_mut, min_chunk, true);
-						break;
-					case 3: // median physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getStatistics(skip_ends, max_mut, min_chunk, false)[3]; // 3 is median
-						break;
-					case 4: // cummulative physical distance between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getPhysicalDistance(skip_ends, max_mut, min_chunk, false);
-						break;
-					case 5: // stdDev of distances between mutation pairs
-						scores[i][j] = (float)((Editions)ob[0]).getStdDev(skip_ends, max_mut, min_chunk);
-						break;
-				}
-				*/
-
-				final Editions ed = (Editions)ob[0];
-				scores[i][j] = (float)getScore(ed, skip_ends, max_mut, min_chunk, distance_type);
-
-
+		final AllToAll ata = new AllToAll(vs, distance_type, delta, skip_ends, max_mut, min_chunk, direct, substring_matching);
+		final boolean completed = ata.run(new AllToAll.Sink() {
+			@Override
+			public void add(final int i, final int j, final float score, final long nanos) {
+				scores[i][j] = score;
 				// mirror value
-				scores[j][i] = scores[i][j];
+				scores[j][i] = score;
 			}
-		}
-
-			////
-			}};
-		}
-		MultiThreading.startAndJoin(threads);
-
-		if (null != worker && worker.hasQuitted()) return null;
-
+		}, worker);
+		if (!completed) return null;
+		Utils.log2("Compared all to all: " + ata.stats);
 		return scores;
 	}
 
+	/** Like {@link #scoreAllToAll}, but for many chains: keeps only the {@code k} best matches of every chain,
+	 *  skips the pairs rejected by {@code filters} (which may be null), and checkpoints to {@code checkpoint}
+	 *  (which may be null) every few minutes, resuming from it if it exists. Returns null if the {@code worker} quitted. */
+	static public AllToAll.TopMatches scoreAllToAll(final VectorString3D[] vs, final int distance_type, final double delta, final boolean skip_ends, final int max_mut, final float min_chunk, final boolean direct, final boolean substring_matching, final int k, final AllToAll.Filters filters, final File checkpoint, final Worker worker) {
+		final AllToAll ata = new AllToAll(vs, distance_type, delta, skip_ends, max_mut, min_chunk, direct, substring_matching);
+		if (null != filters) {
+			ata.filters.max_length_ratio = filters.max_length_ratio;
+			ata.filters.max_centroid_distance = filters.max_centroid_distance;
+			ata.filters.box_margin = filters.box_margin;
+		}
+		final AllToAll.TopMatches top = ata.topMatches(k, checkpoint, 5 * 60 * 1000, worker);
+		Utils.log2("Compared all to all: " + ata.stats);
+		return top;
+	}
+
 	/** Creates a transform with the 4 given vectors: X, Y, Z and translation of origin. */
 	static public Transform3D createTransform(final Vector3d[] o) {
 		return new Transform3D(new Matrix4d(
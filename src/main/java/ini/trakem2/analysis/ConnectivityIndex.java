@@ -0,0 +1,519 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.analysis;
+
+import ini.trakem2.display.Connector;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.ZDisplayable;
+import ini.trakem2.parallel.Process;
+import ini.trakem2.parallel.TaskFactory;
+import ini.trakem2.persistence.FSLoader;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** The synaptic connectivity of a {@link LayerSet}: the origins and targets of every {@link Connector},
+ *  and for every {@link Displayable} the connectors that start or end on it.
+ *
+ *  The index is maintained incrementally: the {@link LayerSet} and its {@link Layer}s report every
+ *  {@link Displayable} whose buckets are updated, that is added or removed, and every layer whose
+ *  buckets are recreated. Only the connectors that touch a reported {@link Displayable}, before or after
+ *  the change, are looked up again, and only when the index is next queried. The list of all connectors
+ *  is only scanned when a {@link Connector} was added or removed or a layer was reported, so that
+ *  queries without intervening changes cost no more than a lookup.
+ *
+ *  The index is stored next to the project (see {@link #save()}) and read back on first use when the
+ *  XML file has not changed since, so that opening a project does not require looking up all connectors. */
+public class ConnectivityIndex {
+
+	static private final int MAGIC = 0x54324349, // "T2CI"
+	                         VERSION = 1;
+
+	/** An edge of the graph: a synapse from {@code origin} to {@code target} through {@code connector}. */
+	static public final class Edge {
+		public final Connector connector;
+		public final Displayable origin, target;
+		Edge(final Connector connector, final Displayable origin, final Displayable target) {
+			this.connector = connector;
+			this.origin = origin;
+			this.target = target;
+		}
+	}
+
+	/** The origins and, for each target node, the targets of one {@link Connector}. */
+	static private final class Entry {
+		final Connector con;
+		final Displayable[] origins;
+		final Displayable[][] targets;
+		Entry(final Connector con, final Displayable[] origins, final Displayable[][] targets) {
+			this.con = con;
+			this.origins = origins;
+			this.targets = targets;
+		}
+		Entry(final Connector con) {
+			this.con = con;
+			this.origins = con.getOrigins().toArray(new Displayable[0]);
+			final List<Set<Displayable>> t = con.getTargets();
+			this.targets = new Displayable[t.size()][];
+			for (int i=0; i<targets.length; i++) targets[i] = t.get(i).toArray(new Displayable[0]);
+		}
+	}
+
+	private final LayerSet ls;
+	private final HashMap<Connector,Entry> entries = new HashMap<Connector,Entry>();
+	/** For each Displayable, the connectors that have it as origin or as target. */
+	private final HashMap<Displayable,Set<Connector>> outgoing = new HashMap<Displayable,Set<Connector>>(),
+	                                                   incoming = new HashMap<Displayable,Set<Connector>>();
+	/** Changes reported since the last update; guarded by itself, never by this index,
+	 *  so that reporting a change never waits for an update to finish. */
+	private final Set<Displayable> changed = new HashSet<Displayable>();
+	private final Set<Layer> changed_layers = new HashSet<Layer>();
+	/** The ids of removed objects, to find the connectors that touched them without holding on to them. */
+	private final Set<Long> removed = new HashSet<Long>();
+	/** Whether connectors may have been added or removed since the last update. */
+	private boolean connectors_changed = true;
+	private boolean initialized = false;
+
+	public ConnectivityIndex(final LayerSet ls) {
+		this.ls = ls;
+	}
+
+	/** Report a change in the geometry of {@code d}. */
+	public void changed(final Displayable d) {
+		synchronized (changed) {
+			changed.add(d);
+		}
+	}
+
+	/** Report the addition of {@code d}. */
+	public void added(final Displayable d) {
+		synchronized (changed) {
+			changed.add(d);
+			if (d instanceof Connector) connectors_changed = true;
+		}
+	}
+
+	/** Report the removal of {@code d}. Only its id is kept until the next update. */
+	public void removed(final Displayable d) {
+		synchronized (changed) {
+			changed.remove(d);
+			removed.add(d.getId());
+			if (d instanceof Connector) connectors_changed = true;
+		}
+	}
+
+	/** Report that any {@link Displayable} in {@code layer} may have changed, or been added or removed. */
+	public void changed(final Layer layer) {
+		synchronized (changed) {
+			changed_layers.add(layer);
+			connectors_changed = true;
+		}
+	}
+
+	/** Bring the index up to date with all reported changes. Called by every query. */
+	public synchronized void update() {
+		if (!initialized) {
+			initialized = true;
+			load();
+		}
+
+		final ArrayList<Displayable> ds;
+		final ArrayList<Layer> layers;
+		final HashSet<Long> removed_ids;
+		final boolean scan;
+		synchronized (changed) {
+			ds = new ArrayList<Displayable>(changed);
+			layers = new ArrayList<Layer>(changed_layers);
+			removed_ids = new HashSet<Long>(removed);
+			scan = connectors_changed;
+			changed.clear();
+			changed_layers.clear();
+			removed.clear();
+			connectors_changed = false;
+		}
+		if (!scan && ds.isEmpty() && removed_ids.isEmpty()) return;
+
+		final Set<Connector> dirty = new HashSet<Connector>();
+
+		// Connectors that touched removed objects
+		if (!removed_ids.isEmpty()) {
+			for (final Map<Displayable,Set<Connector>> m : Arrays.asList(outgoing, incoming)) {
+				for (final Map.Entry<Displayable,Set<Connector>> e : m.entrySet()) {
+					if (removed_ids.contains(e.getKey().getId())) dirty.addAll(e.getValue());
+				}
+			}
+		}
+
+		List<Connector> current = null;
+		Set<Connector> live = null;
+		if (scan) {
+			current = ls.getAll(Connector.class);
+			live = new HashSet<Connector>(current);
+			// Forget removed connectors
+			for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+				final Entry e = it.next();
+				if (!live.contains(e.con)) {
+					unregister(e);
+					it.remove();
+				}
+			}
+			dirty.retainAll(live);
+			// Look up added connectors
+			for (final Connector con : current) {
+				if (!entries.containsKey(con)) dirty.add(con);
+			}
+		}
+
+		for (final Displayable d : ds) {
+			if (d instanceof Connector) {
+				if (null == live || live.contains(d)) dirty.add((Connector)d);
+				continue;
+			}
+			// Connectors that touched d before the change
+			final Set<Connector> out = outgoing.get(d);
+			if (null != out) dirty.addAll(out);
+			final Set<Connector> in = incoming.get(d);
+			if (null != in) dirty.addAll(in);
+			// Connectors that touch d after the change
+			if (null == d.getLayerSet()) continue;
+			final Collection<Layer> lwd = d instanceof ZDisplayable ? d.getLayersWithData() : Collections.singletonList(d.getLayer());
+			final Rectangle box = d.getBoundingBox();
+			for (final Layer la : lwd) {
+				if (null == la) continue;
+				for (final Displayable c : ls.findZDisplayables(Connector.class, la, box, false)) {
+					if (null == live || live.contains(c)) dirty.add((Connector)c);
+				}
+			}
+		}
+		if (!layers.isEmpty()) {
+			final Set<Layer> touched = new HashSet<Layer>(layers);
+			for (final Connector con : current) {
+				if (dirty.contains(con)) continue;
+				for (final Layer la : con.getLayersWithData()) {
+					if (touched.contains(la)) {
+						dirty.add(con);
+						break;
+					}
+				}
+			}
+		}
+		if (dirty.isEmpty()) return;
+
+		final ArrayList<Entry> fresh = new ArrayList<Entry>(dirty.size());
+		try {
+			Process.progressive(dirty, new TaskFactory<Connector,Entry>() {
+				@Override
+				public Entry process(final Connector con) {
+					return new Entry(con);
+				}
+			}, fresh);
+		} catch (final Exception e) {
+			IJError.print(e);
+		}
+		for (final Entry e : fresh) {
+			if (null == e) continue;
+			final Entry old = entries.put(e.con, e);
+			if (null != old) unregister(old);
+			register(e);
+		}
+	}
+
+	private final void register(final Entry e) {
+		for (final Displayable o : e.origins) add(outgoing, o, e.con);
+		for (final Displayable[] ts : e.targets) {
+			for (final Displayable t : ts) add(incoming, t, e.con);
+		}
+	}
+
+	private final void unregister(final Entry e) {
+		for (final Displayable o : e.origins) remove(outgoing, o, e.con);
+		for (final Displayable[] ts : e.targets) {
+			for (final Displayable t : ts) remove(incoming, t, e.con);
+		}
+	}
+
+	static private final void add(final Map<Displayable,Set<Connector>> m, final Displayable d, final Connector con) {
+		Set<Connector> s = m.get(d);
+		if (null == s) {
+			s = new HashSet<Connector>(4);
+			m.put(d, s);
+		}
+		s.add(con);
+	}
+
+	static private final void remove(final Map<Displayable,Set<Connector>> m, final Displayable d, final Connector con) {
+		final Set<Connector> s = m.get(d);
+		if (null == s) return;
+		s.remove(con);
+		if (s.isEmpty()) m.remove(d);
+	}
+
+	/** Same as {@link Connector#getOrigins()}, from the index. */
+	public synchronized Set<Displayable> getOrigins(final Connector con) {
+		update();
+		final Entry e = entries.get(con);
+		if (null == e) return new HashSet<Displayable>();
+		return new HashSet<Displayable>(Arrays.asList(e.origins));
+	}
+
+	/** Same as {@link Connector#getTargets()}, from the index. */
+	public synchronized List<Set<Displayable>> getTargets(final Connector con) {
+		update();
+		final List<Set<Displayable>> al = new ArrayList<Set<Displayable>>();
+		final Entry e = entries.get(con);
+		if (null == e) return al;
+		for (final Displayable[] ts : e.targets) al.add(new HashSet<Displayable>(Arrays.asList(ts)));
+		return al;
+	}
+
+	/** The connectors that have {@code d} as one of their origins. */
+	public synchronized Set<Connector> getOutgoing(final Displayable d) {
+		update();
+		final Set<Connector> s = outgoing.get(d);
+		return null == s ? new HashSet<Connector>() : new HashSet<Connector>(s);
+	}
+
+	/** The connectors that have {@code d} as one of their targets. */
+	public synchronized Set<Connector> getIncoming(final Displayable d) {
+		update();
+		final Set<Connector> s = incoming.get(d);
+		return null == s ? new HashSet<Connector>() : new HashSet<Connector>(s);
+	}
+
+	/** The postsynaptic partners of {@code d}, each with the number of synapses from {@code d} onto it. */
+	public synchronized Map<Displayable,Integer> getDownstream(final Displayable d) {
+		update();
+		final Map<Displayable,Integer> m = new HashMap<Displayable,Integer>();
+		final Set<Connector> s = outgoing.get(d);
+		if (null == s) return m;
+		for (final Connector con : s) {
+			for (final Displayable[] ts : entries.get(con).targets) {
+				for (final Displayable t : ts) increment(m, t);
+			}
+		}
+		return m;
+	}
+
+	/** The presynaptic partners of {@code d}, each with the number of synapses from it onto {@code d}. */
+	public synchronized Map<Displayable,Integer> getUpstream(final Displayable d) {
+		update();
+		final Map<Displayable,Integer> m = new HashMap<Displayable,Integer>();
+		final Set<Connector> s = incoming.get(d);
+		if (null == s) return m;
+		for (final Connector con : s) {
+			final Entry e = entries.get(con);
+			// one synapse per target node of the connector that lands on d
+			int n = 0;
+			for (final Displayable[] ts : e.targets) {
+				for (final Displayable t : ts) if (t == d) n++;
+			}
+			for (final Displayable o : e.origins) {
+				for (int i=0; i<n; i++) increment(m, o);
+			}
+		}
+		return m;
+	}
+
+	static private final void increment(final Map<Displayable,Integer> m, final Displayable d) {
+		final Integer n = m.get(d);
+		m.put(d, null == n ? 1 : n + 1);
+	}
+
+	/** The number of synapses from {@code d} onto any other object. */
+	public synchronized int getOutDegree(final Displayable d) {
+		int n = 0;
+		for (final Integer k : getDownstream(d).values()) n += k;
+		return n;
+	}
+
+	/** The number of synapses from any other object onto {@code d}. */
+	public synchronized int getInDegree(final Displayable d) {
+		int n = 0;
+		for (final Integer k : getUpstream(d).values()) n += k;
+		return n;
+	}
+
+	/** All edges of the graph, one per origin and target of every {@link Connector}. */
+	public synchronized List<Edge> getEdges() {
+		return getSubgraph(null);
+	}
+
+	/** The edges between any two objects of {@code ds}, or all edges when {@code ds} is null. */
+	public synchronized List<Edge> getSubgraph(final Collection<? extends Displayable> ds) {
+		update();
+		final Set<Displayable> within = null == ds ? null : new HashSet<Displayable>(ds);
+		final Set<Connector> cons = new HashSet<Connector>();
+		if (null == within) cons.addAll(entries.keySet());
+		else {
+			for (final Displayable d : within) {
+				final Set<Connector> s = outgoing.get(d);
+				if (null != s) cons.addAll(s);
+			}
+		}
+		final ArrayList<Edge> edges = new ArrayList<Edge>();
+		for (final Connector con : cons) {
+			final Entry e = entries.get(con);
+			for (final Displayable o : e.origins) {
+				if (null != within && !within.contains(o)) continue;
+				for (final Displayable[] ts : e.targets) {
+					for (final Displayable t : ts) {
+						if (null == within || within.contains(t)) edges.add(new Edge(con, o, t));
+					}
+				}
+			}
+		}
+		return edges;
+	}
+
+	/** The file that stores the index, or null when the project is not stored in an XML file. */
+	private final File getFile() {
+		final Loader loader = ls.getProject().getLoader();
+		if (!(loader instanceof FSLoader) || null == ((FSLoader)loader).getProjectXMLPath()) return null;
+		return new File(loader.getUNUIdFolder() + "trakem2.connectivity/" + ls.getId() + ".bin");
+	}
+
+	/** Store the index, if it has ever been used, along with the length and modification time of the project's XML file.
+	 *  Meant to be called right after saving the XML file. Returns true on success. */
+	public synchronized boolean save() {
+		if (!initialized) return false;
+		final File f = getFile();
+		if (null == f) return false;
+		update();
+		final File xml = new File(((FSLoader)ls.getProject().getLoader()).getProjectXMLPath());
+		f.getParentFile().mkdirs();
+		final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+		DataOutputStream out = null;
+		boolean written = false;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(xml.getAbsolutePath());
+			out.writeLong(xml.length());
+			out.writeLong(xml.lastModified());
+			out.writeInt(entries.size());
+			for (final Entry e : entries.values()) {
+				out.writeLong(e.con.getId());
+				writeIds(out, e.origins);
+				out.writeInt(e.targets.length);
+				for (final Displayable[] ts : e.targets) writeIds(out, ts);
+			}
+			written = true;
+		} catch (final Throwable t) {
+			Utils.log2("Could not store the connectivity index at " + f + " : " + t);
+		} finally {
+			if (null != out) try { out.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+		if (!written || !(tmp.renameTo(f) || (f.delete() && tmp.renameTo(f)))) {
+			tmp.delete();
+			return false;
+		}
+		return true;
+	}
+
+	static private final void writeIds(final DataOutputStream out, final Displayable[] ds) throws IOException {
+		out.writeInt(ds.length);
+		for (final Displayable d : ds) out.writeLong(d.getId());
+	}
+
+	/** Read the stored index if it matches the project's XML file. Entries that refer to objects
+	 *  that no longer exist are skipped, and will be looked up again. */
+	private final boolean load() {
+		final File f = getFile();
+		if (null == f || !f.exists()) return false;
+		final File xml = new File(((FSLoader)ls.getProject().getLoader()).getProjectXMLPath());
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (MAGIC != in.readInt() || VERSION != in.readInt()
+			 || !xml.getAbsolutePath().equals(in.readUTF())
+			 || xml.length() != in.readLong()
+			 || xml.lastModified() != in.readLong()) {
+				Utils.log2("Connectivity index at " + f + " is out of date.");
+				return false;
+			}
+			final HashMap<Long,Displayable> ids = new HashMap<Long,Displayable>();
+			for (final ZDisplayable zd : ls.getZDisplayables()) ids.put(zd.getId(), zd);
+			for (final Layer la : ls.getLayers()) {
+				for (final Displayable d : la.getDisplayables()) ids.put(d.getId(), d);
+			}
+			final ArrayList<Entry> read = new ArrayList<Entry>();
+			for (int i=in.readInt(); i>0; i--) {
+				final Displayable con = ids.get(in.readLong());
+				final Displayable[] origins = readIds(in, ids);
+				final Displayable[][] targets = new Displayable[in.readInt()][];
+				boolean valid = con instanceof Connector && null != origins;
+				for (int k=0; k<targets.length; k++) {
+					targets[k] = readIds(in, ids);
+					valid = valid && null != targets[k];
+				}
+				if (valid) read.add(new Entry((Connector)con, origins, targets));
+			}
+			for (final Entry e : read) {
+				entries.put(e.con, e);
+				register(e);
+			}
+			return true;
+		} catch (final Throwable t) {
+			Utils.log2("Could not read the connectivity index at " + f + " : " + t);
+			entries.clear();
+			outgoing.clear();
+			incoming.clear();
+			return false;
+		} finally {
+			if (null != in) try { in.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+	}
+
+	/** Returns null if any of the ids is not found, after reading them all. */
+	static private final Displayable[] readIds(final DataInputStream in, final Map<Long,Displayable> ids) throws IOException {
+		final Displayable[] ds = new Displayable[in.readInt()];
+		boolean valid = true;
+		for (int i=0; i<ds.length; i++) {
+			ds[i] = ids.get(in.readLong());
+			valid = valid && null != ds[i];
+		}
+		return valid ? ds : null;
+	}
+}
@@ -57,14 +57,15 @@ public class Graph {
 							names = new StringBuilder(4096);
 		
 		final Set<Displayable> seen = new HashSet<Displayable>();
+		final ConnectivityIndex index = ls.getConnectivityIndex();
 
 		for (final Connector con : ls.getAll(Connector.class)) {
-			Set<Displayable> origins = con.getOrigins();
+			Set<Displayable> origins = index.getOrigins(con);
 			if (origins.isEmpty()) {
 				Utils.log("Graph: ignoring connector without origins: #" + con.getId());
 				continue;
 			}
-			List<Set<Displayable>> target_lists = con.getTargets();
+			List<Set<Displayable>> target_lists = index.getTargets(con);
 			if (target_lists.isEmpty()) {
 				Utils.log("Graph: ignoring connector without targets: #" + con.getId());
 				continue;
@@ -37,8 +37,6 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.PathIterator;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -76,13 +74,13 @@ import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ini.trakem2.Project;
-import ini.trakem2.display.paint.USHORTPaint;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.utils.AreaUtils;
 import ini.trakem2.utils.CircularSequence;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.M;
 import ini.trakem2.utils.ProjectToolbar;
+import ini.trakem2.utils.RunLengthArea;
 import ini.trakem2.utils.Utils;
 
 /** A list of brush painted areas similar to a set of labelfields in Amira.
@@ -1123,123 +1121,21 @@ public class AreaList extends ZDisplayable implements AreaContainer, VectorData
 				public void run() {
 					Utils.showProgress(slice / len);
 
-					final ImageProcessor ip;
-
-					if (ImagePlus.GRAY8 == type) {
-						final BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-						final Graphics2D g = bi.createGraphics();
-
-						for (final AreaList ali : list) {
-							final Area area = ali.getArea(la);
-							if (null == area || area.isEmpty()) continue;
-							// Transform: the scale and the roi
-							final AffineTransform aff = new AffineTransform();
-							// reverse order of transformations:
-							/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
-							/* 2 - To roi coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
-							/* 1 - To world coordinates: */ aff.concatenate(ali.at);
-							g.setTransform(aff);
-							final int label = labels.get(ali);
-							g.setColor(new Color(label, label, label));
-							g.fill(area);
-						}
-						g.dispose();
-						ip = new ByteProcessor(bi);
-						bi.flush();
-
-					} else if (ImagePlus.GRAY16 == type) {
-						final USHORTPaint paint = new USHORTPaint((short)0);
-						final BufferedImage bi = new BufferedImage(paint.getComponentColorModel(), paint.getComponentColorModel().createCompatibleWritableRaster(width, height), false, null);
-						final Graphics2D g = bi.createGraphics();
-						//final ColorSpace ugray = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-
-						int painted = 0;
-
-						for (final AreaList ali : list) {
-							final Area area = ali.getArea(la);
-							if (null == area || area.isEmpty()) continue;
-							// Transform: the scale and the roi
-							final AffineTransform aff = new AffineTransform();
-							// reverse order of transformations:
-							/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
-							/* 2 - To roi coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
-							/* 1 - To world coordinates: */ aff.concatenate(ali.at);
-							// Fill
-							g.setTransform(aff);
-
-							// The color doesn't work: paints in a stretched 8-bit mode
-							//g.setColor(new Color(ugray, new float[]{((float)labels.get(d)) / range}, 1));
-
-							Utils.log2("value: " + labels.get(ali).shortValue());
-							paint.setValue(labels.get(ali).shortValue());
-							g.setPaint(paint);
-
-							g.fill(area); //.createTransformedArea(aff));
-
-							painted += 1;
-						}
-						g.dispose();
-						ip = new ShortProcessor(bi);
-						bi.flush();
-
-						Utils.log2("painted: " + painted);
-
-					} else {
-						// Option 1: could use the same as above, but shifted by 65536, so that 65537 is 1, 65538 is 2, etc.
-						//           and keep doing it until no more need to be shifted.
-						//           The PROBLEM: cannot keep the order without complicated gymnastics to remember
-						//           which label in which image has to be merged to the final image, which prevent
-						//           a simple one-pass blitter.
-						//
-						// Option 2: paint each arealist, extract the image, use it as a mask for filling:
-
-						final FloatProcessor fp = new FloatProcessor(width, height);
-						final float[] fpix = (float[]) fp.getPixels();
-						ip = fp;
-
-						final BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-						final Graphics2D gbi = bi.createGraphics();
-
-						for (final AreaList ali : list) {
-							final Area area = ali.getArea(la);
-							if (null == area || area.isEmpty()) {
-								continue;
-							}
-							// Transform: the scale and the roi
-							// reverse order of transformations:
-							final AffineTransform aff = new AffineTransform();
-							/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
-							/* 2 - To ROI coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
-							/* 1 - To world coordinates: */ aff.concatenate(ali.at);
-							final Area s = area.createTransformedArea(aff);
-							final Rectangle sBounds = s.getBounds();
-							// Need to paint at all?
-							if (0 == sBounds.width || 0 == sBounds.height || !sBounds.intersects(0, 0, width, height)) continue;
-							// Paint shape
-							gbi.setColor(Color.white);
-							gbi.fill(s);
-							// Read out painted region
-							final int x0 = Math.max(0, sBounds.x);
-							final int y0 = Math.max(0, sBounds.y);
-							final int xN = Math.min(width, sBounds.x + sBounds.width);
-							final int yN = Math.min(height, sBounds.y + sBounds.height);
-							// Get the array
-							final byte[] bpix = ((DataBufferByte)bi.getRaster().getDataBuffer()).getData();
-							final float value = labels.get(ali);
-							// For every non-black pixel, set a 'value' pixel in the FloatProcessor
-							for (int y = y0; y < yN; ++y) {
-								for (int x = x0; x < xN; ++x) {
-									final int pos = y * width + x;
-									if (0 == bpix[pos]) continue; // black
-									fpix[pos] = value;
-								}
-							}
-							// Clear image region
-							gbi.setColor(Color.black);
-							gbi.fill(s);
-						}
-						gbi.dispose();
-						bi.flush();
+					final ImageProcessor ip = ImagePlus.GRAY8 == type ? new ByteProcessor(width, height)
+					                        : ImagePlus.GRAY16 == type ? new ShortProcessor(width, height)
+					                        : new FloatProcessor(width, height);
+
+					// Set the pixels inside each Area to its label, run by run; later AreaLists paint over earlier ones
+					for (final AreaList ali : list) {
+						final Area area = ali.getArea(la);
+						if (null == area || area.isEmpty()) continue;
+						// Transform: the scale and the roi
+						final AffineTransform aff = new AffineTransform();
+						// reverse order of transformations:
+						/* 3 - To scale: */ if (1 != scale) aff.scale(scale, scale);
+						/* 2 - To roi coordinates: */ if (null != broi) aff.translate(-broi.x, -broi.y);
+						/* 1 - To world coordinates: */ aff.concatenate(ali.at);
+						RunLengthArea.fromArea(area, aff, new Rectangle(0, 0, width, height)).fill(ip, 0, 0, labels.get(ali));
 					}
 
 					slices.put(slice, ip);
@@ -134,13 +134,19 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 				this.aw.getArea().reset();
 			} else {
 				if (null != this.aw) this.aw.putData(area);
-				else this.aw = new AreaWrapper(area);
+				else {
+					this.aw = new AreaWrapper(area);
+					modified();
+				}
 			}
 			return true;
 		}
 		@Override
 		public final synchronized Area getData() {
-			if (null == this.aw) this.aw = new AreaWrapper();
+			if (null == this.aw) {
+				this.aw = new AreaWrapper();
+				modified();
+			}
 			return this.aw.getArea();
 		}
 		@Override
@@ -195,6 +201,12 @@ public class AreaTree extends Tree<Area> implements AreaContainer {
 			return M.intersects(a, aw.getArea());
 		}
 
+		/** The area may be edited in place, so its extent can't be known in advance. */
+		@Override
+		protected float getDataExtent() {
+			return null == aw ? 0 : -1;
+		}
+
 		@Override
 		public boolean isRoughlyInside(final Rectangle localbox) {
 			if (null == aw) return localbox.contains((int)x, (int)y);
@@ -3299,6 +3299,7 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 		item = new JMenuItem("Tags..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("Connectivity graph..."); item.addActionListener(this); menu.add(item);
 		item = new JMenuItem("NeuroML..."); item.addActionListener(this); menu.add(item);
+		item = new JMenuItem("Meshes (Wavefront OBJ)..."); item.addActionListener(this); menu.add(item);
 		popup.add(menu);
 
 		menu = new JMenu("Display");
@@ -6277,6 +6278,51 @@ public final class Display extends DBObject implements ActionListener, IJEventLi
 					}
 				}
 			}, getProject());
+		} else if (command.equals("Meshes (Wavefront OBJ)...")) {
+			final GenericDialog gd = new GenericDialog("Export meshes");
+			final String[] b = new String[]{"All objects", "Selected objects"};
+			gd.addChoice("Export:", b, b[0]);
+			final LayerSet ls = getLayerSet();
+			gd.addSlider("Resample:", 1, 100, Display3D.estimateResamplingFactor(ls, ls.getLayerWidth(), ls.getLayerHeight()));
+			gd.addStringField("Levels of detail (% of triangles):", "100, 50, 10", 20);
+			gd.showDialog();
+			if (gd.wasCanceled()) return;
+			final int export = gd.getNextChoiceIndex();
+			final int resample = Math.max(1, (int)gd.getNextNumber());
+			final String[] sp = gd.getNextString().split("[,\\s]+");
+			final ArrayList<Integer> ps = new ArrayList<Integer>();
+			for (final String t : sp) {
+				if (0 == t.length()) continue;
+				try {
+					final int percent = Integer.parseInt(t);
+					if (percent > 0 && percent <= 100) ps.add(percent);
+					else Utils.log("Ignoring invalid level of detail " + t);
+				} catch (final NumberFormatException nfe) {
+					Utils.log("Ignoring invalid level of detail " + t);
+				}
+			}
+			if (ps.isEmpty()) return;
+			Collections.sort(ps, Collections.reverseOrder());
+			final int[] percents = new int[ps.size()];
+			for (int i=0; i<percents.length; i++) percents[i] = ps.get(i);
+			//
+			final SaveDialog sd = new SaveDialog("Choose .obj file", null, ".obj");
+			final String filename = sd.getFileName();
+			if (null == filename) return; // canceled
+			final String path = sd.getDirectory() + filename;
+			//
+			Bureaucrat.createAndStart(new Worker.Task("Export meshes") {
+				@Override
+                public void exec() {
+					try {
+						final Collection<? extends Displayable> ds = 0 == export ? ls.getZDisplayables() : selection.getSelected();
+						final int count = Display3D.exportOBJ(ds, resample, percents, path);
+						Utils.log("Exported " + count + " meshes to " + path);
+					} catch (final Throwable t) {
+						IJError.print(t);
+					}
+				}
+			}, getProject());
 		} else if (command.equals("Measure")) {
 			if (selection.isEmpty()) {
 				Utils.log("Nothing selected to measure!");
@@ -25,7 +25,12 @@ import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -66,8 +71,10 @@ import ij3d.UniverseListener;
 import ini.trakem2.display.d3d.ControlClickBehavior;
 import ini.trakem2.display.d3d.Display3DGUI;
 import ini.trakem2.imaging.PatchStack;
+import ini.trakem2.persistence.MeshCache;
 import ini.trakem2.tree.ProjectThing;
 import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.IndexedMesh;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.vector.VectorString3D;
 
@@ -797,7 +804,7 @@ public final class Display3D {
 				try {
 
 		// the list 'triangles' is really a list of Point3f, which define a triangle every 3 consecutive points. (TODO most likely Bene Schmid got it wrong: I don't think there's any need to have the points duplicated if they overlap in space but belong to separate triangles.)
-		final List<Point3f> triangles;
+		List<Point3f> triangles;
 		//boolean no_culling_ = false;
 
 		final Class<?> c;
@@ -824,41 +831,44 @@ public final class Display3D {
 			if (-1 == resample) rs = Display3D.this.resample = adjustResampling(); // will adjust this.resample, and return it (even if it's a default value)
 			else rs = Display3D.this.resample;
 		}
-		if (AreaList.class == c) {
-			triangles = ((AreaList)displ).generateTriangles(scale, rs);
-			//triangles = removeNonManifold(triangles);
-		} else if (Ball.class == c) {
-			final double[][][] globe = Ball.generateGlobe(12, 12);
-			triangles = ((Ball)displ).generateTriangles(scale, globe);
-		} else if (displ instanceof Line3D) {
-			// Pipe and Polyline
-			// adjustResampling();  // fails horribly, needs first to correct mesh-generation code
-			triangles = ((Line3D)displ).generateTriangles(scale, 12, 1 /*Display3D.this.resample*/);
-		} else if (displ instanceof Tree<?>) {
-			// A 3D wire skeleton, using CustomLineMesh
-			final Tree.MeshData skeleton = ((Tree<?>)displ).generateSkeleton(scale, 12, 1);
-			triangles = skeleton.verts;
-			triangle_colors = skeleton.colors;
-			if (displ instanceof Treeline) {
-				final Tree.MeshData tube = ((Treeline)displ).generateMesh(scale, 12);
-				extra_triangles = tube.verts;
-				extra_triangle_colors = tube.colors;
-			} else if (displ instanceof AreaTree) {
-				final Tree.MeshData mesh = ((AreaTree)displ).generateMesh(scale, rs);
-				extra_triangles = mesh.verts;
-				extra_triangle_colors = mesh.colors;
-			}
-			if (null != extra_triangles && extra_triangles.isEmpty()) extra_triangles = null; // avoid issues with MultiMesh
-		} else if (Connector.class == c) {
-			final Tree.MeshData octopus = ((Connector)displ).generateMesh(scale, 12);
-			triangles = octopus.verts;
-			triangle_colors = octopus.colors;
+		// Read the mesh from the on-disk cache if the object has not changed since it was stored
+		final MeshCache mesh_cache = null == displ ? null : displ.getProject().getLoader().getMeshCache();
+		final int cache_rs = displ instanceof AreaContainer ? rs : 1;
+		final int mesh_detail = Math.max(1, Math.min(100, pt.getProject().getProperty("mesh_detail", 100)));
+		final long version = null == mesh_cache ? 0 : 31 * mesh_cache.getVersion(displ) + mesh_detail;
+		final MeshCache.Mesh cached = null == mesh_cache ? null : mesh_cache.get(displ, cache_rs, scale, version);
+		if (null != cached) {
+			triangles = cached.triangles;
+			triangle_colors = cached.colors;
+			extra_triangles = cached.extra_triangles;
+			extra_triangle_colors = cached.extra_colors;
 		} else if (null == displ && pt.getType().equals("profile_list")) {
 			triangles = Profile.generateTriangles(pt, scale);
 			//no_culling_ = true;
 		} else {
-			Utils.log("Unrecognized type for 3D mesh generation: " + (null != displ ? displ.getClass() : null) + " : " + displ);
-			triangles = null;
+			final MeshCache.Mesh mesh = generateMesh(displ, scale, rs);
+			if (null == mesh) {
+				Utils.log("Unrecognized type for 3D mesh generation: " + (null != displ ? displ.getClass() : null) + " : " + displ);
+				triangles = null;
+			} else {
+				triangles = mesh.triangles;
+				triangle_colors = mesh.colors;
+				extra_triangles = mesh.extra_triangles;
+				extra_triangle_colors = mesh.extra_colors;
+			}
+		}
+		// Reduce the number of triangles to the percentage set in the project properties
+		if (null == cached && mesh_detail < 100) {
+			if (!line_mesh && null != triangles) {
+				final IndexedMesh im = decimate(triangles, triangle_colors, mesh_detail);
+				triangles = im.toTriangles();
+				triangle_colors = im.toColors();
+			}
+			if (null != extra_triangles) {
+				final IndexedMesh im = decimate(extra_triangles, extra_triangle_colors, mesh_detail);
+				extra_triangles = im.toTriangles();
+				extra_triangle_colors = im.toColors();
+			}
 		}
 		// safety checks
 		if (null == triangles) {
@@ -873,6 +883,9 @@ public final class Display3D {
 			Utils.log2("Skipping non-multiple-of-3 vertices list generated for " + displ.getTitle());
 			return null;
 		}
+		if (null != mesh_cache && null == cached) {
+			mesh_cache.put(displ, cache_rs, scale, version, new MeshCache.Mesh(triangles, triangle_colors, extra_triangles, extra_triangle_colors));
+		}
 
 		final Color color;
 		final float alpha;
@@ -973,6 +986,94 @@ public final class Display3D {
 		}};
 	}
 
+	/** Generate the mesh of {@code displ} as shown in the 3D viewer: a triangle soup, or a list of line segments
+	 *  for the skeleton of a {@link Tree} or a {@link Polyline}, plus the optional extra triangle mesh of a {@link Tree}.
+	 *  Returns null if {@code displ} has no 3D representation.
+	 *  @param resample The resampling of {@link AreaContainer} instances. */
+	static public MeshCache.Mesh generateMesh(final Displayable displ, final double scale, final int resample) {
+		if (null == displ) return null;
+		final Class<?> c = displ.getClass();
+		List<Point3f> triangles = null,
+		              extra_triangles = null;
+		List<Color3f> triangle_colors = null,
+		              extra_triangle_colors = null;
+		if (AreaList.class == c) {
+			triangles = ((AreaList)displ).generateTriangles(scale, resample);
+			//triangles = removeNonManifold(triangles);
+		} else if (Ball.class == c) {
+			final double[][][] globe = Ball.generateGlobe(12, 12);
+			triangles = ((Ball)displ).generateTriangles(scale, globe);
+		} else if (displ instanceof Line3D) {
+			// Pipe and Polyline
+			// adjustResampling();  // fails horribly, needs first to correct mesh-generation code
+			triangles = ((Line3D)displ).generateTriangles(scale, 12, 1 /*Display3D.this.resample*/);
+		} else if (displ instanceof Tree<?>) {
+			// A 3D wire skeleton, using CustomLineMesh
+			final Tree.MeshData skeleton = ((Tree<?>)displ).generateSkeleton(scale, 12, 1);
+			triangles = skeleton.verts;
+			triangle_colors = skeleton.colors;
+			if (displ instanceof Treeline) {
+				final Tree.MeshData tube = ((Treeline)displ).generateMesh(scale, 12);
+				extra_triangles = tube.verts;
+				extra_triangle_colors = tube.colors;
+			} else if (displ instanceof AreaTree) {
+				final Tree.MeshData mesh = ((AreaTree)displ).generateMesh(scale, resample);
+				extra_triangles = mesh.verts;
+				extra_triangle_colors = mesh.colors;
+			}
+			if (null != extra_triangles && extra_triangles.isEmpty()) extra_triangles = null; // avoid issues with MultiMesh
+		} else if (Connector.class == c) {
+			final Tree.MeshData octopus = ((Connector)displ).generateMesh(scale, 12);
+			triangles = octopus.verts;
+			triangle_colors = octopus.colors;
+		} else {
+			return null;
+		}
+		return new MeshCache.Mesh(triangles, triangle_colors, extra_triangles, extra_triangle_colors);
+	}
+
+	/** Weld the vertices of a triangle soup and decimate it to {@code percent} of its triangles. */
+	static private IndexedMesh decimate(final List<Point3f> triangles, final List<Color3f> colors, final int percent) {
+		final IndexedMesh im = IndexedMesh.weld(triangles, colors, 0);
+		return im.decimate((int)((im.getTriangleCount() * (long)percent) / 100));
+	}
+
+	/** Write the surface meshes of {@code ds} as Wavefront OBJ files, one per level of detail:
+	 *  {@code path} for the first, with ".lod" and the percentage appended to the name of the others.
+	 *  The surface of a {@link Tree} is its extra mesh, and a {@link Tree} or {@link Polyline} without one is skipped.
+	 *  @param percents The percentages of triangles to keep in each level, in decreasing order.
+	 *  @return The number of objects written. */
+	static public int exportOBJ(final Collection<? extends Displayable> ds, final int resample, final int[] percents, final String path) throws IOException {
+		final float[] fractions = new float[percents.length];
+		final Writer[] ws = new Writer[percents.length];
+		final int[] n_vertices = new int[percents.length];
+		int count = 0;
+		try {
+			for (int i=0; i<percents.length; i++) {
+				fractions[i] = percents[i] / 100.0f;
+				final String name = 0 == i ? path : (path.toLowerCase().endsWith(".obj") ? path.substring(0, path.length() - 4) : path) + ".lod" + percents[i] + ".obj";
+				ws[i] = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(name), 65536), "8859_1");
+			}
+			for (final Displayable d : ds) {
+				final MeshCache.Mesh mesh = generateMesh(d, 1.0, resample);
+				if (null == mesh) continue;
+				final List<Point3f> triangles = d instanceof Tree<?> || d instanceof Polyline ? mesh.extra_triangles : mesh.triangles;
+				if (null == triangles || triangles.isEmpty()) continue;
+				final IndexedMesh[] levels = IndexedMesh.weld(triangles, null, 0).levelsOfDetail(fractions);
+				final String title = makeTitle(d);
+				for (int i=0; i<levels.length; i++) {
+					n_vertices[i] += levels[i].writeOBJ(ws[i], title, n_vertices[i]);
+				}
+				++count;
+			}
+		} finally {
+			for (final Writer w : ws) {
+				if (null != w) try { w.close(); } catch (final IOException ioe) { IJError.print(ioe); }
+			}
+		}
+		return count;
+	}
+
 	static public class VectorStringContent {
 		VectorString3D vs;
 		String title;
@@ -58,6 +58,8 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** For fast search. */
 	Bucket root = null;
 	private HashMap<Displayable,HashSet<Bucket>> db_map = null;
+	/** The latest changes to the nodes of any {@link Tree} in this layer, to update their {@link NodeIndex}. */
+	final NodeIndex.Changes node_changes = new NodeIndex.Changes();
 
 	private double z = 0;
 	private double thickness = 0;
@@ -291,6 +293,7 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 				// find and update the range of affected Displayable objects
 				root.updateRange(this, displ, stack_index, d.length); // first to last indices affected
 			}
+			parent.connectivityChanged(displ, this);
 		}
 
 		if (update_displays) {
@@ -1063,6 +1066,8 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	}
 
 	synchronized public void recreateBuckets() {
+		// Rebuilding existing buckets follows changes that were not reported one by one
+		if (null != this.root) parent.connectivityChanged(null, this);
 		this.root = new Bucket(0, 0, (int)(0.00005 + getLayerWidth()), (int)(0.00005 + getLayerHeight()), Bucket.getBucketSide(this, this));
 		this.db_map = new HashMap<Displayable,HashSet<Bucket>>();
 		this.root.populate(this, this, db_map);
@@ -1072,7 +1077,10 @@ public final class Layer extends DBObject implements Bucketable, Comparable<Laye
 	/** Update buckets of a position change for the given Displayable. */
 	@Override
 	public void updateBucket(final Displayable d, final Layer layer) { // ignore layer
-		if (null != root) root.updatePosition(d, this, db_map);
+		if (null != root) {
+			root.updatePosition(d, this, db_map);
+			parent.connectivityChanged(d, this);
+		}
 	}
 
 	public void checkBuckets() {
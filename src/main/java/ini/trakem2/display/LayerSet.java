@@ -30,10 +30,12 @@ import ij.gui.GenericDialog;
 import ij.measure.Calibration;
 import ini.trakem2.ControlWindow;
 import ini.trakem2.Project;
+import ini.trakem2.analysis.ConnectivityIndex;
 import ini.trakem2.imaging.LayerStack;
 import ini.trakem2.parallel.Process;
 import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.persistence.DBObject;
+import ini.trakem2.persistence.MeshCache;
 import ini.trakem2.persistence.XMLOptions;
 import ini.trakem2.tree.LayerThing;
 import ini.trakem2.tree.ProjectThing;
@@ -862,6 +864,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		}
 		*/
 		addToBuckets(zdispl, al_zdispl.size()-1);
+		getConnectivityIndex().added(zdispl);
 
 		Display.add(this, zdispl);
 	}
@@ -875,6 +878,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			zd.updateInDatabase("layer_set_id");
 		}
 		recreateBuckets(false); // only ZDisplayable
+		for (final ZDisplayable zd : coll) getConnectivityIndex().added(zd);
 		Display.addAll(this, coll);
 	}
 
@@ -904,6 +908,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		al_zdispl.remove(old_stack_index);
 		// remove from Bucket AFTER modifying stack index, so it gets reindexed properly
 		removeFromBuckets(zdispl, old_stack_index);
+		getConnectivityIndex().removed(zdispl);
 		removeFromOffscreens(zdispl);
 		Display.remove(zdispl);
 		return true;
@@ -926,6 +931,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			}
 		}
 		removeFromBuckets(zds);
+		for (final ZDisplayable zd : zds) getConnectivityIndex().removed(zd);
 		Display.updateVisibleTabs(this.project);
 		return true;
 	}
@@ -1530,6 +1536,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	public void setCalibration(Calibration cal) {
 		if (null == cal) return;
 		this.calibration = (Calibration)cal.clone();
+		meshesChanged();
 	}
 
 	public Calibration getCalibration() {
@@ -1807,10 +1814,31 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	}
 
 	public void updateBucket(final Displayable d, final Layer layer) {
+		final LayerBucket lb;
 		synchronized (lbucks) {
-			final LayerBucket lb = lbucks.get(layer);
+			lb = lbucks.get(layer);
 			if (null != lb) lb.root.updatePosition(d, layer, lb.db_map);
 		}
+		if (null != lb) connectivityChanged(d, layer);
+	}
+
+	private final Object connectivity_lock = new Object();
+	private ConnectivityIndex connectivity = null;
+
+	/** The index of the synapses among the objects of this LayerSet, created on first use. */
+	public ConnectivityIndex getConnectivityIndex() {
+		synchronized (connectivity_lock) {
+			if (null == connectivity) connectivity = new ConnectivityIndex(this);
+			return connectivity;
+		}
+	}
+
+	/** Report to the {@link ConnectivityIndex} a change of {@code d}, or of any object in {@code layer} when {@code d} is null.
+	 *  Bucket updates only report changes once buckets exist, so that building a project while opening it is not reported;
+	 *  additions and removals through {@link #add(ZDisplayable)} and {@link #remove(ZDisplayable)} are always reported. */
+	void connectivityChanged(final Displayable d, final Layer layer) {
+		if (null == d) getConnectivityIndex().changed(layer);
+		else getConnectivityIndex().changed(d);
 	}
 
 	/** Recreate the ZDisplayable buckets, and also the Layer Displayable buckets if desired. */
@@ -1824,9 +1852,11 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 	 */
 	public void recreateBuckets(final Layer layer, final boolean layer_buckets) {
 		LayerBucket lb = new LayerBucket(layer);
+		final LayerBucket old;
 		synchronized (lbucks) {
-			lbucks.put(layer, lb);
+			old = lbucks.put(layer, lb);
 		}
+		if (null != old) connectivityChanged(null, layer);
 		if (layer_buckets && null != layer.root) layer.recreateBuckets();
 	}
 
@@ -1849,10 +1879,13 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 		} catch (Exception e) {
 			IJError.print(e);
 		}
+		final ArrayList<Layer> rebuilt = new ArrayList<Layer>();
 		synchronized (lbucks) {
+			for (final Layer layer : m.keySet()) if (lbucks.containsKey(layer)) rebuilt.add(layer);
 			lbucks.clear();
 			lbucks.putAll(m);
 		}
+		for (final Layer layer : rebuilt) connectivityChanged(null, layer);
 	}
 
 	/** Checks only buckets for ZDisplayable, not any related to any layer. */
@@ -2069,9 +2102,17 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			redo.clear();
 		}
 
+		meshesChanged();
 		return true;
 	}
 
+	/** The versions of 3D meshes computed before an edit are stale. */
+	private void meshesChanged() {
+		if (null == project || null == project.getLoader()) return;
+		final MeshCache mc = project.getLoader().getMeshCache();
+		if (null != mc) mc.changed();
+	}
+
 	public boolean canUndo() {
 		return edit_history.size() > 0;
 	}
@@ -2112,6 +2153,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 			Display.updateVisibleTabs(project);
 		}
+		meshesChanged();
 		return true;
 	}
 
@@ -2136,6 +2178,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 			if (0 == redo.size()) {
 				Utils.logAll("Empty redo history!");
 				if (null != current_edit_step) {
+					meshesChanged();
 					return current_edit_step.apply(DoStep.REDO);
 				}
 				return false;
@@ -2164,6 +2207,7 @@ public final class LayerSet extends Displayable implements Bucketable { // Displ
 
 			Display.updateVisibleTabs(project);
 		}
+		meshesChanged();
 		return true;
 	}
 
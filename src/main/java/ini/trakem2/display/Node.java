@@ -71,11 +71,29 @@ public abstract class Node<T> implements Taggable {
 	public void setPosition(final float x, final float y) {
 		this.x = x;
 		this.y = y;
+		modified();
 	}
 	/** Expects two dimensions. */
 	public void setPosition(final float[] p) {
 		this.x = p[0];
 		this.y = p[1];
+		modified();
+	}
+
+	/** To be invoked after altering the position, edges or data of this {@link Node}.
+	 *  Logs the change in its {@link Layer}, and in the layers of its parent and children
+	 *  when different, whose edges changed too, so that each {@link NodeIndex} can catch up. */
+	final void modified() {
+		final Layer la = this.la;
+		if (null != la) la.node_changes.add(this);
+		final Node<T> parent = this.parent;
+		if (null != parent && null != parent.la && la != parent.la) parent.la.node_changes.add(this);
+		final Node<T>[] children = this.children;
+		if (null != children) {
+			for (final Node<T> child : children) {
+				if (null != child.la && la != child.la && (null == parent || parent.la != child.la)) child.la.node_changes.add(this);
+			}
+		}
 	}
 
 	/** The confidence value of the edge towards the parent;
@@ -138,7 +156,9 @@ public abstract class Node<T> implements Taggable {
 		this.la = null;
 	}
 	public void setLayer(final Layer la) {
+		if (null != this.la && la != this.la) this.la.node_changes.add(this);
 		this.la = la;
+		modified();
 	}
 	/** Returns -1 when not added (e.g. if child is null). */
 	synchronized public final int add(final Node<T> child, final byte conf) {
@@ -159,6 +179,7 @@ public abstract class Node<T> implements Taggable {
 		this.children[children.length-1] = child;
 		child.confidence = conf;
 		child.parent = this;
+		modified();
 		return children.length -1;
 	}
 	synchronized public final boolean remove(final Node<T> child) {
@@ -180,6 +201,7 @@ public abstract class Node<T> implements Taggable {
 		}
 
 		child.parent = null;
+		modified();
 
 		if (1 == children.length) {
 			children = null;
@@ -471,6 +493,7 @@ public abstract class Node<T> implements Taggable {
 	final public void translate(final float dx, final float dy) {
 		x += dx;
 		y += dy;
+		modified();
 	}
 
 	/** Returns a recursive copy of this Node subtree, where the copy of this Node is the root.
@@ -742,6 +765,12 @@ public abstract class Node<T> implements Taggable {
 	/** Expects Area in local coords. */
 	public abstract boolean intersects(Area a);
 
+	/** The maximal distance from this node's position at which its data paints,
+	 *  not counting its edges; or -1 when unbounded. Used by {@link NodeIndex} to cull nodes. */
+	protected float getDataExtent() {
+		return 0;
+	}
+
 	/** May return a false positive but never a false negative.
 	 *  Checks only for itself and towards its parent. */
 	public boolean isRoughlyInside(final Rectangle localbox) {
@@ -927,6 +956,7 @@ public abstract class Node<T> implements Taggable {
 		ct.applyInPlace(fp);
 		this.x = (float)fp[0];
 		this.y = (float)fp[1];
+		modified();
 	}
 	public void apply(final VectorDataTransform vlocal) {
 		for (final VectorDataTransform.ROITransform rt : vlocal.transforms) {
@@ -936,6 +966,7 @@ public abstract class Node<T> implements Taggable {
 				rt.ct.applyInPlace(fp);
 				x = (float)fp[0];
 				y = (float)fp[1];
+				modified();
 				break;
 			}
 		}
@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.display;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/** A read-only snapshot of a {@link Tree} as a structure of primitive arrays, one entry per {@link Node}.
+ *  Nodes are numbered in depth-first order, so that every parent comes before its children
+ *  and a single pass over the arrays can accumulate values from the root outwards.
+ *  Traversing the arrays avoids chasing {@link Node} pointers when measuring, such as cable
+ *  lengths or branch statistics. The snapshot is held in addition to the nodes, which it
+ *  keeps in {@link #nodes}: make one for a measurement and let it go afterwards.
+ *
+ *  The snapshot does not follow later edits of the {@link Tree}; use {@link #nodes} to map back. */
+public final class NodeArrays<T> {
+
+	/** The original nodes. */
+	public final Node<T>[] nodes;
+	/** Positions in local coordinates. */
+	public final float[] x, y;
+	/** The index of the {@link Layer} of each node into {@link #layers}. */
+	public final int[] layer;
+	public final Layer[] layers;
+	/** The index of the parent node, or -1 for the root. */
+	public final int[] parent;
+	/** The confidence of the edge to the parent node. */
+	public final byte[] confidence;
+	/** The radius of each node for trees of {@link Treeline.RadiusNode}, or null otherwise. */
+	public final float[] radius;
+	/** The children of node i are children[child_start[i]] to children[child_start[i+1] -1]. */
+	public final int[] child_start, children;
+
+	/** Traverses the subtree of @param root, which must not change meanwhile. */
+	@SuppressWarnings("unchecked")
+	public NodeArrays(final Node<T> root) {
+		// Depth-first, with the children in order
+		final ArrayList<Node<T>> order = new ArrayList<Node<T>>();
+		final ArrayList<Node<T>> stack = new ArrayList<Node<T>>();
+		stack.add(root);
+		while (!stack.isEmpty()) {
+			final Node<T> nd = stack.remove(stack.size() -1);
+			order.add(nd);
+			if (null == nd.children) continue;
+			for (int k=nd.children.length -1; k > -1; k--) stack.add(nd.children[k]);
+		}
+
+		final int n = order.size();
+		this.nodes = order.toArray((Node<T>[])new Node[n]);
+		this.x = new float[n];
+		this.y = new float[n];
+		this.layer = new int[n];
+		this.parent = new int[n];
+		this.confidence = new byte[n];
+		this.radius = root instanceof Treeline.RadiusNode ? new float[n] : null;
+		this.child_start = new int[n + 1];
+		this.children = new int[Math.max(0, n -1)];
+
+		final IdentityHashMap<Node<T>,Integer> indices = new IdentityHashMap<Node<T>,Integer>(n);
+		final IdentityHashMap<Layer,Integer> layer_indices = new IdentityHashMap<Layer,Integer>();
+		final ArrayList<Layer> las = new ArrayList<Layer>();
+		for (int i=0; i<n; i++) {
+			final Node<T> nd = nodes[i];
+			indices.put(nd, i);
+			x[i] = nd.x;
+			y[i] = nd.y;
+			Integer k = layer_indices.get(nd.la);
+			if (null == k) {
+				k = las.size();
+				layer_indices.put(nd.la, k);
+				las.add(nd.la);
+			}
+			layer[i] = k;
+			// The parent was numbered before
+			parent[i] = null == nd.parent || i == 0 ? -1 : indices.get(nd.parent);
+			confidence[i] = nd.confidence;
+			if (null != radius) radius[i] = ((Treeline.RadiusNode)(Node<?>)nd).r;
+			child_start[i + 1] = child_start[i] + (null == nd.children ? 0 : nd.children.length);
+		}
+		this.layers = las.toArray(new Layer[las.size()]);
+
+		// Children in increasing order of index, which is their original order
+		final int[] next = new int[n];
+		System.arraycopy(child_start, 0, next, 0, n);
+		for (int i=1; i<n; i++) children[next[parent[i]]++] = i;
+	}
+
+	public int size() {
+		return nodes.length;
+	}
+
+	public int getChildrenCount(final int i) {
+		return child_start[i + 1] - child_start[i];
+	}
+
+	/** For every node, the index of the node that {@link Node#findPreviousBranchOrRootPoint()} would return,
+	 *  or -1 for the root; computed in a single pass. */
+	public int[] findPreviousBranchOrRootPoints() {
+		final int[] prev = new int[nodes.length];
+		for (int i=0; i<prev.length; i++) {
+			final int p = parent[i];
+			if (-1 == p) prev[i] = -1;
+			else if (1 != getChildrenCount(p) || -1 == parent[p]) prev[i] = p;
+			else prev[i] = prev[p];
+		}
+		return prev;
+	}
+}
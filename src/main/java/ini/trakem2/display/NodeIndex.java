@@ -0,0 +1,478 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.display;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/** A uniform grid over the positions of the {@link Node} instances
+ *  of one {@link Layer} of a {@link Tree}, for picking, nearest-node searches
+ *  and culling when painting. The nodes are stored sorted by grid cell.
+ *
+ *  Every {@link Layer} logs the nodes that moved or changed their edges or data
+ *  (see {@link Node#modified()}). On the next query, the index of a {@link NodeSet}
+ *  of that layer takes the logged nodes out of the grid and tests them one by one,
+ *  so that dragging a node costs as much as the change and not as much as the layer.
+ *  The index is rebuilt when its set gained or lost nodes, when too many nodes moved,
+ *  or when the log of the layer overflowed. */
+public final class NodeIndex<T> {
+
+	/** Below this many nodes, linear scans are fast enough. */
+	static final int MIN_NODES = 512;
+
+	/** The most recent changes to the nodes of one {@link Layer}. */
+	static final class Changes {
+		static private final int CAPACITY = 64;
+		private final Node<?>[] log = new Node<?>[CAPACITY];
+		private long count = 0;
+
+		synchronized void add(final Node<?> nd) {
+			log[(int)(count % CAPACITY)] = nd;
+			++count;
+		}
+
+		synchronized long count() {
+			return count;
+		}
+
+		/** The nodes changed since the {@code since} count, possibly repeated; or null when no longer logged. */
+		synchronized Node<?>[] since(final long since) {
+			final long n = count - since;
+			if (n > CAPACITY || n < 0) return null;
+			final Node<?>[] nds = new Node<?>[(int)n];
+			for (int i=0; i<n; i++) nds[i] = log[(int)((since + i) % CAPACITY)];
+			return nds;
+		}
+	}
+
+	/** The {@link Changes#count()} of the layer up to which changes are accounted for. */
+	long changes_count;
+	/** The length of the longest edge from any indexed node to its parent or to its children;
+	 *  may be longer than the current longest edge after nodes moved. */
+	float max_edge;
+	/** The maximal distance from its position at which any indexed node may paint, including
+	 *  the edge to its parent; or -1 when unbounded, and then the index can't be used for culling. */
+	float reach;
+	/** Nodes that changed since the grid was built, which are tested one by one instead. */
+	private Set<Node<T>> moved = null;
+
+	private final float min_x, min_y, cell;
+	private final int nx, ny;
+	/** For every cell, the index of its first node in {@link #nodes}; one more entry marks the end. */
+	private final int[] start;
+	private final Node<T>[] nodes;
+
+	@SuppressWarnings("unchecked")
+	NodeIndex(final Collection<Node<T>> set, final long changes_count) {
+		this.changes_count = changes_count;
+		final int n = set.size();
+		final Node<T>[] unsorted = (Node<T>[])new Node[n];
+		float min_x = Float.MAX_VALUE,
+		      min_y = Float.MAX_VALUE,
+		      max_x = -Float.MAX_VALUE,
+		      max_y = -Float.MAX_VALUE;
+		float max_edge = 0,
+		      reach = 0;
+		int i = 0;
+		for (final Node<T> nd : set) {
+			unsorted[i++] = nd;
+			if (nd.x < min_x) min_x = nd.x;
+			if (nd.y < min_y) min_y = nd.y;
+			if (nd.x > max_x) max_x = nd.x;
+			if (nd.y > max_y) max_y = nd.y;
+			final float extent = nd.getDataExtent();
+			if (null == nd.parent) {
+				if (extent < 0) reach = -1;
+				else if (reach >= 0) reach = Math.max(reach, extent);
+			} else {
+				final float edge = distance(nd, nd.parent);
+				max_edge = Math.max(max_edge, edge);
+				final float parent_extent = nd.parent.getDataExtent();
+				if (extent < 0 || parent_extent < 0) reach = -1;
+				else if (reach >= 0) reach = Math.max(reach, edge + Math.max(extent, parent_extent));
+			}
+			final Node<T>[] children = nd.children;
+			if (null != children) {
+				for (final Node<T> child : children) max_edge = Math.max(max_edge, distance(nd, child));
+			}
+		}
+		this.max_edge = max_edge + 1; // margin for rounding to pixels
+		this.reach = reach < 0 ? -1 : reach + 1;
+
+		if (0 == n) {
+			min_x = min_y = max_x = max_y = 0;
+		}
+		this.min_x = min_x;
+		this.min_y = min_y;
+
+		// Aim at about 4 nodes per cell, but never more cells than 4 times the nodes
+		final double w = max_x - min_x,
+		             h = max_y - min_y;
+		float cell = (float)Math.max(1, Math.sqrt(Math.max(1, w * h) * 4 / Math.max(1, n)));
+		int nx, ny;
+		while (true) {
+			nx = (int)(w / cell) + 1;
+			ny = (int)(h / cell) + 1;
+			if ((long)nx * ny <= 4L * n + 16) break;
+			cell *= 2;
+		}
+		this.cell = cell;
+		this.nx = nx;
+		this.ny = ny;
+
+		// Counting sort of the nodes by cell
+		final int[] cells = new int[n];
+		this.start = new int[nx * ny + 1];
+		for (i=0; i<n; i++) {
+			cells[i] = cellY(unsorted[i].y) * nx + cellX(unsorted[i].x);
+			start[cells[i] + 1]++;
+		}
+		for (i=1; i<start.length; i++) start[i] += start[i-1];
+		final int[] next = new int[nx * ny];
+		System.arraycopy(start, 0, next, 0, next.length);
+		this.nodes = (Node<T>[])new Node[n];
+		for (i=0; i<n; i++) nodes[next[cells[i]]++] = unsorted[i];
+	}
+
+	static private final float distance(final Node<?> a, final Node<?> b) {
+		final float dx = a.x - b.x,
+		            dy = a.y - b.y;
+		return (float)Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private final int cellX(final float x) {
+		final int cx = (int)((x - min_x) / cell);
+		return cx < 0 ? 0 : (cx >= nx ? nx - 1 : cx);
+	}
+
+	private final int cellY(final float y) {
+		final int cy = (int)((y - min_y) / cell);
+		return cy < 0 ? 0 : (cy >= ny ? ny - 1 : cy);
+	}
+
+	/** Account for a change of {@code nd}: take it out of the grid when a {@code member} of the indexed set,
+	 *  and grow {@link #max_edge} and {@link #reach} to cover its edges and data. */
+	@SuppressWarnings("unchecked")
+	void update(final Node<?> nd, final boolean member) {
+		if (member) {
+			if (null == moved) moved = new HashSet<Node<T>>();
+			moved.add((Node<T>)nd);
+		}
+		if (null == nd.parent) {
+			final float extent = nd.getDataExtent();
+			if (extent < 0) reach = -1;
+			else if (reach >= 0) reach = Math.max(reach, extent + 1);
+		} else {
+			grow(nd, nd.parent);
+		}
+		final Node<?>[] children = nd.children;
+		if (null != children) {
+			for (final Node<?> child : children) grow(child, nd);
+		}
+	}
+
+	/** Grow {@link #max_edge} and {@link #reach} to cover the edge from {@code child} to {@code parent}. */
+	private final void grow(final Node<?> child, final Node<?> parent) {
+		final float edge = distance(child, parent);
+		max_edge = Math.max(max_edge, edge + 1);
+		if (reach < 0) return;
+		final float extent = child.getDataExtent(),
+		            parent_extent = parent.getDataExtent();
+		if (extent < 0 || parent_extent < 0) reach = -1;
+		else reach = Math.max(reach, edge + Math.max(extent, parent_extent) + 1);
+	}
+
+	/** Whether so many nodes moved that testing them one by one costs more than rebuilding. */
+	boolean isCrowded() {
+		return null != moved && moved.size() > Math.max(32, nodes.length / 16);
+	}
+
+	private final boolean isMoved(final Node<T> nd) {
+		return null != moved && moved.contains(nd);
+	}
+
+	/** Add to {@code out} the nodes whose position is within the box, in local coordinates. */
+	void find(final double x0, final double y0, final double x1, final double y1, final Collection<Node<T>> out) {
+		if (null != moved) {
+			for (final Node<T> nd : moved) {
+				if (nd.x >= x0 && nd.x <= x1 && nd.y >= y0 && nd.y <= y1) out.add(nd);
+			}
+		}
+		if (0 == nodes.length
+		 || x1 < min_x || y1 < min_y
+		 || x0 > min_x + nx * cell || y0 > min_y + ny * cell) return;
+		final int cx0 = cellX((float)x0),
+		          cx1 = cellX((float)x1),
+		          cy1 = cellY((float)y1);
+		for (int cy = cellY((float)y0); cy <= cy1; cy++) {
+			final int row = cy * nx;
+			for (int k = start[row + cx0], end = start[row + cx1 + 1]; k < end; k++) {
+				final Node<T> nd = nodes[k];
+				if (nd.x >= x0 && nd.x <= x1 && nd.y >= y0 && nd.y <= y1 && !isMoved(nd)) out.add(nd);
+			}
+		}
+	}
+
+	/** Find the node closest to lx,ly in calibrated units, searching rings of cells outwards. */
+	Node<T> findNearest(final float lx, final float ly, final double pixelWidth, final double pixelHeight) {
+		Node<T> nearest = null;
+		double min_sq_dist = Double.MAX_VALUE;
+		if (null != moved) {
+			for (final Node<T> nd : moved) {
+				final double d = sqDistance(nd, lx, ly, pixelWidth, pixelHeight);
+				if (d < min_sq_dist) {
+					min_sq_dist = d;
+					nearest = nd;
+				}
+			}
+		}
+		if (0 == nodes.length) return nearest;
+		final int cx = cellX(lx),
+		          cy = cellY(ly);
+		for (int k=0; ; k++) {
+			final int x0 = cx - k, x1 = cx + k,
+			          y0 = cy - k, y1 = cy + k;
+			for (int y = Math.max(0, y0), ylast = Math.min(ny - 1, y1); y <= ylast; y++) {
+				final int row = y * nx;
+				if (y == y0 || y == y1) {
+					// A full row of the ring
+					for (int i = start[row + Math.max(0, x0)], end = start[row + Math.min(nx - 1, x1) + 1]; i < end; i++) {
+						final double d = sqDistance(nodes[i], lx, ly, pixelWidth, pixelHeight);
+						if (d < min_sq_dist && !isMoved(nodes[i])) {
+							min_sq_dist = d;
+							nearest = nodes[i];
+						}
+					}
+				} else {
+					// Only the two ends of the row
+					for (int x = x0; x <= x1; x += x1 - x0) {
+						if (x < 0 || x >= nx) continue;
+						for (int i = start[row + x], end = start[row + x + 1]; i < end; i++) {
+							final double d = sqDistance(nodes[i], lx, ly, pixelWidth, pixelHeight);
+							if (d < min_sq_dist && !isMoved(nodes[i])) {
+								min_sq_dist = d;
+								nearest = nodes[i];
+							}
+						}
+					}
+				}
+			}
+			// The distance to the closest cell not yet visited
+			double bound = Double.MAX_VALUE;
+			if (x0 > 0) bound = Math.min(bound, (lx - (min_x + x0 * cell)) * pixelWidth);
+			if (x1 < nx - 1) bound = Math.min(bound, (min_x + (x1 + 1) * cell - lx) * pixelWidth);
+			if (y0 > 0) bound = Math.min(bound, (ly - (min_y + y0 * cell)) * pixelHeight);
+			if (y1 < ny - 1) bound = Math.min(bound, (min_y + (y1 + 1) * cell - ly) * pixelHeight);
+			if (Double.MAX_VALUE == bound) break; // all cells visited
+			if (bound > 0 && bound * bound >= min_sq_dist) break;
+		}
+		return nearest;
+	}
+
+	static private final double sqDistance(final Node<?> nd, final float lx, final float ly, final double pixelWidth, final double pixelHeight) {
+		final double dx = (nd.x - lx) * pixelWidth,
+		             dy = (nd.y - ly) * pixelHeight;
+		return dx * dx + dy * dy;
+	}
+
+	/** The {@link NodeIndex} of the nodes, or null when there are too few or they are not in a {@link NodeSet}.
+	 *  Call from within a synchronized (node_layer_map) block. */
+	@SuppressWarnings("unchecked")
+	static final <T> NodeIndex<T> of(final Collection<Node<T>> nodes) {
+		return nodes instanceof NodeSet ? ((NodeSet<T>)nodes).getIndex() : null;
+	}
+
+	/** The set of the {@link Node} instances of a {@link Tree} in one {@link Layer},
+	 *  which keeps track of its own changes to know when to rebuild its {@link NodeIndex},
+	 *  and of the changes logged by its {@link Layer} to know when to update it.
+	 *  Nodes are compared by identity, as in a {@link java.util.HashSet} of nodes, but are stored
+	 *  directly in an open addressing table with linear probing, without an entry object per node. */
+	static public final class NodeSet<T> extends AbstractSet<Node<T>> {
+
+		/** Marks a slot whose node was removed, so that probing continues past it. */
+		static private final Object REMOVED = new Object();
+
+		/** The layer of all the nodes, whose {@link Layer#node_changes} tell which nodes changed. */
+		private final Layer layer;
+
+		private Object[] table = new Object[16];
+		/** The number of nodes, and the number of slots that are not null. */
+		private int size = 0,
+		            used = 0;
+
+		private NodeIndex<T> index = null;
+		private long version = 0,
+		             index_version = -1;
+
+		/** @param layer The layer of the nodes, or null for a set that is never indexed. */
+		public NodeSet(final Layer layer) {
+			this.layer = layer;
+		}
+
+		static private final int slot(final Object ob, final int mask) {
+			final int h = System.identityHashCode(ob) * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean contains(final Object ob) {
+			if (null == ob) return false;
+			final int mask = table.length - 1;
+			for (int i = slot(ob, mask); ; i = (i + 1) & mask) {
+				final Object e = table[i];
+				if (null == e) return false;
+				if (e == ob) return true;
+			}
+		}
+
+		@Override
+		public boolean add(final Node<T> nd) {
+			if (null == nd) throw new NullPointerException();
+			final int mask = table.length - 1;
+			int free = -1;
+			int i = slot(nd, mask);
+			for (; ; i = (i + 1) & mask) {
+				final Object e = table[i];
+				if (null == e) break;
+				if (e == nd) return false;
+				if (REMOVED == e && -1 == free) free = i;
+			}
+			if (-1 == free) {
+				table[i] = nd;
+				++used;
+			} else {
+				table[free] = nd;
+			}
+			++size;
+			++version;
+			// Keep at least a quarter of the slots null, so that probing ends quickly
+			if (used * 4 >= table.length * 3) rehash();
+			return true;
+		}
+
+		private final void rehash() {
+			final Object[] old = table;
+			int capacity = 16;
+			while (capacity < size * 2) capacity <<= 1;
+			table = new Object[capacity];
+			used = size;
+			final int mask = capacity - 1;
+			for (final Object e : old) {
+				if (null == e || REMOVED == e) continue;
+				int i = slot(e, mask);
+				while (null != table[i]) i = (i + 1) & mask;
+				table[i] = e;
+			}
+		}
+
+		@Override
+		public boolean remove(final Object ob) {
+			if (null == ob) return false;
+			final int mask = table.length - 1;
+			for (int i = slot(ob, mask); ; i = (i + 1) & mask) {
+				final Object e = table[i];
+				if (null == e) return false;
+				if (e == ob) {
+					table[i] = REMOVED;
+					--size;
+					++version;
+					return true;
+				}
+			}
+		}
+
+		@Override
+		public void clear() {
+			table = new Object[16];
+			size = 0;
+			used = 0;
+			++version;
+			index = null;
+		}
+
+		@Override
+		public Iterator<Node<T>> iterator() {
+			return new Iterator<Node<T>>() {
+				private final Object[] t = table;
+				private long expected_version = version;
+				private int next = advance(0),
+				            last = -1;
+				private int advance(int i) {
+					while (i < t.length && (null == t[i] || REMOVED == t[i])) ++i;
+					return i;
+				}
+				@Override
+				public boolean hasNext() {
+					return next < t.length;
+				}
+				@SuppressWarnings("unchecked")
+				@Override
+				public Node<T> next() {
+					if (expected_version != version) throw new ConcurrentModificationException();
+					if (next >= t.length) throw new NoSuchElementException();
+					last = next;
+					next = advance(next + 1);
+					return (Node<T>)t[last];
+				}
+				@Override
+				public void remove() {
+					if (-1 == last) throw new IllegalStateException();
+					if (expected_version != version) throw new ConcurrentModificationException();
+					t[last] = REMOVED;
+					last = -1;
+					--size;
+					expected_version = ++version;
+				}
+			};
+		}
+
+		/** @return an up-to-date index, or null when there are too few nodes to need one. */
+		NodeIndex<T> getIndex() {
+			if (size < MIN_NODES || null == layer) {
+				index = null;
+				return null;
+			}
+			if (null != index && index_version == version) {
+				final Node<?>[] changed = layer.node_changes.since(index.changes_count);
+				if (null != changed) {
+					for (final Node<?> nd : changed) index.update(nd, contains(nd));
+					index.changes_count += changed.length;
+					if (!index.isCrowded()) return index;
+				}
+			}
+			// Read the count before building, so that concurrent changes are applied to the new index
+			index = new NodeIndex<T>(this, layer.node_changes.count());
+			index_version = version;
+			return index;
+		}
+	}
+}
@@ -37,6 +37,7 @@ import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.Scrollbar;
+import java.awt.Shape;
 import java.awt.Stroke;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -52,9 +53,11 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -179,6 +182,52 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		}
 	}
 
+	/** The original sets of nodes of the layers to paint, as in {@link #getNodesToPaint(Layer, List)}.
+	 *  Call always from within a synchronized (node_layer_map) block. */
+	private final List<Set<Node<T>>> getPaintedNodeSets(final Layer active_layer, final List<Layer> color_cue_layers) {
+		final ArrayList<Set<Node<T>>> sets = new ArrayList<Set<Node<T>>>();
+		if (layer_set.color_cues) {
+			if (-1 == layer_set.n_layers_color_cue) {
+				sets.addAll(node_layer_map.values());
+			} else {
+				for (final Layer la : color_cue_layers) {
+					final Set<Node<T>> ns = node_layer_map.get(la);
+					if (null != ns) sets.add(ns);
+				}
+			}
+		} else {
+			final Set<Node<T>> ns = node_layer_map.get(active_layer);
+			if (null != ns) sets.add(ns);
+		}
+		return sets;
+	}
+
+	/** Like {@link #getNodesToPaint(Layer, List)}, but only those nodes that may paint within {@code localRect}. */
+	private final Set<Node<T>> getNodesToPaint(final Layer active_layer, final List<Layer> color_cue_layers, final Rectangle localRect) {
+		synchronized (node_layer_map) {
+			Set<Node<T>> nodes = null;
+			final ArrayList<Node<T>> candidates = new ArrayList<Node<T>>();
+			for (final Set<Node<T>> ns : getPaintedNodeSets(active_layer, color_cue_layers)) {
+				if (null == nodes) nodes = new HashSet<Node<T>>();
+				final NodeIndex<T> index = NodeIndex.of(ns);
+				if (null == index || index.reach < 0) {
+					for (final Node<T> nd : ns) {
+						if (nd.isRoughlyInside(localRect)) nodes.add(nd);
+					}
+				} else {
+					candidates.clear();
+					index.find(localRect.x - index.reach, localRect.y - index.reach,
+					           localRect.x + localRect.width + index.reach, localRect.y + localRect.height + index.reach,
+					           candidates);
+					for (final Node<T> nd : candidates) {
+						if (nd.isRoughlyInside(localRect)) nodes.add(nd);
+					}
+				}
+			}
+			return nodes;
+		}
+	}
+
 	@Override
 	final public void paint(final Graphics2D g, final Rectangle srcRect, final double magnification, final boolean active, final int channels, final Layer active_layer, final List<Layer> layers) {
 		paint(g, srcRect, magnification, active, channels, active_layer, layers, layer_set.paint_arrows, layer_set.paint_tags);
@@ -204,25 +253,24 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 		synchronized (node_layer_map) {
 			// Determine which layers to paint
-			final Set<Node<T>> nodes = getNodesToPaint(active_layer, layers);
-			if (null != nodes) {
-				// Filter nodes outside the srcRect
-				// The DisplayNavigator and the snapshot panels call paint with the full srcRect
-				// so avoid filtering for them:
-				if (srcRect.x > 0 && srcRect.y > 0
-				 && srcRect.width < (int)layer_set.getLayerWidth()
-				 && srcRect.height < (int)layer_set.getLayerHeight()) {
-					try {
-						final Rectangle localRect = this.at.createInverse().createTransformedShape(srcRect).getBounds();
-						for (final Iterator<Node<T>> it = nodes.iterator(); it.hasNext(); ) {
-							final Node<T> nd = it.next();
-							if (nd.isRoughlyInside(localRect)) continue;
-							it.remove();
-						}
-					} catch (final NoninvertibleTransformException nite) {
-						IJError.print(nite);
-					}
+			Set<Node<T>> nodes = null;
+			// Filter nodes outside the srcRect
+			// The DisplayNavigator and the snapshot panels call paint with the full srcRect
+			// so avoid filtering for them:
+			if (srcRect.x > 0 && srcRect.y > 0
+			 && srcRect.width < (int)layer_set.getLayerWidth()
+			 && srcRect.height < (int)layer_set.getLayerHeight()) {
+				try {
+					final Rectangle localRect = this.at.createInverse().createTransformedShape(srcRect).getBounds();
+					nodes = getNodesToPaint(active_layer, layers, localRect);
+				} catch (final NoninvertibleTransformException nite) {
+					IJError.print(nite);
+					nodes = getNodesToPaint(active_layer, layers);
 				}
+			} else {
+				nodes = getNodesToPaint(active_layer, layers);
+			}
+			if (null != nodes) {
 				// Arrange transparency
 				if (alpha != 1.0f) {
 					original_composite = g.getComposite();
@@ -843,7 +891,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			if (null == child.children) end_nodes.add(child);
 			Set<Node<T>> nds = node_layer_map.get(child.la);
 			if (null == nds) {
-				nds = new HashSet<Node<T>>();
+				nds = new NodeIndex.NodeSet<T>(child.la);
 				node_layer_map.put(child.la, nds);
 			}
 			nds.add(child);
@@ -992,11 +1040,15 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 		float radius = (float)(10 / magnification);
 		if (radius < 2) radius = 2;
+
+		// The confidence box sits at the middle of the edge to the parent
+		final Collection<Node<T>> candidates = findCandidates(nodes, x, y, radius, true);
+
 		radius *= radius; // squared
 
 		float min_sq_dist = Float.MAX_VALUE;
 		Node<T> nearest = null;
-		for (final Node<T> nd : nodes) {
+		for (final Node<T> nd : candidates) {
 			if (null == nd.parent) continue;
 			final float d = (float)(Math.pow((nd.parent.x + nd.x)/2 - x, 2) + Math.pow((nd.parent.y + nd.y)/2 - y, 2));
 			if (d < min_sq_dist && d < radius) {
@@ -1038,7 +1090,26 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	/** Also sets the last visited and the receiver node. This is a GUI method. */
 	protected Layer toClosestPaintedNode(final Layer active_layer, final float wx, final float wy, final double magnification) {
-		final Node<T> nd = findClosestNodeW(getNodesToPaint(active_layer), wx, wy, magnification);
+		float lx = wx,
+		      ly = wy;
+		if (!this.at.isIdentity()) {
+			final Point2D.Double po = inverseTransformPoint(wx, wy);
+			lx = (float)po.x;
+			ly = (float)po.y;
+		}
+		Node<T> nd = null;
+		synchronized (node_layer_map) {
+			float min_dist = Float.MAX_VALUE;
+			for (final Set<Node<T>> nodes : getPaintedNodeSets(active_layer, active_layer.getParent().getColorCueLayerRange(active_layer))) {
+				final Node<T> closest = findClosestNode(nodes, lx, ly, magnification);
+				if (null == closest) continue;
+				final float dist = Math.abs(closest.x - lx) + Math.abs(closest.y - ly);
+				if (dist < min_dist) {
+					min_dist = dist;
+					nd = closest;
+				}
+			}
+		}
 		if (null != nd) {
 			setLastVisited(nd);
 			return nd.la;
@@ -1053,7 +1124,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		if (d < 2) d = 2;
 		float min_dist = Float.MAX_VALUE;
 		Node<T> nd = null;
-		for (final Node<T> node : nodes) {
+		for (final Node<T> node : findCandidates(nodes, lx, ly, d, false)) {
 			final float dist = Math.abs(node.x - lx) + Math.abs(node.y - ly);
 			if (dist < min_dist) {
 				min_dist = dist;
@@ -1063,6 +1134,18 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return min_dist < d ? nd : null;
 	}
 
+	/** The nodes within distance {@code d} of the local coords lx,ly, or with an edge that may pass within
+	 *  that distance when {@code with_edges}, plus possibly a few more; or all {@code nodes} when not indexed.
+	 *  Call always from within a synchronized (node_layer_map) block. */
+	private final Collection<Node<T>> findCandidates(final Collection<Node<T>> nodes, final float lx, final float ly, final double d, final boolean with_edges) {
+		final NodeIndex<T> index = NodeIndex.of(nodes);
+		if (null == index) return nodes;
+		final double r = with_edges ? d + index.max_edge : d;
+		final ArrayList<Node<T>> candidates = new ArrayList<Node<T>>();
+		index.find(lx - r, ly - r, lx + r, ly + r, candidates);
+		return candidates;
+	}
+
 	/** Find the spatially closest node, in calibrated coords; expects local coords. */
 	public Node<T> findNearestNode(final float lx, final float ly, final Layer layer) {
 		synchronized (node_layer_map) {
@@ -1074,6 +1157,9 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 
 	private final Node<T> findNearestNode(final float lx, final float ly, final float lz, final Calibration cal, final Collection<Node<T>> nodes) {
 		if (null == nodes) return null;
+		// All nodes of an indexed set are in the same layer
+		final NodeIndex<T> index = NodeIndex.of(nodes);
+		if (null != index) return index.findNearest(lx, ly, cal.pixelWidth, cal.pixelHeight);
 		// A distance map would help here
 		final float pixelWidth = (float) cal.pixelWidth;
 		final float pixelHeight = (float) cal.pixelHeight;
@@ -1119,28 +1205,30 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 	 *  @return null if none of the edges is close enough, or an array of parent and child describing the edge. */
 	public Node<T>[] findNearestEdge(final float x_pl, final float y_pl, final Layer layer, final double magnification) {
 		if (null == root) return null;
-		// Don't traverse all, just look into nodes currently being painted according to layer_set.n_layers_color_cue
-		final Collection<Node<T>> nodes = getNodesToPaint(layer);
-		if (null == nodes) return null;
 		//
 		double d = (10.0D / magnification);
 		if (d < 2) d = 2;
 		double min_dist = Double.MAX_VALUE;
 		final Node<T>[] ns = new Node[2]; // parent and child
 		//
-		for (final Node<T> node : nodes) {
-			if (null == node.children) continue;
-			// Examine if the point is closer to the 2D-projected edge than any other so far:
-			// TODO it's missing edges with parents beyond the set of painted layers,
-			//      and it's doing edges to children beyond the set of painted layers.
-			for (final Node<T> child : node.children) {
-				final double dist = M.distancePointToSegment(x_pl, y_pl,
-								       node.x, node.y,
-								       child.x, child.y);
-				if (dist < min_dist && dist < d) {
-					min_dist = dist;
-					ns[0] = node;
-					ns[1] = child;
+		synchronized (node_layer_map) {
+			// Don't traverse all, just look into nodes currently being painted according to layer_set.n_layers_color_cue
+			for (final Set<Node<T>> nodes : getPaintedNodeSets(layer, layer.getParent().getColorCueLayerRange(layer))) {
+				for (final Node<T> node : findCandidates(nodes, x_pl, y_pl, d, true)) {
+					if (null == node.children) continue;
+					// Examine if the point is closer to the 2D-projected edge than any other so far:
+					// TODO it's missing edges with parents beyond the set of painted layers,
+					//      and it's doing edges to children beyond the set of painted layers.
+					for (final Node<T> child : node.children) {
+						final double dist = M.distancePointToSegment(x_pl, y_pl,
+										       node.x, node.y,
+										       child.x, child.y);
+						if (dist < min_dist && dist < d) {
+							min_dist = dist;
+							ns[0] = node;
+							ns[1] = child;
+						}
+					}
 				}
 			}
 		}
@@ -1175,7 +1263,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		synchronized (node_layer_map) {
 			Set<Node<T>> nodes = node_layer_map.get(child.la);
 			if (null == nodes) {
-				nodes = new HashSet<Node<T>>();
+				nodes = new NodeIndex.NodeSet<T>(child.la);
 				node_layer_map.put(child.la, nodes);
 			}
 			if (nodes.add(child)) {
@@ -1232,6 +1320,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				} else {
 					node.parent.children[node.parent.indexOf(node)] = node.children[0];
 					node.children[0].parent = node.parent;
+					node.children[0].modified();
 					if (node == last_visited) setLastVisited(node.parent);
 				}
 				synchronized (node_layer_map) {
@@ -1348,6 +1437,7 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 				nd.x = fps[0];
 				nd.y = fps[1];
 				nd.transformData(aff);
+				nd.modified();
 				// Remove review stack if any
 				removeReview(nd);
 			}
@@ -2065,6 +2155,14 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return project.getLoader().createFlyThrough(generateRegions(first, last, width, height, magnification), magnification, type, dir);
 	}
 
+	/** A snapshot of all nodes of this tree as primitive arrays, for measuring; see {@link NodeArrays}.
+	 *  @return null when the tree has no nodes. */
+	public NodeArrays<T> getNodeArrays() {
+		synchronized (node_layer_map) {
+			return null == root ? null : new NodeArrays<T>(root);
+		}
+	}
+
 	/** Measures number of branch points and end points, and total cable length.
 	 *  Cable length is measured as:
 	 *    Cable length: the sum of all distances between all consecutive pairs of nodes.
@@ -2079,40 +2177,39 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		final double pixelWidth = cal.pixelWidth;
 		final double pixelHeight = cal.pixelHeight;
 
-		final float[] fps = new float[4];
-		final float[] fpp = new float[2];
+		final NodeArrays<T> na = getNodeArrays();
+		if (null == na) return rt;
+		final int n = na.size();
+
+		// All positions to world coordinates at once
+		final float[] fps = new float[n + n];
+		for (int i=0; i<n; i++) {
+			fps[i+i] = na.x[i];
+			fps[i+i+1] = na.y[i];
+		}
+		this.at.transform(fps, 0, fps, 0, n);
+		final double[] zs = new double[na.layers.length];
+		for (int k=0; k<zs.length; k++) zs[k] = na.layers[k].getZ();
+		final int[] prev = na.findPreviousBranchOrRootPoints();
+
+		for (int i=0; i<n; i++) {
+			final int n_children = na.getChildrenCount(i);
+			if (n_children > 1) branch_points++;
+			// Skip the root node
+			final int p = na.parent[i];
+			if (-1 == p) continue;
+			//
+			final double dz = (zs[na.layer[i]] - zs[na.layer[p]]) * pixelWidth;
+			cable += Math.sqrt(Math.pow( (fps[i+i] - fps[p+p]) * pixelWidth, 2)
+					 + Math.pow( (fps[i+i+1] - fps[p+p+1]) * pixelHeight, 2)
+					 + dz * dz);
 
-		synchronized (node_layer_map) {
-			for (final Collection<Node<T>> nodes : node_layer_map.values()) {
-				for (final Node<T> nd : nodes) {
-					if (nd.getChildrenCount() > 1) branch_points++;
-					// Skip the root node
-					if (null == nd.parent) continue;
-					//
-					fps[0] = nd.x;   fps[2] = nd.parent.x;
-					fps[1] = nd.y;   fps[3] = nd.parent.y;
-					this.at.transform(fps, 0, fps, 0, 2);
-					cable += Math.sqrt(Math.pow( (fps[0] - fps[2]) * pixelWidth, 2)
-							 + Math.pow( (fps[1] - fps[3]) * pixelHeight, 2)
-							 + Math.pow( (nd.la.getZ() - nd.parent.la.getZ()) * pixelWidth, 2));
-
-					// Lower bound cable length:
-					if (1 == nd.getChildrenCount()) continue; // include only end nodes and branch nodes
-					else {
-						final Node<T> prev = nd.findPreviousBranchOrRootPoint();
-						if (null == prev) {
-							Utils.log("ERROR: Can't find the previous branch or root point for node " + nd);
-							continue;
-						}
-						fpp[0] = prev.x;
-						fpp[1] = prev.y;
-						this.at.transform(fpp, 0, fpp, 0, 1);
-						lb_cable += Math.sqrt(Math.pow( (fpp[0] - fps[0]) * pixelWidth, 2)
-								    + Math.pow( (fpp[1] - fps[1]) * pixelHeight, 2)
-								    + Math.pow( (nd.la.getZ() - nd.parent.la.getZ()) * pixelWidth, 2));
-					}
-				}
-			}
+			// Lower bound cable length:
+			if (1 == n_children) continue; // include only end nodes and branch nodes
+			final int q = prev[i];
+			lb_cable += Math.sqrt(Math.pow( (fps[q+q] - fps[i+i]) * pixelWidth, 2)
+					    + Math.pow( (fps[q+q+1] - fps[i+i+1]) * pixelHeight, 2)
+					    + dz * dz);
 		}
 
 		if (null == rt) rt = Utils.createResultsTable("Tree results", new String[]{"id", "N branch points", "N end points", "Cable length", "LB Cable length"});
@@ -2907,6 +3004,17 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			if (null == nodes) return false;
 			try {
 				final Rectangle local = this.at.createInverse().createTransformedShape(box).getBounds();
+				final NodeIndex<T> index = NodeIndex.of(nodes);
+				if (null != index && index.reach >= 0) {
+					final ArrayList<Node<T>> candidates = new ArrayList<Node<T>>();
+					index.find(local.x - index.reach, local.y - index.reach,
+					           local.x + local.width + index.reach, local.y + local.height + index.reach,
+					           candidates);
+					for (final Node<T> nd : candidates) {
+						if (nd.isRoughlyInside(local)) return true;
+					}
+					return false;
+				}
 				for (final Node<T> nd : nodes) {
 					// May not be enough for lots of corner cases
 					// such as:
@@ -3188,18 +3296,241 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 			}}, getProject());
 	}
 
+	/** Shapes of the {@link Area} of a {@link Node}, see {@link Node#getArea()}. */
+	static private final byte SQUARE = 0, CIRCLE = 1, AREA = 2;
+
+	/** The nodes of this tree in one {@link Layer}, sorted by the left edge of the local bounds of their areas,
+	 *  to join them with the objects of that layer with a single spatial query for all nodes.
+	 *  Little squares and circles are tested directly, any other {@link Area} only after its bounds. */
+	private final class LayerNodes {
+		final Layer la;
+		final Node<T>[] nodes;
+		final float[] min_x, min_y, max_x, max_y;
+		final byte[] shapes;
+		float max_width = 0;
+
+		@SuppressWarnings("unchecked")
+		LayerNodes(final Layer la, final Collection<Node<T>> col) {
+			this.la = la;
+			final int n = col.size();
+			final Node<T>[] unsorted = col.toArray((Node<T>[])new Node[n]);
+			final float[] b = new float[4 * n];
+			final byte[] sh = new byte[n];
+			for (int i=0; i<n; i++) {
+				final Node<T> nd = unsorted[i];
+				final int k = 4 * i;
+				if (nd instanceof Treeline.RadiusNode && ((Treeline.RadiusNode)(Node<?>)nd).r > 0) {
+					final float r = ((Treeline.RadiusNode)(Node<?>)nd).r;
+					sh[i] = CIRCLE;
+					b[k] = nd.x - r; b[k+1] = nd.y - r; b[k+2] = nd.x + r; b[k+3] = nd.y + r;
+				} else if (nd.getDataExtent() < 0) {
+					sh[i] = AREA;
+					final Rectangle r = nd.getArea().getBounds();
+					b[k] = r.x; b[k+1] = r.y; b[k+2] = r.x + r.width; b[k+3] = r.y + r.height;
+				} else {
+					sh[i] = SQUARE;
+					b[k] = nd.x; b[k+1] = nd.y; b[k+2] = nd.x + 1; b[k+3] = nd.y + 1;
+				}
+			}
+			final Integer[] order = new Integer[n];
+			for (int i=0; i<n; i++) order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer i1, final Integer i2) {
+					return Float.compare(b[4 * i1], b[4 * i2]);
+				}
+			});
+			this.nodes = (Node<T>[])new Node[n];
+			this.min_x = new float[n];
+			this.min_y = new float[n];
+			this.max_x = new float[n];
+			this.max_y = new float[n];
+			this.shapes = new byte[n];
+			for (int i=0; i<n; i++) {
+				final int j = order[i],
+				          k = 4 * j;
+				nodes[i] = unsorted[j];
+				min_x[i] = b[k]; min_y[i] = b[k+1]; max_x[i] = b[k+2]; max_y[i] = b[k+3];
+				shapes[i] = sh[j];
+				max_width = Math.max(max_width, max_x[i] - min_x[i]);
+			}
+		}
+
+		/** The world bounds of all nodes. */
+		Rectangle getWorldBounds() {
+			float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE,
+			      x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+			for (int i=0; i<nodes.length; i++) {
+				x0 = Math.min(x0, min_x[i]); y0 = Math.min(y0, min_y[i]);
+				x1 = Math.max(x1, max_x[i]); y1 = Math.max(y1, max_y[i]);
+			}
+			return Tree.this.at.createTransformedShape(new Rectangle2D.Float(x0, y0, x1 - x0, y1 - y0)).getBounds();
+		}
+
+		/** The index of the first node whose bounds may reach {@code x}. */
+		int first(final double x) {
+			final double v = x - max_width;
+			int lo = 0, hi = nodes.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (min_x[mid] < v) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+
+		boolean boundsIntersect(final int i, final double x0, final double y0, final double x1, final double y1) {
+			return max_x[i] >= x0 && min_x[i] <= x1 && max_y[i] >= y0 && min_y[i] <= y1;
+		}
+
+		/** Whether the area of the SQUARE or CIRCLE node at {@code i} intersects the circle at cx,cy
+		 *  of radius {@code cr}. */
+		boolean intersects(final int i, final double cx, final double cy, final double cr) {
+			if (CIRCLE == shapes[i]) {
+				final double r = (max_x[i] - min_x[i]) / 2 + cr,
+				             dx = (min_x[i] + max_x[i]) / 2 - cx,
+				             dy = (min_y[i] + max_y[i]) / 2 - cy;
+				return dx * dx + dy * dy < r * r;
+			}
+			final double dx = Math.max(0, Math.max(min_x[i] - cx, cx - max_x[i])),
+			             dy = Math.max(0, Math.max(min_y[i] - cy, cy - max_y[i]));
+			return dx * dx + dy * dy < cr * cr;
+		}
+
+		/** Whether the area of the SQUARE or CIRCLE node at {@code i} intersects the rectangle
+		 *  from x0,y0 to x1,y1 with an area larger than zero. */
+		boolean intersects(final int i, final double x0, final double y0, final double x1, final double y1) {
+			if (CIRCLE == shapes[i]) {
+				final double r = (max_x[i] - min_x[i]) / 2,
+				             cx = (min_x[i] + max_x[i]) / 2,
+				             cy = (min_y[i] + max_y[i]) / 2,
+				             dx = Math.max(0, Math.max(x0 - cx, cx - x1)),
+				             dy = Math.max(0, Math.max(y0 - cy, cy - y1));
+				return dx * dx + dy * dy < r * r;
+			}
+			return min_x[i] < x1 && max_x[i] > x0 && min_y[i] < y1 && max_y[i] > y0;
+		}
+
+		/** The area of the node at {@code i} in world coordinates; a copy, never the original. */
+		Area getWorldArea(final int i) {
+			final Area a = new Area(nodes[i].getArea());
+			a.transform(Tree.this.at);
+			return a;
+		}
+
+		/** The local bounds of the world rectangle {@code r}; null when the transform is not invertible. */
+		Rectangle toLocal(final Rectangle r) {
+			try {
+				return Tree.this.at.createInverse().createTransformedShape(r).getBounds();
+			} catch (final NoninvertibleTransformException nite) {
+				IJError.print(nite);
+				return null;
+			}
+		}
+
+		/** The indices of the nodes whose area intersects that of any node of {@code c} in this layer. */
+		Collection<Integer> findIntersecting(final Connector c) {
+			final TreeSet<Integer> matched = new TreeSet<Integer>();
+			final AffineTransform aff;
+			try {
+				aff = Tree.this.at.createInverse();
+			} catch (final NoninvertibleTransformException nite) {
+				IJError.print(nite);
+				return matched;
+			}
+			aff.concatenate(c.at);
+			// Circles remain circles only under rotation, translation, flips and uniform scaling
+			if (0 == (aff.getType() & (AffineTransform.TYPE_GENERAL_SCALE | AffineTransform.TYPE_GENERAL_TRANSFORM))) {
+				final double scale = Math.sqrt(Math.abs(aff.getDeterminant()));
+				// Squares remain axis-aligned squares without rotations other than by multiples of 90 degrees
+				final boolean axis_aligned = 0 == (aff.getType() & AffineTransform.TYPE_GENERAL_ROTATION);
+				final double[] p = new double[2];
+				for (final Node<Float> cn : c.getNodesAt(la)) {
+					if (cn.getData() > 0) {
+						p[0] = cn.x;
+						p[1] = cn.y;
+						aff.transform(p, 0, p, 0, 1);
+						final double cr = cn.getData() * scale;
+						final double x0 = p[0] - cr, y0 = p[1] - cr,
+						             x1 = p[0] + cr, y1 = p[1] + cr;
+						for (int i = first(x0); i < nodes.length && min_x[i] <= x1; i++) {
+							if (!boundsIntersect(i, x0, y0, x1, y1)) continue;
+							if (AREA == shapes[i]) {
+								if (!matched.contains(i) && c.intersects(la, getWorldArea(i))) matched.add(i);
+							} else if (intersects(i, p[0], p[1], cr)) matched.add(i);
+						}
+					} else {
+						// A connector node of radius zero is a little square, as in Node.getArea()
+						final Shape square = aff.createTransformedShape(new Rectangle2D.Float(cn.x, cn.y, 1, 1));
+						final Rectangle2D sb = square.getBounds2D();
+						final double x0 = sb.getMinX(), y0 = sb.getMinY(),
+						             x1 = sb.getMaxX(), y1 = sb.getMaxY();
+						for (int i = first(x0); i < nodes.length && min_x[i] <= x1; i++) {
+							if (!boundsIntersect(i, x0, y0, x1, y1) || matched.contains(i)) continue;
+							if (AREA == shapes[i] || !axis_aligned) {
+								if (M.intersects(new Area(square), nodes[i].getArea())) matched.add(i);
+							} else if (intersects(i, x0, y0, x1, y1)) matched.add(i);
+						}
+					}
+				}
+			} else {
+				// The local bounds of the connector nodes, generously
+				Rectangle b = null;
+				for (final Node<Float> cn : c.getNodesAt(la)) {
+					final float r = Math.max(1, cn.getData()) + 1;
+					final Rectangle nb = aff.createTransformedShape(new Rectangle2D.Float(cn.x - r, cn.y - r, r + r, r + r)).getBounds();
+					if (null == b) b = nb;
+					else b.add(nb);
+				}
+				if (null == b) return matched;
+				for (int i = first(b.x); i < nodes.length && min_x[i] <= b.x + b.width; i++) {
+					if (boundsIntersect(i, b.x, b.y, b.x + b.width, b.y + b.height)
+					 && c.intersects(la, getWorldArea(i))) matched.add(i);
+				}
+			}
+			return matched;
+		}
+	}
+
+	/** Copies of the sets of nodes of every layer. */
+	private final Map<Layer,Collection<Node<T>>> copyNodeLayerMap() {
+		final HashMap<Layer,Collection<Node<T>>> m = new HashMap<Layer,Collection<Node<T>>>();
+		synchronized (node_layer_map) {
+			for (final Map.Entry<Layer,Set<Node<T>>> e : node_layer_map.entrySet()) {
+				if (e.getValue().isEmpty()) continue;
+				m.put(e.getKey(), new ArrayList<Node<T>>(e.getValue()));
+			}
+		}
+		return m;
+	}
+
+	/** Find, for every {@link Node}, the objects of class {@code c} (or subclasses) whose area intersects that of the node.
+	 *  Each layer is searched only once for all its nodes; then every node is tested only against the objects whose bounds it intersects. */
 	public Map<Node<T>,Collection<Displayable>> findIntersecting(final Class<?> c) throws Exception {
 		final HashMap<Node<T>,Collection<Displayable>> m = new HashMap<Node<T>,Collection<Displayable>>();
-		Process.progressive(root.getSubtreeNodes(),
-							new TaskFactory<Node<T>,Object>() {
+		final Map<Layer,Collection<Node<T>>> nlm = copyNodeLayerMap();
+		Process.progressive(nlm.keySet(),
+							new TaskFactory<Layer,Object>() {
 								@Override
-					 			public Object process(final Node<T> nd) {
-					 				final Area a = nd.getArea();
-					 				a.transform(Tree.this.at);
-					 				final Collection<Displayable> col = layer_set.find(c, nd.la, a, false, true);
-					 				if (col.isEmpty()) return null;
+					 			public Object process(final Layer la) {
+					 				final LayerNodes ln = new LayerNodes(la, nlm.get(la));
+					 				final HashMap<Node<T>,Collection<Displayable>> found = new HashMap<Node<T>,Collection<Displayable>>();
+					 				for (final Displayable d : layer_set.find(c, la, new Area(ln.getWorldBounds()), false, true)) {
+					 					final Rectangle b = ln.toLocal(d.getBoundingBox());
+					 					if (null == b) continue;
+					 					for (int i = ln.first(b.x); i < ln.nodes.length && ln.min_x[i] <= b.x + b.width; i++) {
+					 						if (!ln.boundsIntersect(i, b.x, b.y, b.x + b.width, b.y + b.height)) continue;
+					 						if (!d.intersects(la, ln.getWorldArea(i))) continue;
+					 						Collection<Displayable> col = found.get(ln.nodes[i]);
+					 						if (null == col) {
+					 							col = new ArrayList<Displayable>();
+					 							found.put(ln.nodes[i], col);
+					 						}
+					 						col.add(d);
+					 					}
+					 				}
 					 				synchronized (m) {
-					 					m.put(nd, col);
+					 					m.putAll(found);
 					 				}
 					 				return null;
 					 			}
@@ -3207,29 +3538,32 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 		return m;
 	}
 
-	/** Returns an array of two Collection of connectors: the first one has the outgoing connectors, and the second one has the incoming connectors. */
+	/** Returns an array of two Collection of connectors: the first one has the outgoing connectors, and the second one has the incoming connectors.
+	 *  A {@link Connector} is outgoing when its origin intersects a node of this tree, and each appears at most once in each list.
+	 *  Each layer is searched only once for all its nodes. */
 	@SuppressWarnings("unchecked")
 	public List<Connector>[] findConnectors() throws Exception {
-		final ArrayList<Connector> outgoing = new ArrayList<Connector>();
-		final ArrayList<Connector> incoming = new ArrayList<Connector>();
+		final Set<Connector> outgoing = new HashSet<Connector>();
+		final Set<Connector> incoming = new HashSet<Connector>();
 		if (null != root) {
-			Process.progressive(root.getSubtreeNodes(),
-				     new TaskFactory<Node<T>,Object>() {
+			final Map<Layer,Collection<Node<T>>> nlm = copyNodeLayerMap();
+			Process.progressive(nlm.keySet(),
+				     new TaskFactory<Layer,Object>() {
 						@Override
-					 	public Object process(final Node<T> nd) {
-							final Area a = nd.getArea();
-							a.transform(Tree.this.at);
-							final Collection<Displayable> col = layer_set.findZDisplayables(Connector.class, nd.la, a, false, false);
-							if (col.isEmpty()) return null;
-							// Outgoing or incoming?
+					 	public Object process(final Layer la) {
+							final LayerNodes ln = new LayerNodes(la, nlm.get(la));
+							final Collection<Displayable> col = layer_set.findZDisplayables(Connector.class, la, new Area(ln.getWorldBounds()), false, false);
 							for (final Connector c : (Collection<Connector>)(Collection)col) {
-								if (c.intersectsOrigin(a, nd.la)) {
-									synchronized (outgoing) {
-										outgoing.add(c);
-									}
-								} else {
-									synchronized (incoming) {
-										incoming.add(c);
+								for (final int i : ln.findIntersecting(c)) {
+									// Outgoing or incoming?
+									if (c.intersectsOrigin(ln.getWorldArea(i), la)) {
+										synchronized (outgoing) {
+											outgoing.add(c);
+										}
+									} else {
+										synchronized (incoming) {
+											incoming.add(c);
+										}
 									}
 								}
 							}
@@ -3237,7 +3571,18 @@ public abstract class Tree<T> extends ZDisplayable implements VectorData {
 						}
 					 });
 		}
-		return (List<Connector>[]) new List[]{outgoing, incoming};
+		return (List<Connector>[]) new List[]{sortById(outgoing), sortById(incoming)};
+	}
+
+	static private final List<Connector> sortById(final Collection<Connector> cs) {
+		final ArrayList<Connector> l = new ArrayList<Connector>(cs);
+		Collections.sort(l, new Comparator<Connector>() {
+			@Override
+			public int compare(final Connector c1, final Connector c2) {
+				return c1.getId() < c2.getId() ? -1 : (c1.getId() == c2.getId() ? 0 : 1);
+			}
+		});
+		return l;
 	}
 
 	@Override
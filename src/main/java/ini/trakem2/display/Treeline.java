@@ -246,6 +246,7 @@ public class Treeline extends Tree<Float> {
 		@Override
         public final boolean setData(final Float radius) {
 			this.r = radius > 0 ? radius : 0;
+			modified();
 			return true;
 		}
 		@Override
@@ -254,6 +255,12 @@ public class Treeline extends Tree<Float> {
 		@Override
         public final Float getDataCopy() { return this.r; }
 
+		@Override
+		protected float getDataExtent() {
+			// ConnectorNode paints at least a radius of 1
+			return this.r <= 0 ? 1 : this.r;
+		}
+
 		@Override
 		public boolean isRoughlyInside(final Rectangle localbox) {
 			if (0 == this.r) {
@@ -393,6 +400,7 @@ public class Treeline extends Tree<Float> {
 				final double[] fp = new double[]{ox + r, oy};
 				ct.applyInPlace(fp);
 				r = ( float )Math.abs(fp[0] - this.x);
+				modified();
 			}
 		}
 		@Override
@@ -415,6 +423,7 @@ public class Treeline extends Tree<Float> {
 						rt.ct.applyInPlace(fp);
 						r = ( float )Math.abs(fp[0] - this.x);
 					}
+					modified();
 					break;
 				}
 			}
@@ -432,6 +441,7 @@ public class Treeline extends Tree<Float> {
 					final double[] fp = new double[]{x, y, x + r, y};
 					aff.transform(fp, 0, fp, 0, 2);
 					r = (float)Math.sqrt(Math.pow(fp[2] - fp[0], 2) + Math.pow(fp[3] - fp[1], 2));
+					modified();
 			}
 		}
 	}
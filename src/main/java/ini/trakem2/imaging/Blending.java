@@ -29,25 +29,29 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.Filter;
 import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 import ini.trakem2.utils.Worker;
 
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import mpicbg.models.NoninvertibleModelException;
@@ -125,50 +129,113 @@ public final class Blending {
 						: new TransformMesh(p.getCoordinateTransform(), p.getMeshResolution(), p.getOWidth(), p.getOHeight()));
 			}
 
-			exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-			final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
-			final List<Future<?>> futures2 = Collections.synchronizedList(new ArrayList<Future<?>>());
-
-
 			// Cache the indices that determine overlap order within the layer
 			final HashMap<Patch,Integer> indices = new HashMap<Patch,Integer>();
+			final ArrayList<Patch> ordered = new ArrayList<Patch>();
 			int i = 0;
 			for (final Displayable d : layer.getDisplayables()) {
 				if (d.getClass() == Patch.class && patches.contains((Patch)d)) {
 					indices.put((Patch)d, i);
+					ordered.add((Patch)d);
 				}
 				i += 1;
 			}
 
-			for (final Patch p : patches) {
-				if (Thread.currentThread().isInterrupted()) break;
-				futures.add(exe.submit(new Runnable() { @Override
-                public void run() {
-					final int pLayerIndex = indices.get(p);
-					final Set<Patch> overlapping = new HashSet<Patch>();
-					for (final Patch op : patches) {
-						if (indices.get(op) < pLayerIndex) overlapping.add(op);
-					}
-					if (setBlendingMask(p, overlapping, meshes, respect_current_mask)) {
-						futures2.add(p.updateMipMaps());
+			final Map<Patch,Set<Patch>> overlaps = findOverlapsBelow(ordered, indices);
+
+			// Weights of a Patch's own pixels, once per image dimensions
+			final HashMap<Long,double[][]> weights = new HashMap<Long,double[][]>();
+			for (final Patch p : ordered) {
+				final Long key = (((long)p.getOWidth()) << 32) | p.getOHeight();
+				if (!weights.containsKey(key)) weights.put(key, computeWeights(p.getOWidth(), p.getOHeight()));
+			}
+
+			exe = ExecutorProvider.getExecutorService(1.0f);
+			final ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (final Patch p : ordered) {
+				final Set<Patch> overlapping = overlaps.get(p);
+				if (overlapping.isEmpty()) {
+					Utils.log("Nothing to blend in image " + p);
+					futures.add(null);
+					continue;
+				}
+				final double[][] w = weights.get((((long)p.getOWidth()) << 32) | p.getOHeight());
+				futures.add(exe.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return setBlendingMask(p, overlapping, meshes, w, respect_current_mask);
 					}
-				}}, null));
+				}));
 			}
 
-			// join all:
-			Utils.waitIfAlive(futures, false);
-			Utils.waitIfAlive(futures2, false);
+			// Regenerate mipmaps as masks are written, with a bounded number in flight
+			final int max_pending = 2 * Runtime.getRuntime().availableProcessors();
+			final LinkedList<Future<?>> mipmaps = new LinkedList<Future<?>>();
+			for (int k=0; k<futures.size(); ++k) {
+				if (Thread.currentThread().isInterrupted()) break;
+				final Future<Boolean> fu = futures.get(k);
+				if (null == fu || !fu.get()) continue;
+				mipmaps.add(ordered.get(k).updateMipMaps());
+				while (mipmaps.size() > max_pending) {
+					final Future<?> mm = mipmaps.removeFirst();
+					if (null != mm) mm.get();
+				}
+			}
+			Utils.waitIfAlive(mipmaps, false);
 
+		} catch (final InterruptedException ie) {
+			Utils.log("Blending interrupted.");
+			Thread.currentThread().interrupt();
 		} catch (final Exception e) {
 			IJError.print(e);
 		} finally {
-			if (null != exe) exe.shutdown();
+			if (null != exe) exe.shutdownNow();
 			Display.repaint();
 		}
 	}
 
-	/** Returns true if a new mask has been set to Patch p. */
-	static private boolean setBlendingMask(final Patch p, Set<Patch> overlapping, final Map<Patch,TransformMesh> meshes, final boolean respect_current_mask) {
+	/** For each Patch, find the Patches below it in the layer whose bounding box intersects its own,
+	 *  with a sweep over the bounding boxes sorted by their left edge. */
+	static private final Map<Patch,Set<Patch>> findOverlapsBelow(final List<Patch> patches, final Map<Patch,Integer> indices) {
+		final Patch[] sorted = patches.toArray(new Patch[patches.size()]);
+		final Rectangle[] boxes = new Rectangle[sorted.length];
+		final HashMap<Patch,Rectangle> bm = new HashMap<Patch,Rectangle>();
+		for (final Patch p : sorted) bm.put(p, p.getBoundingBox());
+		Arrays.sort(sorted, new Comparator<Patch>() {
+			@Override
+			public int compare(final Patch a, final Patch b) {
+				final int ax = bm.get(a).x, bx = bm.get(b).x;
+				return ax < bx ? -1 : ax == bx ? 0 : 1;
+			}
+		});
+		for (int i=0; i<sorted.length; ++i) boxes[i] = bm.get(sorted[i]);
+
+		final HashMap<Patch,Set<Patch>> overlaps = new HashMap<Patch,Set<Patch>>();
+		for (final Patch p : sorted) overlaps.put(p, new HashSet<Patch>());
+		for (int i=0; i<sorted.length; ++i) {
+			final int max_x = boxes[i].x + boxes[i].width;
+			for (int j=i+1; j<sorted.length && boxes[j].x < max_x; ++j) {
+				if (!boxes[i].intersects(boxes[j])) continue;
+				if (indices.get(sorted[i]) < indices.get(sorted[j])) overlaps.get(sorted[j]).add(sorted[i]);
+				else overlaps.get(sorted[i]).add(sorted[j]);
+			}
+		}
+		return overlaps;
+	}
+
+	/** Returns the separable weights of {@link #computeWeight(double, double, int, int)}
+	 *  for every integer x and y of an image of the given dimensions. */
+	static private final double[][] computeWeights(final int width, final int height) {
+		final double[] wx = new double[width],
+		               wy = new double[height];
+		for (int x=0; x<width; ++x) wx[x] = Math.min(x, width - x) / (double)(width/2);
+		for (int y=0; y<height; ++y) wy[y] = Math.min(y, height - y) / (double)(height/2);
+		return new double[][]{wx, wy};
+	}
+
+	/** Returns true if a new mask has been set to Patch p.
+	 *  @param w The weights of the pixels of p, as returned by {@link #computeWeights(int, int)}. */
+	static private boolean setBlendingMask(final Patch p, Set<Patch> overlapping, final Map<Patch,TransformMesh> meshes, final double[][] w, final boolean respect_current_mask) {
 
 		Utils.log2("Blending " + p);
 
@@ -192,14 +259,36 @@ public final class Blending {
 
 		final byte[] pix = (byte[]) mask.getPixels();
 
-		final Point2D.Double po = new Point2D.Double();
-		final double[] fo = new double[2];
-
 		final int p_o_width = p.getOWidth();
 		final int p_o_height = p.getOHeight();
 
+		final Patch[] others = overlapping.toArray(new Patch[overlapping.size()]);
+		boolean affine = null == mesh;
+		for (final Patch other : others) affine &= null == meshes.get(other);
+
+		// For purely affine images, the transform from the pixels of p to those of each other Patch
+		final double[][] m = new double[others.length][6];
+		final int[] o_width = new int[others.length],
+		            o_height = new int[others.length];
+		for (int k=0; k<others.length; ++k) {
+			o_width[k] = others[k].getOWidth();
+			o_height[k] = others[k].getOHeight();
+			if (!affine) continue;
+			try {
+				final AffineTransform t = others[k].getAffineTransform().createInverse();
+				t.concatenate(at);
+				t.getMatrix(m[k]);
+			} catch (final NoninvertibleTransformException nite) {
+				// matches no pixel
+				m[k] = null;
+			}
+		}
+
+		final Point2D.Double po = new Point2D.Double();
+		final double[] fo = new double[2];
+
 		int next = 0;
-		final double[] weights = new double[overlapping.size() + 1]; // the self as well
+		final double[] weights = new double[others.length + 1]; // the self as well
 		int masked = 0;
 
 		for (int y=0; y<p_o_height; y++) {
@@ -208,33 +297,40 @@ public final class Blending {
 
 			for (int x=0; x<p_o_width; x++) {
 
-				// transform x,y to world coords
-				if (null != mesh) {
-					fo[0] = x;
-					fo[1] = y;
-					mesh.applyInPlace(fo);
-					po.x = fo[0];
-					po.y = fo[1];
+				// check if it intersects any Patch
+				next = 0;
+				if (affine) {
+					for (int k=0; k<others.length; ++k) {
+						final double[] mk = m[k];
+						if (null == mk) continue;
+						final double ox = mk[0] * x + mk[2] * y + mk[4],
+						             oy = mk[1] * x + mk[3] * y + mk[5];
+						if (ox >= 0 && ox < o_width[k] && oy >= 0 && oy < o_height[k]) {
+							final double weight = computeWeight(ox, oy, o_width[k], o_height[k]);
+							if (weight > 0) weights[next++] = weight;
+						}
+					}
 				} else {
-					po.x = x;
-					po.y = y;
-				}
-
-				at.transform(po, po);
-
-				fo[0] = po.x;
-				fo[1] = po.y;
+					// transform x,y to world coords
+					if (null != mesh) {
+						fo[0] = x;
+						fo[1] = y;
+						mesh.applyInPlace(fo);
+						po.x = fo[0];
+						po.y = fo[1];
+					} else {
+						po.x = x;
+						po.y = y;
+					}
 
-				// debug:
-				if (0 == x && 0 == y) {
-					Utils.log2("point 0,0 goes to " + fo[0] + ", " + fo[1]);
-				}
+					at.transform(po, po);
 
-				// check if it intersects any Patch
-				next = 0;
-				for (final Patch other : overlapping) {
-					final double weight = intersects(fo, other, meshes.get(other));
-					if (weight > 0) weights[next++] = weight;
+					for (final Patch other : others) {
+						fo[0] = po.x;
+						fo[1] = po.y;
+						final double weight = intersects(fo, other, meshes.get(other));
+						if (weight > 0) weights[next++] = weight;
+					}
 				}
 
 				final int i = y * p_o_width + x;
@@ -242,7 +338,7 @@ public final class Blending {
 				if (respect_current_mask) {
 					// Don't compute if no overlap or if current mask value is zero
 					if (next > 0 && pix[i] != 0) {
-						weights[next++] = computeWeight(x, y, p_o_width, p_o_height); // the weight of Patch p, added last
+						weights[next++] = w[0][x] * w[1][y]; // the weight of Patch p, added last
 						double sum = 0;
 						for (int f=0; f<next; f++) sum += weights[f];
 						pix[i] = (byte)((int)(255 * (weights[next-1] / sum) * ((pix[i]&0xff) / 255.0f) ));
@@ -251,7 +347,7 @@ public final class Blending {
 					// else leave current value untouched
 				} else if (next > 0) {
 					// Overwritting current mask
-					weights[next++] = computeWeight(x, y, p_o_width, p_o_height); // the weight of Patch p, added last
+					weights[next++] = w[0][x] * w[1][y]; // the weight of Patch p, added last
 					double sum = 0;
 					for (int f=0; f<next; f++) sum += weights[f];
 					pix[i] = (byte)((int)(255 * (weights[next-1] / sum)));
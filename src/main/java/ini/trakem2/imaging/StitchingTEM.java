@@ -31,6 +31,7 @@ import ini.trakem2.display.Display;
 import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Bureaucrat;
 import ini.trakem2.utils.IJError;
@@ -45,6 +46,13 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mpi.fruitfly.math.datastructures.FloatArray2D;
 import mpi.fruitfly.registration.CrossCorrelation2D;
@@ -185,15 +193,32 @@ public class StitchingTEM {
 							(float) patch[0].getAffineTransform().getTranslateY());
 					al_tiles.add(new TranslationTile2D(first_tile_model, patch[0]));
 
+					// Correlate every Patch with the one above and the one to the left, all at once
+					final ArrayList<Patch[]> pairs = new ArrayList<Patch[]>();
+					final ArrayList<Integer> directions = new ArrayList<Integer>();
+					final int[] top = new int[patch.length],
+					            left = new int[patch.length];
+					for (int i=1; i<patch.length; i++) {
+						top[i] = left[i] = -1;
+						if (i - grid_width > -1) {
+							top[i] = pairs.size();
+							pairs.add(new Patch[]{patch[i - grid_width], patch[i]});
+							directions.add(TOP_BOTTOM);
+						}
+						if (0 != i % grid_width) {
+							left[i] = pairs.size();
+							pairs.add(new Patch[]{patch[i - 1], patch[i]});
+							directions.add(LEFT_RIGHT);
+						}
+					}
+					final double[][] results = correlateAll(pairs, directions, param.overlap, param.cc_scale, default_left_right_overlap, default_bottom_top_overlap, param.min_R);
+					if (null == results) return;
+
 					for (int i=1; i<patch.length; i++) {
 						if (Thread.currentThread().isInterrupted()) {
 							return;
 						}
 
-						// boundary checks: don't allow displacements beyond these values
-						final double default_dx = default_left_right_overlap;
-						final double default_dy = default_bottom_top_overlap;
-
 						// for minimization:
 						AbstractAffineTile2D<?> tile_left = null;
 						AbstractAffineTile2D<?> tile_top = null;
@@ -215,16 +240,16 @@ public class StitchingTEM {
 
 						if (TOP == prev) {
 							// compare with top only
-							R1 = correlate(patch[prev_i], patch[i], param.overlap, param.cc_scale, TOP_BOTTOM, default_dx, default_dy, param.min_R);
+							R1 = results[top[i]];
 							R2 = null;
 							tile_top = al_tiles.get(i - grid_width);
 						} else {
 							// the one on the left
-							R2 = correlate(patch[prev_i], patch[i], param.overlap, param.cc_scale, LEFT_RIGHT, default_dx, default_dy, param.min_R);
+							R2 = results[left[i]];
 							tile_left = al_tiles.get(i - 1);
 							// the one above
 							if (i - grid_width > -1) {
-								R1 = correlate(patch[i - grid_width], patch[i], param.overlap, param.cc_scale, TOP_BOTTOM, default_dx, default_dy, param.min_R);
+								R1 = results[top[i]];
 								tile_top = al_tiles.get(i - grid_width);
 							} else {
 								R1 = null;
@@ -401,8 +426,21 @@ public class StitchingTEM {
 
 	/** @return FloatProcessor.
 	 * @param ignore_patch_transform will prevent resizing of the ImageProcessor in the event of the Patch having a transform different than identity. */
-	// TODO 2: there is a combination of options that ends up resulting in the actual ImageProcessor of the Patch being returned as is, which is DANGEROUS because it can potentially result in changes in the data.
 	static public ImageProcessor makeStripe(final Patch p, final Roi roi, final double scale, final boolean ignore_patch_transform) {
+		return makeStripe(p, roi, scale, ignore_patch_transform, render(p));
+	}
+
+	/** @return the transformed image of the Patch, from which {@link #makeStripe(Patch, Roi, double, boolean, ImageProcessor)} cuts stripes. */
+	static private ImageProcessor render(final Patch p) {
+		// Read the transform image from the patch (this way we avoid the JPEG artifacts)
+		final Patch.PatchImage pai = p.createTransformedImage();
+		pai.target.setMinAndMax( p.getMin(), p.getMax() );
+		return pai.target;
+	}
+
+	/** Same as {@link #makeStripe(Patch, Roi, double, boolean)} but cutting the stripe from the {@code source} image
+	 *  of {@link #render(Patch)}, which may be shared among threads and is never modified nor returned. */
+	static private ImageProcessor makeStripe(final Patch p, final Roi roi, final double scale, final boolean ignore_patch_transform, final ImageProcessor source) {
 
 
 		ImagePlus imp = null;
@@ -412,11 +450,10 @@ public class StitchingTEM {
 		if (loader.isMipMapsRegenerationEnabled() && loader.checkMipMapFileExists(p, scale))
 		{
 
-			// Read the transform image from the patch (this way we avoid the JPEG artifacts)
-			final Patch.PatchImage pai = p.createTransformedImage();
-			pai.target.setMinAndMax( p.getMin(), p.getMax() );
-
-			Image image = pai.target.createImage(); //p.getProject().getLoader().fetchImage(p, scale);
+			Image image;
+			synchronized (source) {
+				image = source.createImage(); //p.getProject().getLoader().fetchImage(p, scale);
+			}
 
 			// check that dimensions are correct. If anything, they'll be larger
 			//Utils.log2("patch w,h " + p.getWidth() + ", " + p.getHeight() + " fetched image w,h: " + image.getWidth(null) + ", " + image.getHeight(null));
@@ -446,17 +483,18 @@ public class StitchingTEM {
 		} else {
 
 
-			final Patch.PatchImage pai = p.createTransformedImage();
-			pai.target.setMinAndMax( p.getMin(), p.getMax() );
-
-			ip = pai.target;
-			imp = new ImagePlus("", ip);
+			ip = source;
+			synchronized (source) {
+				imp = new ImagePlus("", ip);
+			}
 
 
 			// compare and adjust
 			if (!ignore_patch_transform && p.getAffineTransform().getType() != AffineTransform.TYPE_TRANSLATION) { // if it's not only a translation:
 				final Rectangle b = p.getBoundingBox();
-				ip = ip.resize(b.width, b.height);
+				synchronized (source) {
+					ip = ip.resize(b.width, b.height);
+				}
 				//Utils.log2("resizing stripe for patch: " + p);
 				// the above is only meant to correct for improperly acquired images at the microscope, the scale only.
 			}
@@ -464,8 +502,17 @@ public class StitchingTEM {
 			if (null != roi) {
 				final Rectangle rb = roi.getBounds();
 				if (ip.getWidth() != rb.width || ip.getHeight() != rb.height) {
-					ip.setRoi(roi);
-					ip = ip.crop();
+					final ImageProcessor uncut = ip;
+					synchronized (uncut) {
+						uncut.setRoi(roi);
+						ip = uncut.crop();
+					}
+				}
+			}
+			// never alter nor hand out the source, which may be the actual image of the Patch
+			if (source == ip) {
+				synchronized (source) {
+					ip = ip.duplicate();
 				}
 			}
 			// scale
@@ -498,6 +545,12 @@ public class StitchingTEM {
 	 * </ul>
 	 */
 	static public double[] correlate(final Patch base, final Patch moving, final float percent_overlap, final double scale, final int direction, final double default_dx, final double default_dy, final double min_R) {
+		return correlate(base, moving, percent_overlap, scale, direction, default_dx, default_dy, min_R, null);
+	}
+
+	/** Same as {@link #correlate(Patch, Patch, float, double, int, double, double, double)},
+	 *  but cutting the stripes from the images in {@code images} when not null. */
+	static private double[] correlate(final Patch base, final Patch moving, final float percent_overlap, final double scale, final int direction, final double default_dx, final double default_dy, final double min_R, final PatchImages images) {
 		//PhaseCorrelation2D pc = null;
 		final double R = -2;
 		//final int limit = 5; // number of peaks to check in the PhaseCorrelation results
@@ -532,13 +585,10 @@ public class StitchingTEM {
 			}
 			//Utils.log2("roi1: " + roi1);
 			//Utils.log2("roi2: " + roi2);
-			ip1 = makeStripe(base, roi1, scale); // will apply the transform if necessary
-			ip2 = makeStripe(moving, roi2, scale);
+			ip1 = makeBlurredStripe(base, roi1, scale, images); // will apply the transform if necessary
+			ip2 = makeBlurredStripe(moving, roi2, scale, images);
 			//new ImagePlus("roi1", ip1).show();
 			//new ImagePlus("roi2", ip2).show();
-			ip1.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip1.getPixels(), ip1.getWidth(), ip1.getHeight()), 1.0).data);
-			ip2.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip2.getPixels(), ip2.getWidth(), ip2.getHeight()), 1.0).data);
-			//
 
 			final ImagePlus imp1 = new ImagePlus( "", ip1 );
 			final ImagePlus imp2 = new ImagePlus( "", ip2 );
@@ -597,12 +647,9 @@ public class StitchingTEM {
 		}
 		// use one third of the size used for phase-correlation though! Otherwise, it may take FOREVER
 		final double scale_cc = scale / 3.0f;
-		ip1 = makeStripe(base, roi1, scale_cc);
-		ip2 = makeStripe(moving, roi2, scale_cc);
-
 		// gaussian blur them before cross-correlation
-		ip1.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip1.getPixels(), ip1.getWidth(), ip1.getHeight()), 1f).data);
-		ip2.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip2.getPixels(), ip2.getWidth(), ip2.getHeight()), 1f).data);
+		ip1 = makeBlurredStripe(base, roi1, scale_cc, images);
+		ip2 = makeBlurredStripe(moving, roi2, scale_cc, images);
 
 
 		//new ImagePlus("CC roi1", ip1).show();
@@ -647,6 +694,108 @@ public class StitchingTEM {
 		/// ABOVE: boundary checks don't work if default_dx,dy are zero! And may actually be harmful in anycase
 	}
 
+	/** Returns the stripe of {@link #makeStripe(Patch, Roi, double)} blurred with a Gaussian of sigma 1,
+	 *  cut from the image of the Patch in {@code images} if not null. */
+	static private ImageProcessor makeBlurredStripe(final Patch p, final Roi roi, final double scale, final PatchImages images) {
+		final ImageProcessor ip = makeStripe(p, roi, scale, false, null == images ? render(p) : images.get(p));
+		ip.setPixels(ImageFilter.computeGaussianFastMirror(new FloatArray2D((float[])ip.getPixels(), ip.getWidth(), ip.getHeight()), 1.0).data);
+		return ip;
+	}
+
+	/** The images of Patches from {@link #render(Patch)}, each rendered once and shared by all correlations
+	 *  that involve the Patch, for all their stripes: both edges, all overlaps and both scales.
+	 *  The image of a Patch is dropped when all its correlations are {@link #done(Patch)},
+	 *  so that when pairs are processed in order only about one row of a grid of tiles is held. */
+	static private final class PatchImages {
+		private final ConcurrentHashMap<Patch,FutureTask<ImageProcessor>> images = new ConcurrentHashMap<Patch,FutureTask<ImageProcessor>>();
+		private final ConcurrentHashMap<Patch,AtomicInteger> uses = new ConcurrentHashMap<Patch,AtomicInteger>();
+
+		/** Announce one more correlation involving {@code p}. */
+		void use(final Patch p) {
+			AtomicInteger n = uses.get(p);
+			if (null == n) {
+				uses.putIfAbsent(p, new AtomicInteger());
+				n = uses.get(p);
+			}
+			n.incrementAndGet();
+		}
+
+		/** Finish one correlation involving {@code p}. */
+		void done(final Patch p) {
+			if (0 == uses.get(p).decrementAndGet()) images.remove(p);
+		}
+
+		/** Returns the shared image of {@code p}, which must not be modified. */
+		ImageProcessor get(final Patch p) {
+			FutureTask<ImageProcessor> ft = images.get(p);
+			if (null == ft) {
+				final FutureTask<ImageProcessor> nft = new FutureTask<ImageProcessor>(new Callable<ImageProcessor>() {
+					@Override
+					public ImageProcessor call() {
+						return render(p);
+					}
+				});
+				ft = images.putIfAbsent(p, nft);
+				if (null == ft) {
+					ft = nft;
+					nft.run();
+				}
+			}
+			try {
+				return ft.get();
+			} catch (final InterruptedException ie) {
+				throw new RuntimeException(ie);
+			} catch (final ExecutionException ee) {
+				throw new RuntimeException(ee.getCause());
+			}
+		}
+	}
+
+	/** Correlate each pair of Patches in parallel, rendering each Patch once for all its pairs.
+	 *  The first Patch of each pair is the base, the second the moving one.
+	 *  @return the result of {@link #correlate(Patch, Patch, float, double, int, double, double, double)} for each pair, or null when interrupted. */
+	static private double[][] correlateAll(final List<Patch[]> pairs, final List<Integer> directions, final float overlap, final double scale, final double default_dx, final double default_dy, final double min_R) {
+		final long t0 = System.currentTimeMillis();
+		final PatchImages images = new PatchImages();
+		for (final Patch[] pair : pairs) {
+			images.use(pair[0]);
+			images.use(pair[1]);
+		}
+		final double[][] results = new double[pairs.size()][];
+		final ExecutorService exec = ExecutorProvider.getExecutorService(1.0f);
+		final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+		try {
+			for (int k=0; k<pairs.size(); ++k) {
+				final int i = k;
+				fus.add(exec.submit(new Runnable() {
+					@Override
+					public void run() {
+						final Patch[] pair = pairs.get(i);
+						try {
+							pair[0].getProject().getLoader().releaseToFit((long)(pair[0].getWidth() * pair[0].getHeight() * 25));
+							results[i] = correlate(pair[0], pair[1], overlap, scale, directions.get(i), default_dx, default_dy, min_R, images);
+						} finally {
+							images.done(pair[0]);
+							images.done(pair[1]);
+						}
+					}
+				}));
+			}
+			for (final Future<?> fu : fus) fu.get();
+		} catch (final InterruptedException ie) {
+			Utils.log("Phase correlation interrupted.");
+			return null;
+		} catch (final ExecutionException ee) {
+			IJError.print(ee.getCause());
+			return null;
+		} finally {
+			exec.shutdownNow();
+		}
+		final long t = Math.max(1, System.currentTimeMillis() - t0);
+		Utils.log(String.format("Phase correlation: %d pairs in %.1fs (%.2f pairs/s)", pairs.size(), t / 1000.0, pairs.size() * 1000.0 / t));
+		return results;
+	}
+
 	/** Figure out from which direction is the dragged object approaching the object being overlapped. 0=left, 1=top, 2=right, 3=bottom. This method by Stephan Nufer. */
 	static private int getClosestOverlapLocation(final Patch dragging_ob, final Patch overlapping_ob) {
 		final Rectangle x_rect = dragging_ob.getBoundingBox();
@@ -848,6 +997,10 @@ public class StitchingTEM {
 
 
 
+		// Find overlapping pairs, to correlate them all at once
+		final ArrayList<Patch[]> pairs = new ArrayList<Patch[]>();
+		final ArrayList<Integer> directions = new ArrayList<Integer>();
+		final ArrayList<int[]> indices = new ArrayList<int[]>();
 		for (int i=0; i<al.size(); i++) {
 			final Patch p1 = al.get(i);
 			final Rectangle r1 = p1.getBoundingBox();
@@ -866,39 +1019,31 @@ public class StitchingTEM {
 						continue;
 					}
 
-					p1.getProject().getLoader().releaseToFit((long)(p1.getWidth() * p1.getHeight() * 25));
-
-					final double[] R;
 					if (1 == overlap) {
-						R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R );
-						if (SUCCESS == R[2]) {
-							addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-						}
+						pairs.add(new Patch[]{p1, p2});
+						directions.add(TOP_BOTTOM);
+						indices.add(new int[]{i, j});
 					} else {
 						switch (getClosestOverlapLocation(p1, p2)) {
 							case 0: // p1 overlaps p2 from the left
-								R = correlate(p1, p2, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
+								pairs.add(new Patch[]{p1, p2});
+								directions.add(LEFT_RIGHT);
+								indices.add(new int[]{i, j});
 								break;
 							case 1: // p1 overlaps p2 from the top
-								R = correlate(p1, p2, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(i), tiles.get(j), R[0], R[1]);
-								}
+								pairs.add(new Patch[]{p1, p2});
+								directions.add(TOP_BOTTOM);
+								indices.add(new int[]{i, j});
 								break;
 							case 2: // p1 overlaps p2 from the right
-								R = correlate(p2, p1, overlap, cc_scale, LEFT_RIGHT, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
+								pairs.add(new Patch[]{p2, p1});
+								directions.add(LEFT_RIGHT);
+								indices.add(new int[]{j, i});
 								break;
 							case 3: // p1 overlaps p2 from the bottom
-								R = correlate(p2, p1, overlap, cc_scale, TOP_BOTTOM, 0, 0, param.min_R);
-								if (SUCCESS == R[2]) {
-									addMatches(tiles.get(j), tiles.get(i), R[0], R[1]);
-								}
+								pairs.add(new Patch[]{p2, p1});
+								directions.add(TOP_BOTTOM);
+								indices.add(new int[]{j, i});
 								break;
 							default:
 								Utils.log("Unknown overlap direction!");
@@ -909,6 +1054,15 @@ public class StitchingTEM {
 			}
 		}
 
+		final double[][] results = correlateAll(pairs, directions, overlap, cc_scale, 0, 0, param.min_R);
+		if (null == results) return;
+		for (int k=0; k<results.length; ++k) {
+			final double[] R = results[k];
+			if (SUCCESS == R[2]) {
+				addMatches(tiles.get(indices.get(k)[0]), tiles.get(indices.get(k)[1]), R[0], R[1]);
+			}
+		}
+
 		if (param.remove_disconnected || param.hide_disconnected) {
 			for (final Iterator<AbstractAffineTile2D<?>> it = tiles.iterator(); it.hasNext(); ) {
 				final AbstractAffineTile2D<?> t = it.next();
@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging.filters;
+
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ini.trakem2.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a chain of {@link IFilter IFilters} on an image.  Consecutive
+ * {@link TileableFilter TileableFilters} are fused: they run one after the
+ * other on each tile of the image, padded with the sum of their halos, and
+ * the tiles of each band of rows are processed in parallel.  Finished tiles
+ * are written back into the image, band by band, keeping aside only the rows
+ * that the halo of the next band needs, so no full size copy of the image is
+ * made.  Tiles grow with the halo to at least four times its size, so that
+ * padding at most doubles the side of a tile; when the image is not larger
+ * than such a tile, the fused filters process the whole image instead.
+ * All other filters, such as those that need global statistics, process the
+ * whole image.
+ */
+public class FilterPipeline
+{
+	/** Minimal side length of the core of a tile. */
+	static public int TILE_SIZE = 1024;
+
+	private FilterPipeline() {}
+
+	/** Execute all filters in order, returning possibly a new ImageProcessor, or the same as given. */
+	static public ImageProcessor process(final IFilter[] filters, ImageProcessor ip) {
+		int i = 0;
+		while (i < filters.length) {
+			int j = i;
+			int halo = 0;
+			while (j < filters.length && filters[j] instanceof TileableFilter) {
+				final int h = ((TileableFilter)filters[j]).getHalo(ip);
+				if (h < 0) break;
+				halo += h;
+				++j;
+			}
+			if (j == i) {
+				ip = filters[i].process(ip);
+				++i;
+				continue;
+			}
+			// Padding at most doubles the side of a tile
+			final int tile_size = Math.max(TILE_SIZE, 4 * halo);
+			if (ip.getWidth() > tile_size || ip.getHeight() > tile_size) {
+				try {
+					ip = processTiled(filters, i, j, ip, halo, tile_size);
+				} catch (final ExecutionException e) {
+					// Nothing was written yet: ip is unchanged
+					Utils.log2("Tiled filtering failed, processing the whole image: " + e.getCause());
+					for (int k = i; k < j; ++k) ip = filters[k].process(ip);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while filtering", e);
+				}
+			} else {
+				for (int k = i; k < j; ++k) ip = filters[k].process(ip);
+			}
+			i = j;
+		}
+		return ip;
+	}
+
+	/** Copy a rectangle of rows between pixel arrays of any primitive type. */
+	static private final void copy(final Object src, final int srcWidth, final int sx, final int sy,
+			final Object dst, final int dstWidth, final int dx, final int dy,
+			final int width, final int height) {
+		for (int y = 0; y < height; ++y) {
+			System.arraycopy(src, (sy + y) * srcWidth + sx, dst, (dy + y) * dstWidth + dx, width);
+		}
+	}
+
+	/** Run filters[first..last) on tiles of ip with the given halo, which must not exceed the tile size,
+	 *  writing the results back into ip. If a filter fails on the first band, ip is left unchanged and the
+	 *  exception is thrown; on a later band, ip is partially filtered and a RuntimeException is thrown. */
+	static private ImageProcessor processTiled(final IFilter[] filters, final int first, final int last,
+			final ImageProcessor ip, final int halo, final int tileSize) throws InterruptedException, ExecutionException {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		final boolean color = ip instanceof ColorProcessor;
+		final double min = ip.getMin(),
+		             max = ip.getMax();
+		final Object pix = ip.getPixels();
+		// The original rows above the current band, which the previous band already overwrote in pix
+		final Object above = 0 == halo ? null : ip.createProcessor(width, halo).getPixels();
+		final int nTiles = (width + tileSize - 1) / tileSize;
+		final ImageProcessor[] tiles = new ImageProcessor[nTiles];
+		final ImageProcessor[] done = new ImageProcessor[nTiles];
+		final AtomicBoolean rangeChanged = new AtomicBoolean(false);
+		final ExecutorService exec = Utils.newFixedThreadPool(Math.min(nTiles, Runtime.getRuntime().availableProcessors()), "FilterPipeline");
+
+		boolean written = false;
+		try {
+			for (int y0 = 0; y0 < height; y0 += tileSize) {
+				final int cy = y0,
+				          ch = Math.min(tileSize, height - y0),
+				          by = Math.max(0, cy - halo),
+				          bh = Math.min(height, cy + ch + halo) - by;
+				final ArrayList<Future<?>> fus = new ArrayList<Future<?>>();
+				for (int t = 0; t < nTiles; ++t) {
+					final int ti = t,
+					          cx = t * tileSize,
+					          cw = Math.min(tileSize, width - cx),
+					          bx = Math.max(0, cx - halo),
+					          bw = Math.min(width, cx + cw + halo) - bx;
+					fus.add(exec.submit(new Runnable() {
+						@Override
+						public void run() {
+							// Reuse the buffer of the tile in the same column, when of the same size
+							ImageProcessor tile = tiles[ti];
+							if (null == tile || tile.getWidth() != bw || tile.getHeight() != bh) tile = ip.createProcessor(bw, bh);
+							else tile.resetRoi();
+							final Object tpix = tile.getPixels();
+							// rows above the band from the saved originals, the rest from the image
+							copy(above, width, bx, halo - (cy - by), tpix, bw, 0, 0, bw, cy - by);
+							copy(pix, width, bx, cy, tpix, bw, 0, cy - by, bw, bh - (cy - by));
+							if (!color) tile.setMinAndMax(min, max);
+							ImageProcessor r = tile;
+							for (int k = first; k < last; ++k) r = filters[k].process(r);
+							if (r.getWidth() != bw || r.getHeight() != bh || r.getPixels().getClass() != pix.getClass()) {
+								throw new IllegalStateException("A tileable filter changed the image type or size.");
+							}
+							if (!color && (r.getMin() != min || r.getMax() != max)) rangeChanged.set(true);
+							tiles[ti] = r;
+							done[ti] = r;
+						}
+					}));
+				}
+				try {
+					for (final Future<?> fu : fus) fu.get();
+				} finally {
+					for (final Future<?> fu : fus) fu.cancel(true);
+				}
+				// Keep the original rows that the halo of the next band reaches, then write the band
+				final int next = cy + ch;
+				if (null != above && next < height) {
+					copy(pix, width, 0, next - halo, above, width, 0, 0, width, halo);
+				}
+				for (int t = 0; t < nTiles; ++t) {
+					final int cx = t * tileSize,
+					          cw = Math.min(tileSize, width - cx),
+					          bx = Math.max(0, cx - halo);
+					copy(done[t].getPixels(), done[t].getWidth(), cx - bx, cy - by, pix, width, cx, cy, cw, ch);
+				}
+				written = true;
+			}
+		} catch (final ExecutionException ee) {
+			if (written) throw new RuntimeException("Tiled filtering failed on a partially filtered image", ee.getCause());
+			throw ee;
+		} catch (final InterruptedException ie) {
+			if (written) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Tiled filtering interrupted on a partially filtered image", ie);
+			}
+			throw ie;
+		} finally {
+			exec.shutdownNow();
+		}
+
+		if (!color) {
+			if (rangeChanged.get()) ip.resetMinAndMax();
+			else ip.setMinAndMax(min, max);
+		}
+		return ip;
+	}
+}
@@ -26,7 +26,7 @@ import ij.process.ImageProcessor;
 import java.util.Map;
 
 /** Smooth with a Gaussian. */
-public class GaussianBlur implements IFilter
+public class GaussianBlur implements TileableFilter
 {
 	protected double sigmaX = 2, sigmaY = 2, accuracy = 0.002;
 	
@@ -55,6 +55,17 @@ public class GaussianBlur implements IFilter
 		return ip;
 	}
 
+	/** ImageJ blurs by downscaling for sigma larger than this, on a grid that depends on the image size. */
+	static private final double MAX_TILEABLE_SIGMA = 4.5;
+
+	@Override
+	public int getHalo(final ImageProcessor ip) {
+		final double sigma = Math.max(sigmaX, sigmaY);
+		if (sigma > MAX_TILEABLE_SIGMA) return -1;
+		// Same kernel radius as ij.plugin.filter.GaussianBlur.makeGaussianKernel
+		return (int)Math.ceil(sigma * Math.sqrt(-2 * Math.log(accuracy))) + 1;
+	}
+
 	@Override
 	public String toXML(String indent) {
 		return new StringBuilder(indent)
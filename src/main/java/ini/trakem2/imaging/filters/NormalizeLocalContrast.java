@@ -25,7 +25,7 @@ import ij.process.ImageProcessor;
 
 import java.util.Map;
 
-public class NormalizeLocalContrast implements IFilter
+public class NormalizeLocalContrast implements TileableFilter
 {
 	protected int brx = 500, bry = 500;
 	protected float stds = 3;
@@ -77,6 +77,11 @@ public class NormalizeLocalContrast implements IFilter
 		return ip;
 	}
 
+	@Override
+	public int getHalo(final ImageProcessor ip) {
+		return Math.max(brx, bry) + 1;
+	}
+
 	@Override
 	public String toXML(final String indent) {
 		return new StringBuilder(indent)
@@ -0,0 +1,41 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.imaging.filters;
+
+import ij.process.ImageProcessor;
+
+/**
+ * An {@link IFilter} whose result at every pixel depends only on a bounded
+ * neighborhood of that pixel, so that it can be run on tiles of an image
+ * with a halo of that size, see {@link FilterPipeline}.
+ * {@link #process(ImageProcessor)} must return an image of the same type and
+ * size as given.
+ */
+public interface TileableFilter extends IFilter
+{
+	/**
+	 * @return the number of pixels on each side that the filter needs to
+	 * compute a pixel, or -1 if, for this image, the filter needs to see the
+	 * whole image.
+	 */
+	public int getHalo(ImageProcessor ip);
+}
@@ -28,7 +28,7 @@ import ij.process.ImageProcessor;
 import java.util.Map;
 import java.util.Random;
 
-public class ValueToNoise implements IFilter
+public class ValueToNoise implements TileableFilter
 {
 	final static private void processFloatNaN(final FloatProcessor ip, final double min, final double max) {
 		final double scale = max - min;
@@ -133,6 +133,11 @@ public class ValueToNoise implements IFilter
 		return ip;
 	}
 
+	@Override
+	public int getHalo(final ImageProcessor ip) {
+		return 0;
+	}
+
 	@Override
 	public String toXML(final String indent) {
 		return new StringBuilder(indent)
@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.parallel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Executor Provider that dispatches Serializable Callables to worker JVMs through a
+ * job queue in a shared directory. Start any number of workers, on this or any other
+ * machine that mounts the directory, with
+ * <pre>
+ * java -cp ... ini.trakem2.parallel.FileQueueWorker /path/to/queue
+ * </pre>
+ * and install the provider with
+ * <pre>
+ * ExecutorProvider.setProvider(new FileQueueExecutorProvider(new File("/path/to/queue")));
+ * </pre>
+ * Callables that cannot be serialized run locally, in a pool of as many daemon threads
+ * as processors that is shared by all services of the provider.
+ *
+ * The provider creates one {@link FileQueueExecutorService}, with its monitor thread,
+ * on first use. Every call to {@link #getService(int)} returns a light view of it,
+ * which callers may shut down as usual: shutting down a view stops it from accepting
+ * tasks and waits only for its own, without affecting the shared queue. The number of
+ * threads requested is ignored, since the workers determine how many jobs run at once.
+ *
+ * @see FileQueueExecutorService
+ */
+public class FileQueueExecutorProvider extends ExecutorProvider
+{
+    private final File queueDir;
+    private final long leaseTimeout;
+    private final int maxAttempts;
+    private FileQueueExecutorService queue = null;
+
+    /**
+     * @param queueDir the shared queue directory
+     * @param leaseTimeout milliseconds without heartbeat after which a job is given to another worker
+     * @param maxAttempts how often a job is dispatched before it fails
+     */
+    public FileQueueExecutorProvider(final File queueDir, final long leaseTimeout, final int maxAttempts)
+    {
+        this.queueDir = queueDir;
+        this.leaseTimeout = leaseTimeout;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public FileQueueExecutorProvider(final File queueDir)
+    {
+        this(queueDir, FileQueueWorker.HEARTBEAT_INTERVAL * 6, 3);
+    }
+
+    /** The queue shared by all services of this provider, created on first use. */
+    public synchronized FileQueueExecutorService getQueue()
+    {
+        if (null == queue)
+        {
+            final int nCpu = Runtime.getRuntime().availableProcessors();
+            final ThreadPoolExecutor local = new ThreadPoolExecutor(nCpu, nCpu, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread t = new Thread(r, "FileQueueExecutorProvider local");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            local.allowCoreThreadTimeOut(true);
+            queue = new FileQueueExecutorService(queueDir, leaseTimeout, maxAttempts, local);
+        }
+        return queue;
+    }
+
+    public ExecutorService getService(int nThreads)
+    {
+        return new View(getQueue());
+    }
+
+    public ExecutorService getService(float fractionThreads)
+    {
+        return new View(getQueue());
+    }
+
+    /**
+     * An ExecutorService that submits to a shared {@link FileQueueExecutorService}
+     * and keeps track of its own tasks, for shutting down and awaiting termination.
+     */
+    static private final class View extends AbstractExecutorService
+    {
+        private final FileQueueExecutorService queue;
+        private final Set<Future<?>> futures = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+        private volatile boolean shutdown = false;
+
+        View(final FileQueueExecutorService queue)
+        {
+            this.queue = queue;
+        }
+
+        private <T> Future<T> track(final Future<T> future)
+        {
+            // Forget finished tasks now and then, so that long-lived views don't accumulate them
+            if (futures.size() > 64) purge();
+            futures.add(future);
+            return future;
+        }
+
+        private void purge()
+        {
+            for (final Future<?> future : futures)
+                if (future.isDone()) futures.remove(future);
+        }
+
+        private void check()
+        {
+            if (shutdown) throw new RejectedExecutionException("shut down");
+        }
+
+        public <T> Future<T> submit(final Callable<T> task)
+        {
+            check();
+            return track(queue.submit(task));
+        }
+
+        public <T> Future<T> submit(final Runnable task, final T value)
+        {
+            check();
+            return track(queue.submit(task, value));
+        }
+
+        public Future<?> submit(final Runnable task)
+        {
+            check();
+            return track(queue.submit(task));
+        }
+
+        public void execute(final Runnable command)
+        {
+            submit(command);
+        }
+
+        public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks) throws InterruptedException
+        {
+            check();
+            return queue.invokeAll(tasks);
+        }
+
+        public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException
+        {
+            check();
+            return queue.invokeAll(tasks, timeout, unit);
+        }
+
+        public <T> T invokeAny(final Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException
+        {
+            check();
+            return queue.invokeAny(tasks);
+        }
+
+        public <T> T invokeAny(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            check();
+            return queue.invokeAny(tasks, timeout, unit);
+        }
+
+        public void shutdown()
+        {
+            shutdown = true;
+        }
+
+        public List<Runnable> shutdownNow()
+        {
+            shutdown = true;
+            for (final Future<?> future : futures)
+                future.cancel(true);
+            return new ArrayList<Runnable>();
+        }
+
+        public boolean isShutdown()
+        {
+            return shutdown;
+        }
+
+        public boolean isTerminated()
+        {
+            if (!shutdown) return false;
+            purge();
+            return futures.isEmpty();
+        }
+
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException
+        {
+            final long end = System.nanoTime() + unit.toNanos(timeout);
+            for (final Future<?> future : futures)
+            {
+                try
+                {
+                    future.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                catch (final ExecutionException ee) {}
+                catch (final CancellationException ce) {}
+                catch (final TimeoutException te)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
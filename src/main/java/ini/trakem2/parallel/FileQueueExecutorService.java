@@ -0,0 +1,520 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.parallel;
+
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An ExecutorService that dispatches {@link Serializable} Callables to worker
+ * JVMs through a job queue in a shared directory, see {@link FileQueueWorker}.
+ *
+ * The queue directory has three subdirectories:
+ * <ul>
+ * <li><code>pending</code>: serialized {@link Job Jobs} waiting for a worker,</li>
+ * <li><code>running</code>: jobs claimed by a worker, renamed to carry the
+ * worker id; the worker touches the file regularly as a heartbeat,</li>
+ * <li><code>done</code>: serialized {@link Result Results}.</li>
+ * </ul>
+ * All files are written to a temporary name and then renamed, so readers never
+ * see partial files.  A monitor thread completes the returned Futures as soon
+ * as their results appear, in whatever order the workers finish.  Jobs whose
+ * heartbeat is older than the lease timeout are moved back to
+ * <code>pending</code> to be picked up by another worker, up to a maximal
+ * number of attempts.  Heartbeats and leases are compared in the clock of the
+ * file system of the queue directory (see {@link #queueTime(File)}), so that
+ * the clocks of the machines involved need not agree.
+ *
+ * All ways of submitting go through the queue: {@link #submit}, {@link #execute},
+ * {@link #invokeAll} and {@link #invokeAny}.  Callables and Runnables that are not
+ * Serializable, or whose serialization fails, run in a local fallback ExecutorService
+ * instead, which is owned by the caller and never shut down by this service.
+ */
+public class FileQueueExecutorService extends AbstractExecutorService {
+
+	static public final String PENDING = "pending", RUNNING = "running", DONE = "done";
+	static public final String JOB_SUFFIX = ".job", RESULT_SUFFIX = ".result", TMP_SUFFIX = ".tmp";
+
+	/** A serialized task in the queue. */
+	static public class Job implements Serializable {
+		private static final long serialVersionUID = 3815291063745212417L;
+		public final String id;
+		public final int attempt;
+		public final Callable<?> task;
+		public Job(final String id, final int attempt, final Callable<?> task) {
+			this.id = id;
+			this.attempt = attempt;
+			this.task = task;
+		}
+	}
+
+	/** The outcome of a {@link Job}: either a value or the Throwable it failed with. */
+	static public class Result implements Serializable {
+		private static final long serialVersionUID = -4409871270436016345L;
+		public final String id;
+		public final Object value;
+		public final Throwable error;
+		public Result(final String id, final Object value, final Throwable error) {
+			this.id = id;
+			this.value = value;
+			this.error = error;
+		}
+	}
+
+	/** Runs a Serializable Runnable as a Callable in a worker. */
+	static private final class RunnableCallable<T> implements Callable<T>, Serializable {
+		private static final long serialVersionUID = 6029137561847503712L;
+		private final Runnable runnable;
+		private final T value;
+		RunnableCallable(final Runnable runnable, final T value) {
+			this.runnable = runnable;
+			this.value = value;
+		}
+		@Override
+		public T call() {
+			runnable.run();
+			return value;
+		}
+	}
+
+	/** A Future that is completed by the monitor thread. */
+	private final class RemoteFuture<T> extends FutureTask<T> {
+		final String id;
+		/** Kept for dispatching again a lost job; dropped when done. */
+		volatile byte[] serializedTask;
+		int attempt = 0;
+		RemoteFuture(final String id, final byte[] serializedTask) {
+			super(new Callable<T>() {
+				@Override
+				public T call() { throw new IllegalStateException(); }
+			});
+			this.id = id;
+			this.serializedTask = serializedTask;
+		}
+		@SuppressWarnings("unchecked")
+		void complete(final Result result) {
+			if (null == result.error) set((T)result.value);
+			else setException(result.error);
+		}
+		void fail(final Throwable t) {
+			setException(t);
+		}
+		@Override
+		protected void done() {
+			serializedTask = null;
+		}
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			final boolean b = super.cancel(mayInterruptIfRunning);
+			if (b) {
+				pending.remove(id);
+				new File(pendingDir, id + JOB_SUFFIX).delete();
+			}
+			return b;
+		}
+	}
+
+	private final File pendingDir, runningDir, doneDir;
+	private final long leaseTimeout;
+	private final int maxAttempts;
+	private final long pollInterval;
+	private final ExecutorService fallback;
+	/** The number of tasks submitted to the fallback that have not finished. */
+	private final AtomicInteger localTasks = new AtomicInteger();
+	private final Map<String, RemoteFuture<?>> pending = new ConcurrentHashMap<String, RemoteFuture<?>>();
+	private final File clock;
+	private final Thread monitor;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param queueDir the shared queue directory, created if necessary
+	 * @param leaseTimeout milliseconds without heartbeat after which a running job is considered lost
+	 * @param maxAttempts how often a job is dispatched before its Future fails
+	 * @param fallback runs Callables that cannot be serialized; not shut down by this service
+	 */
+	public FileQueueExecutorService(final File queueDir, final long leaseTimeout, final int maxAttempts, final ExecutorService fallback) {
+		this.clock = new File(queueDir, "clock." + UUID.randomUUID() + TMP_SUFFIX);
+		clock.deleteOnExit();
+		this.pendingDir = new File(queueDir, PENDING);
+		this.runningDir = new File(queueDir, RUNNING);
+		this.doneDir = new File(queueDir, DONE);
+		pendingDir.mkdirs();
+		runningDir.mkdirs();
+		doneDir.mkdirs();
+		this.leaseTimeout = leaseTimeout;
+		this.maxAttempts = maxAttempts;
+		this.pollInterval = Math.max(10, Math.min(200, leaseTimeout / 10));
+		this.fallback = fallback;
+		this.monitor = new Thread("FileQueueExecutorService monitor") {
+			@Override
+			public void run() {
+				while (!(shutdown && pending.isEmpty()) && !isInterrupted()) {
+					try {
+						if (!pending.isEmpty()) {
+							collectResults();
+							recoverLostJobs();
+						}
+						Thread.sleep(pollInterval);
+					} catch (final InterruptedException ie) {
+						return;
+					} catch (final Throwable t) {
+						Utils.log2("FileQueueExecutorService monitor: " + t);
+					}
+				}
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	static final byte[] serialize(final Object ob) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(ob);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** Write to a temporary file and rename, so that readers never see partial content. */
+	static final void writeAtomically(final File file, final byte[] bytes) throws IOException {
+		final File tmp = new File(file.getParentFile(), file.getName() + TMP_SUFFIX);
+		final BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+	}
+
+	/** The current time in the clock of the file system holding {@code probe}, found by rewriting
+	 *  the file and reading its modification time; or the local time if that fails. */
+	static final long queueTime(final File probe) {
+		try {
+			new FileOutputStream(probe).close();
+			final long t = probe.lastModified();
+			if (t > 0) return t;
+		} catch (final IOException ioe) {
+			Utils.log2("Could not read the time of the queue directory: " + ioe);
+		}
+		return System.currentTimeMillis();
+	}
+
+	static final Object read(final File file) throws IOException, ClassNotFoundException {
+		final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void enqueue(final RemoteFuture<?> future) throws IOException {
+		// The Job wraps the already serialized task to avoid serializing it again on retry
+		final byte[] task = future.serializedTask;
+		if (null == task) return; // done meanwhile
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(future.id);
+		out.writeInt(future.attempt);
+		out.writeInt(task.length);
+		out.write(task);
+		out.close();
+		writeAtomically(new File(pendingDir, future.id + JOB_SUFFIX), bytes.toByteArray());
+	}
+
+	/** Read a job file written by {@link #enqueue}. */
+	static final Job readJob(final File file) throws IOException, ClassNotFoundException {
+		final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			final String id = (String)in.readObject();
+			final int attempt = in.readInt();
+			final byte[] task = new byte[in.readInt()];
+			in.readFully(task);
+			final ObjectInputStream tin = new ObjectInputStream(new ByteArrayInputStream(task));
+			return new Job(id, attempt, (Callable<?>)tin.readObject());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public <T> Future<T> submit(final Callable<T> task) {
+		if (shutdown) throw new RejectedExecutionException("shut down");
+		if (task instanceof Serializable) {
+			try {
+				final RemoteFuture<T> future = new RemoteFuture<T>(UUID.randomUUID().toString(), serialize(task));
+				pending.put(future.id, future);
+				enqueue(future);
+				return future;
+			} catch (final NotSerializableException nse) {
+				Utils.log2("Running " + task.getClass().getName() + " locally: " + nse.getMessage() + " is not serializable.");
+			} catch (final IOException ioe) {
+				Utils.log2("Running " + task.getClass().getName() + " locally: " + ioe);
+			}
+		}
+		localTasks.incrementAndGet();
+		return fallback.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try {
+					return task.call();
+				} finally {
+					localTasks.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	@Override
+	public <T> Future<T> submit(final Runnable task, final T value) {
+		return submit(runnable(task, value));
+	}
+
+	@Override
+	public Future<?> submit(final Runnable task) {
+		return submit(runnable(task, null));
+	}
+
+	/** A Callable that is Serializable when {@code task} is. */
+	static private <T> Callable<T> runnable(final Runnable task, final T value) {
+		if (task instanceof Serializable) return new RunnableCallable<T>(task, value);
+		return new Callable<T>() {
+			@Override
+			public T call() {
+				task.run();
+				return value;
+			}
+		};
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		submit(command);
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks) throws InterruptedException {
+		final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		try {
+			for (final Callable<T> task : tasks) futures.add(submit(task));
+			for (final Future<T> future : futures) {
+				try {
+					future.get();
+				} catch (final ExecutionException ee) {
+					// reported by the Future
+				} catch (final CancellationException ce) {
+					// reported by the Future
+				}
+			}
+			return futures;
+		} catch (final InterruptedException ie) {
+			for (final Future<T> future : futures) future.cancel(true);
+			throw ie;
+		}
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long end = System.nanoTime() + unit.toNanos(timeout);
+		final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		try {
+			for (final Callable<T> task : tasks) futures.add(submit(task));
+			for (final Future<T> future : futures) {
+				try {
+					future.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+				} catch (final ExecutionException ee) {
+					// reported by the Future
+				} catch (final CancellationException ce) {
+					// reported by the Future
+				} catch (final TimeoutException te) {
+					break;
+				}
+			}
+		} catch (final InterruptedException ie) {
+			for (final Future<T> future : futures) future.cancel(true);
+			throw ie;
+		}
+		for (final Future<T> future : futures) {
+			if (!future.isDone()) future.cancel(true);
+		}
+		return futures;
+	}
+
+	@Override
+	public <T> T invokeAny(final Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+		try {
+			return invokeAny(tasks, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (final TimeoutException te) {
+			throw new ExecutionException(te);
+		}
+	}
+
+	/** Submits all tasks and returns the result of the first one that succeeds, cancelling the others. */
+	@Override
+	public <T> T invokeAny(final Collection<? extends Callable<T>> tasks, final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (tasks.isEmpty()) throw new IllegalArgumentException("no tasks");
+		final long end = Long.MAX_VALUE == timeout ? Long.MAX_VALUE : System.nanoTime() + unit.toNanos(timeout);
+		final List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		try {
+			for (final Callable<T> task : tasks) futures.add(submit(task));
+			ExecutionException last = null;
+			while (true) {
+				int done = 0;
+				for (final Future<T> future : futures) {
+					if (!future.isDone()) continue;
+					++done;
+					try {
+						return future.get();
+					} catch (final ExecutionException ee) {
+						last = ee;
+					} catch (final CancellationException ce) {
+						last = new ExecutionException(ce);
+					}
+				}
+				if (done == futures.size()) throw last;
+				if (System.nanoTime() > end) throw new TimeoutException();
+				Thread.sleep(pollInterval);
+			}
+		} finally {
+			for (final Future<T> future : futures) future.cancel(true);
+		}
+	}
+
+	private void collectResults() {
+		final File[] files = doneDir.listFiles();
+		if (null == files) return;
+		for (final File file : files) {
+			final String name = file.getName();
+			if (!name.endsWith(RESULT_SUFFIX)) continue;
+			final String id = name.substring(0, name.length() - RESULT_SUFFIX.length());
+			final RemoteFuture<?> future = pending.remove(id);
+			if (null == future) continue; // belongs to another service sharing the queue
+			try {
+				future.complete((Result)read(file));
+			} catch (final Throwable t) {
+				future.fail(t);
+			}
+			file.delete();
+		}
+	}
+
+	private void recoverLostJobs() {
+		final File[] files = runningDir.listFiles();
+		if (null == files) return;
+		long now = -1;
+		for (final File file : files) {
+			final String name = file.getName();
+			if (!name.endsWith(JOB_SUFFIX)) continue;
+			// running files are named <id>.<worker>.job
+			final int dot = name.indexOf('.');
+			if (dot < 0) continue;
+			final RemoteFuture<?> future = pending.get(name.substring(0, dot));
+			if (null == future) continue;
+			if (-1 == now) now = queueTime(clock);
+			if (now - file.lastModified() < leaseTimeout) continue;
+			if (!file.delete()) continue; // the worker finished in the meantime
+			++future.attempt;
+			if (future.attempt >= maxAttempts) {
+				pending.remove(future.id);
+				future.fail(new IOException("Job " + future.id + " was lost by " + maxAttempts + " workers."));
+				continue;
+			}
+			Utils.log2("Job " + future.id + " lost by its worker, retrying (attempt " + (future.attempt + 1) + ")");
+			try {
+				enqueue(future);
+			} catch (final IOException ioe) {
+				pending.remove(future.id);
+				future.fail(ioe);
+			}
+		}
+	}
+
+	/** Stops accepting tasks; those submitted complete, but the fallback is left running. */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+	}
+
+	/** Cancels the jobs in the queue; tasks already running in the fallback are left to finish. */
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		for (final RemoteFuture<?> future : new ArrayList<RemoteFuture<?>>(pending.values())) {
+			future.cancel(true);
+		}
+		monitor.interrupt();
+		return new ArrayList<Runnable>();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && pending.isEmpty() && 0 == localTasks.get();
+	}
+
+	@Override
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long end = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!pending.isEmpty() || localTasks.get() > 0) {
+			if (System.currentTimeMillis() > end) return false;
+			Thread.sleep(pollInterval);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,198 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.parallel;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+
+import ini.trakem2.parallel.FileQueueExecutorService.Job;
+import ini.trakem2.parallel.FileQueueExecutorService.Result;
+
+/**
+ * A worker that takes jobs from the queue directory of a {@link FileQueueExecutorService},
+ * runs them and writes their {@link Result Results} back.  Jobs are claimed by atomically
+ * renaming them from <code>pending</code> into <code>running</code>, so that any number of
+ * workers can share a queue.  While a job runs, its file is touched every
+ * {@link #HEARTBEAT_INTERVAL} milliseconds with the time of the file system of the queue
+ * directory; if the worker dies, the submitting service notices the stale heartbeat and
+ * hands the job to another worker.
+ *
+ * Usage: <code>java -cp ... ini.trakem2.parallel.FileQueueWorker queueDir [nThreads]</code>
+ */
+public class FileQueueWorker
+{
+    static public final long HEARTBEAT_INTERVAL = 5000;
+    static private final long POLL_INTERVAL = 100;
+
+    private final File pendingDir, runningDir, doneDir;
+    private final String workerId;
+    /** Rewritten to read the time of the file system of the queue directory. */
+    private final File clock;
+
+    public FileQueueWorker(final File queueDir, final String workerId)
+    {
+        this.pendingDir = new File(queueDir, FileQueueExecutorService.PENDING);
+        this.runningDir = new File(queueDir, FileQueueExecutorService.RUNNING);
+        this.doneDir = new File(queueDir, FileQueueExecutorService.DONE);
+        pendingDir.mkdirs();
+        runningDir.mkdirs();
+        doneDir.mkdirs();
+        this.workerId = workerId.replace('.', '_');
+        this.clock = new File(queueDir, "clock." + this.workerId + FileQueueExecutorService.TMP_SUFFIX);
+        clock.deleteOnExit();
+    }
+
+    /** Claim the oldest pending job, or return null if there is none. */
+    private File claim()
+    {
+        final File[] files = pendingDir.listFiles();
+        if (null == files) return null;
+        Arrays.sort(files, new Comparator<File>()
+        {
+            public int compare(final File a, final File b)
+            {
+                final long ta = a.lastModified(), tb = b.lastModified();
+                return ta < tb ? -1 : ta == tb ? 0 : 1;
+            }
+        });
+        for (final File file : files)
+        {
+            final String name = file.getName();
+            if (!name.endsWith(FileQueueExecutorService.JOB_SUFFIX)) continue;
+            final String id = name.substring(0, name.length() - FileQueueExecutorService.JOB_SUFFIX.length());
+            final File claimed = new File(runningDir, id + "." + workerId + FileQueueExecutorService.JOB_SUFFIX);
+            // Only one worker succeeds in renaming a given file
+            if (file.renameTo(claimed))
+            {
+                claimed.setLastModified(FileQueueExecutorService.queueTime(clock));
+                return claimed;
+            }
+        }
+        return null;
+    }
+
+    private void run(final File claimed) throws IOException
+    {
+        final Thread heartbeat = new Thread("FileQueueWorker heartbeat " + claimed.getName())
+        {
+            public void run()
+            {
+                try
+                {
+                    while (!isInterrupted())
+                    {
+                        Thread.sleep(HEARTBEAT_INTERVAL);
+                        claimed.setLastModified(FileQueueExecutorService.queueTime(clock));
+                    }
+                }
+                catch (InterruptedException ie) {}
+            }
+        };
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+
+        final String name = claimed.getName();
+        final String id = name.substring(0, name.indexOf('.'));
+        Result result;
+        try
+        {
+            final Job job = FileQueueExecutorService.readJob(claimed);
+            final Callable<?> task = job.task;
+            result = new Result(id, task.call(), null);
+        }
+        catch (Throwable t)
+        {
+            result = new Result(id, null, t);
+        }
+        finally
+        {
+            heartbeat.interrupt();
+        }
+
+        // If the job file is gone, the lease expired and the job was handed to another worker
+        if (!claimed.delete()) return;
+
+        byte[] bytes;
+        try
+        {
+            bytes = FileQueueExecutorService.serialize(result);
+        }
+        catch (IOException ioe)
+        {
+            bytes = FileQueueExecutorService.serialize(new Result(id, null, ioe));
+        }
+        FileQueueExecutorService.writeAtomically(new File(doneDir, id + FileQueueExecutorService.RESULT_SUFFIX), bytes);
+    }
+
+    /** Process jobs until interrupted. */
+    public void loop() throws InterruptedException
+    {
+        while (!Thread.currentThread().isInterrupted())
+        {
+            final File claimed = claim();
+            if (null == claimed)
+            {
+                Thread.sleep(POLL_INTERVAL);
+                continue;
+            }
+            try
+            {
+                run(claimed);
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("FileQueueWorker " + workerId + ": " + ioe);
+            }
+        }
+    }
+
+    static public void main(final String[] args) throws InterruptedException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: FileQueueWorker queueDir [nThreads]");
+            System.exit(1);
+        }
+        final File queueDir = new File(args[0]);
+        final int nThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        final String jvm = ManagementFactory.getRuntimeMXBean().getName();
+        final Thread[] threads = new Thread[nThreads];
+        for (int i = 0; i < nThreads; ++i)
+        {
+            final FileQueueWorker worker = new FileQueueWorker(queueDir, jvm + "-" + i);
+            threads[i] = new Thread("FileQueueWorker " + i)
+            {
+                public void run()
+                {
+                    try { worker.loop(); }
+                    catch (InterruptedException ie) {}
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread t : threads) t.join();
+    }
+}
@@ -65,6 +65,23 @@ public final class DownsamplerMipMaps
 	}
 	
 
+	static private final ByteProcessor downsample(final ByteProcessor bp) {
+		return new ByteProcessor(bp.getWidth() / 2, bp.getHeight() / 2, MipMapKernels.halve((byte[])bp.getPixels(), bp.getWidth(), bp.getHeight()), null);
+	}
+	static private final ShortProcessor downsample(final ShortProcessor sp) {
+		final ShortProcessor s = new ShortProcessor(sp.getWidth() / 2, sp.getHeight() / 2, MipMapKernels.halve((short[])sp.getPixels(), sp.getWidth(), sp.getHeight()), null);
+		s.setMinAndMax(sp.getMin(), sp.getMax());
+		return s;
+	}
+	static private final FloatProcessor downsample(final FloatProcessor fp) {
+		final FloatProcessor f = new FloatProcessor(fp.getWidth() / 2, fp.getHeight() / 2, MipMapKernels.halve((float[])fp.getPixels(), fp.getWidth(), fp.getHeight()), null);
+		f.setMinAndMax(fp.getMin(), fp.getMax());
+		return f;
+	}
+	static private final ColorProcessor downsample(final ColorProcessor cp) {
+		return new ColorProcessor(cp.getWidth() / 2, cp.getHeight() / 2, MipMapKernels.halveRGB((int[])cp.getPixels(), cp.getWidth(), cp.getHeight()));
+	}
+
 	/**
 	 * 
 	 * @param patch
@@ -202,38 +219,32 @@ public final class DownsamplerMipMaps
 					ByteProcessor bp = (ByteProcessor)ip;
 					p[0] = asBytes(bp);
 					while (i < p.length) {
-						bp = Downsampler.downsampleByteProcessor(bp);
+						bp = downsample(bp);
 						p[i++] = asBytes(bp);
 					}
 					break;
 				case ImagePlus.GRAY16:
 					ShortProcessor sp = (ShortProcessor)ip;
 					p[0] = asBytes(sp);
-					Pair<ShortProcessor, byte[]> rs;
 					while (i < p.length) {
-						rs = Downsampler.downsampleShort(sp);
-						sp = rs.a;
-						p[i++] = new ImageBytes(new byte[][]{rs.b}, sp.getWidth(), sp.getHeight());
+						sp = downsample(sp);
+						p[i++] = asBytes(sp);
 					}
 					break;
 				case ImagePlus.GRAY32:
 					FloatProcessor fp = (FloatProcessor)ip;
 					p[0] = asBytes(fp);
-					Pair<FloatProcessor, byte[]> rf;
 					while (i < p.length) {
-						rf = Downsampler.downsampleFloat(fp);
-						fp = rf.a;
-						p[i++] = new ImageBytes(new byte[][]{rf.b}, fp.getWidth(), fp.getHeight());
+						fp = downsample(fp);
+						p[i++] = asBytes(fp);
 					}
 					break;
 				case ImagePlus.COLOR_RGB:
 					ColorProcessor cp = (ColorProcessor)ip;
 					p[0] = asBytes(cp); // TODO the int[] could be reused
-					Pair<ColorProcessor, byte[][]> rc;
 					while (i < p.length) {
-						rc = Downsampler.downsampleColor(cp);
-						cp = rc.a;
-						p[i++] = new ImageBytes(rc.b, cp.getWidth(), cp.getHeight());
+						cp = downsample(cp);
+						p[i++] = asBytes(cp);
 					}
 					break;
 			}
@@ -273,7 +284,7 @@ public final class DownsamplerMipMaps
 					masks[0] = alpha;
 					int i = 1;
 					while (i < p.length) {
-						masks[i] = Downsampler.downsampleByteProcessor(masks[i-1]);
+						masks[i] = downsample(masks[i-1]);
 						++i;
 					}
 				}
@@ -285,7 +296,7 @@ public final class DownsamplerMipMaps
 					ByteProcessor bp = (ByteProcessor)ip;
 					p[0] = asBytes(bp, masks[0]);
 					while (i < p.length) {
-						bp = Downsampler.downsampleByteProcessor(bp);
+						bp = downsample(bp);
 						p[i] = asBytes(bp, masks[i]);
 						++i;
 					}
@@ -294,9 +305,8 @@ public final class DownsamplerMipMaps
 					ShortProcessor sp = (ShortProcessor)ip;
 					p[0] = asBytes(sp, masks[0]);
 					while (i < p.length) {
-						final Pair< ShortProcessor, byte[] > rs = Downsampler.downsampleShort(sp);
-						sp = rs.a;
-						p[i] = new ImageBytes(new byte[][]{rs.b, (byte[])masks[i].getPixels()}, sp.getWidth(), sp.getHeight());
+						sp = downsample(sp);
+						p[i] = asBytes(sp, masks[i]);
 						++i;
 					}
 					break;
@@ -304,9 +314,8 @@ public final class DownsamplerMipMaps
 					FloatProcessor fp = (FloatProcessor)ip;
 					p[0] = asBytes(fp, masks[0]);
 					while (i < p.length) {
-						final Pair< FloatProcessor, byte[] > rs = Downsampler.downsampleFloat( fp );
-						fp = rs.a;
-						p[i] = new ImageBytes(new byte[][]{rs.b, (byte[])masks[i].getPixels()}, fp.getWidth(), fp.getHeight());
+						fp = downsample(fp);
+						p[i] = asBytes(fp, masks[i]);
 						++i;
 					}
 					break;
@@ -314,10 +323,8 @@ public final class DownsamplerMipMaps
 					ColorProcessor cp = (ColorProcessor)ip;
 					p[0] = asBytes(cp, masks[0]); // TODO the int[] could be reused
 					while (i < p.length) {
-						final Pair< ColorProcessor, byte[][] > rs = Downsampler.downsampleColor( cp );
-						cp = rs.a;
-						final byte[][] rgb = rs.b;
-						p[i] = new ImageBytes(new byte[][]{rgb[0], rgb[1], rgb[2], (byte[])masks[i].getPixels()}, cp.getWidth(), cp.getHeight());
+						cp = downsample(cp);
+						p[i] = asBytes(cp, masks[i]);
 						++i;
 					}
 					break;
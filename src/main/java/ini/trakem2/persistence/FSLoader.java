@@ -611,9 +611,11 @@ public final class FSLoader extends Loader {
 			// reserve memory:
 			n_bytes = estimateImageFileSize(p, 0);
 			releaseToFit(n_bytes);
-			imp = openImage(path);
-
-			imp = preProcess(p, imp, n_bytes);
+			imp = fetchPreProcessed(p);
+			if (null == imp) {
+				imp = openImage(path);
+				imp = preProcess(p, imp, n_bytes);
+			}
 
 			synchronized (db_lock) {
 				try {
@@ -684,6 +686,45 @@ public final class FSLoader extends Loader {
 	}
 	
 	private String dir_cts = null;
+
+	private FilteredImageCache filtered_image_cache = null;
+
+	/** Returns the cache of filtered images under the storage folder, sized by the
+	 *  project property "filtered_image_cache" in megabytes, or null if zero or unset. */
+	@Override
+	synchronized protected FilteredImageCache getFilteredImageCache(final Patch p) {
+		final long max_bytes = p.getProject().getProperty("filtered_image_cache", 0) * 1024L * 1024L;
+		if (max_bytes <= 0) return null;
+		if (null == filtered_image_cache) {
+			filtered_image_cache = new FilteredImageCache(getUNUIdFolder() + "trakem2.filtered/", max_bytes);
+		} else {
+			filtered_image_cache.setMaxBytes(max_bytes);
+		}
+		return filtered_image_cache;
+	}
+
+	private volatile MeshCache mesh_cache = null;
+
+	/** Returns the cache of 3D meshes under the storage folder, sized by the
+	 *  project property "mesh_cache" in megabytes, or null if zero or unset. */
+	@Override
+	synchronized public MeshCache getMeshCache() {
+		final Project project = Project.findProject(this);
+		final long max_bytes = (null == project ? 0 : project.getProperty("mesh_cache", 0)) * 1024L * 1024L;
+		if (max_bytes <= 0) return null;
+		if (null == mesh_cache) {
+			mesh_cache = new MeshCache(getUNUIdFolder() + "trakem2.meshes/", max_bytes);
+		} else {
+			mesh_cache.setMaxBytes(max_bytes);
+		}
+		return mesh_cache;
+	}
+
+	/** Forget the versions of meshes after any edit. */
+	private final void meshesChanged() {
+		final MeshCache mc = mesh_cache;
+		if (null != mc) mc.changed();
+	}
 	
 	@Override
 	synchronized public final String getCoordinateTransformsFolder() {
@@ -725,6 +766,7 @@ public final class FSLoader extends Loader {
 	 * Always returns true. Does not check if another object has the same id.
 	 */
 	public boolean addToDatabase(final DBObject ob) {
+		meshesChanged();
 		synchronized (db_lock) {
 			setChanged(true);
 			final long id = ob.getId();
@@ -747,6 +789,7 @@ public final class FSLoader extends Loader {
 	public boolean updateInDatabase(final DBObject ob, final String key) {
 		// Should only be GUI-driven
 		setChanged(true);
+		meshesChanged();
 		//
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
@@ -758,6 +801,7 @@ public final class FSLoader extends Loader {
 	public boolean updateInDatabase(final DBObject ob, final Set<String> keys) {
 		// Should only be GUI-driven
 		setChanged(true);
+		meshesChanged();
 		if (ob.getClass() == Patch.class) {
 			Patch p = (Patch)ob;
 			if (keys.contains("tiff_working")) return null != setImageFile(p, fetchImagePlus(p));
@@ -766,6 +810,7 @@ public final class FSLoader extends Loader {
 	}
 
 	public boolean removeFromDatabase(final DBObject ob) {
+		meshesChanged();
 		synchronized (db_lock) {
 			setChanged(true);
 			// remove from the hashtable
@@ -1032,10 +1077,17 @@ public final class FSLoader extends Loader {
 		if (null != result) {
 			Utils.logAll(Utils.now() + " Saved " + project);
 			touched_mipmaps.clear();
+			saveConnectivityIndex(project);
 		}
 		return result;
 	}
 
+	/** Store the connectivity index, if any was built, so that it matches the XML file just written. */
+	private void saveConnectivityIndex(final Project project) {
+		if (null == project || null == project.getRootLayerSet()) return;
+		project.getRootLayerSet().getConnectivityIndex().save();
+	}
+
 	/** The saveAs called from menus via saveTask. */
 	@Override
 	public String saveAs(Project project, XMLOptions options) {
@@ -1045,6 +1097,7 @@ public final class FSLoader extends Loader {
 			this.project_file_path = path;
 			Utils.log2("After saveAs, new xml path is: " + path);
 			touched_mipmaps.clear();
+			saveConnectivityIndex(project);
 		}
 		ControlWindow.updateTitle(project);
 		Display.updateTitle(project);
@@ -1094,6 +1147,7 @@ public final class FSLoader extends Loader {
 			Utils.logAll("After saveAs, new xml path is: " + path2);
 			ControlWindow.updateTitle(project);
 			touched_mipmaps.clear();
+			saveConnectivityIndex(project);
 		}
 		return path2;
 	}
@@ -0,0 +1,406 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.display.Patch;
+import ini.trakem2.imaging.filters.IFilter;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk cache of Patch images after the preprocessor script and the
+ * {@link IFilter} chain have been applied, but before intensity maps and
+ * any transformation.  Entries are keyed by a hash of the image file, the
+ * preprocessor script and the XML of the filters, so that editing any of
+ * them simply misses the cache.  Regenerating mipmaps after editing the
+ * transform of a Patch then reads the filtered image instead of running
+ * expensive filters like CLAHE again.
+ *
+ * Images are stored uncompressed as a small header followed by the raw
+ * pixel array, read and written in chunks through a small heap buffer.
+ * Writing happens in a background thread on a copy of the pixels, so that
+ * storing an image does not delay loading it.  When the cache grows beyond
+ * its maximum size, the least recently used entries are deleted.
+ */
+public final class FilteredImageCache {
+
+	static private final int MAGIC = 0x54324643; // "T2FC"
+	/** Magic, type, width, height, and min and max as doubles. */
+	static private final int HEADER_SIZE = 4 * 4 + 2 * 8;
+	static public final String EXTENSION = ".t2fc";
+	/** Bytes of pixels read or written at once; a multiple of all pixel sizes. */
+	static private final int CHUNK = 1 << 20;
+	/** Bytes of pixel copies waiting to be written, above which new images are not stored. */
+	static private final long MAX_PENDING_BYTES = 256L * 1024L * 1024L;
+
+	private final File dir;
+	private volatile long max_bytes;
+	/** Total size of all entries; -1 until first scanned. */
+	private final AtomicLong n_bytes = new AtomicLong(-1);
+	private final Object evict_lock = new Object();
+	/** Writes images to disk, one at a time; its thread ends when idle. */
+	private final ThreadPoolExecutor writer;
+	/** Size of the pixel copies queued in the writer. */
+	private final AtomicLong pending_bytes = new AtomicLong(0);
+
+	/**
+	 * @param dir The folder to store images in, created as needed.
+	 * @param max_bytes The size above which least recently used images are deleted.
+	 */
+	public FilteredImageCache(final String dir, final long max_bytes) {
+		this.dir = new File(dir);
+		this.max_bytes = max_bytes;
+		this.writer = Utils.newFixedThreadPool(1, "FilteredImageCache writer", false);
+		this.writer.setKeepAliveTime(10, TimeUnit.SECONDS);
+		this.writer.allowCoreThreadTimeOut(true);
+	}
+
+	public void setMaxBytes(final long max_bytes) {
+		this.max_bytes = max_bytes;
+	}
+
+	public long getMaxBytes() {
+		return max_bytes;
+	}
+
+	/** Returns a key for the image of {@code p}, or null if the image cannot be cached,
+	 *  such as for slices of stacks or missing files.
+	 *  @param script The path to the preprocessor script of {@code p}, or null if none. */
+	public String createKey(final Patch p, final String script, final IFilter[] filters) {
+		final String path = p.getImageFilePath();
+		if (null == path || -1 != path.indexOf("-----#slice=")) return null;
+		final File f = new File(path);
+		if (!f.exists()) return null;
+		final StringBuilder sb = new StringBuilder(512);
+		sb.append(f.getAbsolutePath()).append('\n')
+		  .append(f.length()).append(' ').append(f.lastModified()).append('\n');
+		if (null != script) {
+			final File s = new File(script);
+			// The script gets the Patch and its min and max, and may depend on any of it
+			sb.append(s.getAbsolutePath()).append('\n')
+			  .append(s.length()).append(' ').append(s.lastModified()).append('\n')
+			  .append(p.getId()).append(' ').append(p.getMin()).append(' ').append(p.getMax()).append('\n');
+		}
+		if (null != filters) {
+			for (final IFilter filter : filters) sb.append(filter.toXML(""));
+		}
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8"));
+			final char[] hex = new char[digest.length * 2];
+			final String digits = "0123456789abcdef";
+			for (int i=0; i<digest.length; ++i) {
+				hex[2*i  ] = digits.charAt((digest[i] >> 4) & 0xf);
+				hex[2*i+1] = digits.charAt( digest[i]       & 0xf);
+			}
+			return new String(hex);
+		} catch (final Exception e) {
+			IJError.print(e);
+			return null;
+		}
+	}
+
+	private final File file(final String key) {
+		// Two levels to keep folders small
+		return new File(new File(dir, key.substring(0, 2)), key + EXTENSION);
+	}
+
+	/** Returns the cached image for {@code key}, or null if none. */
+	public ImagePlus get(final String key, final String title) {
+		if (null == key) return null;
+		final File f = file(key);
+		if (!f.exists()) return null;
+		RandomAccessFile ra = null;
+		try {
+			ra = new RandomAccessFile(f, "r");
+			final FileChannel ch = ra.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(ch, header);
+			header.flip();
+			if (MAGIC != header.getInt()) {
+				Utils.log2("Ignoring invalid filtered image " + f);
+				return null;
+			}
+			final int type = header.getInt(),
+			          width = header.getInt(),
+			          height = header.getInt();
+			final double min = header.getDouble(),
+			             max = header.getDouble();
+			final int n = width * height;
+			final ImageProcessor ip;
+			switch (type) {
+				case ImagePlus.GRAY8: {
+					final byte[] pix = new byte[n];
+					readPixels(ch, pix, n);
+					ip = new ByteProcessor(width, height, pix, null);
+					break;
+				}
+				case ImagePlus.GRAY16: {
+					final short[] pix = new short[n];
+					readPixels(ch, pix, n);
+					ip = new ShortProcessor(width, height, pix, null);
+					break;
+				}
+				case ImagePlus.GRAY32: {
+					final float[] pix = new float[n];
+					readPixels(ch, pix, n);
+					ip = new FloatProcessor(width, height, pix, null);
+					break;
+				}
+				case ImagePlus.COLOR_RGB: {
+					final int[] pix = new int[n];
+					readPixels(ch, pix, n);
+					ip = new ColorProcessor(width, height, pix);
+					break;
+				}
+				default:
+					Utils.log2("Ignoring filtered image of unknown type " + type + ": " + f);
+					return null;
+			}
+			ip.setMinAndMax(min, max);
+			// Mark as recently used
+			f.setLastModified(System.currentTimeMillis());
+			return new ImagePlus(title, ip);
+		} catch (final Throwable t) {
+			Utils.log2("Could not read filtered image " + f + " : " + t);
+			f.delete();
+		} finally {
+			if (null != ra) try { ra.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+		return null;
+	}
+
+	/** Queue a copy of the image of {@code imp} to be stored under {@code key}, unless its type
+	 *  is not supported or too many images are already waiting to be written.
+	 *  Returns true when queued. */
+	public boolean put(final String key, final ImagePlus imp) {
+		if (null == key || null == imp || imp.getStackSize() > 1 || max_bytes <= 0) return false;
+		final ImageProcessor ip = imp.getProcessor();
+		if (null == ip) return false;
+		final int type = imp.getType();
+		final int bytesPerPixel;
+		switch (type) {
+			case ImagePlus.GRAY8: bytesPerPixel = 1; break;
+			case ImagePlus.GRAY16: bytesPerPixel = 2; break;
+			case ImagePlus.GRAY32:
+			case ImagePlus.COLOR_RGB: bytesPerPixel = 4; break;
+			default: return false; // COLOR_256 would need its LUT
+		}
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		final long n_pixel_bytes = (long)width * height * bytesPerPixel;
+		if (HEADER_SIZE + n_pixel_bytes > max_bytes) return false;
+		if (pending_bytes.addAndGet(n_pixel_bytes) > MAX_PENDING_BYTES) {
+			pending_bytes.addAndGet(-n_pixel_bytes);
+			return false;
+		}
+		// Copy the pixels: the caller goes on to map intensities in place
+		final Object pix = ip.duplicate().getPixels();
+		final double min = ip.getMin(),
+		             max = ip.getMax();
+		try {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						write(key, type, width, height, min, max, pix);
+					} finally {
+						pending_bytes.addAndGet(-n_pixel_bytes);
+					}
+				}
+			});
+		} catch (final RejectedExecutionException ree) {
+			pending_bytes.addAndGet(-n_pixel_bytes);
+			return false;
+		}
+		return true;
+	}
+
+	private void write(final String key, final int type, final int width, final int height,
+			final double min, final double max, final Object pix) {
+		final File f = file(key);
+		f.getParentFile().mkdirs();
+		// Write to a temporary file, so that readers never see partial files
+		final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+		RandomAccessFile ra = null;
+		boolean written = false;
+		try {
+			ra = new RandomAccessFile(tmp, "rw");
+			ra.setLength(0);
+			final FileChannel ch = ra.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(type).putInt(width).putInt(height)
+			      .putDouble(min).putDouble(max);
+			header.flip();
+			writeFully(ch, header);
+			writePixels(ch, pix, width * height);
+			written = true;
+		} catch (final Throwable t) {
+			Utils.log2("Could not store filtered image " + f + " : " + t);
+		} finally {
+			if (null != ra) try { ra.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+		if (!written || !(tmp.renameTo(f) || (f.delete() && tmp.renameTo(f)))) {
+			tmp.delete();
+			return;
+		}
+		if (-1 == n_bytes.get()) scan();
+		if (n_bytes.addAndGet(f.length()) > max_bytes) evict();
+	}
+
+	/** Compute the total size of the cache, once. */
+	private void scan() {
+		synchronized (evict_lock) {
+			if (-1 != n_bytes.get()) return;
+			long sum = 0;
+			for (final File f : listEntries()) sum += f.length();
+			n_bytes.set(sum);
+		}
+	}
+
+	private ArrayList<File> listEntries() {
+		final ArrayList<File> entries = new ArrayList<File>();
+		final File[] subdirs = dir.listFiles();
+		if (null == subdirs) return entries;
+		for (final File sub : subdirs) {
+			final File[] fs = sub.listFiles();
+			if (null == fs) continue;
+			for (final File f : fs) {
+				if (f.getName().endsWith(EXTENSION)) entries.add(f);
+			}
+		}
+		return entries;
+	}
+
+	/** Delete least recently used entries until the cache is down to 90% of its maximum size. */
+	private void evict() {
+		synchronized (evict_lock) {
+			if (n_bytes.get() <= max_bytes) return;
+			final ArrayList<File> entries = listEntries();
+			final long[] last = new long[entries.size()];
+			final Integer[] order = new Integer[last.length];
+			long sum = 0;
+			for (int i=0; i<last.length; ++i) {
+				final File f = entries.get(i);
+				last[i] = f.lastModified();
+				order[i] = i;
+				sum += f.length();
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer a, final Integer b) {
+					return last[a] < last[b] ? -1 : last[a] == last[b] ? 0 : 1;
+				}
+			});
+			final long target = (long)(max_bytes * 0.9);
+			for (int i=0; i<order.length && sum > target; ++i) {
+				final File f = entries.get(order[i]);
+				final long len = f.length();
+				if (f.delete()) sum -= len;
+			}
+			n_bytes.set(sum);
+		}
+	}
+
+	/** Delete all entries. */
+	public void clear() {
+		synchronized (evict_lock) {
+			for (final File f : listEntries()) f.delete();
+			n_bytes.set(0);
+		}
+	}
+
+	static private final void readFully(final FileChannel ch, final ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			if (-1 == ch.read(b)) throw new IOException("Unexpected end of file");
+		}
+	}
+
+	static private final void writeFully(final FileChannel ch, final ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) ch.write(b);
+	}
+
+	static private final int bytesPerPixel(final Object pix) {
+		return pix instanceof byte[] ? 1 : pix instanceof short[] ? 2 : 4;
+	}
+
+	/** Read {@code n} pixels into a byte[], short[], float[] or int[] array, one chunk at a time:
+	 *  channels copy heap buffers through a temporary direct buffer as large as the buffer. */
+	static private final void readPixels(final FileChannel ch, final Object pix, final int n) throws IOException {
+		final int bpp = bytesPerPixel(pix);
+		if (1 == bpp) {
+			for (int i=0; i<n; i += CHUNK) readFully(ch, ByteBuffer.wrap((byte[])pix, i, Math.min(CHUNK, n - i)));
+			return;
+		}
+		final ByteBuffer b = ByteBuffer.allocate((int)Math.min(CHUNK, (long)n * bpp));
+		for (int i=0; i<n; ) {
+			final int count = Math.min(n - i, CHUNK / bpp);
+			b.clear();
+			b.limit(count * bpp);
+			readFully(ch, b);
+			b.flip();
+			if (pix instanceof short[]) b.asShortBuffer().get((short[])pix, i, count);
+			else if (pix instanceof float[]) b.asFloatBuffer().get((float[])pix, i, count);
+			else b.asIntBuffer().get((int[])pix, i, count);
+			i += count;
+		}
+	}
+
+	/** Write {@code n} pixels of a byte[], short[], float[] or int[] array, one chunk at a time. */
+	static private final void writePixels(final FileChannel ch, final Object pix, final int n) throws IOException {
+		final int bpp = bytesPerPixel(pix);
+		if (1 == bpp) {
+			for (int i=0; i<n; i += CHUNK) writeFully(ch, ByteBuffer.wrap((byte[])pix, i, Math.min(CHUNK, n - i)));
+			return;
+		}
+		final ByteBuffer b = ByteBuffer.allocate((int)Math.min(CHUNK, (long)n * bpp));
+		for (int i=0; i<n; ) {
+			final int count = Math.min(n - i, CHUNK / bpp);
+			b.clear();
+			if (pix instanceof short[]) b.asShortBuffer().put((short[])pix, i, count);
+			else if (pix instanceof float[]) b.asFloatBuffer().put((float[])pix, i, count);
+			else b.asIntBuffer().put((int[])pix, i, count);
+			b.limit(count * bpp);
+			writeFully(ch, b);
+			i += count;
+		}
+	}
+}
@@ -121,6 +121,7 @@ import ini.trakem2.imaging.FloatProcessorT2;
 import ini.trakem2.imaging.LazyVirtualStack;
 import ini.trakem2.imaging.PatchStack;
 import ini.trakem2.imaging.StitchingTEM;
+import ini.trakem2.imaging.filters.FilterPipeline;
 import ini.trakem2.imaging.filters.IFilter;
 import ini.trakem2.io.AmiraImporter;
 import ini.trakem2.io.ImageFileFilter;
@@ -3724,11 +3725,54 @@ while (it.hasNext()) {
 		return false;
 	}
 
+	/** Returns the on-disk cache of filtered images for the project of {@code p},
+	 *  or null if this loader has none or it is disabled. */
+	protected FilteredImageCache getFilteredImageCache(final Patch p) {
+		return null;
+	}
+
+	/** Returns the on-disk cache of the meshes shown in the 3D viewer,
+	 *  or null if this loader has none. */
+	public MeshCache getMeshCache() {
+		return null;
+	}
+
+	/** Returns the key of the filtered image of {@code p} in {@code fic},
+	 *  or null if {@code p} has neither preprocessor script nor filters. */
+	private final String createFilteredImageKey(final FilteredImageCache fic, final Patch p) {
+		if (null == fic) return null;
+		final String path = preprocessors.get(p);
+		final IFilter[] fs = p.getFilters();
+		if (null == path && (null == fs || 0 == fs.length)) return null;
+		return fic.createKey(p, path, fs);
+	}
+
+	/** Returns the image of {@code p} as {@link #preProcess(Patch, ImagePlus, long)} would,
+	 *  but read from the {@link FilteredImageCache} instead of running the preprocessor script
+	 *  and filters; or null if not cached. */
+	protected final ImagePlus fetchPreProcessed(final Patch p) {
+		if (null == p) return null;
+		try {
+			final FilteredImageCache fic = getFilteredImageCache(p);
+			final ImagePlus imp = fic == null ? null : fic.get(createFilteredImageKey(fic, p), p.getTitle());
+			if (null == imp) return null;
+			mapIntensities(p, imp);
+			// The cached image has no original FileInfo, which is a valid tag by itself in the persistence.Cache
+			cache(p, imp);
+			p.updatePixelProperties(imp);
+			return imp;
+		} catch (final Exception e) {
+			IJError.print(e);
+		}
+		return null;
+	}
+
 	protected final ImagePlus preProcess(final Patch p, ImagePlus imp, final long image_n_bytes) {
 		if (null == p) return imp;
 		try {
 			final String path = preprocessors.get(p);
 			boolean update = false;
+			boolean filtered = null != path;
 			if (null != path) {
 				final File f = new File(path);
 				if (!f.exists()) {
@@ -3762,14 +3806,17 @@ while (it.hasNext()) {
 			// Now apply the Patch filters, if any
 			final IFilter[] fs = p.getFilters();
 			if (null != fs && fs.length > 0) {
-				ImageProcessor ip = imp.getProcessor();
-				for (final IFilter filter : fs) {
-					ip = filter.process(ip);
-				}
+				final ImageProcessor ip = FilterPipeline.process(fs, imp.getProcessor());
 				if (ip != imp.getProcessor()) {
 					imp.setProcessor(ip);
 				}
 				update = true;
+				filtered = true;
+			}
+			// Store the result of script and filters, before intensity correction
+			if (filtered && update) {
+				final FilteredImageCache fic = getFilteredImageCache(p);
+				if (null != fic) fic.put(createFilteredImageKey(fic, p), imp);
 			}
 			// Now apply intensity correction if available
 			update |= mapIntensities(p, imp);
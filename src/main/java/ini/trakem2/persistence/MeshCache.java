@@ -0,0 +1,303 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+import ij.measure.Calibration;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.utils.IJError;
+import ini.trakem2.utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3f;
+import org.scijava.vecmath.Tuple3f;
+
+/**
+ * An on-disk cache of the meshes that the 3D viewer shows for each
+ * {@link Displayable}, so that showing again an object that has not been
+ * edited reads its triangles instead of generating them.
+ *
+ * There is one file per object and resampling factor.  Its header holds the
+ * scale and the version of the object, which is a hash of the XML of the
+ * object, of the Z and thickness of its layers and of the calibration:
+ * editing anything that the mesh depends on changes the version, and the
+ * stale entry is then simply overwritten.  Vertices and colors are stored as
+ * raw floats.  The version of each object is kept in memory until the next
+ * edit of the project, see {@link #changed()}.
+ *
+ * When the cache grows beyond its maximum size, the least recently used
+ * entries are deleted.
+ */
+public final class MeshCache {
+
+	static private final int MAGIC = 0x54324d43; // "T2MC"
+	static public final String EXTENSION = ".t2mc";
+
+	/** The vertices of a mesh, every three making a triangle, and optionally one color per vertex;
+	 *  plus an optional extra mesh, as shown for a {@link ini.trakem2.display.Tree} along with its skeleton. */
+	static public final class Mesh {
+		public final List<Point3f> triangles, extra_triangles;
+		public final List<Color3f> colors, extra_colors;
+		public Mesh(final List<Point3f> triangles, final List<Color3f> colors, final List<Point3f> extra_triangles, final List<Color3f> extra_colors) {
+			this.triangles = triangles;
+			this.colors = colors;
+			this.extra_triangles = extra_triangles;
+			this.extra_colors = extra_colors;
+		}
+	}
+
+	private final File dir;
+	private volatile long max_bytes;
+	/** Total size of all entries; -1 until first scanned. */
+	private final AtomicLong n_bytes = new AtomicLong(-1);
+	private final Object evict_lock = new Object();
+	/** The versions computed since the last edit. */
+	private final Map<Displayable,Long> versions = new WeakHashMap<Displayable,Long>();
+	/** Counts the calls to {@link #changed()}, to not keep a version computed across an edit. */
+	private long n_changes = 0;
+
+	/**
+	 * @param dir The folder to store meshes in, created as needed.
+	 * @param max_bytes The size above which least recently used meshes are deleted.
+	 */
+	public MeshCache(final String dir, final long max_bytes) {
+		this.dir = new File(dir);
+		this.max_bytes = max_bytes;
+	}
+
+	public void setMaxBytes(final long max_bytes) {
+		this.max_bytes = max_bytes;
+	}
+
+	public long getMaxBytes() {
+		return max_bytes;
+	}
+
+	private File file(final Displayable d, final int resample) {
+		return new File(dir, FSLoader.createIdPath(Long.toString(d.getId()), Integer.toString(resample), EXTENSION));
+	}
+
+	/** Returns {@link #version(Displayable)}, computed once until the next call to {@link #changed()}. */
+	public long getVersion(final Displayable d) {
+		final long n;
+		synchronized (versions) {
+			final Long v = versions.get(d);
+			if (null != v) return v;
+			n = n_changes;
+		}
+		final long v = version(d);
+		synchronized (versions) {
+			if (n == n_changes) versions.put(d, v);
+		}
+		return v;
+	}
+
+	/** Forget the versions of all objects. To be called on any edit, since editing a {@link Layer}
+	 *  or the calibration changes the version of many objects. */
+	public void changed() {
+		synchronized (versions) {
+			versions.clear();
+			++n_changes;
+		}
+	}
+
+	/** A hash of everything the mesh of {@code d} depends on. Costs a small fraction of generating the mesh. */
+	static public long version(final Displayable d) {
+		final StringBuilder sb = new StringBuilder(4096);
+		d.exportXML(sb, "", new XMLOptions());
+		final Calibration cal = d.getLayerSet().getCalibration();
+		sb.append(cal.pixelWidth).append(' ').append(cal.pixelHeight).append(' ').append(cal.pixelDepth).append('\n');
+		for (final Layer la : d.getLayersWithData()) {
+			if (null == la) continue;
+			sb.append(la.getId()).append(' ').append(la.getZ()).append(' ').append(la.getThickness()).append('\n');
+		}
+		// 64-bit FNV-1a
+		long h = 0xcbf29ce484222325L;
+		for (int i=0, len=sb.length(); i<len; i++) {
+			h ^= sb.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/** Returns the cached mesh of {@code d}, or null if there is none for this resample, scale and version. */
+	public Mesh get(final Displayable d, final int resample, final double scale, final long version) {
+		final File f = file(d, resample);
+		if (!f.exists()) return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536));
+			if (MAGIC != in.readInt()
+			 || d.getId() != in.readLong()
+			 || Double.doubleToLongBits(scale) != in.readLong()
+			 || version != in.readLong()) return null;
+			final List<Point3f> triangles = readPoints(in);
+			final List<Color3f> colors = readColors(in);
+			final List<Point3f> extra_triangles = readPoints(in);
+			final List<Color3f> extra_colors = readColors(in);
+			// Mark as recently used
+			f.setLastModified(System.currentTimeMillis());
+			return new Mesh(triangles, colors, extra_triangles, extra_colors);
+		} catch (final Throwable t) {
+			Utils.log2("Could not read cached mesh " + f + " : " + t);
+			return null;
+		} finally {
+			if (null != in) try { in.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+	}
+
+	/** Store {@code mesh} as the mesh of {@code d}, replacing any other. Returns true on success. */
+	public boolean put(final Displayable d, final int resample, final double scale, final long version, final Mesh mesh) {
+		final File f = file(d, resample);
+		final long old_size = f.length(); // zero if none
+		f.getParentFile().mkdirs();
+		// Write to a temporary file, so that readers never see partial files
+		final File tmp = new File(f.getParentFile(), f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		DataOutputStream out = null;
+		boolean written = false;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+			out.writeInt(MAGIC);
+			out.writeLong(d.getId());
+			out.writeLong(Double.doubleToLongBits(scale));
+			out.writeLong(version);
+			write(out, mesh.triangles);
+			write(out, mesh.colors);
+			write(out, mesh.extra_triangles);
+			write(out, mesh.extra_colors);
+			written = true;
+		} catch (final Throwable t) {
+			Utils.log2("Could not store mesh " + f + " : " + t);
+		} finally {
+			if (null != out) try { out.close(); } catch (final Exception e) { IJError.print(e); }
+		}
+		if (!written || !(tmp.renameTo(f) || (f.delete() && tmp.renameTo(f)))) {
+			tmp.delete();
+			return false;
+		}
+		if (-1 == n_bytes.get()) scan();
+		else if (n_bytes.addAndGet(f.length() - old_size) > max_bytes) evict();
+		return true;
+	}
+
+	/** Compute the total size of the cache, once, and evict if too large. */
+	private void scan() {
+		synchronized (evict_lock) {
+			if (-1 != n_bytes.get()) return;
+			long sum = 0;
+			for (final File f : listEntries()) sum += f.length();
+			n_bytes.set(sum);
+		}
+		if (n_bytes.get() > max_bytes) evict();
+	}
+
+	private ArrayList<File> listEntries() {
+		final ArrayList<File> entries = new ArrayList<File>();
+		listEntries(dir, entries);
+		return entries;
+	}
+
+	static private void listEntries(final File folder, final ArrayList<File> entries) {
+		final File[] fs = folder.listFiles();
+		if (null == fs) return;
+		for (final File f : fs) {
+			if (f.isDirectory()) listEntries(f, entries);
+			else if (f.getName().endsWith(EXTENSION)) entries.add(f);
+		}
+	}
+
+	/** Delete least recently used entries until the cache is down to 90% of its maximum size. */
+	private void evict() {
+		synchronized (evict_lock) {
+			if (n_bytes.get() <= max_bytes) return;
+			final ArrayList<File> entries = listEntries();
+			final long[] last = new long[entries.size()];
+			final Integer[] order = new Integer[last.length];
+			long sum = 0;
+			for (int i=0; i<last.length; ++i) {
+				final File f = entries.get(i);
+				last[i] = f.lastModified();
+				order[i] = i;
+				sum += f.length();
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer a, final Integer b) {
+					return last[a] < last[b] ? -1 : last[a] == last[b] ? 0 : 1;
+				}
+			});
+			final long target = (long)(max_bytes * 0.9);
+			for (int i=0; i<order.length && sum > target; ++i) {
+				final File f = entries.get(order[i]);
+				final long len = f.length();
+				if (f.delete()) sum -= len;
+			}
+			n_bytes.set(sum);
+		}
+	}
+
+	/** Writes -1 for null. */
+	static private void write(final DataOutputStream out, final List<? extends Tuple3f> ts) throws IOException {
+		if (null == ts) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(ts.size());
+		for (final Tuple3f t : ts) {
+			out.writeFloat(t.x);
+			out.writeFloat(t.y);
+			out.writeFloat(t.z);
+		}
+	}
+
+	static private List<Point3f> readPoints(final DataInputStream in) throws IOException {
+		final int n = in.readInt();
+		if (-1 == n) return null;
+		final ArrayList<Point3f> ps = new ArrayList<Point3f>(n);
+		for (int i=0; i<n; i++) ps.add(new Point3f(in.readFloat(), in.readFloat(), in.readFloat()));
+		return ps;
+	}
+
+	static private List<Color3f> readColors(final DataInputStream in) throws IOException {
+		final int n = in.readInt();
+		if (-1 == n) return null;
+		final ArrayList<Color3f> cs = new ArrayList<Color3f>(n);
+		for (int i=0; i<n; i++) cs.add(new Color3f(in.readFloat(), in.readFloat(), in.readFloat()));
+		return cs;
+	}
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.persistence;
+
+/**
+ * Kernels to halve images stored in flat primitive arrays, averaging each
+ * 2x2 block into one pixel, as for each level of a mipmap pyramid.  Odd last
+ * rows and columns are dropped.
+ *
+ * Each pair of rows is first summed into a row buffer in a plain loop over
+ * contiguous memory, which the JIT can vectorize; then pairs of columns of
+ * the row buffer are summed, two output pixels per iteration.
+ */
+public final class MipMapKernels
+{
+	private MipMapKernels() {}
+
+	/** Average of 2x2 blocks of unsigned 8-bit pixels, rounded down. */
+	static public final byte[] halve(final byte[] a, final int wa, final int ha) {
+		final int wb = wa / 2,
+		          hb = ha / 2;
+		final byte[] b = new byte[wb * hb];
+		final int[] row = new int[wb * 2];
+		final int wr = row.length;
+		for (int yb = 0, ia = 0, ib = 0; yb < hb; ++yb, ia += 2 * wa, ib += wb) {
+			final int ia1 = ia + wa;
+			for (int x = 0; x < wr; ++x) {
+				row[x] = (a[ia + x] & 0xff) + (a[ia1 + x] & 0xff);
+			}
+			int xb = 0, xr = 0;
+			for (; xb < wb - 1; xb += 2, xr += 4) {
+				b[ib + xb    ] = (byte)((row[xr    ] + row[xr + 1]) >> 2);
+				b[ib + xb + 1] = (byte)((row[xr + 2] + row[xr + 3]) >> 2);
+			}
+			if (xb < wb) {
+				b[ib + xb] = (byte)((row[xr] + row[xr + 1]) >> 2);
+			}
+		}
+		return b;
+	}
+
+	/** Average of 2x2 blocks of unsigned 16-bit pixels, rounded down. */
+	static public final short[] halve(final short[] a, final int wa, final int ha) {
+		final int wb = wa / 2,
+		          hb = ha / 2;
+		final short[] b = new short[wb * hb];
+		final int[] row = new int[wb * 2];
+		final int wr = row.length;
+		for (int yb = 0, ia = 0, ib = 0; yb < hb; ++yb, ia += 2 * wa, ib += wb) {
+			final int ia1 = ia + wa;
+			for (int x = 0; x < wr; ++x) {
+				row[x] = (a[ia + x] & 0xffff) + (a[ia1 + x] & 0xffff);
+			}
+			int xb = 0, xr = 0;
+			for (; xb < wb - 1; xb += 2, xr += 4) {
+				b[ib + xb    ] = (short)((row[xr    ] + row[xr + 1]) >> 2);
+				b[ib + xb + 1] = (short)((row[xr + 2] + row[xr + 3]) >> 2);
+			}
+			if (xb < wb) {
+				b[ib + xb] = (short)((row[xr] + row[xr + 1]) >> 2);
+			}
+		}
+		return b;
+	}
+
+	/** Average of 2x2 blocks of float pixels. */
+	static public final float[] halve(final float[] a, final int wa, final int ha) {
+		final int wb = wa / 2,
+		          hb = ha / 2;
+		final float[] b = new float[wb * hb];
+		final float[] row = new float[wb * 2];
+		final int wr = row.length;
+		for (int yb = 0, ia = 0, ib = 0; yb < hb; ++yb, ia += 2 * wa, ib += wb) {
+			final int ia1 = ia + wa;
+			for (int x = 0; x < wr; ++x) {
+				row[x] = a[ia + x] + a[ia1 + x];
+			}
+			int xb = 0, xr = 0;
+			for (; xb < wb - 1; xb += 2, xr += 4) {
+				b[ib + xb    ] = (row[xr    ] + row[xr + 1]) * 0.25f;
+				b[ib + xb + 1] = (row[xr + 2] + row[xr + 3]) * 0.25f;
+			}
+			if (xb < wb) {
+				b[ib + xb] = (row[xr] + row[xr + 1]) * 0.25f;
+			}
+		}
+		return b;
+	}
+
+	/** Average of 2x2 blocks of RGB pixels, each channel rounded down.
+	 *  The alpha byte of the result is opaque. */
+	static public final int[] halveRGB(final int[] a, final int wa, final int ha) {
+		final int wb = wa / 2,
+		          hb = ha / 2;
+		final int[] b = new int[wb * hb];
+		final int wr = wb * 2;
+		final int[] red = new int[wr],
+		            green = new int[wr],
+		            blue = new int[wr];
+		for (int yb = 0, ia = 0, ib = 0; yb < hb; ++yb, ia += 2 * wa, ib += wb) {
+			final int ia1 = ia + wa;
+			for (int x = 0; x < wr; ++x) {
+				final int s0 = a[ia + x],
+				          s1 = a[ia1 + x];
+				red[x]   = ((s0 >> 16) & 0xff) + ((s1 >> 16) & 0xff);
+				green[x] = ((s0 >>  8) & 0xff) + ((s1 >>  8) & 0xff);
+				blue[x]  = ( s0        & 0xff) + ( s1        & 0xff);
+			}
+			for (int xb = 0, xr = 0; xb < wb; ++xb, xr += 2) {
+				b[ib + xb] = 0xff000000
+				           | (((red[xr]   + red[xr + 1])   >> 2) << 16)
+				           | (((green[xr] + green[xr + 1]) >> 2) <<  8)
+				           |  ((blue[xr]  + blue[xr + 1])  >> 2);
+			}
+		}
+		return b;
+	}
+}
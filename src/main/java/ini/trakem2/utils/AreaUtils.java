@@ -26,7 +26,10 @@ import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +39,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.scijava.vecmath.Point3f;
 
@@ -48,6 +52,8 @@ import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.LayerSet;
 import ini.trakem2.imaging.BinaryInterpolation2D;
+import ini.trakem2.parallel.Process;
+import ini.trakem2.parallel.TaskFactory;
 import ini.trakem2.vector.Editions;
 import ini.trakem2.vector.SkinMaker;
 import ini.trakem2.vector.VectorString2D;
@@ -77,70 +83,24 @@ public final class AreaUtils {
 		// in the LayerSet, layers are ordered by Z already.
 		try {
 
-			int n = areas.size();
-			if (0 == n) return null;
-
-			final int resample;
-			if (resample_ <=0 ) {
-				resample = 1;
-				Utils.log2("Fixing zero or negative resampling value to 1.");
-			} else resample = resample_;
-
-			final LayerSet layer_set = d.getLayerSet();
-			final AffineTransform aff = d.getAffineTransformCopy();
-			final Rectangle r = d.getBoundingBox(null);
-
-			// remove translation from a copy of the Displayable's AffineTransform
-			final AffineTransform at_translate = new AffineTransform();
-			at_translate.translate(-r.x, -r.y);
-			aff.preConcatenate(at_translate);
-			// incorporate resampling scaling into the transform
-			final AffineTransform atK = new AffineTransform();
-			//Utils.log("resample: " + resample + "  scale: " + scale);
-			final double K = (1.0 / resample) * scale; // 'scale' is there to limit gigantic universes
-			atK.scale(K, K);
-			aff.preConcatenate(atK);
-
-			final Calibration cal = layer_set.getCalibrationCopy();
-
-			// Find first layer, compute depth, and fill in the depth vs area map
-			Layer first_layer = null,
-			      last_layer = null;
-			final int w = (int)Math.ceil(r.width * K);
-			final int h = (int)Math.ceil(r.height * K);
-			int depth = 0;
-
-			final Map<Integer,Area> ma = new HashMap<Integer,Area>();
-
-			for (final Layer la : layer_set.getLayers()) { // layers sorted by Z ASC
-				final Area area = areas.get(la);
-				if (null != area) {
-					ma.put(depth, area);
-					if (null == first_layer) {
-						first_layer = la;
-					}
-					//Utils.log("area at depth " + depth + " for layer " + la);
-					depth++;
-					n--;
-				} else if (0 != depth) {
-					//Utils.log("Empty area at depth " + depth);
-					depth++; // an empty layer
-				}
-				// else, continue iterating until finding the first layer
-
-				if (0 == n) {
-					last_layer = la;
-					break; // no more areas to paint
-				}
+			final Slices s = Slices.create(d, scale, resample_, areas);
+			if (null == s) return null;
+			if ((long)s.w * s.h * s.depth >= BLOCK_MESHING_MIN_VOXELS) {
+				final TriangleBuffer tb = generateTriangleBuffer(s);
+				return null == tb ? null : tb.drainToList();
 			}
 
-			if (0 == depth) {
-				Utils.log("ERROR could not find any areas for " + d);
-				return null;
-			}
-			if (0 != n) {
-				Utils.log("WARNING could not find all areas for " + d);
-			}
+			final LayerSet layer_set = s.layer_set;
+			final AffineTransform aff = s.aff;
+			final Rectangle r = s.r;
+			final Calibration cal = s.cal;
+			final int resample = s.resample;
+			final int w = s.w,
+			          h = s.h,
+			          depth = s.depth;
+			final Map<Integer,Area> ma = s.ma;
+			final Layer first_layer = s.first_layer,
+			            last_layer = s.last_layer;
 
 			// No zero-padding: Marching Cubes now can handle edges
 			final ShapeList<ByteType> shapeList = new ShapeListCached<ByteType>(new int[]{w, h, depth}, new ByteType(), 32);
@@ -284,6 +244,364 @@ public final class AreaUtils {
 		return null;
 	}
 
+	/** The areas of a Displayable as a stack of slices, scaled by resample and scale:
+	 *  {@code ma} maps slice indices to the areas, which have yet to be transformed by {@code aff}. */
+	static private final class Slices {
+		LayerSet layer_set;
+		AffineTransform aff;
+		Rectangle r;
+		Calibration cal;
+		double scale;
+		int resample, w, h, depth;
+		Map<Integer,Area> ma;
+		Layer first_layer, last_layer;
+
+		/** Returns null when there is nothing to mesh. */
+		static Slices create(final Displayable d, final double scale, final int resample_, final Map<Layer,Area> areas) {
+			int n = areas.size();
+			if (0 == n) return null;
+
+			final int resample;
+			if (resample_ <=0 ) {
+				resample = 1;
+				Utils.log2("Fixing zero or negative resampling value to 1.");
+			} else resample = resample_;
+
+			final LayerSet layer_set = d.getLayerSet();
+			final AffineTransform aff = d.getAffineTransformCopy();
+			final Rectangle r = d.getBoundingBox(null);
+
+			// remove translation from a copy of the Displayable's AffineTransform
+			final AffineTransform at_translate = new AffineTransform();
+			at_translate.translate(-r.x, -r.y);
+			aff.preConcatenate(at_translate);
+			// incorporate resampling scaling into the transform
+			final AffineTransform atK = new AffineTransform();
+			//Utils.log("resample: " + resample + "  scale: " + scale);
+			final double K = (1.0 / resample) * scale; // 'scale' is there to limit gigantic universes
+			atK.scale(K, K);
+			aff.preConcatenate(atK);
+
+			final Calibration cal = layer_set.getCalibrationCopy();
+
+			// Find first layer, compute depth, and fill in the depth vs area map
+			Layer first_layer = null,
+			      last_layer = null;
+			final int w = (int)Math.ceil(r.width * K);
+			final int h = (int)Math.ceil(r.height * K);
+			int depth = 0;
+
+			final Map<Integer,Area> ma = new HashMap<Integer,Area>();
+
+			for (final Layer la : layer_set.getLayers()) { // layers sorted by Z ASC
+				final Area area = areas.get(la);
+				if (null != area) {
+					ma.put(depth, area);
+					if (null == first_layer) {
+						first_layer = la;
+					}
+					//Utils.log("area at depth " + depth + " for layer " + la);
+					depth++;
+					n--;
+				} else if (0 != depth) {
+					//Utils.log("Empty area at depth " + depth);
+					depth++; // an empty layer
+				}
+				// else, continue iterating until finding the first layer
+
+				if (0 == n) {
+					last_layer = la;
+					break; // no more areas to paint
+				}
+			}
+
+			if (0 == depth) {
+				Utils.log("ERROR could not find any areas for " + d);
+				return null;
+			}
+			if (0 != n) {
+				Utils.log("WARNING could not find all areas for " + d);
+			}
+
+			final Slices s = new Slices();
+			s.layer_set = layer_set;
+			s.aff = aff;
+			s.r = r;
+			s.cal = cal;
+			s.scale = scale;
+			s.resample = resample;
+			s.w = w;
+			s.h = h;
+			s.depth = depth;
+			s.ma = ma;
+			s.first_layer = first_layer;
+			s.last_layer = last_layer;
+			return s;
+		}
+	}
+
+	/** Stacks of at least this many voxels are meshed in blocks, in parallel. */
+	static public long BLOCK_MESHING_MIN_VOXELS = 1 << 24;
+
+	/** The size of the blocks, in pixels and slices. */
+	static private final int BLOCK_SIDE = 256,
+	                         BLOCK_DEPTH = 32;
+
+	/** Like {@link #generateTriangles(Displayable, double, int, Map)}, but marching cubes runs over blocks of
+	 *  the stack in parallel, and the vertices are returned as a compact {@link TriangleBuffer}.
+	 *  Each block rasterizes two slices at a time, of its own width and height plus one pixel of overlap,
+	 *  and triangulates only the cubes whose origin falls in it. Neighboring blocks compute the vertices
+	 *  of their shared faces from the same pixels, so the seams match exactly, and the result has the same
+	 *  triangles as meshing the whole stack at once. Blocks that the areas do not reach are skipped.
+	 *  Returns null when there is nothing to mesh, or when interrupted. */
+	static public TriangleBuffer generateTriangleBuffer(final Displayable d, final double scale, final int resample, final Map<Layer,Area> areas) {
+		try {
+			final Slices s = Slices.create(d, scale, resample, areas);
+			if (null == s) return null;
+			return generateTriangleBuffer(s);
+		} catch (final Exception e) {
+			IJError.print(e);
+		}
+		return null;
+	}
+
+	static private TriangleBuffer generateTriangleBuffer(final Slices s) throws Exception {
+		final Edges[] edges = new Edges[s.depth];
+		final Rectangle[] bounds = new Rectangle[s.depth];
+		for (final Map.Entry<Integer,Area> e : s.ma.entrySet()) {
+			Area a = e.getValue();
+			if (!s.aff.isIdentity()) {
+				a = M.areaInIntsByRounding(a.createTransformedArea(s.aff));
+			}
+			edges[e.getKey()] = new Edges(a);
+			bounds[e.getKey()] = a.getBounds();
+		}
+
+		// Blocks of cube origins, which range from -1 to w, h and depth inclusive
+		final ArrayList<int[]> blocks = new ArrayList<int[]>();
+		for (int z=-1; z<=s.depth; z+=BLOCK_DEPTH) {
+			for (int y=-1; y<=s.h; y+=BLOCK_SIDE) {
+				for (int x=-1; x<=s.w; x+=BLOCK_SIDE) {
+					final int[] b = new int[]{x, y, z, Math.min(BLOCK_SIDE, s.w - x + 1), Math.min(BLOCK_SIDE, s.h - y + 1), Math.min(BLOCK_DEPTH, s.depth - z + 1)};
+					final Rectangle box = new Rectangle(b[0], b[1], b[3] + 1, b[4] + 1);
+					for (int k=Math.max(0, z), last=Math.min(s.depth - 1, z + b[5]); k<=last; k++) {
+						if (null != bounds[k] && bounds[k].intersects(box)) {
+							blocks.add(b);
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		// Each block appends its triangles as it finishes, so that only the blocks in flight hold their own
+		final TriangleBuffer tb = new TriangleBuffer();
+		final AtomicInteger n_done = new AtomicInteger();
+		Process.progressive(blocks, new TaskFactory<int[],Void>() {
+			@Override
+			public Void process(final int[] b) {
+				final TriangleBuffer part = new TriangleBuffer();
+				final Rectangle box = new Rectangle(b[0], b[1], b[3] + 1, b[4] + 1);
+				final byte[] empty = new byte[box.width * box.height];
+				byte[] pix0 = new byte[empty.length],
+				       pix1 = new byte[empty.length];
+				byte[] lower = rasterize(edges, bounds, b[2], box, pix0, empty);
+				for (int z=b[2], last=b[2]+b[5]; z<last; z++) {
+					if (Thread.currentThread().isInterrupted()) return null;
+					final byte[] upper = rasterize(edges, bounds, z + 1, box, pix1, empty);
+					if (empty != lower || empty != upper) {
+						MCCube.getTriangles(lower, upper, b[3], b[4], b[0], b[1], z, 127, 1, part); // 127 as in the ShapeList of generateTriangles
+					}
+					lower = upper;
+					final byte[] tmp = pix0;
+					pix0 = pix1;
+					pix1 = tmp;
+				}
+				synchronized (tb) {
+					tb.addAll(part);
+				}
+				n_done.incrementAndGet();
+				return null;
+			}
+		});
+
+		// A mesh with missing blocks would have holes
+		if (Thread.currentThread().isInterrupted() || n_done.get() < blocks.size()) return null;
+
+		// Same corrections as fix3DPoints, from pixels and slice indices to calibrated LayerSet coordinates
+		final float dx = (float)(s.r.x * s.scale * s.cal.pixelWidth);
+		final float dy = (float)(s.r.y * s.scale * s.cal.pixelHeight);
+		final float rsw = (float)(s.resample * s.cal.pixelWidth);
+		final float rsh = (float)(s.resample * s.cal.pixelHeight);
+		final double sz = s.scale * s.cal.pixelWidth; // no resampling in Z. and Uses pixelWidth, not pixelDepth.
+
+		final int i_first_layer = s.layer_set.indexOf(s.first_layer);
+		final List<Layer> layers = s.layer_set.getLayers().subList(i_first_layer, i_first_layer + s.depth);
+		final Layer last_layer = null == s.last_layer ? layers.get(s.depth - 1) : s.last_layer;
+		final double[] la_z = new double[s.depth],
+		               la_thickness = new double[s.depth];
+		for (int k=0; k<s.depth; k++) {
+			la_z[k] = layers.get(k).getZ();
+			la_thickness[k] = layers.get(k).getThickness();
+		}
+
+		for (int i=0, size=tb.size(); i<size; i++) {
+			final float pz = tb.getZ(i);
+			final int layer_index = (int)(pz + 0.05f);
+			final float z;
+			if (layer_index < 0) z = (float)(s.first_layer.getZ() * sz);
+			else if (layer_index < s.depth) z = (float)((la_z[layer_index] + la_thickness[layer_index] * (pz - layer_index)) * sz);
+			else z = (float)((last_layer.getZ() + last_layer.getThickness()) * sz);
+			tb.set(i, tb.getX(i) * rsw + dx, tb.getY(i) * rsh + dy, z);
+		}
+
+		return tb;
+	}
+
+	/** Returns the pixels of slice {@code k} within {@code box} in {@code pix}, as 0 or 1, or {@code empty} if there are none.
+	 *  Pixel i,j is set when the area contains the point box.x + i, box.y + j, as in a {@link ShapeList}. */
+	static private final byte[] rasterize(final Edges[] edges, final Rectangle[] bounds, final int k, final Rectangle box, final byte[] pix, final byte[] empty) {
+		if (k < 0 || k >= edges.length || null == edges[k] || !bounds[k].intersects(box)) return empty;
+		Arrays.fill(pix, (byte)0);
+		edges[k].fill(pix, box);
+		return pix;
+	}
+
+	/** The straight edges of an {@link Area}, to rasterize it with the same rule as {@link Area#contains(double, double)}:
+	 *  a point is inside when an odd number of edges cross its row to its right. Curves are flattened. */
+	static public final class Edges {
+		private double[] ytop, ybot, xtop, xbot, xmin, xmax;
+		private int n = 0;
+		public Edges(final Area area) {
+			ytop = new double[64];
+			ybot = new double[64];
+			xtop = new double[64];
+			xbot = new double[64];
+			xmin = new double[64];
+			xmax = new double[64];
+			final double[] c = new double[6];
+			double mx = 0, my = 0, px = 0, py = 0;
+			for (final PathIterator pit = area.getPathIterator(null, 0.1); !pit.isDone(); pit.next()) {
+				switch (pit.currentSegment(c)) {
+					case PathIterator.SEG_MOVETO:
+						mx = px = c[0];
+						my = py = c[1];
+						break;
+					case PathIterator.SEG_LINETO:
+						add(px, py, c[0], c[1]);
+						px = c[0];
+						py = c[1];
+						break;
+					case PathIterator.SEG_CLOSE:
+						add(px, py, mx, my);
+						px = mx;
+						py = my;
+						break;
+				}
+			}
+			// sort by ytop
+			final Integer[] order = new Integer[n];
+			for (int i=0; i<n; i++) order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer a, final Integer b) {
+					return Double.compare(ytop[a], ytop[b]);
+				}
+			});
+			final double[][] src = {ytop, ybot, xtop, xbot, xmin, xmax};
+			final double[][] dst = new double[6][n];
+			for (int k=0; k<6; k++) {
+				for (int i=0; i<n; i++) dst[k][i] = src[k][order[i]];
+			}
+			ytop = dst[0];
+			ybot = dst[1];
+			xtop = dst[2];
+			xbot = dst[3];
+			xmin = dst[4];
+			xmax = dst[5];
+		}
+		private void add(final double xa, final double ya, final double xb, final double yb) {
+			if (ya == yb) return; // horizontal edges never cross a row
+			if (n == ytop.length) {
+				final int len = n * 2;
+				ytop = Arrays.copyOf(ytop, len);
+				ybot = Arrays.copyOf(ybot, len);
+				xtop = Arrays.copyOf(xtop, len);
+				xbot = Arrays.copyOf(xbot, len);
+				xmin = Arrays.copyOf(xmin, len);
+				xmax = Arrays.copyOf(xmax, len);
+			}
+			if (ya < yb) {
+				ytop[n] = ya; xtop[n] = xa;
+				ybot[n] = yb; xbot[n] = xb;
+			} else {
+				ytop[n] = yb; xtop[n] = xb;
+				ybot[n] = ya; xbot[n] = xa;
+			}
+			xmin[n] = Math.min(xa, xb);
+			xmax[n] = Math.max(xa, xb);
+			n++;
+		}
+		/** Receives the crossings of one row. */
+		interface Row {
+			/** @param t The sorted x at which the edges cross row {@code j}: a point of the row is inside when an odd number of them are larger than its x. */
+			void row(int j, double[] t, int m);
+		}
+
+		/** Calls {@code row} for every row j in [0, rows) that any edge crosses at y + j, ignoring the edges entirely left of {@code x_min}. */
+		void scan(final double y0, final int rows, final double x_min, final Row row) {
+			// edges that reach the rows, in order of ytop
+			int[] active = new int[16];
+			int n_active = 0;
+			int next = 0;
+			double[] t = new double[16];
+			for (int j=0; j<rows; j++) {
+				final double y = y0 + j;
+				while (next < n && ytop[next] <= y) {
+					if (ybot[next] > y && xmax[next] > x_min) {
+						if (n_active == active.length) active = Arrays.copyOf(active, n_active * 2);
+						active[n_active++] = next;
+					}
+					next++;
+				}
+				int m = 0;
+				for (int a=0; a<n_active; ) {
+					final int e = active[a];
+					if (ybot[e] <= y) {
+						active[a] = active[--n_active];
+						continue;
+					}
+					a++;
+					final double xc; // as in Curve.XforY for a straight edge
+					if (xtop[e] == xbot[e] || y <= ytop[e]) xc = xtop[e];
+					else xc = xtop[e] + (y - ytop[e]) * (xbot[e] - xtop[e]) / (ybot[e] - ytop[e]);
+					if (m == t.length) t = Arrays.copyOf(t, m * 2);
+					t[m++] = Math.min(xmax[e], Math.max(xmin[e], xc));
+				}
+				if (0 == m) continue;
+				Arrays.sort(t, 0, m);
+				row.row(j, t, m);
+			}
+		}
+
+		/** Set to 1 the pixels i,j of {@code pix} whose point box.x + i, box.y + j is inside. */
+		public void fill(final byte[] pix, final Rectangle box) {
+			scan(box.y, box.height, box.x, new Row() {
+				@Override
+				public void row(final int j, final double[] t, final int m) {
+					// inside where an odd number of thresholds lie above x
+					int k = 0;
+					final int row = j * box.width;
+					for (int i=0; i<box.width; i++) {
+						final double x = box.x + i;
+						while (k < m && t[k] <= x) k++;
+						if (1 == ((m - k) & 1)) pix[row + i] = 1;
+					}
+				}
+			});
+		}
+	}
+
 	/**
 	 * @param list The original points
 	 * @param output The accumulated list of modified points to construct a mesh from
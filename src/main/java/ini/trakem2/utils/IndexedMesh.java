@@ -0,0 +1,567 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3f;
+
+/** A triangle mesh whose faces share vertices, as opposed to the triangle soups
+ *  (every three consecutive points make a triangle) generated for the 3D viewer.
+ *  Create it with {@link #weld(List, List, float)}, reduce it with {@link #decimate(int)}
+ *  or {@link #levelsOfDetail(float[])}, and turn it back into a soup with {@link #toTriangles()}. */
+public final class IndexedMesh {
+
+	/** The x, y, z of every vertex. */
+	public final float[] vertices;
+	/** The r, g, b of every vertex, or null. */
+	public final float[] colors;
+	/** Three vertex indices per triangle. */
+	public final int[] faces;
+
+	public IndexedMesh(final float[] vertices, final float[] colors, final int[] faces) {
+		this.vertices = vertices;
+		this.colors = colors;
+		this.faces = faces;
+	}
+
+	public final int getVertexCount() {
+		return vertices.length / 3;
+	}
+
+	public final int getTriangleCount() {
+		return faces.length / 3;
+	}
+
+	/** Merge the vertices of a triangle soup that are within {@code tolerance} of each other,
+	 *  and have the same color if {@code colors} is not null. Triangles that collapse are dropped.
+	 *  A {@code tolerance} of zero merges only identical vertices, like those that
+	 *  the marching cubes generate for neighboring triangles.
+	 *  Vertices are found with a spatial hash of cells of side {@code tolerance},
+	 *  so it must not be tiny relative to the coordinates. */
+	static public IndexedMesh weld(final List<Point3f> triangles, final List<Color3f> colors, final float tolerance) {
+		final int n = triangles.size() - triangles.size() % 3;
+		final SpatialHash hash = new SpatialHash(Math.max(16, n / 4));
+		float[] vs = new float[Math.max(3, n)];
+		float[] cs = null == colors ? null : new float[vs.length];
+		int[] next = new int[Math.max(1, n / 3)];
+		int nv = 0;
+		final int[] fs = new int[n];
+		int nf = 0;
+		final float tol2 = tolerance * tolerance;
+		final int r = tolerance > 0 ? 1 : 0;
+		final int[] tri = new int[3];
+		for (int i=0; i<n; i+=3) {
+			for (int k=0; k<3; k++) {
+				final Point3f p = triangles.get(i+k);
+				final Color3f c = null == colors ? null : colors.get(i+k);
+				final int cx, cy, cz;
+				if (tolerance > 0) {
+					cx = (int)Math.floor(p.x / tolerance);
+					cy = (int)Math.floor(p.y / tolerance);
+					cz = (int)Math.floor(p.z / tolerance);
+				} else {
+					cx = Float.floatToIntBits(p.x + 0.0f); // 0.0f + -0.0f is 0.0f
+					cy = Float.floatToIntBits(p.y + 0.0f);
+					cz = Float.floatToIntBits(p.z + 0.0f);
+				}
+				int found = -1;
+				search: for (int dx=-r; dx<=r; dx++) for (int dy=-r; dy<=r; dy++) for (int dz=-r; dz<=r; dz++) {
+					for (int v = hash.get(cx + dx, cy + dy, cz + dz); -1 != v; v = next[v]) {
+						final float ex = vs[3*v] - p.x,
+						            ey = vs[3*v+1] - p.y,
+						            ez = vs[3*v+2] - p.z;
+						if (ex*ex + ey*ey + ez*ez > tol2) continue;
+						if (null != c && (cs[3*v] != c.x || cs[3*v+1] != c.y || cs[3*v+2] != c.z)) continue;
+						found = v;
+						break search;
+					}
+				}
+				if (-1 == found) {
+					if (3 * nv == vs.length) {
+						vs = Arrays.copyOf(vs, vs.length * 2);
+						if (null != cs) cs = Arrays.copyOf(cs, cs.length * 2);
+					}
+					if (nv == next.length) next = Arrays.copyOf(next, next.length * 2);
+					vs[3*nv] = p.x;
+					vs[3*nv+1] = p.y;
+					vs[3*nv+2] = p.z;
+					if (null != cs) {
+						cs[3*nv] = c.x;
+						cs[3*nv+1] = c.y;
+						cs[3*nv+2] = c.z;
+					}
+					next[nv] = hash.put(cx, cy, cz, nv);
+					found = nv++;
+				}
+				tri[k] = found;
+			}
+			if (tri[0] == tri[1] || tri[1] == tri[2] || tri[0] == tri[2]) continue;
+			fs[nf++] = tri[0];
+			fs[nf++] = tri[1];
+			fs[nf++] = tri[2];
+		}
+		return new IndexedMesh(Arrays.copyOf(vs, 3 * nv), null == cs ? null : Arrays.copyOf(cs, 3 * nv), Arrays.copyOf(fs, nf));
+	}
+
+	/** Open-addressing map of integer cell coordinates to the last vertex added to the cell. */
+	static private final class SpatialHash {
+		private int[] keys; // x, y, z per slot
+		private int[] heads; // -1 when empty
+		private int size = 0;
+
+		SpatialHash(final int capacity) {
+			int cap = 16;
+			while (cap < 2 * capacity) cap <<= 1;
+			keys = new int[3 * cap];
+			heads = new int[cap];
+			Arrays.fill(heads, -1);
+		}
+
+		static private final int mix(final int x, final int y, final int z) {
+			int h = x * 0x9E3779B1 ^ y * 0x85EBCA77 ^ z * 0xC2B2AE3D;
+			return h ^ (h >>> 15);
+		}
+
+		private final int slot(final int x, final int y, final int z) {
+			final int mask = heads.length - 1;
+			int i = mix(x, y, z) & mask;
+			while (-1 != heads[i] && (keys[3*i] != x || keys[3*i+1] != y || keys[3*i+2] != z)) i = (i + 1) & mask;
+			return i;
+		}
+
+		/** The last vertex added to the cell, or -1. */
+		final int get(final int x, final int y, final int z) {
+			return heads[slot(x, y, z)];
+		}
+
+		/** Make {@code v} the last vertex of the cell, returning the previous one or -1. */
+		final int put(final int x, final int y, final int z, final int v) {
+			int i = slot(x, y, z);
+			final int previous = heads[i];
+			if (-1 == previous) {
+				if (2 * (size + 1) > heads.length) {
+					grow();
+					i = slot(x, y, z);
+				}
+				keys[3*i] = x;
+				keys[3*i+1] = y;
+				keys[3*i+2] = z;
+				++size;
+			}
+			heads[i] = v;
+			return previous;
+		}
+
+		private final void grow() {
+			final int[] k = keys, h = heads;
+			keys = new int[k.length * 2];
+			heads = new int[h.length * 2];
+			Arrays.fill(heads, -1);
+			for (int i=0; i<h.length; i++) {
+				if (-1 == h[i]) continue;
+				final int j = slot(k[3*i], k[3*i+1], k[3*i+2]);
+				keys[3*j] = k[3*i];
+				keys[3*j+1] = k[3*i+1];
+				keys[3*j+2] = k[3*i+2];
+				heads[j] = h[i];
+			}
+		}
+	}
+
+	/** A possible collapse of the edge from vertex {@code a} to vertex {@code b} onto {@code x, y, z}. */
+	static private final class Collapse implements Comparable<Collapse> {
+		final double cost, x, y, z;
+		final int a, b, version_a, version_b;
+		Collapse(final double cost, final double x, final double y, final double z, final int a, final int b, final int version_a, final int version_b) {
+			this.cost = cost;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.a = a;
+			this.b = b;
+			this.version_a = version_a;
+			this.version_b = version_b;
+		}
+		@Override
+		public int compareTo(final Collapse o) {
+			return Double.compare(cost, o.cost);
+		}
+	}
+
+	/** Reduce the mesh to at most {@code max_triangles} triangles, or as close as possible, by
+	 *  collapsing first the edges whose removal changes the surface the least, as measured
+	 *  with the quadric error metric of Garland and Heckbert (1997). Collapses that would flip
+	 *  a triangle or make the mesh non-manifold are not done, and open borders are preserved
+	 *  by penalizing their displacement. Vertex colors are averaged.
+	 *  Returns this same mesh if it has no more than {@code max_triangles}. */
+	public IndexedMesh decimate(final int max_triangles) {
+		final int nv = getVertexCount(),
+		          nf = getTriangleCount();
+		if (nf <= max_triangles) return this;
+
+		final double[] pos = new double[vertices.length];
+		for (int i=0; i<pos.length; i++) pos[i] = vertices[i];
+		final float[] col = null == colors ? null : colors.clone();
+		final int[] fs = faces.clone();
+		final boolean[] dead = new boolean[nf];
+		final int[] version = new int[nv]; // -1 for removed vertices
+
+		// The triangles of every vertex
+		final int[] n_adj = new int[nv];
+		for (final int v : fs) n_adj[v]++;
+		final int[][] adj = new int[nv][];
+		for (int v=0; v<nv; v++) adj[v] = new int[n_adj[v]];
+		Arrays.fill(n_adj, 0);
+		for (int f=0; f<nf; f++) for (int k=0; k<3; k++) {
+			final int v = fs[3*f+k];
+			adj[v][n_adj[v]++] = f;
+		}
+
+		// The error quadric of every vertex: sum of the squared distances to the planes of its triangles, weighted by area
+		final double[] q = new double[10 * nv];
+		final double[] n = new double[3];
+		for (int f=0; f<nf; f++) {
+			final double area = normal(pos, fs[3*f], fs[3*f+1], fs[3*f+2], n);
+			if (0 == area) continue;
+			final int a = fs[3*f];
+			final double d = -(n[0] * pos[3*a] + n[1] * pos[3*a+1] + n[2] * pos[3*a+2]);
+			for (int k=0; k<3; k++) addPlane(q, fs[3*f+k], n[0], n[1], n[2], d, area);
+		}
+
+		// Border edges belong to a single triangle: add a perpendicular plane to keep the border in place
+		final double[] e = new double[3];
+		for (int f=0; f<nf; f++) {
+			for (int k=0; k<3; k++) {
+				final int a = fs[3*f+k],
+				          b = fs[3*f+(k+1)%3];
+				int count = 0;
+				for (int i=0; i<n_adj[a]; i++) {
+					if (contains(fs, adj[a][i], b)) ++count;
+				}
+				if (1 == count) {
+					final double area = normal(pos, fs[3*f], fs[3*f+1], fs[3*f+2], n);
+					if (area > 0) {
+						e[0] = pos[3*b] - pos[3*a];
+						e[1] = pos[3*b+1] - pos[3*a+1];
+						e[2] = pos[3*b+2] - pos[3*a+2];
+						// the plane through the edge and perpendicular to the triangle
+						double px = e[1] * n[2] - e[2] * n[1],
+						       py = e[2] * n[0] - e[0] * n[2],
+						       pz = e[0] * n[1] - e[1] * n[0];
+						final double len = Math.sqrt(px*px + py*py + pz*pz);
+						if (len > 0) {
+							px /= len; py /= len; pz /= len;
+							final double d = -(px * pos[3*a] + py * pos[3*a+1] + pz * pos[3*a+2]);
+							final double w = BORDER_WEIGHT * (e[0]*e[0] + e[1]*e[1] + e[2]*e[2]);
+							addPlane(q, a, px, py, pz, d, w);
+							addPlane(q, b, px, py, pz, d, w);
+						}
+					}
+				}
+			}
+		}
+		// Collect every edge once, from its first triangle
+		final PriorityQueue<Collapse> queue = new PriorityQueue<Collapse>(nf * 2);
+		for (int f=0; f<nf; f++) {
+			for (int k=0; k<3; k++) {
+				final int a = fs[3*f+k],
+				          b = fs[3*f+(k+1)%3];
+				boolean first = true;
+				for (int i=0; i<n_adj[a]; i++) {
+					final int g = adj[a][i];
+					if (g < f && contains(fs, g, b)) {
+						first = false;
+						break;
+					}
+				}
+				if (first) queue.add(collapse(q, pos, a, b, version));
+			}
+		}
+
+		final int[] mark = new int[nv];
+		int stamp = 0;
+		int live = nf;
+		while (live > max_triangles && !queue.isEmpty()) {
+			final Collapse c = queue.poll();
+			final int a = c.a,
+			          b = c.b;
+			if (version[a] != c.version_a || version[b] != c.version_b) continue; // stale
+
+			// Link condition: the vertices adjacent to both a and b must be the opposite vertices of the triangles of the edge
+			++stamp;
+			for (int i=0; i<n_adj[a]; i++) {
+				final int f = adj[a][i];
+				if (dead[f]) continue;
+				for (int k=0; k<3; k++) mark[fs[3*f+k]] = stamp;
+			}
+			int shared_vertices = 0,
+			    shared_faces = 0;
+			++stamp;
+			for (int i=0; i<n_adj[b]; i++) {
+				final int f = adj[b][i];
+				if (dead[f]) continue;
+				if (contains(fs, f, a)) ++shared_faces;
+				for (int k=0; k<3; k++) {
+					final int v = fs[3*f+k];
+					if (v == a || v == b) continue;
+					if (stamp - 1 == mark[v]) {
+						mark[v] = stamp; // count once
+						++shared_vertices;
+					}
+				}
+			}
+			if (0 == shared_faces || shared_vertices != shared_faces) continue;
+
+			// Reject collapses that flip any remaining triangle
+			if (flips(fs, dead, adj[a], n_adj[a], a, b, pos, c) || flips(fs, dead, adj[b], n_adj[b], b, a, pos, c)) continue;
+
+			// Collapse b onto a
+			pos[3*a] = c.x;
+			pos[3*a+1] = c.y;
+			pos[3*a+2] = c.z;
+			if (null != col) {
+				col[3*a] = (col[3*a] + col[3*b]) / 2;
+				col[3*a+1] = (col[3*a+1] + col[3*b+1]) / 2;
+				col[3*a+2] = (col[3*a+2] + col[3*b+2]) / 2;
+			}
+			for (int k=0; k<10; k++) q[10*a+k] += q[10*b+k];
+			for (int i=0; i<n_adj[b]; i++) {
+				final int f = adj[b][i];
+				if (dead[f]) continue;
+				if (contains(fs, f, a)) {
+					dead[f] = true;
+					--live;
+					continue;
+				}
+				for (int k=0; k<3; k++) if (b == fs[3*f+k]) fs[3*f+k] = a;
+				if (n_adj[a] == adj[a].length) adj[a] = Arrays.copyOf(adj[a], adj[a].length * 2 + 1);
+				adj[a][n_adj[a]++] = f;
+			}
+			n_adj[b] = 0;
+			adj[b] = null;
+			version[b] = -1;
+			++version[a];
+			// Remove the dead triangles from the list of a
+			int count = 0;
+			for (int i=0; i<n_adj[a]; i++) {
+				final int f = adj[a][i];
+				if (!dead[f]) adj[a][count++] = f;
+			}
+			n_adj[a] = count;
+			// New costs for the edges of a
+			++stamp;
+			mark[a] = stamp;
+			for (int i=0; i<n_adj[a]; i++) {
+				final int f = adj[a][i];
+				for (int k=0; k<3; k++) {
+					final int v = fs[3*f+k];
+					if (stamp == mark[v]) continue;
+					mark[v] = stamp;
+					queue.add(collapse(q, pos, a, v, version));
+				}
+			}
+		}
+
+		// Compact
+		final int[] index = new int[nv];
+		Arrays.fill(index, -1);
+		final int[] faces2 = new int[3 * live];
+		int nv2 = 0, nf2 = 0;
+		for (int f=0; f<nf; f++) {
+			if (dead[f]) continue;
+			for (int k=0; k<3; k++) {
+				final int v = fs[3*f+k];
+				if (-1 == index[v]) index[v] = nv2++;
+				faces2[nf2++] = index[v];
+			}
+		}
+		final float[] vertices2 = new float[3 * nv2];
+		final float[] colors2 = null == col ? null : new float[3 * nv2];
+		for (int v=0; v<nv; v++) {
+			final int i = index[v];
+			if (-1 == i) continue;
+			for (int k=0; k<3; k++) {
+				vertices2[3*i+k] = (float)pos[3*v+k];
+				if (null != colors2) colors2[3*i+k] = col[3*v+k];
+			}
+		}
+		return new IndexedMesh(vertices2, colors2, faces2);
+	}
+
+	/** Relative weight of the planes that hold open borders in place. */
+	static private final double BORDER_WEIGHT = 1000;
+
+	static private final boolean contains(final int[] fs, final int f, final int v) {
+		return v == fs[3*f] || v == fs[3*f+1] || v == fs[3*f+2];
+	}
+
+	/** Writes the unit normal of the triangle into {@code n} and returns its area, or 0 if degenerate. */
+	static private final double normal(final double[] pos, final int a, final int b, final int c, final double[] n) {
+		final double ux = pos[3*b] - pos[3*a], uy = pos[3*b+1] - pos[3*a+1], uz = pos[3*b+2] - pos[3*a+2],
+		             vx = pos[3*c] - pos[3*a], vy = pos[3*c+1] - pos[3*a+1], vz = pos[3*c+2] - pos[3*a+2];
+		n[0] = uy * vz - uz * vy;
+		n[1] = uz * vx - ux * vz;
+		n[2] = ux * vy - uy * vx;
+		final double len = Math.sqrt(n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
+		if (0 == len) return 0;
+		n[0] /= len;
+		n[1] /= len;
+		n[2] /= len;
+		return len / 2;
+	}
+
+	/** Add the quadric of the plane ax + by + cz + d = 0, times {@code w}, to that of vertex {@code v}. */
+	static private final void addPlane(final double[] q, final int v, final double a, final double b, final double c, final double d, final double w) {
+		final int i = 10 * v;
+		q[i]   += w * a * a;
+		q[i+1] += w * a * b;
+		q[i+2] += w * a * c;
+		q[i+3] += w * a * d;
+		q[i+4] += w * b * b;
+		q[i+5] += w * b * c;
+		q[i+6] += w * b * d;
+		q[i+7] += w * c * c;
+		q[i+8] += w * c * d;
+		q[i+9] += w * d * d;
+	}
+
+	static private final double error(final double[] s, final double x, final double y, final double z) {
+		return s[0]*x*x + 2*s[1]*x*y + 2*s[2]*x*z + 2*s[3]*x
+		     + s[4]*y*y + 2*s[5]*y*z + 2*s[6]*y
+		     + s[7]*z*z + 2*s[8]*z
+		     + s[9];
+	}
+
+	/** The cheapest collapse of the edge a-b: onto the point that minimizes the summed quadric
+	 *  if it is well defined and near the edge, or else onto the best of a, b and their midpoint. */
+	static private final Collapse collapse(final double[] q, final double[] pos, final int a, final int b, final int[] version) {
+		final double[] s = new double[10];
+		for (int k=0; k<10; k++) s[k] = q[10*a+k] + q[10*b+k];
+		final double ax = pos[3*a], ay = pos[3*a+1], az = pos[3*a+2],
+		             bx = pos[3*b], by = pos[3*b+1], bz = pos[3*b+2],
+		             mx = (ax + bx) / 2, my = (ay + by) / 2, mz = (az + bz) / 2;
+		final double len2 = (bx-ax)*(bx-ax) + (by-ay)*(by-ay) + (bz-az)*(bz-az);
+		// Solve the 3x3 symmetric system A p = -b with Cramer's rule
+		final double a00 = s[0], a01 = s[1], a02 = s[2], a11 = s[4], a12 = s[5], a22 = s[7];
+		final double c00 = a11 * a22 - a12 * a12,
+		             c01 = a02 * a12 - a01 * a22,
+		             c02 = a01 * a12 - a02 * a11;
+		final double det = a00 * c00 + a01 * c01 + a02 * c02;
+		final double scale = Math.abs(a00) + Math.abs(a11) + Math.abs(a22);
+		if (Math.abs(det) > 1e-10 * scale * scale * scale) {
+			final double c11 = a00 * a22 - a02 * a02,
+			             c12 = a01 * a02 - a00 * a12,
+			             c22 = a00 * a11 - a01 * a01;
+			final double x = -(c00 * s[3] + c01 * s[6] + c02 * s[8]) / det,
+			             y = -(c01 * s[3] + c11 * s[6] + c12 * s[8]) / det,
+			             z = -(c02 * s[3] + c12 * s[6] + c22 * s[8]) / det;
+			if ((x-mx)*(x-mx) + (y-my)*(y-my) + (z-mz)*(z-mz) <= len2) {
+				return new Collapse(Math.max(0, error(s, x, y, z)), x, y, z, a, b, version[a], version[b]);
+			}
+		}
+		final double ea = error(s, ax, ay, az),
+		             eb = error(s, bx, by, bz),
+		             em = error(s, mx, my, mz);
+		if (ea <= eb && ea <= em) return new Collapse(Math.max(0, ea), ax, ay, az, a, b, version[a], version[b]);
+		if (eb <= em) return new Collapse(Math.max(0, eb), bx, by, bz, a, b, version[a], version[b]);
+		return new Collapse(Math.max(0, em), mx, my, mz, a, b, version[a], version[b]);
+	}
+
+	/** Whether moving {@code v} to the collapse point flips or degenerates any of its triangles that does not contain {@code other}. */
+	static private final boolean flips(final int[] fs, final boolean[] dead, final int[] adj, final int n_adj, final int v, final int other, final double[] pos, final Collapse c) {
+		final double[] n1 = new double[3], n2 = new double[3];
+		final double[] moved = new double[9];
+		for (int i=0; i<n_adj; i++) {
+			final int f = adj[i];
+			if (dead[f] || contains(fs, f, other)) continue;
+			if (0 == normal(pos, fs[3*f], fs[3*f+1], fs[3*f+2], n1)) continue;
+			for (int k=0; k<3; k++) {
+				final int w = fs[3*f+k];
+				if (w == v) {
+					moved[3*k] = c.x;
+					moved[3*k+1] = c.y;
+					moved[3*k+2] = c.z;
+				} else {
+					moved[3*k] = pos[3*w];
+					moved[3*k+1] = pos[3*w+1];
+					moved[3*k+2] = pos[3*w+2];
+				}
+			}
+			if (0 == normal(moved, 0, 1, 2, n2)) return true;
+			if (n1[0]*n2[0] + n1[1]*n2[1] + n1[2]*n2[2] < 0.2) return true;
+		}
+		return false;
+	}
+
+	/** Decimate progressively to each of the {@code fractions} of the number of triangles of this mesh,
+	 *  which must be in decreasing order; a fraction of 1 or more returns this mesh. */
+	public IndexedMesh[] levelsOfDetail(final float[] fractions) {
+		final IndexedMesh[] levels = new IndexedMesh[fractions.length];
+		IndexedMesh m = this;
+		for (int i=0; i<fractions.length; i++) {
+			m = m.decimate((int)Math.round(fractions[i] * (double)getTriangleCount()));
+			levels[i] = m;
+		}
+		return levels;
+	}
+
+	/** As a triangle soup, for a {@code CustomTriangleMesh}. */
+	public List<Point3f> toTriangles() {
+		final ArrayList<Point3f> ps = new ArrayList<Point3f>(faces.length);
+		for (final int v : faces) ps.add(new Point3f(vertices[3*v], vertices[3*v+1], vertices[3*v+2]));
+		return ps;
+	}
+
+	/** The color of every vertex of {@link #toTriangles()}, or null if this mesh has no colors. */
+	public List<Color3f> toColors() {
+		if (null == colors) return null;
+		final ArrayList<Color3f> cs = new ArrayList<Color3f>(faces.length);
+		for (final int v : faces) cs.add(new Color3f(colors[3*v], colors[3*v+1], colors[3*v+2]));
+		return cs;
+	}
+
+	/** Write this mesh as a named object in Wavefront OBJ format. Vertex indices in OBJ files are global
+	 *  and start at 1: {@code first_vertex} is the number of vertices written before to the same file.
+	 *  Returns the number of vertices written. */
+	public int writeOBJ(final Writer w, final String name, final int first_vertex) throws IOException {
+		final StringBuilder sb = new StringBuilder(64);
+		w.write("o " + name.replace('\n', ' ') + "\n");
+		for (int i=0; i<vertices.length; i+=3) {
+			sb.setLength(0);
+			sb.append("v ").append(vertices[i]).append(' ').append(vertices[i+1]).append(' ').append(vertices[i+2]).append('\n');
+			w.write(sb.toString());
+		}
+		for (int i=0; i<faces.length; i+=3) {
+			sb.setLength(0);
+			sb.append("f ").append(first_vertex + faces[i] + 1).append(' ').append(first_vertex + faces[i+1] + 1).append(' ').append(first_vertex + faces[i+2] + 1).append('\n');
+			w.write(sb.toString());
+		}
+		return getVertexCount();
+	}
+}
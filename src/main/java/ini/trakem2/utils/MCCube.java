@@ -319,6 +319,64 @@ public final class MCCube {
 		}
 	}
 
+	// the two corners of each edge, and the offsets of each corner, as in init and computeEdges
+	private static final int[] edgeA = {0, 1, 2, 3, 4, 5, 6, 7, 0, 1, 3, 2},
+	                           edgeB = {1, 2, 3, 0, 5, 6, 7, 4, 4, 5, 7, 6},
+	                           cornerX = {0, 1, 1, 0, 0, 1, 1, 0},
+	                           cornerY = {0, 0, 1, 1, 0, 0, 1, 1},
+	                           cornerZ = {0, 0, 0, 0, 1, 1, 1, 1};
+
+	/**
+	 * Marching cubes over one slab of a block: the cubes with origins
+	 * x0 &lt;= x &lt; x0 + w and y0 &lt;= y &lt; y0 + h at depth z. The corner values are read from
+	 * {@code lower} (slice z) and {@code upper} (slice z + 1), each holding (w + 1) * (h + 1) values
+	 * starting at x0, y0, where non-zero means {@code value}.
+	 * Produces the same vertices, in the same order per cube, as {@link #getTriangles(Volume, int)}
+	 * with an origin at 0,0,0 and unit pixel size, so that blocks sharing a face produce identical seam vertices.
+	 * The vertices are appended to {@code out}; returns false if the slab was empty.
+	 */
+	public static final boolean getTriangles(final byte[] lower, final byte[] upper, final int w, final int h,
+			final int x0, final int y0, final int z, final int value, final int thresh, final TriangleBuffer out) {
+		final int stride = w + 1;
+		final float threshold = thresh + 0.5f;
+		final int[] in = new int[8];
+		final int[] index = {0, 1, stride + 1, stride, 0, 1, stride + 1, stride};
+		boolean any = false;
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				final int k = x + y * stride;
+				int cn = 0;
+				for (int c=0; c<8; c++) {
+					in[c] = 0 == (c < 4 ? lower : upper)[k + index[c]] ? 0 : value;
+					if (in[c] - threshold > 0) cn |= 1 << c;
+				}
+				if (0 == cn || 255 == cn) continue;
+				any = true;
+				for (int offset = cn * 15, t = 0; t < 5 && -1 != faces[offset]; t++, offset += 3) {
+					for (int j=0; j<3; j++) {
+						final int e = faces[offset + j];
+						int a = edgeA[e],
+						    b = edgeB[e];
+						if (in[b] < in[a]) {
+							final int tmp = a;
+							a = b;
+							b = tmp;
+						}
+						// v1 + t*(v2-v1), in the same float operations as computeEdge
+						final float f = (threshold - in[a]) / (float) (in[b] - in[a]);
+						final float ax = x0 + x + cornerX[a],
+						            ay = y0 + y + cornerY[a],
+						            az = z + cornerZ[a];
+						out.add((x0 + x + cornerX[b] - ax) * f + ax,
+						        (y0 + y + cornerY[b] - ay) * f + ay,
+						        (z + cornerZ[b] - az) * f + az);
+					}
+				}
+			}
+		}
+		return any;
+	}
+
 	protected static final int ambigous[] = {
 		250,
 		245,
@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.utils;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.util.Arrays;
+
+/** The pixels of an {@link Area}, stored as runs along rows: pixel x,y is in the set when the
+ *  {@link Area} contains the pixel center x + 0.5, y + 0.5, with curves flattened as in {@link AreaUtils}.
+ *  Used to rasterize areas into label images, filling only the pixels inside, run by run,
+ *  without painting through a Graphics2D. Instances are immutable.
+ *  Convert from an {@link Area} with {@link #fromArea(Area, AffineTransform, Rectangle)}. */
+public final class RunLengthArea {
+
+	static public final RunLengthArea EMPTY = new RunLengthArea(0, new int[1], new int[0]);
+
+	/** The first row. */
+	private final int y0;
+	/** The runs of row y0 + j go from runs[offsets[j]] to runs[offsets[j+1]], as pairs of first and last + 1 x. */
+	private final int[] offsets;
+	private final int[] runs;
+
+	private RunLengthArea(final int y0, final int[] offsets, final int[] runs) {
+		this.y0 = y0;
+		this.offsets = offsets;
+		this.runs = runs;
+	}
+
+	/** Accumulates rows from top to bottom. */
+	static private final class Builder {
+		private final int y0;
+		private int[] offsets;
+		private int[] runs = new int[64];
+		private int rows = 0, n = 0;
+
+		Builder(final int y0, final int rows) {
+			this.y0 = y0;
+			this.offsets = new int[rows + 1];
+		}
+
+		/** Start the next row. */
+		void row() {
+			offsets[++rows] = n;
+		}
+
+		/** Append a run to the current row, merging it with the previous one if adjacent. */
+		void add(final int first, final int end) {
+			if (first >= end) return;
+			if (n > offsets[rows] && runs[n-1] >= first) {
+				if (end > runs[n-1]) runs[n-1] = end;
+				return;
+			}
+			if (n + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+			runs[n++] = first;
+			runs[n++] = end;
+			offsets[rows + 1] = n;
+		}
+
+		RunLengthArea build() {
+			// trim empty rows at the ends
+			int first = 0, last = rows;
+			while (first < last && offsets[first] == offsets[first+1]) first++;
+			while (last > first && offsets[last-1] == offsets[last]) last--;
+			if (first == last) return EMPTY;
+			final int[] o = Arrays.copyOfRange(offsets, first, last + 1);
+			return new RunLengthArea(y0 + first, o, Arrays.copyOf(runs, n));
+		}
+	}
+
+	/** @param aff The transform to apply to {@code area} first, or null.
+	 *  @param clip The pixels to consider, such as those of the image to fill, or null for all. */
+	static public RunLengthArea fromArea(final Area area, final AffineTransform aff, final Rectangle clip) {
+		final boolean identity = null == aff || aff.isIdentity();
+		// Skip areas that fall outside the clip without transforming them
+		if (null != clip && !clip.intersects(identity ? area.getBounds() : aff.createTransformedShape(area.getBounds2D()).getBounds())) return EMPTY;
+		final Area a = identity ? area : area.createTransformedArea(aff);
+		final Rectangle box = null == clip ? a.getBounds() : a.getBounds().intersection(clip);
+		if (box.width <= 0 || box.height <= 0) return EMPTY;
+		final Builder b = new Builder(box.y, box.height);
+		final int[] current = new int[]{0};
+		new AreaUtils.Edges(a).scan(box.y + 0.5, box.height, box.x, new AreaUtils.Edges.Row() {
+			@Override
+			public void row(final int j, final double[] t, final int m) {
+				while (current[0] < j) {
+					b.row();
+					current[0]++;
+				}
+				// x + 0.5 is inside when an odd number of thresholds lie above it,
+				// that is, for the x in [ceil(t[i-1] - 0.5), ceil(t[i] - 0.5)) when m - i is odd
+				for (int i = 1 - (m & 1); i < m; i += 2) {
+					final int first = 0 == i ? Integer.MIN_VALUE : (int)Math.ceil(t[i-1] - 0.5);
+					b.add(Math.max(first, box.x), Math.min((int)Math.ceil(t[i] - 0.5), box.x + box.width));
+				}
+			}
+		});
+		while (current[0] < box.height) {
+			b.row();
+			current[0]++;
+		}
+		return b.build();
+	}
+
+	public boolean isEmpty() {
+		return 0 == runs.length;
+	}
+
+	/** The number of pixels. */
+	public long getPixelCount() {
+		long count = 0;
+		for (int i=0; i<runs.length; i+=2) count += runs[i+1] - runs[i];
+		return count;
+	}
+
+	/** Set the pixels of {@code ip} to {@code value}, offset by dx, dy; pixels outside {@code ip} are ignored. */
+	public void fill(final ImageProcessor ip, final int dx, final int dy, final float value) {
+		final int width = ip.getWidth(),
+		          height = ip.getHeight();
+		final int rows = offsets.length - 1;
+		for (int j=Math.max(0, -(y0 + dy)); j<rows; j++) {
+			final int y = y0 + dy + j;
+			if (y >= height) break;
+			final int row = y * width;
+			for (int i=offsets[j]; i<offsets[j+1]; i+=2) {
+				final int x0 = Math.max(0, runs[i] + dx),
+				          x1 = Math.min(width, runs[i+1] + dx);
+				for (int x=x0; x<x1; x++) ip.setf(row + x, value);
+			}
+		}
+	}
+
+	@Override
+	public boolean equals(final Object ob) {
+		if (!(ob instanceof RunLengthArea)) return false;
+		final RunLengthArea r = (RunLengthArea)ob;
+		return (isEmpty() && r.isEmpty())
+		    || (y0 == r.y0 && Arrays.equals(offsets, r.offsets) && Arrays.equals(runs, r.runs));
+	}
+
+	@Override
+	public int hashCode() {
+		return isEmpty() ? 0 : 31 * (31 * y0 + Arrays.hashCode(offsets)) + Arrays.hashCode(runs);
+	}
+}
@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ini.trakem2.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.vecmath.Point3f;
+
+/** A growable array of triangle vertices, stored as consecutive x, y, z floats;
+ *  every three consecutive vertices make a triangle. Uses 12 bytes per vertex,
+ *  compared to about 40 for a {@code List<Point3f>}. */
+public final class TriangleBuffer {
+
+	private float[] data;
+	private int size = 0; // in floats
+
+	public TriangleBuffer() {
+		this(3 * 1024);
+	}
+
+	/** @param capacity The initial number of vertices. */
+	public TriangleBuffer(final int capacity) {
+		this.data = new float[Math.max(3, 3 * capacity)];
+	}
+
+	private final void ensure(final int n) {
+		if (n <= data.length) return;
+		data = Arrays.copyOf(data, Math.max(n, data.length + (data.length >> 1)));
+	}
+
+	public final void add(final float x, final float y, final float z) {
+		ensure(size + 3);
+		data[size++] = x;
+		data[size++] = y;
+		data[size++] = z;
+	}
+
+	public final void addAll(final TriangleBuffer tb) {
+		ensure(size + tb.size);
+		System.arraycopy(tb.data, 0, data, size, tb.size);
+		size += tb.size;
+	}
+
+	/** The number of vertices. */
+	public final int size() {
+		return size / 3;
+	}
+
+	public final boolean isEmpty() {
+		return 0 == size;
+	}
+
+	public final float getX(final int i) { return data[3*i]; }
+	public final float getY(final int i) { return data[3*i+1]; }
+	public final float getZ(final int i) { return data[3*i+2]; }
+
+	public final void set(final int i, final float x, final float y, final float z) {
+		data[3*i] = x;
+		data[3*i+1] = y;
+		data[3*i+2] = z;
+	}
+
+	/** A copy of the x, y, z floats of all vertices. */
+	public final float[] toArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	/** For code that expects a list of vertices, such as a {@code CustomTriangleMesh}. */
+	public final List<Point3f> toList() {
+		final ArrayList<Point3f> list = new ArrayList<Point3f>(size());
+		for (int i=0; i<size; i+=3) list.add(new Point3f(data[i], data[i+1], data[i+2]));
+		return list;
+	}
+
+	/** Like {@link #toList()}, but releases the floats while converting them, half of the remaining
+	 *  vertices at a time, so that the list and a full copy of the floats are never held together.
+	 *  Leaves this buffer empty. */
+	public final List<Point3f> drainToList() {
+		final ArrayList<Point3f> list = new ArrayList<Point3f>(size());
+		int i = 0;
+		while (i < size) {
+			final int end = i + Math.max(3, ((size - i) / 6) * 3);
+			for (; i<end; i+=3) list.add(new Point3f(data[i], data[i+1], data[i+2]));
+			if (i < size) {
+				data = Arrays.copyOfRange(data, i, size);
+				size -= i;
+				i = 0;
+			}
+		}
+		data = new float[3];
+		size = 0;
+		return list;
+	}
+}
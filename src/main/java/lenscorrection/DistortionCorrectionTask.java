@@ -31,7 +31,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import ij.IJ;
 import ij.gui.GenericDialog;
@@ -256,122 +258,92 @@ final public class DistortionCorrectionTask
 
 
 	/**
-	 * Sets a {@link CoordinateTransform} to a list of patches.
+	 * Sets a {@link CoordinateTransform} to a list of patches concurrently.
+	 * Mipmaps are not updated, call {@link #updateMipMaps(List)} once all
+	 * transformations are in place.
 	 */
-	final static protected class SetCoordinateTransformThread extends Thread
+	final static protected void setCoordinateTransform(
+			final List< Patch > patches,
+			final CoordinateTransform transform )
 	{
-		final protected List< Patch > patches;
-		final protected CoordinateTransform transform;
-		final protected AtomicInteger ai;
-
-		public SetCoordinateTransformThread(
-				final List< Patch > patches,
-				final CoordinateTransform transform,
-				final AtomicInteger ai )
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( final Patch patch : patches )
 		{
-			this.patches = patches;
-			this.transform = transform;
-			this.ai = ai;
-		}
-
-		@Override
-		final public void run()
-		{
-			for ( int i = ai.getAndIncrement(); i < patches.size() && !isInterrupted(); i = ai.getAndIncrement() )
+			tasks.add( new Callable< Void >()
 			{
-				final Patch patch = patches.get( i );
-//				Utils.log( "Setting transform \"" + transform + "\" for patch \"" + patch.getTitle() + "\"." );
-				patch.setCoordinateTransform( transform );
-				patch.updateMipMaps();
-				patch.getProject().getLoader().decacheImagePlus( patch.getId() );
-
-				IJ.showProgress( i, patches.size() );
-			}
+				@Override
+				public Void call()
+				{
+//					Utils.log( "Setting transform \"" + transform + "\" for patch \"" + patch.getTitle() + "\"." );
+					patch.setCoordinateTransform( transform );
+					patch.getProject().getLoader().decacheImagePlus( patch.getId() );
+					return null;
+				}
+			} );
 		}
+		if ( !Distortion_Correction.invokeAll( tasks, "Setting CoordinateTransform", "patches" ) )
+			Utils.log( "Setting CoordinateTransform failed." );
 	}
 
-	final static protected void setCoordinateTransform(
+
+	/**
+	 * Appends a {@link CoordinateTransform} to a list of patches
+	 * concurrently.  Mipmaps are not updated, call
+	 * {@link #updateMipMaps(List)} once all transformations are in place.
+	 */
+	final static protected void appendCoordinateTransform(
 			final List< Patch > patches,
-			final CoordinateTransform transform,
-			final int numThreads )
+			final CoordinateTransform transform )
 	{
-		final AtomicInteger ai = new AtomicInteger( 0 );
-		final List< SetCoordinateTransformThread > threads = new ArrayList< SetCoordinateTransformThread >();
-
-		for ( int i = 0; i < numThreads; ++i )
-		{
-			final SetCoordinateTransformThread thread = new SetCoordinateTransformThread( patches, transform, ai );
-			threads.add( thread );
-			thread.start();
-		}
-		try
-		{
-			for ( final Thread thread : threads )
-				thread.join();
-		}
-		catch ( final InterruptedException e )
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( final Patch patch : patches )
 		{
-			Utils.log( "Setting CoordinateTransform failed.\n" + e.getMessage() + "\n" + e.getStackTrace() );
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					patch.appendCoordinateTransform( transform );
+					return null;
+				}
+			} );
 		}
+		if ( !Distortion_Correction.invokeAll( tasks, "Appending CoordinateTransform", "patches" ) )
+			Utils.log( "Appending CoordinateTransform failed." );
 	}
 
 
 	/**
-	 * Appends a {@link CoordinateTransform} to a list of patches.
+	 * Regenerates the mipmaps of a list of patches in one batch and waits
+	 * for completion.
 	 */
-	final static protected class AppendCoordinateTransformThread extends Thread
+	final static protected void updateMipMaps( final List< Patch > patches )
 	{
-		final protected List< Patch > patches;
-		final protected CoordinateTransform transform;
-		final protected AtomicInteger ai;
-
-		public AppendCoordinateTransformThread(
-				final List< Patch > patches,
-				final CoordinateTransform transform,
-				final AtomicInteger ai )
-		{
-			this.patches = patches;
-			this.transform = transform;
-			this.ai = ai;
-		}
-
-		@Override
-		final public void run()
+		final long t0 = System.currentTimeMillis();
+		final ArrayList< Future< Boolean > > futures = new ArrayList< Future< Boolean > >();
+		for ( final Patch patch : patches )
+			futures.add( patch.updateMipMaps() );
+		try
 		{
-			for ( int i = ai.getAndIncrement(); i < patches.size() && !isInterrupted(); i = ai.getAndIncrement() )
+			for ( int i = 0; i < futures.size(); ++i )
 			{
-				final Patch patch = patches.get( i );
-				patch.appendCoordinateTransform( transform );
-				patch.updateMipMaps();
-
-				IJ.showProgress( i, patches.size() );
+				final Future< Boolean > future = futures.get( i );
+				if ( future != null )
+					future.get();
+				IJ.showProgress( i + 1, futures.size() );
 			}
 		}
-	}
-
-	final static protected void appendCoordinateTransform(
-			final List< Patch > patches,
-			final CoordinateTransform transform,
-			final int numThreads )
-	{
-		final AtomicInteger ai = new AtomicInteger( 0 );
-		final List< AppendCoordinateTransformThread > threads = new ArrayList< AppendCoordinateTransformThread >();
-
-		for ( int i = 0; i < numThreads; ++i )
-		{
-			final AppendCoordinateTransformThread thread = new AppendCoordinateTransformThread( patches, transform, ai );
-			threads.add( thread );
-			thread.start();
-		}
-		try
+		catch ( final InterruptedException e )
 		{
-			for ( final Thread thread : threads )
-				thread.join();
+			Utils.log( "Interrupted while regenerating mipmaps." );
+			return;
 		}
-		catch ( final InterruptedException e )
+		catch ( final ExecutionException e )
 		{
-			Utils.log( "Appending CoordinateTransform failed.\n" + e.getMessage() + "\n" + e.getStackTrace() );
+			IJError.print( e );
 		}
+		final long t = Math.max( 1, System.currentTimeMillis() - t0 );
+		Utils.log( String.format( "Regenerating mipmaps: %d patches in %.1fs (%.2f patches/s)", patches.size(), t / 1000.0, patches.size() * 1000.0 / t ) );
 	}
 
 	final static public CorrectDistortionFromSelectionParam correctDistortionFromSelectionParam = new CorrectDistortionFromSelectionParam();
@@ -432,7 +404,7 @@ final public class DistortionCorrectionTask
 			if ( worker != null )
 				worker.setTaskName( "Clearing present transforms" );
 
-			setCoordinateTransform( allPatches, null, Runtime.getRuntime().availableProcessors() );
+			setCoordinateTransform( allPatches, null );
 			Display.repaint();
 		}
 
@@ -477,7 +449,12 @@ final public class DistortionCorrectionTask
 			}
 		}
 
-		if ( Thread.currentThread().isInterrupted() ) return;
+		if ( Thread.currentThread().isInterrupted() )
+		{
+			if ( p.clearTransform )
+				updateMipMaps( allPatches );
+			return;
+		}
 
 		final List< Set< Tile< ? > > > graphs = AbstractAffineTile2D.identifyConnectedGraphs( tiles );
 		if ( graphs.size() > 1 )
@@ -495,7 +472,12 @@ final public class DistortionCorrectionTask
 		for ( final Tile< ? > t : largestGraph )
 			interestingTiles.add( ( AbstractAffineTile2D< ? > )t );
 
-		if ( Thread.currentThread().isInterrupted() ) return;
+		if ( Thread.currentThread().isInterrupted() )
+		{
+			if ( p.clearTransform )
+				updateMipMaps( allPatches );
+			return;
+		}
 
 		Utils.log( "Estimating lens model:" );
 
@@ -532,7 +514,12 @@ final public class DistortionCorrectionTask
 		 * at least 2 iterations */
 		for ( int i = 1; i < 20 && ( i < 2 || dEpsilon_i <= dEpsilon_0 / 1000 ); ++i )
 		{
-			if ( Thread.currentThread().isInterrupted() ) return;
+			if ( Thread.currentThread().isInterrupted() )
+			{
+				if ( p.clearTransform )
+					updateMipMaps( allPatches );
+				return;
+			}
 
 			/* Some data shuffling for the lens correction interface */
 			final List< PointMatchCollectionAndAffine > matches = new ArrayList< PointMatchCollectionAndAffine >();
@@ -599,7 +586,12 @@ final public class DistortionCorrectionTask
 		{
 			if ( p.visualize )
 			{
-				if ( Thread.currentThread().isInterrupted() ) return;
+				if ( Thread.currentThread().isInterrupted() )
+				{
+					if ( p.clearTransform )
+						updateMipMaps( allPatches );
+					return;
+				}
 
 				if ( worker != null )
 					worker.setTaskName( "Visualizing lens distortion correction" );
@@ -610,12 +602,21 @@ final public class DistortionCorrectionTask
 			if ( worker != null )
 				worker.setTaskName( "Applying lens distortion correction" );
 
-			appendCoordinateTransform( allPatches, lensModel, Runtime.getRuntime().availableProcessors() );
+			appendCoordinateTransform( allPatches, lensModel );
+
+			if ( worker != null )
+				worker.setTaskName( "Regenerating mipmaps" );
+
+			updateMipMaps( allPatches );
 
 			Utils.log( "Done." );
 		}
 		else
+		{
 			Utils.log( "No lens model found." );
+			if ( p.clearTransform )
+				updateMipMaps( allPatches );
+		}
 	}
 
 	final static public void run( final CorrectDistortionFromSelectionParam p, final List< Patch > patches, final Displayable active, final Layer layer )
@@ -71,7 +71,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
@@ -88,7 +91,7 @@ import ij.io.Opener;
 import ij.plugin.PlugIn;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
-import mpi.fruitfly.general.MultiThreading;
+import ini.trakem2.parallel.ExecutorProvider;
 import mpicbg.ij.SIFT;
 import mpicbg.imagefeatures.Feature;
 import mpicbg.imagefeatures.FloatArray2DSIFT;
@@ -359,17 +362,13 @@ public class Distortion_Correction implements PlugIn{
 			imgTmp.flush();
 
 			final List< Feature >[] siftFeatures = extractSIFTFeaturesThreaded( sp.numberOfImages, sp.source_dir, sp.names );
+			if ( null == siftFeatures ) return;
 
 			final List< PointMatch >[] inliersTmp = new ArrayList[ sp.numberOfImages * ( sp.numberOfImages - 1 ) ];
 			models = new AbstractAffineModel2D[ sp.numberOfImages * ( sp.numberOfImages - 1 ) ];
 
 			IJ.showStatus( "Estimating Correspondences" );
-			for( int i = 0; i < sp.numberOfImages; ++i )
-			{
-				IJ.log( "Estimating correspondences of image " + i );
-				IJ.showProgress( ( i + 1 ), sp.numberOfImages );
-				extractSIFTPointsThreaded( i, siftFeatures, inliersTmp, models );
-			}
+			if ( !matchSIFTFeaturesThreaded( siftFeatures, inliersTmp, models ) ) return;
 
 			int wholeCount = 0;
 			inliers = new ArrayList< List< PointMatch > >();
@@ -744,32 +743,27 @@ public class Distortion_Correction implements PlugIn{
 
 			IJ.showStatus( "Correcting Images" );
 
-			final Thread[] threads = MultiThreading.newThreads();
-			final AtomicInteger ai = new AtomicInteger( sp.applyCorrection ? 0 : sp.firstImageIndex );
-
-			for ( int ithread = 0; ithread < threads.length; ++ithread )
+			final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+			for ( int j = sp.applyCorrection ? 0 : sp.firstImageIndex; j < ( sp.applyCorrection ? sp.names.length : ( sp.firstImageIndex + sp.numberOfImages ) ); ++j )
 			{
-				threads[ ithread ] = new Thread()
+				final int i = j;
+				tasks.add( new Callable< Void >()
 				{
 					@Override
-                    public void run()
+					public Void call()
 					{
-						setPriority( Thread.NORM_PRIORITY );
-
-						for ( int i = ai.getAndIncrement(); i < ( sp.applyCorrection ? sp.names.length : ( sp.firstImageIndex + sp.numberOfImages ) ); i = ai.getAndIncrement() )
-						{
-							IJ.log( "Correcting image " + sp.names[ i ] );
-							final ImagePlus imps = new Opener().openImage( sp.source_dir + sp.names[ i ] );
-							imps.setProcessor( imps.getTitle(), imps.getProcessor().convertToShort( false ) );
-							final ImageProcessor[] transErg = nlt.transform( imps.getProcessor() );
-							imps.setProcessor( imps.getTitle(), transErg[ 0 ] );
-							if ( !sp.applyCorrection ) new File( sp.target_dir + sp.names[ i ] ).deleteOnExit();
-							new FileSaver( imps ).saveAsTiff( sp.target_dir + sp.names[ i ] );
-						}
+						IJ.log( "Correcting image " + sp.names[ i ] );
+						final ImagePlus imps = new Opener().openImage( sp.source_dir + sp.names[ i ] );
+						imps.setProcessor( imps.getTitle(), imps.getProcessor().convertToShort( false ) );
+						final ImageProcessor[] transErg = nlt.transform( imps.getProcessor() );
+						imps.setProcessor( imps.getTitle(), transErg[ 0 ] );
+						if ( !sp.applyCorrection ) new File( sp.target_dir + sp.names[ i ] ).deleteOnExit();
+						new FileSaver( imps ).saveAsTiff( sp.target_dir + sp.names[ i ] );
+						return null;
 					}
-				};
+				} );
 			}
-			MultiThreading.startAndJoin( threads );
+			if ( !invokeAll( tasks, "Correcting images", "images" ) ) return null;
 		}
 		return sp.target_dir;
 	}
@@ -1024,145 +1018,177 @@ public class Distortion_Correction implements PlugIn{
 	}
 
 
+	/**
+	 * Run independent tasks concurrently on the shared
+	 * {@link ExecutorProvider} and report the throughput of the stage.
+	 *
+	 * @return false if a task failed or the calling thread was interrupted
+	 */
+	static public boolean invokeAll( final List< ? extends Callable< Void > > tasks, final String stage, final String unit )
+	{
+		final long t0 = System.currentTimeMillis();
+		final ExecutorService exec = ExecutorProvider.getExecutorService( 1 );
+		final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >();
+		boolean success = true;
+		try
+		{
+			for ( final Callable< Void > task : tasks )
+				futures.add( exec.submit( task ) );
+			for ( int i = 0; i < futures.size(); ++i )
+			{
+				futures.get( i ).get();
+				IJ.showProgress( i + 1, futures.size() );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			IJ.log( stage + " interrupted." );
+			Thread.currentThread().interrupt();
+			success = false;
+		}
+		catch ( final ExecutionException e )
+		{
+			IJ.log( stage + " failed: " + e.getCause() );
+			e.printStackTrace();
+			success = false;
+		}
+		finally
+		{
+			if ( !success )
+				for ( final Future< Void > f : futures )
+					f.cancel( true );
+			exec.shutdown();
+		}
+		final long t = Math.max( 1, System.currentTimeMillis() - t0 );
+		IJ.log( String.format( "%s: %d %s in %.1fs (%.2f %s/s)", stage, tasks.size(), unit, t / 1000.0, tasks.size() * 1000.0 / t, unit ) );
+		return success;
+	}
+
 	static List< Feature >[] extractSIFTFeaturesThreaded(
 			final int numberOfImages, final String directory,
 			final String[] names ){
 		//extract all SIFT Features
 
 		final List< Feature >[] siftFeatures = new ArrayList[numberOfImages];
-		final Thread[] threads = MultiThreading.newThreads();
-		final AtomicInteger ai = new AtomicInteger(0); // start at second slice
 
 		IJ.showStatus("Extracting SIFT Features");
-		for (int ithread = 0; ithread < threads.length; ++ithread) {
-			threads[ithread] = new Thread() {
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for (int j = 0; j < numberOfImages; ++j) {
+			final int i = j;
+			tasks.add( new Callable< Void >() {
 				@Override
-                public void run() {
-					for (int i = ai.getAndIncrement(); i < numberOfImages; i = ai.getAndIncrement())
-					{
-						final ArrayList< Feature > fs = new ArrayList< Feature >();
-						final ImagePlus imps = new Opener().openImage(directory + names[i + sp.firstImageIndex]);
-						imps.setProcessor(imps.getTitle(), imps.getProcessor().convertToFloat());
-
-						final FloatArray2DSIFT sift = new FloatArray2DSIFT( sp.sift.clone() );
-						final SIFT ijSIFT = new SIFT( sift );
+				public Void call() {
+					final ArrayList< Feature > fs = new ArrayList< Feature >();
+					final ImagePlus imps = new Opener().openImage(directory + names[i + sp.firstImageIndex]);
+					imps.setProcessor(imps.getTitle(), imps.getProcessor().convertToFloat());
 
-						ijSIFT.extractFeatures( imps.getProcessor(), fs );
+					final FloatArray2DSIFT sift = new FloatArray2DSIFT( sp.sift.clone() );
+					final SIFT ijSIFT = new SIFT( sift );
 
-						Collections.sort( fs );
-						IJ.log("Extracting SIFT of image: "+i);
+					ijSIFT.extractFeatures( imps.getProcessor(), fs );
 
-						siftFeatures[i]=fs;
+					Collections.sort( fs );
+					IJ.log("Extracting SIFT of image: "+i);
 
-					}
+					siftFeatures[i]=fs;
+					return null;
 				}
-			};
+			} );
 		}
-		MultiThreading.startAndJoin(threads);
+		if ( !invokeAll( tasks, "Extracting SIFT features", "images" ) ) return null;
 
 		return  siftFeatures;
 	}
 
-	static protected void extractSIFTPointsThreaded(
+	/**
+	 * Match the features of image <code>index</code> to those of image
+	 * <code>i</code> and store inliers and model at the slot of the pair.
+	 */
+	static protected void matchSIFTFeatures(
 			final int index,
+			final int i,
 			final List< Feature >[] siftFeatures,
 			final List< PointMatch >[] inliers,
 			final AbstractAffineModel2D< ? >[] models )
 	{
+		final List< PointMatch > candidates = FloatArray2DSIFT.createMatches( siftFeatures[ index ], siftFeatures[ i ], 1.5f, null, Float.MAX_VALUE, 0.5f );
 
-		// save all matching candidates
-		final List< PointMatch >[] candidates = new List[ siftFeatures.length - 1 ];
-
-		final Thread[] threads = MultiThreading.newThreads();
-		final AtomicInteger ai = new AtomicInteger( 0 ); // start at second
-		// slice
-
-		for ( int ithread = 0; ithread < threads.length; ++ithread )
+		// get rid of the outliers and save the rigid transformations to match
+		// the inliers
+		final List< PointMatch > tmpInliers = new ArrayList< PointMatch >();
+		// RigidModel2D m =
+		// RigidModel2D.estimateBestModel(candidates.get(i),
+		// tmpInliers, sp.min_epsilon, sp.max_epsilon,
+		// sp.min_inlier_ratio);
+
+		final AbstractAffineModel2D< ? > m;
+		switch ( sp.expectedModelIndex )
 		{
-			threads[ ithread ] = new Thread()
-			{
-				@Override
-                public void run()
-				{
-					setPriority( Thread.NORM_PRIORITY );
+		case 0:
+			m = new TranslationModel2D();
+			break;
+		case 1:
+			m = new RigidModel2D();
+			break;
+		case 2:
+			m = new SimilarityModel2D();
+			break;
+		case 3:
+			m = new AffineModel2D();
+			break;
+		default:
+			return;
+		}
 
-					for ( int j = ai.getAndIncrement(); j < candidates.length; j = ai.getAndIncrement() )
-					{
-						final int i = ( j < index ? j : j + 1 );
-						candidates[ j ] = FloatArray2DSIFT.createMatches( siftFeatures[ index ], siftFeatures[ i ], 1.5f, null, Float.MAX_VALUE, 0.5f );
-					}
-				}
-			};
+		boolean modelFound = false;
+		try
+		{
+			modelFound = m.filterRansac( candidates, tmpInliers, 1000, sp.maxEpsilon, sp.minInlierRatio, 10 );
+		}
+		catch ( final NotEnoughDataPointsException e )
+		{
+			modelFound = false;
 		}
 
-		MultiThreading.startAndJoin( threads );
+		if ( modelFound )
+			IJ.log( "Model found for images " + index + " and " + i + ":\n  " + candidates.size() + " candidates\n  " + tmpInliers.size() + " inliers\n  " + String.format( "%.2f", m.getCost() ) + "px average displacement" );
+		else
+			IJ.log( "No Model found for images " + index + " and " + i + "." );
 
-		// get rid of the outliers and save the rigid transformations to match
-		// the inliers
+		final int j = ( i < index ? i : i - 1 );
+		inliers[ index * ( sp.numberOfImages - 1 ) + j ] = tmpInliers;
+		models[ index * ( sp.numberOfImages - 1 ) + j ] = m;
+	}
 
-		final AtomicInteger ai2 = new AtomicInteger( 0 );
-		for ( int ithread = 0; ithread < threads.length; ++ithread )
+	/**
+	 * Match all ordered pairs of images concurrently.
+	 *
+	 * @return false if matching failed or was interrupted
+	 */
+	static protected boolean matchSIFTFeaturesThreaded(
+			final List< Feature >[] siftFeatures,
+			final List< PointMatch >[] inliers,
+			final AbstractAffineModel2D< ? >[] models )
+	{
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		for ( int index = 0; index < siftFeatures.length; ++index )
 		{
-			threads[ ithread ] = new Thread()
+			for ( int i = 0; i < siftFeatures.length; ++i )
 			{
-				@Override
-                public void run()
+				if ( i == index ) continue;
+				final int a = index, b = i;
+				tasks.add( new Callable< Void >()
 				{
-					setPriority( Thread.NORM_PRIORITY );
-					for ( int i = ai2.getAndIncrement(); i < candidates.length; i = ai2.getAndIncrement() )
+					@Override
+					public Void call()
 					{
-
-						final List< PointMatch > tmpInliers = new ArrayList< PointMatch >();
-						// RigidModel2D m =
-						// RigidModel2D.estimateBestModel(candidates.get(i),
-						// tmpInliers, sp.min_epsilon, sp.max_epsilon,
-						// sp.min_inlier_ratio);
-
-						final AbstractAffineModel2D< ? > m;
-						switch ( sp.expectedModelIndex )
-						{
-						case 0:
-							m = new TranslationModel2D();
-							break;
-						case 1:
-							m = new RigidModel2D();
-							break;
-						case 2:
-							m = new SimilarityModel2D();
-							break;
-						case 3:
-							m = new AffineModel2D();
-							break;
-						default:
-							return;
-						}
-
-						boolean modelFound = false;
-						try
-						{
-							modelFound = m.filterRansac( candidates[ i ], tmpInliers, 1000, sp.maxEpsilon, sp.minInlierRatio, 10 );
-						}
-						catch ( final NotEnoughDataPointsException e )
-						{
-							modelFound = false;
-						}
-
-						if ( modelFound )
-							IJ.log( "Model found:\n  " + candidates[ i ].size() + " candidates\n  " + tmpInliers.size() + " inliers\n  " + String.format( "%.2f", m.getCost() ) + "px average displacement" );
-						else
-							IJ.log( "No Model found." );
-
-						inliers[ index * ( sp.numberOfImages - 1 ) + i ] = tmpInliers;
-						models[ index * ( sp.numberOfImages - 1 ) + i ] = m;
-						// System.out.println("**** MODEL ADDED: " +
-						// (index*(sp.numberOfImages-1)+i));
+						matchSIFTFeatures( a, b, siftFeatures, inliers, models );
+						return null;
 					}
-
-				}
-			};
+				} );
+			}
 		}
-		MultiThreading.startAndJoin( threads );
-
+		return invokeAll( tasks, "Matching SIFT features", "image pairs" );
 	}
 
 }
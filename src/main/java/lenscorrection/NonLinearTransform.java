@@ -71,6 +71,10 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import mpicbg.trakem2.transform.NonLinearCoordinateTransform;
 import Jama.Matrix;
@@ -78,7 +82,99 @@ import Jama.Matrix;
 
 public class NonLinearTransform extends NonLinearCoordinateTransform {
 
-	private double[][][] transField = null;
+	/**
+	 * Transformed coordinates of all pixels, packed as x,y float pairs, row
+	 * by row.  Immutable once created, so that all copies of a model can
+	 * share it.
+	 */
+	static public class TransformField
+	{
+		final public int width, height;
+		final public float[] data;
+
+		TransformField( final NonLinearTransform t )
+		{
+			this.width = t.width;
+			this.height = t.height;
+			data = new float[ 2 * width * height ];
+			final double[] xy = new double[ 2 ];
+			for ( int y = 0, i = 0; y < height; ++y )
+			{
+				for ( int x = 0; x < width; ++x )
+				{
+					xy[ 0 ] = x;
+					xy[ 1 ] = y;
+					t.applyInPlace( xy );
+					data[ i++ ] = ( float )xy[ 0 ];
+					data[ i++ ] = ( float )xy[ 1 ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * The parameters of a {@link TransformField}, copied, with their hash
+	 * computed once, to find fields of equal models without serializing them.
+	 */
+	static private final class FieldKey
+	{
+		final int dimension, width, height;
+		final double[][] beta;
+		final double[] normMean, normVar;
+		final int hash;
+
+		FieldKey( final NonLinearTransform t )
+		{
+			this.dimension = t.dimension;
+			this.width = t.width;
+			this.height = t.height;
+			this.beta = new double[ t.beta.length ][];
+			for ( int i = 0; i < beta.length; ++i )
+				beta[ i ] = t.beta[ i ].clone();
+			this.normMean = t.normMean.clone();
+			this.normVar = t.normVar.clone();
+			int h = Arrays.deepHashCode( beta );
+			h = 31 * h + Arrays.hashCode( normMean );
+			h = 31 * h + Arrays.hashCode( normVar );
+			h = 31 * h + ( dimension * 31 + width ) * 31 + height;
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof FieldKey ) )
+				return false;
+			final FieldKey k = ( FieldKey )o;
+			return hash == k.hash &&
+					dimension == k.dimension && width == k.width && height == k.height &&
+					Arrays.equals( normMean, k.normMean ) && Arrays.equals( normVar, k.normVar ) &&
+					Arrays.deepEquals( beta, k.beta );
+		}
+	}
+
+	/**
+	 * Fields shared by all instances with the same parameters, e.g. all tiles
+	 * of a camera.  Instances hold their field; the cache only softly, so that
+	 * fields of models no longer in use can be reclaimed.
+	 */
+	static private final Map< FieldKey, SoftReference< TransformField > > fieldCache = new LinkedHashMap< FieldKey, SoftReference< TransformField > >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< FieldKey, SoftReference< TransformField > > eldest )
+		{
+			return size() > 4;
+		}
+	};
+
+	private TransformField transField = null;
 
 	public int getDimension(){ return dimension; }
 	/** Deletes all dimension dependent properties */
@@ -248,35 +344,76 @@ public class NonLinearTransform extends NonLinearCoordinateTransform {
 
 
 	void precalculateTransfom(){
-		transField = new double[width][height][2];
-		//double minX = width, minY = height, maxX = 0, maxY = 0;
+		transField = getTransformField();
+		precalculated = true;
+	}
 
-		for (int x=0; x<width; x++){
-			for (int y=0; y<height; y++){
-				final double[] position = {x,y};
-				final double[] featureVector = kernelExpand(position);
-				final double[] newPosition = multiply(beta, featureVector);
+	/**
+	 * Get the transformed coordinates of all pixels.  Fields are cached by
+	 * parameters so that copies of the same model, as used by all tiles of a
+	 * camera, compute it only once.
+	 */
+	public TransformField getTransformField()
+	{
+		final FieldKey key = new FieldKey( this );
+		synchronized ( fieldCache )
+		{
+			final SoftReference< TransformField > ref = fieldCache.get( key );
+			final TransformField field = null == ref ? null : ref.get();
+			if ( field != null )
+				return field;
+		}
+		final TransformField field = new TransformField( this );
+		synchronized ( fieldCache )
+		{
+			fieldCache.put( key, new SoftReference< TransformField >( field ) );
+		}
+		return field;
+	}
 
-				if ((newPosition[0] < 0) || (newPosition[0] >= width) ||
-						(newPosition[1] < 0) || (newPosition[1] >= height))
+	/**
+	 * Same as {@link #multiply}({@link #beta}, {@link #kernelExpand}(location))
+	 * but without creating the feature vector, and computing the powers of
+	 * x and y by one multiplication per term instead of calling Math.pow.
+	 * The term x<sup>a</sup>y<sup>b</sup> of degree i = a + b is at index
+	 * (i - 1)(i + 2)/2 + b of the feature vector.
+	 */
+	final protected void expandedApplyInPlace( final double[] location )
+	{
+		final double x = location[ 0 ];
+		final double y = location[ 1 ];
+		double rx = 0, ry = 0;
+		double xa = 1;
+		for ( int a = 0; a <= dimension; ++a )
+		{
+			double term = xa;
+			for ( int b = 0; a + b <= dimension; ++b )
+			{
+				final int i = a + b;
+				if ( i > 0 )
 				{
-					transField[x][y][0] = -1;
-					transField[x][y][1] = -1;
-					continue;
+					final int counter = ( i - 1 ) * ( i + 2 ) / 2 + b;
+					final double val = ( term - normMean[ counter ] ) / normVar[ counter ];
+					rx += val * beta[ counter ][ 0 ];
+					ry += val * beta[ counter ][ 1 ];
 				}
-
-				transField[x][y][0] = newPosition[0];
-				transField[x][y][1] = newPosition[1];
-
-				//minX = Math.min(minX, x);
-				//minY = Math.min(minY, y);
-				//maxX = Math.max(maxX, x);
-				//maxY = Math.max(maxY, y);
-
+				term *= y;
 			}
+			xa *= x;
 		}
+		rx += 100 * beta[ length - 1 ][ 0 ];
+		ry += 100 * beta[ length - 1 ][ 1 ];
+		location[ 0 ] = rx;
+		location[ 1 ] = ry;
+	}
 
-		precalculated = true;
+	@Override
+	public void applyInPlace( final double[] location )
+	{
+		if ( length > 0 && beta != null && beta.length == length )
+			expandedApplyInPlace( location );
+		else
+			super.applyInPlace( location );
 	}
 
 	public double[][] getCoefficients(){
@@ -294,6 +431,8 @@ public class NonLinearTransform extends NonLinearCoordinateTransform {
 
 	public void setBeta(final double[][] b){
 		beta = b;
+		transField = null;
+		precalculated = false;
 		//FIXME: test if normMean and normVar are still valid for this beta
 	}
 
@@ -438,12 +577,14 @@ public class NonLinearTransform extends NonLinearCoordinateTransform {
 		if (ip instanceof ColorProcessor) ip.max(0);
 		final ImageProcessor maskIp = new ByteProcessor(ip.getWidth(),ip.getHeight());
 
-		for (int x=0; x < width; x++){
-			for (int y=0; y < height; y++){
-				if (transField[x][y][0] == -1){
+		final float[] field = transField.data;
+		for (int y=0; y < height; y++){
+			for (int x=0, i=2*y*width; x < width; x++, i+=2){
+				final float tx = field[i], ty = field[i+1];
+				if ((tx < 0) || (tx >= width) || (ty < 0) || (ty >= height)){
 					continue;
 				}
-				newIp.set(x, y, (int) ip.getInterpolatedPixel((int)transField[x][y][0],(int)transField[x][y][1]));
+				newIp.set(x, y, (int) ip.getInterpolatedPixel((int)tx,(int)ty));
 				maskIp.set(x,y,255);
 			}
 		}
@@ -724,13 +865,8 @@ public class NonLinearTransform extends NonLinearCoordinateTransform {
 
 		this.normMean = nlt.normMean.clone();
 		this.normVar = nlt.normVar.clone();
-		this.transField = new double[ nlt.transField.length ][][];
 
-		for ( int a = 0; a < nlt.transField.length; ++a )
-		{
-			this.transField[ a ] = new double[ nlt.transField[ a ].length ][];
-			for ( int b = 0; b < nlt.transField[ a ].length; ++b )
-				this.transField[ a ][ b ] = nlt.transField[ a ][ b ].clone();
-		}
+		/* immutable, can be shared */
+		this.transField = nlt.transField;
 	}
 }
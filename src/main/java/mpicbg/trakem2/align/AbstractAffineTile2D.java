@@ -28,16 +28,10 @@ import java.awt.geom.PathIterator;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import ij.process.ByteProcessor;
-import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import mpicbg.models.Affine2D;
@@ -275,142 +269,19 @@ abstract public class AbstractAffineTile2D< A extends Model< A > & Affine2D< A >
 
 	/**
 	 * Search a {@link List} of {@link AbstractAffineTile2D Tiles} for
-	 * overlapping pairs.  Adds the pairs into tilePairs.
+	 * overlapping pairs within the same {@link Layer}.  Adds the pairs into
+	 * tilePairs.
 	 *
 	 * @param tiles
 	 * @param tilePairs
+	 * @see TilePairing
 	 */
 	final static public <AAT extends AbstractAffineTile2D< ? >> void pairOverlappingTiles(
 			final List< AAT > tiles,
 			final List< AbstractAffineTile2D< ? >[] > tilePairs,
 			final boolean sloppyOverlapTest )
 	{
-		final HashSet< Patch > visited = new HashSet< Patch >();
-
-		final ArrayList< AbstractAffineTile2D< ? >[] > tilePairCandidates = new ArrayList< AbstractAffineTile2D< ? >[] >();
-
-		/* LUT for tiles */
-		final Hashtable< Patch, AAT > lut = new Hashtable< Patch, AAT >();
-		for ( final AAT tile : tiles )
-			lut.put( tile.patch, tile );
-
-		for ( int a = 0; a < tiles.size(); ++a )
-		{
-			final AbstractAffineTile2D< ? > ta = tiles.get( a );
-			final Patch pa = ta.patch;
-			visited.add( pa );
-			final Layer la = pa.getLayer();
-			for ( final Displayable d : la.getDisplayables( Patch.class, pa.getBoundingBox() ) )
-			{
-				final Patch pb = ( Patch )d;
-				if ( visited.contains( pb ) )
-					continue;
-
-				final AAT tb = lut.get( pb );
-				if ( tb == null )
-					continue;
-
-				tilePairCandidates.add( new AbstractAffineTile2D< ? >[]{ ta, tb } );
-			}
-		}
-
-		if ( sloppyOverlapTest )
-			tilePairs.addAll( tilePairCandidates );
-		else
-		{
-			// TODO Fix this and use what the user wants to provide
-			final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
-			final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
-
-			for ( final AbstractAffineTile2D< ? >[] tatb : tilePairCandidates )
-			{
-				futures.add( exec.submit(
-						new Runnable()
-						{
-							@Override
-							public void run()
-							{
-								if ( tatb[ 0 ].intersects( tatb[ 1 ] ) )
-									synchronized ( tilePairs )
-									{
-										tilePairs.add( tatb );
-									}
-							}
-						} ) );
-			}
-
-			try
-			{
-				for ( final Future< ? > f : futures )
-					f.get();
-			}
-			catch ( final InterruptedException e )
-			{
-				e.printStackTrace();
-			}
-			catch ( final ExecutionException e )
-			{
-				e.printStackTrace();
-			}
-			finally
-			{
-				exec.shutdown();
-			}
-		}
-
-
-//		// 1. Precompute the Area of each tile's Patch
-//		final HashMap< Patch, Pair< AAT, Area > > m = new HashMap< Patch, Pair< AAT, Area > >();
-//		// A lazy collection of pairs, computed in parallel ahead of consumption
-//		final Iterable< Pair< AAT, Area > > ts =
-//				new ParallelMapping< AAT, Pair< AAT, Area > >(
-//						tiles,
-//						new TaskFactory< AAT, Pair< AAT, Area > >() {
-//							@Override
-//							public Pair< AAT, Area > process( final AAT tile ) {
-//								return new Pair< AAT, Area >( tile, tile.patch.getArea() );
-//							}
-//						}
-//				);
-//		for ( final Pair< AAT, Area > t : ts) {
-//			m.put( t.a.patch, t );
-//		}
-//
-//		// 2. Obtain the list of tile pairs, at one list per tile
-//		final Iterable< List<AbstractAffineTile2D< ? >[]> > pairsList =
-//				new ParallelMapping< AAT, List<AbstractAffineTile2D< ? >[]> >(
-//						tiles,
-//						new TaskFactory< AAT, List<AbstractAffineTile2D< ? >[]> >() {
-//							@Override
-//							public List<AbstractAffineTile2D< ? >[]> process( final AAT ta ) {
-//								final Area a;
-//								synchronized (m) {
-//									a = m.get( ta.patch ).b;
-//								}
-//								final ArrayList<AbstractAffineTile2D< ? >[]> seq = new ArrayList<AbstractAffineTile2D< ? >[]>();
-//								for ( final Patch p : ta.patch.getLayer().getIntersecting( ta.patch, Patch.class ) ) {
-//									if ( p == ta.patch )
-//										continue;
-//									final Pair< AAT, Area > pair;
-//									synchronized (m) {
-//										pair =  m.get(p);
-//									}
-//									// Check that the Patch is among those to consider in the alignment
-//									if ( null != pair ) {
-//										// Check that the Patch visible pixels overlap -- may not if it has an alpha mask or coordinate transform
-//										if ( M.intersects( a, pair.b ) ) {
-//											seq.add( new AbstractAffineTile2D< ? >[]{ ta, pair.a });
-//										}
-//									}
-//								}
-//								return seq;
-//							}
-//						}
-//				);
-//
-//		for (final List<AbstractAffineTile2D<?>[]> list: pairsList) {
-//			tilePairs.addAll(list);
-//		}
+		TilePairing.pairOverlappingTiles( tiles, tilePairs, sloppyOverlapTest );
 	}
 
 	/**
@@ -466,16 +337,7 @@ abstract public class AbstractAffineTile2D< A extends Model< A > & Affine2D< A >
 			final List< AbstractAffineTile2D< ? >[] > tilePairs,
 			final boolean sloppyOverlapTest )
 	{
-		for ( int a = 0; a < tilesA.size(); ++a )
-		{
-			for ( int b = 0; b < tilesB.size(); ++b )
-			{
-				final AbstractAffineTile2D< ? > ta = tilesA.get( a );
-				final AbstractAffineTile2D< ? > tb = tilesB.get( b );
-				if ( ta.intersects( tb, sloppyOverlapTest ) )
-					tilePairs.add( new AbstractAffineTile2D< ? >[]{ ta, tb } );
-			}
-		}
+		TilePairing.pairOverlappingTiles( tilesA, tilesB, tilePairs, sloppyOverlapTest );
 	}
 
 	/**
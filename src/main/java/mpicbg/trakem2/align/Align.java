@@ -30,9 +30,11 @@ import java.awt.geom.AffineTransform;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
@@ -43,6 +45,7 @@ import ini.trakem2.display.Displayable;
 import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
 import ini.trakem2.display.Selection;
+import ini.trakem2.parallel.ExecutorProvider;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
 import ini.trakem2.utils.Filter;
@@ -88,6 +91,13 @@ public class Align
 		 */
 		public float rod = 0.92f;
 
+		/**
+		 * Feature matcher: exhaustive search or approximate search in a
+		 * {@link FeatureIndex} built once per tile
+		 */
+		final static public String[] matcherStrings = new String[]{ "exact", "approximate (kd-forest)" };
+		public int matcherIndex = 0;
+
 		/**
 		 * Maximal allowed alignment error in px
 		 */
@@ -140,6 +150,7 @@ public class Align
 		{
 			SIFT.addFields( gd, sift );
 			gd.addNumericField( "closest/next_closest_ratio :", rod, 2 );
+			gd.addChoice( "feature_matcher :", matcherStrings, matcherStrings[ matcherIndex ] );
 		}
 
 		public void addGeometricConsensusFilterFields( final GenericDialog gd )
@@ -184,6 +195,7 @@ public class Align
 		{
 			SIFT.readFields( gd, sift );
 			rod = ( float )gd.getNextNumber();
+			matcherIndex = gd.getNextChoiceIndex();
 
 			return !gd.invalidNumber();
 		}
@@ -288,6 +300,7 @@ public class Align
 			p.sift.fdBins = this.sift.fdBins;
 
 			p.rod = rod;
+			p.matcherIndex = matcherIndex;
 			p.maxEpsilon = maxEpsilon;
 			p.minInlierRatio = minInlierRatio;
 			p.minNumInliers = minNumInliers;
@@ -321,6 +334,7 @@ public class Align
 			return
 				sift.equals( p.sift ) &&
 				( rod == p.rod ) &&
+				( matcherIndex == p.matcherIndex ) &&
 				( maxEpsilon == p.maxEpsilon ) &&
 				( minInlierRatio == p.minInlierRatio ) &&
 				( minNumInliers == p.minNumInliers ) &&
@@ -354,6 +368,20 @@ public class Align
 		public boolean filterOutliers = false;
 		public float meanFactor = 3.0f;
 
+		/**
+		 * Optimizer: iterative relaxation, a sparse linear least squares
+		 * solution used as initialization for the iterative relaxation, or
+		 * the sparse linear least squares solution only.
+		 */
+		final static public String[] optimizerStrings = new String[]{ "iterative", "sparse least squares + iterative", "sparse least squares" };
+		public int optimizerIndex = 0;
+
+		/**
+		 * Maximal number of conjugate gradient iterations for the sparse
+		 * linear least squares solution.
+		 */
+		public int maxIterationsLeastSquares = 1000;
+
 		@Override
 		public void addAlignmentFields( final GenericDialog gd )
 		{
@@ -365,6 +393,8 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addChoice( "optimizer :", optimizerStrings, optimizerStrings[ optimizerIndex ] );
+			gd.addNumericField( "maximal_least_squares_iterations :", maxIterationsLeastSquares, 0 );
 		}
 
 		@Override
@@ -376,6 +406,8 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			optimizerIndex = gd.getNextChoiceIndex();
+			maxIterationsLeastSquares = ( int )gd.getNextNumber();
 
 			return !gd.invalidNumber();
 		}
@@ -389,6 +421,8 @@ public class Align
 			gd.addNumericField( "maximal_plateauwidth :", maxPlateauwidth, 0 );
 			gd.addCheckbox( "filter outliers", filterOutliers );
 			gd.addNumericField( "mean_factor :", meanFactor, 2 );
+			gd.addChoice( "optimizer :", optimizerStrings, optimizerStrings[ optimizerIndex ] );
+			gd.addNumericField( "maximal_least_squares_iterations :", maxIterationsLeastSquares, 0 );
 		}
 
 		@Override
@@ -400,6 +434,8 @@ public class Align
 			maxPlateauwidth = ( int )gd.getNextNumber();
 			filterOutliers = gd.getNextBoolean();
 			meanFactor = ( float )gd.getNextNumber();
+			optimizerIndex = gd.getNextChoiceIndex();
+			maxIterationsLeastSquares = ( int )gd.getNextNumber();
 
 			return !gd.invalidNumber();
 		}
@@ -419,6 +455,7 @@ public class Align
 			p.sift.fdBins = this.sift.fdBins;
 
 			p.rod = rod;
+			p.matcherIndex = matcherIndex;
 			p.maxEpsilon = maxEpsilon;
 			p.minInlierRatio = minInlierRatio;
 			p.minNumInliers = minNumInliers;
@@ -434,6 +471,8 @@ public class Align
 			p.maxPlateauwidth = maxPlateauwidth;
 			p.filterOutliers = filterOutliers;
 			p.meanFactor = meanFactor;
+			p.optimizerIndex = optimizerIndex;
+			p.maxIterationsLeastSquares = maxIterationsLeastSquares;
 
 			return p;
 		}
@@ -445,7 +484,9 @@ public class Align
 				( maxIterations == p.maxIterations ) &&
 				( maxPlateauwidth == p.maxPlateauwidth ) &&
 				( filterOutliers == p.filterOutliers ) &&
-				( meanFactor == p.meanFactor );
+				( meanFactor == p.meanFactor ) &&
+				( optimizerIndex == p.optimizerIndex ) &&
+				( maxIterationsLeastSquares == p.maxIterationsLeastSquares );
 		}
 	}
 
@@ -551,6 +592,60 @@ public class Align
 	}
 
 
+	/**
+	 * {@link FeatureIndex FeatureIndices} of all tiles that are the second
+	 * tile of a pair, built on first use and released after their last pair
+	 * was matched.
+	 */
+	final static protected class FeatureIndexCache
+	{
+		final protected HashMap< AbstractAffineTile2D< ? >, Integer > remaining = new HashMap< AbstractAffineTile2D< ? >, Integer >();
+		final protected HashMap< AbstractAffineTile2D< ? >, FeatureIndex > indices = new HashMap< AbstractAffineTile2D< ? >, FeatureIndex >();
+		final protected HashMap< AbstractAffineTile2D< ? >, Object > locks = new HashMap< AbstractAffineTile2D< ? >, Object >();
+
+		public FeatureIndexCache( final List< AbstractAffineTile2D< ? >[] > tilePairs )
+		{
+			for ( final AbstractAffineTile2D< ? >[] tilePair : tilePairs )
+			{
+				final Integer n = remaining.get( tilePair[ 1 ] );
+				remaining.put( tilePair[ 1 ], n == null ? 1 : n + 1 );
+				locks.put( tilePair[ 1 ], new Object() );
+			}
+		}
+
+		public FeatureIndex acquire( final Param p, final AbstractAffineTile2D< ? > tile )
+		{
+			/* build each index only once, but different indices concurrently */
+			synchronized ( locks.get( tile ) )
+			{
+				FeatureIndex index;
+				synchronized ( this )
+				{
+					index = indices.get( tile );
+				}
+				if ( index == null )
+				{
+					final long s = System.currentTimeMillis();
+					index = new FeatureIndex( fetchFeatures( p, tile ) );
+					Utils.log( "Feature index of " + index.size() + " features built for tile \"" + tile.getPatch().getTitle() + "\" (took " + ( System.currentTimeMillis() - s ) + " ms)." );
+					synchronized ( this )
+					{
+						indices.put( tile, index );
+					}
+				}
+				return index;
+			}
+		}
+
+		synchronized public void release( final AbstractAffineTile2D< ? > tile )
+		{
+			final int n = remaining.get( tile ) - 1;
+			remaining.put( tile, n );
+			if ( n <= 0 )
+				indices.remove( tile );
+		}
+	}
+
 	final static protected class MatchFeaturesAndFindModelThread extends Thread
 	{
 		final protected Param p;
@@ -561,6 +656,7 @@ public class Align
 		final protected AtomicInteger ap;
 		final protected int steps;
 		final protected boolean multipleHypotheses;
+		final protected FeatureIndexCache indexCache;
 
 		public MatchFeaturesAndFindModelThread(
 				final Param p,
@@ -569,7 +665,8 @@ public class Align
 				final AtomicInteger ai,
 				final AtomicInteger ap,
 				final int steps,
-				final boolean multipleHypotheses )
+				final boolean multipleHypotheses,
+				final FeatureIndexCache indexCache )
 		{
 			this.p = p;
 			this.tiles = tiles;
@@ -578,6 +675,19 @@ public class Align
 			this.ap = ap;
 			this.steps = steps;
 			this.multipleHypotheses = multipleHypotheses;
+			this.indexCache = indexCache;
+		}
+
+		public MatchFeaturesAndFindModelThread(
+				final Param p,
+				final List< AbstractAffineTile2D< ? > > tiles,
+				final List< AbstractAffineTile2D< ? >[] > tilePairs,
+				final AtomicInteger ai,
+				final AtomicInteger ap,
+				final int steps,
+				final boolean multipleHypotheses )
+		{
+			this( p, tiles, tilePairs, ai, ap, steps, multipleHypotheses, null );
 		}
 
 		public MatchFeaturesAndFindModelThread(
@@ -610,11 +720,27 @@ public class Align
 
 					final long s = System.currentTimeMillis();
 
-					FeatureTransform.matchFeatures(
-						fetchFeatures( p, tilePair[ 0 ] ),
-						fetchFeatures( p, tilePair[ 1 ] ),
-						candidates,
-						p.rod );
+					if ( p.matcherIndex == 1 && indexCache != null )
+					{
+						/* release even if matching fails, so that the index does not outlive its pairs */
+						try
+						{
+							indexCache.acquire( p, tilePair[ 1 ] ).matchFeatures(
+								fetchFeatures( p, tilePair[ 0 ] ),
+								candidates,
+								p.rod );
+						}
+						finally
+						{
+							indexCache.release( tilePair[ 1 ] );
+						}
+					}
+					else
+						FeatureTransform.matchFeatures(
+							fetchFeatures( p, tilePair[ 0 ] ),
+							fetchFeatures( p, tilePair[ 1 ] ),
+							candidates,
+							p.rod );
 
 					/* find the model */
 					final AbstractModel< ? > model;
@@ -1088,6 +1214,23 @@ public class Align
 
 		try
 		{
+			if ( p.optimizerIndex > 0 )
+			{
+				final ExecutorService service = ExecutorProvider.getExecutorService( 1 );
+				try
+				{
+					tc.solveLeastSquares( p.maxIterationsLeastSquares, 1e-10, service );
+				}
+				finally
+				{
+					service.shutdown();
+				}
+				if ( p.optimizerIndex == 2 )
+				{
+					tc.reportResiduals( tiles );
+					return;
+				}
+			}
 			if ( p.filterOutliers )
 				tc.optimizeAndFilter( p.maxEpsilon, p.maxIterations, p.maxPlateauwidth, p.meanFactor );
 			else
@@ -1172,9 +1315,10 @@ public class Align
 
 		/** Establish correspondences */
 		ai.set( 0 );
+		final FeatureIndexCache indexCache = p.matcherIndex == 1 ? new FeatureIndexCache( tilePairs ) : null;
 		for ( int i = 0; i < numThreads; ++i )
 		{
-			final MatchFeaturesAndFindModelThread thread = new MatchFeaturesAndFindModelThread( p.clone(), tiles, tilePairs, ai, ap, steps, multipleHypotheses );
+			final MatchFeaturesAndFindModelThread thread = new MatchFeaturesAndFindModelThread( p.clone(), tiles, tilePairs, ai, ap, steps, multipleHypotheses, indexCache );
 			matchFeaturesAndFindModelThreads.add( thread );
 			thread.start();
 		}
@@ -0,0 +1,612 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ini.trakem2.utils.Utils;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.SpringMesh;
+
+/**
+ * Optimizes a chain of connected {@link SpringMesh SpringMeshes} with all
+ * meshes being updated concurrently.
+ *
+ * The spring system is copied into flat arrays once: the intra-mesh springs
+ * are taken from the triangles of each mesh, the inter-mesh springs have to
+ * be registered with {@link #addSpring(int, Point, int, Point, double)} as
+ * they are created.  Every iteration then consists of two synchronized
+ * (Jacobi) sweeps over all meshes:
+ *
+ * <ol>
+ * <li>forces and speeds of all active vertices are calculated from the
+ * current vertex and passive vertex positions, and the active vertices are
+ * moved;</li>
+ * <li>the triangles of each mesh are re-fit and the passive vertices owned
+ * by that mesh are re-positioned.</li>
+ * </ol>
+ *
+ * Within a sweep every mesh writes only its own vertices, and it reads only
+ * state that was written in the other sweep, so the result does not depend on
+ * the number of threads or on the order in which meshes are processed.  The
+ * stopping criterion is that of {@link SpringMesh#optimizeMeshes}: the mean
+ * spring force is below <code>maxError</code> and has not changed over
+ * <code>maxPlateauwidth</code> iterations, or <code>maxIterations</code> has
+ * been reached.
+ */
+public class ConcurrentSpringMeshOptimizer
+{
+	final protected List< SpringMesh > meshes;
+	final protected double stiffness;
+	final protected double maxStretch;
+	final protected double damp;
+
+	/* registered inter-mesh springs, flattened in {@link #init()} */
+	final protected ArrayList< ExternalSpring > externalSprings = new ArrayList< ExternalSpring >();
+
+	protected MeshState[] states = null;
+
+	final static protected class ExternalSpring
+	{
+		final int activeMesh;
+		final Point active;
+		final int passiveMesh;
+		final Point passive;
+		final double weight;
+
+		ExternalSpring(
+				final int activeMesh,
+				final Point active,
+				final int passiveMesh,
+				final Point passive,
+				final double weight )
+		{
+			this.activeMesh = activeMesh;
+			this.active = active;
+			this.passiveMesh = passiveMesh;
+			this.passive = passive;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Flat representation of a single {@link SpringMesh}.
+	 */
+	final protected class MeshState
+	{
+		final SpringMesh mesh;
+
+		/* active vertices, their world coordinates are modified in place */
+		Point[] vertices;
+		double[] vx, vy;
+
+		/* compressed adjacency of intra-mesh springs */
+		int[] springOffsets;
+		int[] springTargets;
+		double[] springLengths;
+
+		/* inter-mesh springs of active vertices, compressed by vertex */
+		int[] externalOffsets;
+		int[] externalMesh;
+		int[] externalIndex;
+		double[] externalWeights;
+
+		/* passive vertices owned by this mesh */
+		Point[] passives;
+		AffineModel2D[] passiveTriangles;
+		double[] px, py;
+
+		/* triangles and their vertices */
+		AffineModel2D[] triangles;
+		ArrayList< ArrayList< PointMatch > > trianglePointMatches;
+
+		double force;
+		double maxForce;
+		double speed;
+
+		MeshState( final SpringMesh mesh )
+		{
+			this.mesh = mesh;
+		}
+
+		/**
+		 * Calculate forces and speeds of all active vertices and move them.
+		 */
+		void updateVertices( final double dt )
+		{
+			force = 0;
+			maxForce = 0;
+			speed = 0;
+
+			final int n = vertices.length;
+			final double[] fx = new double[ n ];
+			final double[] fy = new double[ n ];
+
+			for ( int i = 0; i < n; ++i )
+			{
+				final double[] w = vertices[ i ].getW();
+				final double x = w[ 0 ];
+				final double y = w[ 1 ];
+				double sx = 0, sy = 0;
+
+				for ( int k = springOffsets[ i ]; k < springOffsets[ i + 1 ]; ++k )
+				{
+					final double[] wj = vertices[ springTargets[ k ] ].getW();
+					final double dx = wj[ 0 ] - x;
+					final double dy = wj[ 1 ] - y;
+					final double l = Math.sqrt( dx * dx + dy * dy );
+					if ( l > 0 )
+					{
+						double s = l - springLengths[ k ];
+						if ( s > maxStretch ) s = maxStretch;
+						else if ( s < -maxStretch ) s = -maxStretch;
+						final double f = stiffness * s / l;
+						sx += f * dx;
+						sy += f * dy;
+					}
+				}
+
+				for ( int k = externalOffsets[ i ]; k < externalOffsets[ i + 1 ]; ++k )
+				{
+					final MeshState other = states[ externalMesh[ k ] ];
+					final int j = externalIndex[ k ];
+					double dx = other.px[ j ] - x;
+					double dy = other.py[ j ] - y;
+					final double l = Math.sqrt( dx * dx + dy * dy );
+					if ( l > maxStretch )
+					{
+						final double s = maxStretch / l;
+						dx *= s;
+						dy *= s;
+					}
+					sx += externalWeights[ k ] * dx;
+					sy += externalWeights[ k ] * dy;
+				}
+
+				fx[ i ] = sx;
+				fy[ i ] = sy;
+
+				final double f = Math.sqrt( sx * sx + sy * sy );
+				force += f;
+				if ( f > maxForce ) maxForce = f;
+			}
+
+			/* move all vertices after all forces were calculated */
+			for ( int i = 0; i < n; ++i )
+			{
+				final double svx = ( vx[ i ] + fx[ i ] * dt ) * damp;
+				final double svy = ( vy[ i ] + fy[ i ] * dt ) * damp;
+				vx[ i ] = svx;
+				vy[ i ] = svy;
+
+				final double[] w = vertices[ i ].getW();
+				w[ 0 ] += svx * dt;
+				w[ 1 ] += svy * dt;
+
+				final double s = Math.sqrt( svx * svx + svy * svy );
+				if ( s > speed ) speed = s;
+			}
+		}
+
+		/**
+		 * Re-fit all triangles and re-position the passive vertices.
+		 */
+		void updateTriangles() throws NotEnoughDataPointsException, IllDefinedDataPointsException
+		{
+			for ( int t = 0; t < triangles.length; ++t )
+				triangles[ t ].fit( trianglePointMatches.get( t ) );
+
+			final double[] l = new double[ 2 ];
+			for ( int i = 0; i < passives.length; ++i )
+			{
+				final double[] pl = passives[ i ].getL();
+				l[ 0 ] = pl[ 0 ];
+				l[ 1 ] = pl[ 1 ];
+				passiveTriangles[ i ].applyInPlace( l );
+				px[ i ] = l[ 0 ];
+				py[ i ] = l[ 1 ];
+			}
+		}
+
+		/**
+		 * Write the current positions of the passive vertices back.
+		 */
+		void writePassives()
+		{
+			for ( int i = 0; i < passives.length; ++i )
+			{
+				final double[] w = passives[ i ].getW();
+				w[ 0 ] = px[ i ];
+				w[ 1 ] = py[ i ];
+			}
+		}
+	}
+
+	/**
+	 * @param meshes the meshes, the index in this list is the mesh index used
+	 *   in {@link #addSpring(int, Point, int, Point, double)}
+	 * @param stiffness weight of the intra-mesh springs as passed to the
+	 *   {@link SpringMesh} constructor
+	 * @param maxStretch maximal stretch of a spring
+	 * @param damp damping of the vertex speed
+	 */
+	public ConcurrentSpringMeshOptimizer(
+			final List< SpringMesh > meshes,
+			final double stiffness,
+			final double maxStretch,
+			final double damp )
+	{
+		this.meshes = meshes;
+		this.stiffness = stiffness;
+		this.maxStretch = maxStretch;
+		this.damp = damp;
+	}
+
+	/**
+	 * Register a zero-length spring that pulls an active vertex of one mesh
+	 * towards a passive vertex positioned by another mesh.  This mirrors
+	 * <code>active.addSpring( passive, new Spring( 0, weight ) )</code>
+	 * followed by <code>passiveMesh.addPassiveVertex( passive )</code>.
+	 *
+	 * @param activeMesh index of the mesh that owns <code>active</code>
+	 * @param active a vertex of that mesh
+	 * @param passiveMesh index of the mesh that positions <code>passive</code>
+	 * @param passive the passive vertex, its local coordinates are in the
+	 *   local coordinate frame of <code>passiveMesh</code>
+	 * @param weight spring constant
+	 */
+	synchronized public void addSpring(
+			final int activeMesh,
+			final Point active,
+			final int passiveMesh,
+			final Point passive,
+			final double weight )
+	{
+		externalSprings.add( new ExternalSpring( activeMesh, active, passiveMesh, passive, weight ) );
+		states = null;
+	}
+
+	/**
+	 * Copy the spring system into flat arrays.  Has to be called after all
+	 * meshes were initialized with {@link SpringMesh#init}.
+	 */
+	protected void init()
+	{
+		states = new MeshState[ meshes.size() ];
+		final ArrayList< HashMap< Point, Integer > > vertexIndices = new ArrayList< HashMap< Point, Integer > >( meshes.size() );
+
+		for ( int m = 0; m < states.length; ++m )
+		{
+			final SpringMesh mesh = meshes.get( m );
+			final MeshState state = new MeshState( mesh );
+			states[ m ] = state;
+
+			/* vertices and triangles */
+			final HashMap< Point, Integer > indices = new HashMap< Point, Integer >();
+			final ArrayList< Point > vertices = new ArrayList< Point >();
+			final ArrayList< double[] > locals = new ArrayList< double[] >();
+			final Map< AffineModel2D, ArrayList< PointMatch > > av = mesh.getAV();
+			state.triangles = new AffineModel2D[ av.size() ];
+			state.trianglePointMatches = new ArrayList< ArrayList< PointMatch > >( av.size() );
+			int t = 0;
+			for ( final Map.Entry< AffineModel2D, ArrayList< PointMatch > > entry : av.entrySet() )
+			{
+				state.triangles[ t++ ] = entry.getKey();
+				state.trianglePointMatches.add( entry.getValue() );
+				for ( final PointMatch pm : entry.getValue() )
+				{
+					final Point v = pm.getP2();
+					if ( !indices.containsKey( v ) )
+					{
+						indices.put( v, vertices.size() );
+						vertices.add( v );
+						locals.add( pm.getP1().getL() );
+					}
+				}
+			}
+			vertexIndices.add( indices );
+
+			final int n = vertices.size();
+			state.vertices = vertices.toArray( new Point[ n ] );
+			state.vx = new double[ n ];
+			state.vy = new double[ n ];
+
+			/* unique edges of all triangles with their rest lengths */
+			final ArrayList< ArrayList< Integer > > adjacency = new ArrayList< ArrayList< Integer > >( n );
+			for ( int i = 0; i < n; ++i )
+				adjacency.add( new ArrayList< Integer >( 6 ) );
+			for ( final ArrayList< PointMatch > pms : state.trianglePointMatches )
+			{
+				for ( int a = 0; a < pms.size(); ++a )
+				{
+					for ( int b = a + 1; b < pms.size(); ++b )
+					{
+						final int i = indices.get( pms.get( a ).getP2() );
+						final int j = indices.get( pms.get( b ).getP2() );
+						if ( !adjacency.get( i ).contains( j ) )
+						{
+							adjacency.get( i ).add( j );
+							adjacency.get( j ).add( i );
+						}
+					}
+				}
+			}
+			state.springOffsets = new int[ n + 1 ];
+			for ( int i = 0; i < n; ++i )
+				state.springOffsets[ i + 1 ] = state.springOffsets[ i ] + adjacency.get( i ).size();
+			state.springTargets = new int[ state.springOffsets[ n ] ];
+			state.springLengths = new double[ state.springOffsets[ n ] ];
+			for ( int i = 0; i < n; ++i )
+			{
+				final double[] li = locals.get( i );
+				int k = state.springOffsets[ i ];
+				for ( final int j : adjacency.get( i ) )
+				{
+					final double[] lj = locals.get( j );
+					final double dx = lj[ 0 ] - li[ 0 ];
+					final double dy = lj[ 1 ] - li[ 1 ];
+					state.springTargets[ k ] = j;
+					state.springLengths[ k ] = Math.sqrt( dx * dx + dy * dy );
+					++k;
+				}
+			}
+		}
+
+		/* passive vertices and inter-mesh springs */
+		final ArrayList< ArrayList< Point > > passives = new ArrayList< ArrayList< Point > >( states.length );
+		final int[][] externalCounts = new int[ states.length ][];
+		for ( int m = 0; m < states.length; ++m )
+		{
+			passives.add( new ArrayList< Point >() );
+			externalCounts[ m ] = new int[ states[ m ].vertices.length ];
+		}
+		final int[] passiveIndices = new int[ externalSprings.size() ];
+		final int[] activeIndices = new int[ externalSprings.size() ];
+		for ( int s = 0; s < externalSprings.size(); ++s )
+		{
+			final ExternalSpring spring = externalSprings.get( s );
+			final Integer i = vertexIndices.get( spring.activeMesh ).get( spring.active );
+			if ( i == null )
+			{
+				activeIndices[ s ] = -1;
+				continue;
+			}
+			activeIndices[ s ] = i;
+			++externalCounts[ spring.activeMesh ][ i ];
+			final ArrayList< Point > ps = passives.get( spring.passiveMesh );
+			passiveIndices[ s ] = ps.size();
+			ps.add( spring.passive );
+		}
+		for ( int m = 0; m < states.length; ++m )
+		{
+			final MeshState state = states[ m ];
+			final int n = state.vertices.length;
+			state.externalOffsets = new int[ n + 1 ];
+			for ( int i = 0; i < n; ++i )
+				state.externalOffsets[ i + 1 ] = state.externalOffsets[ i ] + externalCounts[ m ][ i ];
+			final int size = state.externalOffsets[ n ];
+			state.externalMesh = new int[ size ];
+			state.externalIndex = new int[ size ];
+			state.externalWeights = new double[ size ];
+
+			final ArrayList< Point > ps = passives.get( m );
+			state.passives = ps.toArray( new Point[ ps.size() ] );
+			state.passiveTriangles = new AffineModel2D[ ps.size() ];
+			state.px = new double[ ps.size() ];
+			state.py = new double[ ps.size() ];
+			for ( int i = 0; i < ps.size(); ++i )
+			{
+				state.passiveTriangles[ i ] = findTriangle( state, ps.get( i ).getL() );
+				final double[] w = ps.get( i ).getW();
+				state.px[ i ] = w[ 0 ];
+				state.py[ i ] = w[ 1 ];
+			}
+		}
+		final int[][] fill = new int[ states.length ][];
+		for ( int m = 0; m < states.length; ++m )
+			fill[ m ] = new int[ states[ m ].vertices.length ];
+		for ( int s = 0; s < externalSprings.size(); ++s )
+		{
+			final int i = activeIndices[ s ];
+			if ( i < 0 ) continue;
+			final ExternalSpring spring = externalSprings.get( s );
+			final MeshState state = states[ spring.activeMesh ];
+			final int k = state.externalOffsets[ i ] + fill[ spring.activeMesh ][ i ]++;
+			state.externalMesh[ k ] = spring.passiveMesh;
+			state.externalIndex[ k ] = passiveIndices[ s ];
+			state.externalWeights[ k ] = spring.weight;
+		}
+	}
+
+	/**
+	 * Find the triangle whose source polygon contains <code>l</code> or, if
+	 * there is none, the triangle with the closest source centroid.
+	 */
+	final static protected AffineModel2D findTriangle( final MeshState state, final double[] l )
+	{
+		AffineModel2D closest = null;
+		double closestDistance = Double.MAX_VALUE;
+		for ( int t = 0; t < state.triangles.length; ++t )
+		{
+			final ArrayList< PointMatch > pms = state.trianglePointMatches.get( t );
+			final double[] a = pms.get( 0 ).getP1().getL();
+			final double[] b = pms.get( 1 ).getP1().getL();
+			final double[] c = pms.get( 2 ).getP1().getL();
+			final double d1 = cross( a, b, l );
+			final double d2 = cross( b, c, l );
+			final double d3 = cross( c, a, l );
+			if ( ( d1 >= 0 && d2 >= 0 && d3 >= 0 ) || ( d1 <= 0 && d2 <= 0 && d3 <= 0 ) )
+				return state.triangles[ t ];
+			final double dx = ( a[ 0 ] + b[ 0 ] + c[ 0 ] ) / 3.0 - l[ 0 ];
+			final double dy = ( a[ 1 ] + b[ 1 ] + c[ 1 ] ) / 3.0 - l[ 1 ];
+			final double d = dx * dx + dy * dy;
+			if ( d < closestDistance )
+			{
+				closestDistance = d;
+				closest = state.triangles[ t ];
+			}
+		}
+		return closest;
+	}
+
+	final static private double cross( final double[] a, final double[] b, final double[] p )
+	{
+		return ( b[ 0 ] - a[ 0 ] ) * ( p[ 1 ] - a[ 1 ] ) - ( b[ 1 ] - a[ 1 ] ) * ( p[ 0 ] - a[ 0 ] );
+	}
+
+	/**
+	 * Run one sweep over all meshes and wait for it to finish.
+	 */
+	final protected void sweep(
+			final ExecutorService service,
+			final ArrayList< Callable< Void > > tasks ) throws InterruptedException, ExecutionException
+	{
+		final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >( tasks.size() );
+		for ( final Callable< Void > task : tasks )
+			futures.add( service.submit( task ) );
+		for ( final Future< Void > future : futures )
+			future.get();
+	}
+
+	/**
+	 * Optimize all meshes until convergence.
+	 *
+	 * @param maxError do not accept convergence if the mean force is &gt;
+	 *   maxError
+	 * @param maxIterations stop after that many iterations even if there was
+	 *   no minimum found
+	 * @param maxPlateauwidth convergence is reached if the average slope in
+	 *   an interval of this size is 0.0
+	 * @param service executes the per-mesh tasks of each sweep
+	 */
+	public void optimize(
+			final double maxError,
+			final int maxIterations,
+			final int maxPlateauwidth,
+			final ExecutorService service ) throws NotEnoughDataPointsException, InterruptedException, ExecutionException
+	{
+		if ( states == null )
+			init();
+
+		int numVertices = 0;
+		for ( final MeshState state : states )
+			numVertices += state.vertices.length;
+		if ( numVertices == 0 )
+			throw new NotEnoughDataPointsException( "No vertices to optimize." );
+
+		final ErrorStatistic observer = new ErrorStatistic( maxPlateauwidth + 1 );
+
+		final double[] dt = new double[]{ 1.0 };
+
+		final ArrayList< Callable< Void > > vertexTasks = new ArrayList< Callable< Void > >( states.length );
+		final ArrayList< Callable< Void > > triangleTasks = new ArrayList< Callable< Void > >( states.length );
+		for ( final MeshState state : states )
+		{
+			vertexTasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					state.updateVertices( dt[ 0 ] );
+					return null;
+				}
+			} );
+			triangleTasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					state.updateTriangles();
+					return null;
+				}
+			} );
+		}
+
+		int i = 0;
+		double force = 0;
+		boolean proceed = i < maxIterations;
+		while ( proceed )
+		{
+			if ( Thread.currentThread().isInterrupted() )
+				throw new InterruptedException();
+
+			sweep( service, vertexTasks );
+			sweep( service, triangleTasks );
+
+			force = 0;
+			double maxForce = 0;
+			double maxSpeed = 0;
+			for ( final MeshState state : states )
+			{
+				force += state.force;
+				maxForce = Math.max( maxForce, state.maxForce );
+				maxSpeed = Math.max( maxSpeed, state.speed );
+			}
+			force /= numVertices;
+			observer.add( force );
+
+			/* limit the step such that no vertex moves more than one unit */
+			dt[ 0 ] = Math.min( 1.0, 1.0 / Math.max( maxSpeed, Double.MIN_VALUE ) );
+
+			if ( i > maxPlateauwidth )
+			{
+				proceed = force > maxError;
+
+				int d = maxPlateauwidth;
+				while ( !proceed && d >= 1 )
+				{
+					try
+					{
+						proceed |= Math.abs( observer.getWideSlope( d ) ) > 0.0;
+					}
+					catch ( final Exception e )
+					{
+						e.printStackTrace();
+					}
+					d /= 2;
+				}
+			}
+
+			if ( i % 100 == 0 )
+				Utils.log( "  iteration " + i + ": mean force " + force + ", max force " + maxForce );
+
+			proceed &= ++i < maxIterations;
+		}
+
+		for ( final MeshState state : states )
+			state.writePassives();
+
+		Utils.log( "Concurrent spring mesh optimizer: " + i + " iterations, mean force " + force );
+	}
+}
@@ -28,6 +28,7 @@ import java.awt.geom.Area;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -102,6 +103,7 @@ public class ElasticLayerAlignment
 		public int maxIterationsSpringMesh = 1000;
 		public int maxPlateauwidthSpringMesh = 200;
 		public boolean useLegacyOptimizer = true;
+		public boolean useConcurrentOptimizer = false;
 
 		public boolean useTps = true;
 
@@ -207,6 +209,7 @@ public class ElasticLayerAlignment
 			gdOptimize.addNumericField( "maximal_iterations :", maxIterationsSpringMesh, 0 );
 			gdOptimize.addNumericField( "maximal_plateauwidth :", maxPlateauwidthSpringMesh, 0 );
 			gdOptimize.addCheckbox("use_legacy_optimizer :", useLegacyOptimizer);
+			gdOptimize.addCheckbox("use_concurrent_optimizer :", useConcurrentOptimizer);
 
 			gdOptimize.showDialog();
 
@@ -222,6 +225,7 @@ public class ElasticLayerAlignment
 			maxIterationsSpringMesh = ( int )gdOptimize.getNextNumber();
 			maxPlateauwidthSpringMesh = ( int )gdOptimize.getNextNumber();
 			useLegacyOptimizer = gdOptimize.getNextBoolean();
+			useConcurrentOptimizer = gdOptimize.getNextBoolean();
 
 			return true;
 		}
@@ -328,7 +332,7 @@ public class ElasticLayerAlignment
 		@Override
 		public Param clone()
 		{
-			return new Param(
+			final Param clone = new Param(
 					ppm.sift.fdBins,
 					ppm.sift.fdSize,
 					ppm.sift.initialSigma,
@@ -376,6 +380,8 @@ public class ElasticLayerAlignment
 					stiffnessSpringMesh,
 					useLocalSmoothnessFilter,
 					useTps );
+			clone.useConcurrentOptimizer = useConcurrentOptimizer;
+			return clone;
 		}
 	}
 
@@ -393,6 +399,27 @@ public class ElasticLayerAlignment
 
 	}
 
+	/** The flat image of layer {@code i} of a range, made once and kept in {@code flatImages}. */
+	final static private BlockMatchPairCallable.FlatImage flatImage(
+			final Project project,
+			final HashMap< Integer, BlockMatchPairCallable.FlatImage > flatImages,
+			final int i,
+			final Layer layer,
+			final Rectangle box,
+			final double scale,
+			final Filter< Patch > filter )
+	{
+		BlockMatchPairCallable.FlatImage image = flatImages.get( i );
+		if ( null == image )
+		{
+			/* free memory */
+			project.getLoader().releaseAll();
+			image = BlockMatchPairCallable.makeFlatImage( AlignmentUtils.filterPatches( layer, filter ), box, scale );
+			flatImages.put( i, image );
+		}
+		return image;
+	}
+
 	@SuppressWarnings( "deprecation" )
 	final public void exec(
 			final Param param,
@@ -478,6 +505,14 @@ public class ElasticLayerAlignment
 							param.dampSpringMesh ) );
         }
 
+		final ConcurrentSpringMeshOptimizer concurrentOptimizer = param.useConcurrentOptimizer ?
+				new ConcurrentSpringMeshOptimizer(
+						meshes,
+						param.stiffnessSpringMesh,
+						param.maxStretchSpringMesh * param.layerScale,
+						param.dampSpringMesh ) :
+				null;
+
 		//final int blockRadius = Math.max( 32, meshWidth / p.resolutionSpringMesh / 2 );
 		final int blockRadius = Math.max( 16, mpicbg.util.Util.roundPos( param.layerScale * param.blockRadius ) );
 
@@ -485,53 +520,60 @@ public class ElasticLayerAlignment
 
         final ArrayList<Future<BlockMatchPairCallable.BlockMatchResults>> futures =
                 new ArrayList<Future<BlockMatchPairCallable.BlockMatchResults>>(pairs.size());
+        final ArrayList<Triple<Integer, Integer, AbstractModel<?>>> matchedPairs =
+                new ArrayList<Triple<Integer, Integer, AbstractModel<?>>>(pairs.size());
 
+        /* flat images are made here, once per layer, so that the callables are self-contained;
+         * pairs come sorted by their first layer, so images of layers before it are not needed anymore */
+        final HashMap<Integer, BlockMatchPairCallable.FlatImage> flatImages = new HashMap<Integer, BlockMatchPairCallable.FlatImage>();
+        /* bound the flat images held by queued callables */
+        final int maxQueued = 4 * Math.max( 1, param.maxNumThreads );
+        int firstQueued = 0;
 
 		for ( final Triple< Integer, Integer, AbstractModel< ? > > pair : pairs )
 		{
-			/* free memory */
-			project.getLoader().releaseAll();
-
-			final SpringMesh m1 = meshes.get( pair.a );
-			final SpringMesh m2 = meshes.get( pair.b );
-
-
-			final ArrayList< Vertex > v1 = m1.getVertices();
-			final ArrayList< Vertex > v2 = m2.getVertices();
-
 			final Layer layer1 = layerRange.get( pair.a );
 			final Layer layer2 = layerRange.get( pair.b );
 
 			final boolean layer1Fixed = fixedLayers.contains(layer1);
 			final boolean layer2Fixed = fixedLayers.contains(layer2);
 
-
 			if ( !( layer1Fixed && layer2Fixed ) )
 			{
+				for ( final Iterator< Integer > it = flatImages.keySet().iterator(); it.hasNext(); )
+					if ( it.next() < pair.a )
+						it.remove();
+
+				for ( ; futures.size() - firstQueued >= maxQueued; ++firstQueued )
+					futures.get( firstQueued ).get();
+
                 final BlockMatchPairCallable bmpc = new BlockMatchPairCallable(
-                        pair,
-                        layerRange,
+                        pair.c,
+                        flatImage( project, flatImages, pair.a, layer1, box, param.layerScale, filter ),
+                        flatImage( project, flatImages, pair.b, layer2, box, param.layerScale, filter ),
                         layer1Fixed, layer2Fixed,
-                        filter,
                         param,
-                        v1, v2,
-                        box);
+                        meshes.get( pair.a ).getVertices(),
+                        meshes.get( pair.b ).getVertices() );
                 futures.add(service.submit(bmpc));
+                matchedPairs.add(pair);
             }
         }
+        flatImages.clear();
 
-        for (final Future<BlockMatchPairCallable.BlockMatchResults> future : futures)
+        for (int k = 0; k < futures.size(); ++k)
         {
-            final BlockMatchPairCallable.BlockMatchResults results = future.get();
-            final Collection<PointMatch> pm12 = results.pm12, pm21 = results.pm21;
-            final Triple<Integer, Integer, AbstractModel<?>> pair = results.pair;
+            final BlockMatchPairCallable.BlockMatchResults results = futures.get(k).get();
+            final Triple<Integer, Integer, AbstractModel<?>> pair = matchedPairs.get(k);
+            final boolean layer1Fixed = fixedLayers.contains( layerRange.get( pair.a ) );
+            final boolean layer2Fixed = fixedLayers.contains( layerRange.get( pair.b ) );
+            final Collection<PointMatch> pm12 = results.getMatches12(meshes.get( pair.a ).getVertices()),
+                                         pm21 = results.getMatches21(meshes.get( pair.b ).getVertices());
             final Tile< ? > t1 = tiles.get( pair.a );
             final Tile< ? > t2 = tiles.get( pair.b );
             final SpringMesh m1 = meshes.get( pair.a );
             final SpringMesh m2 = meshes.get( pair.b );
             final double springConstant  = 1.0 / ( pair.b - pair.a );
-            final boolean layer1Fixed = results.layer1Fixed;
-            final boolean layer2Fixed = results.layer2Fixed;
 
             if (layer1Fixed)
             {
@@ -556,6 +598,8 @@ public class ElasticLayerAlignment
                     final Vertex p2 = new Vertex( pm.getP2() );
                     p1.addSpring( p2, new Spring( 0, springConstant ) );
                     m2.addPassiveVertex( p2 );
+                    if ( null != concurrentOptimizer )
+                        concurrentOptimizer.addSpring( pair.a, p1, pair.b, p2, springConstant );
                 }
 
                 /*
@@ -593,6 +637,8 @@ public class ElasticLayerAlignment
                     final Vertex p2 = new Vertex( pm.getP2() );
                     p1.addSpring( p2, new Spring( 0, springConstant ) );
                     m1.addPassiveVertex( p2 );
+                    if ( null != concurrentOptimizer )
+                        concurrentOptimizer.addSpring( pair.b, p1, pair.a, p2, springConstant );
                 }
 
                 /*
@@ -626,7 +672,24 @@ public class ElasticLayerAlignment
 			final long t0 = System.currentTimeMillis();
 			Utils.log( "Optimizing spring meshes..." );
 
-			if ( param.useLegacyOptimizer )
+			if ( param.useConcurrentOptimizer )
+			{
+				Utils.log( "  ...using concurrent optimizer...");
+				final ExecutorService optimizerService = ExecutorProvider.getExecutorService( 1 );
+				try
+				{
+					concurrentOptimizer.optimize(
+							param.maxEpsilon * param.layerScale,
+							param.maxIterationsSpringMesh,
+							param.maxPlateauwidthSpringMesh,
+							optimizerService );
+				}
+				finally
+				{
+					optimizerService.shutdown();
+				}
+			}
+			else if ( param.useLegacyOptimizer )
 			{
 				Utils.log( "  ...using legacy optimizer...");
 				SpringMesh.optimizeMeshes2(
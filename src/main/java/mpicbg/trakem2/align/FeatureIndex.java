@@ -0,0 +1,422 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Approximate nearest neighbor index over the descriptors of a set of
+ * {@link Feature Features}: a forest of randomized kd-trees searched best bin
+ * first with a bounded number of descriptor comparisons.
+ *
+ * The index is immutable once built and can be queried from many threads at
+ * once, so it is built once per tile and shared by all tile pairs that tile is
+ * part of.  {@link #matchFeatures(Collection, List, double)} is a drop-in
+ * replacement for
+ * {@link mpicbg.ij.FeatureTransform#matchFeatures(Collection, Collection, List, double)}.
+ */
+public class FeatureIndex
+{
+	/* number of trees in the forest */
+	final static public int DEFAULT_NUM_TREES = 4;
+
+	/* number of descriptor comparisons per query */
+	final static public int DEFAULT_MAX_CHECKS = 256;
+
+	/* number of dimensions with highest variance to choose the split from */
+	final static protected int NUM_SPLIT_CANDIDATES = 5;
+
+	final static protected int LEAF_SIZE = 4;
+
+	final protected Feature[] features;
+	final protected int dim;
+	final protected float[] descriptors;
+
+	final protected int maxChecks;
+
+	/* trees, flattened: per node the split dimension (or -1 - leaf index),
+	 * split value and the index of the right child, the left child follows
+	 * its parent immediately */
+	final protected int[][] splitDims;
+	final protected float[][] splitValues;
+	final protected int[][] rightChildren;
+	final protected int[][] leafStarts;
+	final protected int[][] permutations;
+
+	public FeatureIndex( final Collection< Feature > features )
+	{
+		this( features, DEFAULT_NUM_TREES, DEFAULT_MAX_CHECKS, 0 );
+	}
+
+	public FeatureIndex(
+			final Collection< Feature > features,
+			final int numTrees,
+			final int maxChecks,
+			final long seed )
+	{
+		this.features = features.toArray( new Feature[ features.size() ] );
+		this.maxChecks = maxChecks;
+		dim = this.features.length == 0 ? 0 : this.features[ 0 ].descriptor.length;
+		descriptors = new float[ this.features.length * dim ];
+		for ( int i = 0; i < this.features.length; ++i )
+			System.arraycopy( this.features[ i ].descriptor, 0, descriptors, i * dim, dim );
+
+		splitDims = new int[ numTrees ][];
+		splitValues = new float[ numTrees ][];
+		rightChildren = new int[ numTrees ][];
+		leafStarts = new int[ numTrees ][];
+		permutations = new int[ numTrees ][];
+
+		final Random rnd = new Random( seed );
+		for ( int t = 0; t < numTrees; ++t )
+			buildTree( t, rnd );
+	}
+
+	public int size()
+	{
+		return features.length;
+	}
+
+	final protected void buildTree( final int t, final Random rnd )
+	{
+		final int n = features.length;
+		final int[] permutation = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+			permutation[ i ] = i;
+
+		/* every leaf holds at least one feature, so there are less than 2n nodes */
+		final int maxNodes = Math.max( 1, 2 * n );
+		final int[] dims = new int[ maxNodes ];
+		final float[] values = new float[ maxNodes ];
+		final int[] rights = new int[ maxNodes ];
+		final ArrayList< Integer > starts = new ArrayList< Integer >();
+
+		final int numNodes = build( permutation, 0, n, 0, dims, values, rights, starts, rnd );
+
+		final int[] leafStartsT = new int[ starts.size() + 1 ];
+		for ( int i = 0; i < starts.size(); ++i )
+			leafStartsT[ i ] = starts.get( i );
+		leafStartsT[ starts.size() ] = n;
+
+		splitDims[ t ] = Arrays.copyOf( dims, numNodes );
+		splitValues[ t ] = Arrays.copyOf( values, numNodes );
+		rightChildren[ t ] = Arrays.copyOf( rights, numNodes );
+		leafStarts[ t ] = leafStartsT;
+		permutations[ t ] = permutation;
+	}
+
+	/**
+	 * Recursively build the subtree over <code>permutation[from, to)</code>
+	 * rooted at <code>node</code>.
+	 *
+	 * @return the index of the next free node
+	 */
+	final protected int build(
+			final int[] permutation,
+			final int from,
+			final int to,
+			final int node,
+			final int[] dims,
+			final float[] values,
+			final int[] rights,
+			final ArrayList< Integer > starts,
+			final Random rnd )
+	{
+		if ( to - from <= LEAF_SIZE || dim == 0 )
+		{
+			dims[ node ] = -1 - starts.size();
+			starts.add( from );
+			return node + 1;
+		}
+
+		/* mean and variance per dimension */
+		final double[] mean = new double[ dim ];
+		final double[] var = new double[ dim ];
+		for ( int i = from; i < to; ++i )
+		{
+			final int o = permutation[ i ] * dim;
+			for ( int d = 0; d < dim; ++d )
+				mean[ d ] += descriptors[ o + d ];
+		}
+		final int m = to - from;
+		for ( int d = 0; d < dim; ++d )
+			mean[ d ] /= m;
+		for ( int i = from; i < to; ++i )
+		{
+			final int o = permutation[ i ] * dim;
+			for ( int d = 0; d < dim; ++d )
+			{
+				final double x = descriptors[ o + d ] - mean[ d ];
+				var[ d ] += x * x;
+			}
+		}
+
+		/* pick randomly among the dimensions of highest variance */
+		final int[] top = new int[ Math.min( NUM_SPLIT_CANDIDATES, dim ) ];
+		int numTop = 0;
+		for ( int d = 0; d < dim; ++d )
+		{
+			int k = numTop < top.length ? numTop++ : top.length;
+			while ( k > 0 && var[ top[ k - 1 ] ] < var[ d ] )
+			{
+				if ( k < top.length ) top[ k ] = top[ k - 1 ];
+				--k;
+			}
+			if ( k < top.length ) top[ k ] = d;
+		}
+		final int splitDim = top[ rnd.nextInt( numTop ) ];
+		final float splitValue = ( float )mean[ splitDim ];
+
+		/* partition */
+		int i = from, j = to - 1;
+		while ( i <= j )
+		{
+			if ( descriptors[ permutation[ i ] * dim + splitDim ] < splitValue )
+				++i;
+			else
+			{
+				final int tmp = permutation[ i ];
+				permutation[ i ] = permutation[ j ];
+				permutation[ j ] = tmp;
+				--j;
+			}
+		}
+		/* degenerate split, all values equal */
+		if ( i == from || i == to )
+			i = ( from + to ) >>> 1;
+
+		dims[ node ] = splitDim;
+		values[ node ] = splitValue;
+		final int right = build( permutation, from, i, node + 1, dims, values, rights, starts, rnd );
+		rights[ node ] = right;
+		return build( permutation, i, to, right, dims, values, rights, starts, rnd );
+	}
+
+	/**
+	 * Per query state, reusable across queries of one thread.
+	 */
+	final public class Workspace
+	{
+		final int[] visited = new int[ features.length ];
+		int stamp = 0;
+
+		/* binary min heap of (distance to boundary, tree, node) */
+		float[] heapKeys = new float[ 64 ];
+		int[] heapTrees = new int[ 64 ];
+		int[] heapNodes = new int[ 64 ];
+		int heapSize = 0;
+
+		int best;
+		float bestDistance, secondBestDistance;
+
+		void push( final float key, final int tree, final int node )
+		{
+			if ( heapSize == heapKeys.length )
+			{
+				heapKeys = Arrays.copyOf( heapKeys, heapSize * 2 );
+				heapTrees = Arrays.copyOf( heapTrees, heapSize * 2 );
+				heapNodes = Arrays.copyOf( heapNodes, heapSize * 2 );
+			}
+			int i = heapSize++;
+			while ( i > 0 )
+			{
+				final int parent = ( i - 1 ) >>> 1;
+				if ( heapKeys[ parent ] <= key ) break;
+				heapKeys[ i ] = heapKeys[ parent ];
+				heapTrees[ i ] = heapTrees[ parent ];
+				heapNodes[ i ] = heapNodes[ parent ];
+				i = parent;
+			}
+			heapKeys[ i ] = key;
+			heapTrees[ i ] = tree;
+			heapNodes[ i ] = node;
+		}
+
+		/* removes the top, the caller reads it before */
+		void pop()
+		{
+			final int last = --heapSize;
+			final float key = heapKeys[ last ];
+			int i = 0;
+			while ( true )
+			{
+				int child = 2 * i + 1;
+				if ( child >= last ) break;
+				if ( child + 1 < last && heapKeys[ child + 1 ] < heapKeys[ child ] ) ++child;
+				if ( heapKeys[ child ] >= key ) break;
+				heapKeys[ i ] = heapKeys[ child ];
+				heapTrees[ i ] = heapTrees[ child ];
+				heapNodes[ i ] = heapNodes[ child ];
+				i = child;
+			}
+			heapKeys[ i ] = key;
+			heapTrees[ i ] = heapTrees[ last ];
+			heapNodes[ i ] = heapNodes[ last ];
+		}
+	}
+
+	public Workspace createWorkspace()
+	{
+		return new Workspace();
+	}
+
+	/**
+	 * Find the approximate nearest and second nearest neighbor of
+	 * <code>q</code>.  The result is stored in <code>ws.best</code>,
+	 * <code>ws.bestDistance</code> and <code>ws.secondBestDistance</code>,
+	 * distances are squared.
+	 */
+	public void search( final float[] q, final Workspace ws )
+	{
+		ws.best = -1;
+		ws.bestDistance = Float.MAX_VALUE;
+		ws.secondBestDistance = Float.MAX_VALUE;
+		ws.heapSize = 0;
+		if ( ++ws.stamp == 0 )
+		{
+			Arrays.fill( ws.visited, 0 );
+			ws.stamp = 1;
+		}
+
+		int checks = 0;
+		for ( int t = 0; t < splitDims.length; ++t )
+			checks = descend( q, t, 0, ws, checks );
+
+		while ( ws.heapSize > 0 && checks < maxChecks )
+		{
+			final float key = ws.heapKeys[ 0 ];
+			final int t = ws.heapTrees[ 0 ];
+			final int node = ws.heapNodes[ 0 ];
+			ws.pop();
+			if ( key >= ws.secondBestDistance ) break;
+			checks = descend( q, t, node, ws, checks );
+		}
+	}
+
+	/**
+	 * Descend from <code>node</code> to a leaf, queueing the branches not
+	 * taken, and compare all descriptors in that leaf.
+	 */
+	final protected int descend( final float[] q, final int t, int node, final Workspace ws, int checks )
+	{
+		final int[] dims = splitDims[ t ];
+		final float[] values = splitValues[ t ];
+		final int[] rights = rightChildren[ t ];
+		while ( dims[ node ] >= 0 )
+		{
+			final float diff = q[ dims[ node ] ] - values[ node ];
+			if ( diff < 0 )
+			{
+				ws.push( diff * diff, t, rights[ node ] );
+				node = node + 1;
+			}
+			else
+			{
+				ws.push( diff * diff, t, node + 1 );
+				node = rights[ node ];
+			}
+		}
+
+		final int leaf = -1 - dims[ node ];
+		final int[] permutation = permutations[ t ];
+		for ( int i = leafStarts[ t ][ leaf ]; i < leafStarts[ t ][ leaf + 1 ]; ++i )
+		{
+			final int p = permutation[ i ];
+			if ( ws.visited[ p ] == ws.stamp ) continue;
+			ws.visited[ p ] = ws.stamp;
+			++checks;
+
+			final int o = p * dim;
+			float d = 0;
+			for ( int k = 0; k < dim; ++k )
+			{
+				final float x = q[ k ] - descriptors[ o + k ];
+				d += x * x;
+			}
+			if ( d < ws.bestDistance )
+			{
+				ws.secondBestDistance = ws.bestDistance;
+				ws.bestDistance = d;
+				ws.best = p;
+			}
+			else if ( d < ws.secondBestDistance )
+				ws.secondBestDistance = d;
+		}
+		return checks;
+	}
+
+	/**
+	 * Identify corresponding features of <code>fs1</code> in this index by
+	 * the closest/next closest neighbor distance ratio and remove ambiguous
+	 * correspondences, where more than one feature of <code>fs1</code> maps
+	 * to the same indexed feature.
+	 *
+	 * @param fs1 query features
+	 * @param matches receives the correspondences, P1 from <code>fs1</code>
+	 * @param rod closest/next closest neighbor distance ratio
+	 */
+	public void matchFeatures(
+			final Collection< Feature > fs1,
+			final List< PointMatch > matches,
+			final double rod )
+	{
+		if ( features.length < 2 ) return;
+
+		final Workspace ws = createWorkspace();
+		final double rod2 = rod * rod;
+
+		final int[] count = new int[ features.length ];
+		final ArrayList< Feature > sources = new ArrayList< Feature >();
+		final ArrayList< Integer > targets = new ArrayList< Integer >();
+
+		for ( final Feature f1 : fs1 )
+		{
+			search( f1.descriptor, ws );
+			if ( ws.best >= 0 && ws.secondBestDistance < Float.MAX_VALUE && ws.bestDistance < rod2 * ws.secondBestDistance )
+			{
+				sources.add( f1 );
+				targets.add( ws.best );
+				++count[ ws.best ];
+			}
+		}
+
+		for ( int i = 0; i < sources.size(); ++i )
+		{
+			final int t = targets.get( i );
+			if ( count[ t ] > 1 ) continue;
+			final Feature f1 = sources.get( i );
+			final Feature f2 = features[ t ];
+			matches.add(
+					new PointMatch(
+							new Point( new double[]{ f1.location[ 0 ], f1.location[ 1 ] } ),
+							new Point( new double[]{ f2.location[ 0 ], f2.location[ 1 ] } ) ) );
+		}
+	}
+}
@@ -318,8 +318,8 @@ public class RegularizedAffineLayerAlignment
 		int numFailures = 0, lastA = 0;
 
 		final double pointMatchScale = 1.0 / scale;
-        final ArrayList<Future<Triple<Integer, Integer, Collection<PointMatch>>>> modelFutures =
-                new ArrayList<Future<Triple<Integer, Integer, Collection<PointMatch>>>>();
+        final ArrayList<Future<Correspondences>> modelFutures =
+                new ArrayList<Future<Correspondences>>();
 
 		for ( int i = 0; i < layerRange.size(); ++i )
 		{
@@ -340,10 +340,11 @@ public class RegularizedAffineLayerAlignment
         // Assume that futures are ordered in Triple.a
         try
         {
-            for (final Future<Triple<Integer, Integer, Collection<PointMatch>>> future :
-                    modelFutures)
+            for (final Future<Correspondences> future : modelFutures)
             {
-                final Triple<Integer, Integer, Collection<PointMatch>> pair = future.get();
+                final Correspondences c = future.get();
+                final Triple<Integer, Integer, Collection<PointMatch>> pair =
+                        new Triple<Integer, Integer, Collection<PointMatch>>(c.sliceA, c.sliceB, c.inliers);
 
                 if (lastA != pair.a)
                 {
@@ -365,8 +366,7 @@ public class RegularizedAffineLayerAlignment
         catch (final InterruptedException ie)
         {
             Utils.log( "Establishing feature correspondences interrupted." );
-            for (final Future<Triple<Integer, Integer, Collection<PointMatch>>> future :
-                    modelFutures)
+            for (final Future<Correspondences> future : modelFutures)
             {
                 future.cancel(true);
             }
@@ -648,11 +648,35 @@ public class RegularizedAffineLayerAlignment
 		exec( layerRange, fixedLayers, propagateTransformBefore, propagateTransformAfter, fov, filter );
 	}
 
+    /** The inliers from slice B to slice A, or null if none were found. */
+    private static class Correspondences implements Serializable
+    {
+        private static final long serialVersionUID = 2817431665396318806L;
+
+        final int sliceA, sliceB;
+        final ArrayList< PointMatch > inliers;
+
+        Correspondences(final int sliceA, final int sliceB, final ArrayList< PointMatch > inliers)
+        {
+            this.sliceA = sliceA;
+            this.sliceB = sliceB;
+            this.inliers = inliers;
+        }
+    }
+
+    /**
+     * Matches the features of two layers, reading and writing them in the
+     * project folder by file name only, so that it can run in a worker that
+     * mounts that folder, see {@link ini.trakem2.parallel.FileQueueExecutorService}.
+     */
     private static class CorrespondenceCallable implements
-            Callable<Triple< Integer, Integer, Collection< PointMatch > >>, Serializable
+            Callable< Correspondences >, Serializable
     {
+        private static final long serialVersionUID = -1867286414928351392L;
+
         final Param param;
-        final Layer layerA, layerB;
+        final String layerNameA, layerNameB;
+        final String featuresA, featuresB, pointMatchesBA, pointMatchesAB;
         final double pointMatchScale;
         final int sliceA, sliceB;
 
@@ -665,8 +689,12 @@ public class RegularizedAffineLayerAlignment
                                       final int sliceB)
         {
             this.param = param;
-            this.layerA = layerA;
-            this.layerB = layerB;
+            this.layerNameA = AlignmentUtils.layerName( layerA );
+            this.layerNameB = AlignmentUtils.layerName( layerB );
+            this.featuresA = mpicbg.trakem2.align.Util.featuresPath( layerA.getProject(), "layer", layerA.getId() );
+            this.featuresB = mpicbg.trakem2.align.Util.featuresPath( layerB.getProject(), "layer", layerB.getId() );
+            this.pointMatchesBA = mpicbg.trakem2.align.Util.pointMatchesPath( layerB.getProject(), "layer", layerB.getId(), layerA.getId() );
+            this.pointMatchesAB = mpicbg.trakem2.align.Util.pointMatchesPath( layerB.getProject(), "layer", layerA.getId(), layerB.getId() );
             this.pointMatchScale = pointMatchScale;
             this.sliceA = sliceA;
             this.sliceB = sliceB;
@@ -762,23 +790,17 @@ public class RegularizedAffineLayerAlignment
         }
 
         @Override
-        public Triple<Integer, Integer, Collection<PointMatch>> call() throws Exception
+        public Correspondences call() throws Exception
         {
-            final String layerNameA = AlignmentUtils.layerName( layerA );
-            final String layerNameB = AlignmentUtils.layerName( layerB );
-            final Triple<Integer, Integer, Collection<PointMatch>> nullTriple =
-                    new Triple<Integer, Integer, Collection<PointMatch>>(sliceA, sliceB, null);
+            final Correspondences none = new Correspondences(sliceA, sliceB, null);
             ArrayList< PointMatch > candidates = null;
             if ( !param.ppm.clearCache )
-                candidates = mpicbg.trakem2.align.Util.deserializePointMatches(
-                        layerB.getProject(), param.ppm, "layer", layerB.getId(), layerA.getId() );
+                candidates = mpicbg.trakem2.align.Util.deserializePointMatches( pointMatchesBA, param.ppm );
 
             if ( null == candidates )
             {
-                final ArrayList< Feature > fs1 = mpicbg.trakem2.align.Util.deserializeFeatures(
-                        layerA.getProject(), param.ppm.sift, "layer", layerA.getId() );
-                final ArrayList< Feature > fs2 = mpicbg.trakem2.align.Util.deserializeFeatures(
-                        layerB.getProject(), param.ppm.sift, "layer", layerB.getId() );
+                final ArrayList< Feature > fs1 = mpicbg.trakem2.align.Util.deserializeFeatures( featuresA, param.ppm.sift );
+                final ArrayList< Feature > fs2 = mpicbg.trakem2.align.Util.deserializeFeatures( featuresB, param.ppm.sift );
                 candidates = new ArrayList< PointMatch >( FloatArray2DSIFT.createMatches( fs2, fs1, param.ppm.rod ) );
 
                 /* scale the candidates */
@@ -802,8 +824,7 @@ public class RegularizedAffineLayerAlignment
 
                 }
 
-                if ( !mpicbg.trakem2.align.Util.serializePointMatches(
-                        layerB.getProject(), param.ppm, "layer", layerB.getId(), layerA.getId(), candidates ) )
+                if ( !mpicbg.trakem2.align.Util.serializePointMatches( pointMatchesBA, pointMatchesAB, param.ppm, candidates ) )
                     Utils.log( "Could not store point match candidates for layers " + layerNameB + " and " + layerNameA + "." );
             }
 
@@ -826,7 +847,7 @@ public class RegularizedAffineLayerAlignment
                     model = new HomographyModel2D();
                     break;
                 default:
-                    return nullTriple;
+                    return none;
             }
 
             final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
@@ -851,13 +872,13 @@ public class RegularizedAffineLayerAlignment
             {
                 Utils.log( layerNameB + " -> " + layerNameA + ": " + inliers.size() + " corresponding features with an average displacement of " + ( PointMatch.meanDistance( inliers ) ) + "px identified." );
                 Utils.log( "Estimated transformation model: " + model + ( param.multipleHypotheses ? ( " from " + nHypotheses + " hypotheses" ) : "" ) );
-                return new Triple< Integer, Integer, Collection< PointMatch > >( sliceA, sliceB, inliers );
+                return new Correspondences( sliceA, sliceB, inliers );
                 //models.set( ti, new Triple< Integer, Integer, Collection< PointMatch > >( sliceA, sliceB, inliers ) );
             }
             else
             {
                 Utils.log( layerNameB + " -> " + layerNameA + ": no correspondences found." );
-                return nullTriple;
+                return none;
             }
         }
     }
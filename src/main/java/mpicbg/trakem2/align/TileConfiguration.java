@@ -24,11 +24,445 @@
  */
 package mpicbg.trakem2.align;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import ij.IJ;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel2D;
 
 public class TileConfiguration extends mpicbg.models.TileConfiguration
 {
 	@Override
 	protected void println( String s ){ IJ.log( s ); }
 
+	/**
+	 * Parameterization of a tile in the linear least squares system.  A world
+	 * coordinate is <code>J(l) * t + c(l)</code> with <code>t</code> the
+	 * parameters of the tile.
+	 */
+	final static protected int TRANSLATION = 2, SIMILARITY = 4, AFFINE = 6;
+
+	final static protected int parameterization( final Tile< ? > tile )
+	{
+		final Model< ? > model = tile.getModel();
+		if ( model instanceof TranslationModel2D )
+			return TRANSLATION;
+		else if ( model instanceof SimilarityModel2D || model instanceof RigidModel2D )
+			return SIMILARITY;
+		else
+			return AFFINE;
+	}
+
+	/**
+	 * Write the 2&times;d Jacobian <code>J(l)</code> row major into
+	 * <code>j</code> and the constant <code>c(l)</code> into <code>c</code>.
+	 */
+	final static protected void jacobian( final int d, final double[] l, final double[] j, final double[] c )
+	{
+		final double x = l[ 0 ], y = l[ 1 ];
+		switch ( d )
+		{
+		case TRANSLATION:
+			j[ 0 ] = 1; j[ 1 ] = 0;
+			j[ 2 ] = 0; j[ 3 ] = 1;
+			c[ 0 ] = x; c[ 1 ] = y;
+			break;
+		case SIMILARITY:
+			/* x' = a x - b y + tx, y' = b x + a y + ty */
+			j[ 0 ] = x; j[ 1 ] = -y; j[ 2 ] = 1; j[ 3 ] = 0;
+			j[ 4 ] = y; j[ 5 ] = x;  j[ 6 ] = 0; j[ 7 ] = 1;
+			c[ 0 ] = 0; c[ 1 ] = 0;
+			break;
+		default:
+			/* x' = m00 x + m01 y + m02, y' = m10 x + m11 y + m12 */
+			j[ 0 ] = x; j[ 1 ] = y; j[ 2 ] = 1; j[ 3 ] = 0; j[ 4 ] = 0; j[ 5 ] = 0;
+			j[ 6 ] = 0; j[ 7 ] = 0; j[ 8 ] = 0; j[ 9 ] = x; j[ 10 ] = y; j[ 11 ] = 1;
+			c[ 0 ] = 0; c[ 1 ] = 0;
+		}
+	}
+
+	/**
+	 * Extract the current parameters of a tile by probing its model.
+	 */
+	final static protected double[] parameters( final Tile< ? > tile, final int d )
+	{
+		final Model< ? > model = tile.getModel();
+		final double[] o = model.apply( new double[]{ 0, 0 } );
+		final double[] ex = model.apply( new double[]{ 1, 0 } );
+		final double[] ey = model.apply( new double[]{ 0, 1 } );
+		final double m00 = ex[ 0 ] - o[ 0 ], m10 = ex[ 1 ] - o[ 1 ];
+		final double m01 = ey[ 0 ] - o[ 0 ], m11 = ey[ 1 ] - o[ 1 ];
+		switch ( d )
+		{
+		case TRANSLATION:
+			return new double[]{ o[ 0 ], o[ 1 ] };
+		case SIMILARITY:
+			return new double[]{ 0.5 * ( m00 + m11 ), 0.5 * ( m10 - m01 ), o[ 0 ], o[ 1 ] };
+		default:
+			return new double[]{ m00, m01, o[ 0 ], m10, m11, o[ 1 ] };
+		}
+	}
+
+	/**
+	 * One row block of the normal equations: the diagonal block and the
+	 * off-diagonal blocks of all connected free tiles.
+	 */
+	final static protected class RowBlock
+	{
+		final int offset;
+		final int d;
+		final double[] diagonal;
+		final HashMap< Integer, double[] > offDiagonal = new HashMap< Integer, double[] >();
+		int[] columns;
+		double[][] blocks;
+		final double[] b;
+
+		RowBlock( final int offset, final int d )
+		{
+			this.offset = offset;
+			this.d = d;
+			diagonal = new double[ d * d ];
+			b = new double[ d ];
+		}
+
+		void compact()
+		{
+			columns = new int[ offDiagonal.size() ];
+			blocks = new double[ offDiagonal.size() ][];
+			int i = 0;
+			for ( final Map.Entry< Integer, double[] > entry : offDiagonal.entrySet() )
+			{
+				columns[ i ] = entry.getKey();
+				blocks[ i++ ] = entry.getValue();
+			}
+			offDiagonal.clear();
+		}
+	}
+
+	/**
+	 * Solve the linear least squares problem of all point correspondences for
+	 * the parameters of all free tiles at once.  Affine tiles are solved
+	 * exactly, rigid tiles as similarity and then projected by fitting their
+	 * model to the similarity solution.  Tiles that are not part of a
+	 * connected graph with a fixed tile are kept close to their current
+	 * transformation by a weak regularizer.
+	 *
+	 * The normal equations are solved by a Jacobi preconditioned conjugate
+	 * gradient method whose matrix-vector products run concurrently on
+	 * <code>service</code>.
+	 *
+	 * @param maxIterations maximal number of conjugate gradient iterations
+	 * @param tolerance relative residual at which conjugate gradients stop
+	 * @param service executes the matrix-vector products
+	 */
+	public void solveLeastSquares(
+			final int maxIterations,
+			final double tolerance,
+			final ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		final ArrayList< Tile< ? > > free = new ArrayList< Tile< ? > >();
+		for ( final Tile< ? > tile : getTiles() )
+			if ( !getFixedTiles().contains( tile ) )
+				free.add( tile );
+
+		if ( free.size() == 0 ) return;
+
+		/* map every local point to the tile that owns it */
+		final IdentityHashMap< Point, Tile< ? > > owners = new IdentityHashMap< Point, Tile< ? > >();
+		for ( final Tile< ? > tile : getTiles() )
+			for ( final PointMatch pm : tile.getMatches() )
+				owners.put( pm.getP1(), tile );
+
+		final IdentityHashMap< Tile< ? >, Integer > indices = new IdentityHashMap< Tile< ? >, Integer >();
+		final RowBlock[] rows = new RowBlock[ free.size() ];
+		int n = 0;
+		for ( int i = 0; i < rows.length; ++i )
+		{
+			final int d = parameterization( free.get( i ) );
+			rows[ i ] = new RowBlock( n, d );
+			indices.put( free.get( i ), i );
+			n += d;
+		}
+
+		/* assemble the normal equations */
+		final double[] x0 = new double[ n ];
+		final double[] ji = new double[ 12 ], jj = new double[ 12 ];
+		final double[] ci = new double[ 2 ], cj = new double[ 2 ];
+		for ( int i = 0; i < rows.length; ++i )
+		{
+			final Tile< ? > tile = free.get( i );
+			final RowBlock row = rows[ i ];
+			final int di = row.d;
+			double weights = 0;
+
+			for ( final PointMatch pm : tile.getMatches() )
+			{
+				final double w = pm.getWeight();
+				if ( w == 0 ) continue;
+				weights += w;
+
+				jacobian( di, pm.getP1().getL(), ji, ci );
+				for ( int r = 0; r < di; ++r )
+					for ( int s = 0; s < di; ++s )
+						row.diagonal[ r * di + s ] += w * ( ji[ r ] * ji[ s ] + ji[ di + r ] * ji[ di + s ] );
+
+				final Tile< ? > other = owners.get( pm.getP2() );
+				final Integer j = other == null ? null : indices.get( other );
+				if ( j == null )
+				{
+					/* fixed or unknown partner, its world coordinates are constant */
+					final double[] q = pm.getP2().getL().clone();
+					if ( other != null )
+						other.getModel().applyInPlace( q );
+					else
+					{
+						q[ 0 ] = pm.getP2().getW()[ 0 ];
+						q[ 1 ] = pm.getP2().getW()[ 1 ];
+					}
+					final double rx = q[ 0 ] - ci[ 0 ], ry = q[ 1 ] - ci[ 1 ];
+					for ( int r = 0; r < di; ++r )
+						row.b[ r ] += w * ( ji[ r ] * rx + ji[ di + r ] * ry );
+				}
+				else
+				{
+					final int dj = rows[ j ].d;
+					jacobian( dj, pm.getP2().getL(), jj, cj );
+					double[] block = row.offDiagonal.get( j );
+					if ( block == null )
+					{
+						block = new double[ di * dj ];
+						row.offDiagonal.put( j, block );
+					}
+					for ( int r = 0; r < di; ++r )
+						for ( int s = 0; s < dj; ++s )
+							block[ r * dj + s ] -= w * ( ji[ r ] * jj[ s ] + ji[ di + r ] * jj[ dj + s ] );
+					final double rx = cj[ 0 ] - ci[ 0 ], ry = cj[ 1 ] - ci[ 1 ];
+					for ( int r = 0; r < di; ++r )
+						row.b[ r ] += w * ( ji[ r ] * rx + ji[ di + r ] * ry );
+				}
+			}
+
+			/* weak regularizer towards the current transformation */
+			final double[] t = parameters( tile, di );
+			final double lambda = 1e-6 * Math.max( 1.0, weights );
+			for ( int r = 0; r < di; ++r )
+			{
+				row.diagonal[ r * di + r ] += lambda;
+				row.b[ r ] += lambda * t[ r ];
+				x0[ row.offset + r ] = t[ r ];
+			}
+			row.compact();
+		}
+
+		final double[] x = conjugateGradients( rows, x0, n, maxIterations, tolerance, service );
+
+		/* set the models */
+		for ( int i = 0; i < rows.length; ++i )
+		{
+			final Tile< ? > tile = free.get( i );
+			final RowBlock row = rows[ i ];
+			final ArrayList< PointMatch > targets = new ArrayList< PointMatch >();
+			for ( final PointMatch pm : tile.getMatches() )
+			{
+				final double[] l = pm.getP1().getL();
+				jacobian( row.d, l, ji, ci );
+				final double[] q = new double[]{ ci[ 0 ], ci[ 1 ] };
+				for ( int r = 0; r < row.d; ++r )
+				{
+					q[ 0 ] += ji[ r ] * x[ row.offset + r ];
+					q[ 1 ] += ji[ row.d + r ] * x[ row.offset + r ];
+				}
+				targets.add( new PointMatch( new Point( l.clone() ), new Point( q ) ) );
+			}
+			try
+			{
+				tile.getModel().fit( targets );
+			}
+			catch ( final NotEnoughDataPointsException e )
+			{
+				println( "Not enough correspondences to set tile " + tile + ", keeping its transformation." );
+			}
+			catch ( final IllDefinedDataPointsException e )
+			{
+				println( "Ill defined correspondences for tile " + tile + ", keeping its transformation." );
+			}
+		}
+
+		for ( final Tile< ? > tile : getTiles() )
+			tile.update();
+	}
+
+	/**
+	 * Jacobi preconditioned conjugate gradients on the block sparse normal
+	 * equations.
+	 */
+	final protected double[] conjugateGradients(
+			final RowBlock[] rows,
+			final double[] x0,
+			final int n,
+			final int maxIterations,
+			final double tolerance,
+			final ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		final double[] x = x0.clone();
+		final double[] r = new double[ n ];
+		final double[] z = new double[ n ];
+		final double[] p = new double[ n ];
+		final double[] q = new double[ n ];
+		final double[] preconditioner = new double[ n ];
+		final double[] b = new double[ n ];
+
+		for ( final RowBlock row : rows )
+			for ( int k = 0; k < row.d; ++k )
+			{
+				final double dk = row.diagonal[ k * row.d + k ];
+				preconditioner[ row.offset + k ] = dk > 0 ? 1.0 / dk : 1.0;
+				b[ row.offset + k ] = row.b[ k ];
+			}
+
+		multiply( rows, x, q, service );
+		double bNorm = 0;
+		for ( int k = 0; k < n; ++k )
+		{
+			r[ k ] = b[ k ] - q[ k ];
+			z[ k ] = preconditioner[ k ] * r[ k ];
+			p[ k ] = z[ k ];
+			bNorm += b[ k ] * b[ k ];
+		}
+		bNorm = Math.sqrt( bNorm );
+		if ( bNorm == 0 ) bNorm = 1;
+
+		double rz = dot( r, z );
+		int i = 0;
+		double rNorm = Math.sqrt( dot( r, r ) );
+		while ( i < maxIterations && rNorm / bNorm > tolerance )
+		{
+			if ( Thread.currentThread().isInterrupted() )
+				throw new InterruptedException();
+
+			multiply( rows, p, q, service );
+			final double pq = dot( p, q );
+			if ( pq <= 0 ) break;
+			final double alpha = rz / pq;
+			for ( int k = 0; k < n; ++k )
+			{
+				x[ k ] += alpha * p[ k ];
+				r[ k ] -= alpha * q[ k ];
+				z[ k ] = preconditioner[ k ] * r[ k ];
+			}
+			final double rzNew = dot( r, z );
+			final double beta = rzNew / rz;
+			rz = rzNew;
+			for ( int k = 0; k < n; ++k )
+				p[ k ] = z[ k ] + beta * p[ k ];
+
+			rNorm = Math.sqrt( dot( r, r ) );
+			++i;
+		}
+
+		println( "Sparse least squares: " + n + " parameters, " + i + " conjugate gradient iterations, relative residual " + ( rNorm / bNorm ) );
+
+		return x;
+	}
+
+	final static private double dot( final double[] a, final double[] b )
+	{
+		double s = 0;
+		for ( int k = 0; k < a.length; ++k )
+			s += a[ k ] * b[ k ];
+		return s;
+	}
+
+	/**
+	 * <code>y = A x</code> with rows split into chunks that are processed
+	 * concurrently.
+	 */
+	final static protected void multiply(
+			final RowBlock[] rows,
+			final double[] x,
+			final double[] y,
+			final ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		final int numChunks = Math.min( rows.length, Runtime.getRuntime().availableProcessors() * 4 );
+		final int chunkSize = ( rows.length + numChunks - 1 ) / numChunks;
+		final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >( numChunks );
+		for ( int start = 0; start < rows.length; start += chunkSize )
+		{
+			final int first = start;
+			final int last = Math.min( rows.length, start + chunkSize );
+			futures.add( service.submit( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					for ( int i = first; i < last; ++i )
+					{
+						final RowBlock row = rows[ i ];
+						final int d = row.d;
+						for ( int r = 0; r < d; ++r )
+						{
+							double s = 0;
+							for ( int c = 0; c < d; ++c )
+								s += row.diagonal[ r * d + c ] * x[ row.offset + c ];
+							for ( int k = 0; k < row.columns.length; ++k )
+							{
+								final RowBlock other = rows[ row.columns[ k ] ];
+								final double[] block = row.blocks[ k ];
+								for ( int c = 0; c < other.d; ++c )
+									s += block[ r * other.d + c ] * x[ other.offset + c ];
+							}
+							y[ row.offset + r ] = s;
+						}
+					}
+					return null;
+				}
+			} ) );
+		}
+		for ( final Future< Void > future : futures )
+			future.get();
+	}
+
+	/**
+	 * Log the mean and maximal transfer error of every tile.
+	 *
+	 * @return the mean and maximal error per tile in the order of
+	 *   <code>tiles</code>
+	 */
+	public List< double[] > reportResiduals( final List< ? extends Tile< ? > > tiles )
+	{
+		final ArrayList< double[] > residuals = new ArrayList< double[] >( tiles.size() );
+		for ( final Tile< ? > tile : tiles )
+		{
+			tile.update();
+			double sum = 0, max = 0;
+			int n = 0;
+			for ( final PointMatch pm : tile.getMatches() )
+			{
+				final double e = pm.getDistance();
+				sum += e;
+				max = Math.max( max, e );
+				++n;
+			}
+			final double mean = n == 0 ? 0 : sum / n;
+			residuals.add( new double[]{ mean, max } );
+			final String name = tile instanceof AbstractAffineTile2D ? ( ( AbstractAffineTile2D< ? > )tile ).getPatch().toString() : tile.toString();
+			println( "  " + name + ": " + n + " correspondences, mean error " + mean + "px, max error " + max + "px" );
+		}
+		return residuals;
+	}
 }
@@ -0,0 +1,357 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package mpicbg.trakem2.align;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.Patch;
+import ini.trakem2.parallel.ExecutorProvider;
+import ini.trakem2.utils.M;
+
+/**
+ * Finds overlapping pairs of {@link AbstractAffineTile2D Tiles} by hashing
+ * their bounding boxes into a uniform grid, separately for each
+ * {@link Layer}.  Candidates are then tested for exact overlap
+ * concurrently, with the {@link Area} of every tile computed only once.
+ *
+ * For the exact test, tiles with an alpha channel contribute their visible
+ * {@link Area} ({@link Patch#getArea()}), all others their perimeter.
+ */
+public class TilePairing
+{
+	final static protected class Entry
+	{
+		final int index;
+		final AbstractAffineTile2D< ? > tile;
+		final Rectangle box;
+		final Layer layer;
+		final boolean alpha;
+		boolean involved = false;
+		Area area = null;
+
+		Entry( final int index, final AbstractAffineTile2D< ? > tile )
+		{
+			this.index = index;
+			this.tile = tile;
+			this.box = tile.getPatch().getBoundingBox();
+			this.layer = tile.getPatch().getLayer();
+			this.alpha = tile.getPatch().hasAlphaChannel();
+		}
+
+		void computeArea()
+		{
+			final Patch patch = tile.getPatch();
+			area = alpha ? patch.getArea() : new Area( patch.getPerimeter() );
+		}
+	}
+
+	/**
+	 * The bounding boxes of {@link Entry Entries} in square cells whose side
+	 * is the average tile size, so that each box covers few cells and each
+	 * cell holds few boxes.
+	 */
+	final static protected class Grid
+	{
+		final int side;
+		final HashMap< Long, ArrayList< Entry > > cells = new HashMap< Long, ArrayList< Entry > >();
+
+		Grid( final List< Entry > entries )
+		{
+			long sum = 0;
+			for ( final Entry e : entries )
+				sum += Math.max( e.box.width, e.box.height );
+			side = ( int )Math.max( 1, sum / Math.max( 1, entries.size() ) );
+			for ( final Entry e : entries )
+			{
+				if ( e.box.isEmpty() )
+					continue;
+				for ( int cy = cell( e.box.y ); cy <= cell( e.box.y + e.box.height - 1 ); ++cy )
+					for ( int cx = cell( e.box.x ); cx <= cell( e.box.x + e.box.width - 1 ); ++cx )
+					{
+						final Long key = key( cx, cy );
+						ArrayList< Entry > cell = cells.get( key );
+						if ( null == cell )
+						{
+							cell = new ArrayList< Entry >();
+							cells.put( key, cell );
+						}
+						cell.add( e );
+					}
+			}
+		}
+
+		final int cell( final int coordinate )
+		{
+			return Math.floorDiv( coordinate, side );
+		}
+
+		final static Long key( final int cx, final int cy )
+		{
+			return ( ( long )cx << 32 ) | ( cy & 0xffffffffL );
+		}
+
+		/**
+		 * Add to <code>candidates</code> every pair of <code>a</code> with an
+		 * entry whose box intersects <code>a.box</code>; when
+		 * <code>a</code> is itself in this grid, only entries with a larger
+		 * index, to report each pair once.  A pair is found in every cell
+		 * that both boxes cover, so it is only reported in the cell that
+		 * contains the top left corner of their intersection.
+		 */
+		final void pairs( final Entry a, final boolean sameGrid, final ArrayList< Entry[] > candidates )
+		{
+			if ( a.box.isEmpty() )
+				return;
+			for ( int cy = cell( a.box.y ); cy <= cell( a.box.y + a.box.height - 1 ); ++cy )
+				for ( int cx = cell( a.box.x ); cx <= cell( a.box.x + a.box.width - 1 ); ++cx )
+				{
+					final ArrayList< Entry > cell = cells.get( key( cx, cy ) );
+					if ( null == cell )
+						continue;
+					for ( final Entry b : cell )
+					{
+						if ( sameGrid && b.index <= a.index )
+							continue;
+						if ( !a.box.intersects( b.box ) )
+							continue;
+						if ( cx != cell( Math.max( a.box.x, b.box.x ) ) || cy != cell( Math.max( a.box.y, b.box.y ) ) )
+							continue;
+						candidates.add( new Entry[]{ a, b } );
+					}
+				}
+		}
+	}
+
+	final static protected Comparator< Entry[] > byIndices = new Comparator< Entry[] >()
+	{
+		@Override
+		public int compare( final Entry[] a, final Entry[] b )
+		{
+			if ( a[ 0 ].index != b[ 0 ].index )
+				return a[ 0 ].index < b[ 0 ].index ? -1 : 1;
+			return a[ 1 ].index < b[ 1 ].index ? -1 : a[ 1 ].index == b[ 1 ].index ? 0 : 1;
+		}
+	};
+
+	final static protected ArrayList< Entry > entries( final List< ? extends AbstractAffineTile2D< ? > > tiles, final int offset )
+	{
+		final ArrayList< Entry > entries = new ArrayList< Entry >( tiles.size() );
+		for ( int i = 0; i < tiles.size(); ++i )
+			entries.add( new Entry( offset + i, tiles.get( i ) ) );
+		return entries;
+	}
+
+	/**
+	 * Search a {@link List} of tiles for pairs of tiles in the same
+	 * {@link Layer} whose bounding boxes overlap.  Pairs are ordered as in
+	 * <code>tiles</code>.
+	 */
+	final static protected ArrayList< Entry[] > candidates( final List< ? extends AbstractAffineTile2D< ? > > tiles )
+	{
+		final HashMap< Layer, ArrayList< Entry > > layers = new HashMap< Layer, ArrayList< Entry > >();
+		for ( final Entry e : entries( tiles, 0 ) )
+		{
+			ArrayList< Entry > es = layers.get( e.layer );
+			if ( null == es )
+			{
+				es = new ArrayList< Entry >();
+				layers.put( e.layer, es );
+			}
+			es.add( e );
+		}
+		final ArrayList< Entry[] > candidates = new ArrayList< Entry[] >();
+		for ( final ArrayList< Entry > es : layers.values() )
+		{
+			final Grid grid = new Grid( es );
+			for ( final Entry a : es )
+				grid.pairs( a, true, candidates );
+		}
+		return candidates;
+	}
+
+	/**
+	 * Search two {@link List Lists} of tiles for pairs whose bounding boxes
+	 * overlap, regardless of their {@link Layer}.
+	 */
+	final static protected ArrayList< Entry[] > candidates(
+			final List< ? extends AbstractAffineTile2D< ? > > tilesA,
+			final List< ? extends AbstractAffineTile2D< ? > > tilesB )
+	{
+		final Grid grid = new Grid( entries( tilesB, tilesA.size() ) );
+		final ArrayList< Entry[] > candidates = new ArrayList< Entry[] >();
+		for ( final Entry a : entries( tilesA, 0 ) )
+			grid.pairs( a, false, candidates );
+		return candidates;
+	}
+
+	/**
+	 * Test all candidates for exact overlap on <code>service</code> and
+	 * return those that passed, ordered by their original indices.
+	 */
+	final static protected List< Entry[] > filter(
+			final ArrayList< Entry[] > candidates,
+			final ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		/* compute the areas of all involved tiles once */
+		final ArrayList< Entry > involved = new ArrayList< Entry >();
+		for ( final Entry[] pair : candidates )
+			for ( final Entry e : pair )
+				if ( !e.involved )
+				{
+					e.involved = true;
+					involved.add( e );
+				}
+
+		final int numChunks = Math.max( 1, Math.min( candidates.size(), Runtime.getRuntime().availableProcessors() * 4 ) );
+
+		final ArrayList< Future< Void > > areaFutures = new ArrayList< Future< Void > >();
+		final int areaChunk = Math.max( 1, ( involved.size() + numChunks - 1 ) / numChunks );
+		for ( int start = 0; start < involved.size(); start += areaChunk )
+		{
+			final List< Entry > chunk = involved.subList( start, Math.min( involved.size(), start + areaChunk ) );
+			areaFutures.add( service.submit( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					for ( final Entry e : chunk )
+						e.computeArea();
+					return null;
+				}
+			} ) );
+		}
+		for ( final Future< Void > f : areaFutures )
+			f.get();
+
+		final boolean[] overlaps = new boolean[ candidates.size() ];
+		final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >();
+		final int chunkSize = Math.max( 1, ( candidates.size() + numChunks - 1 ) / numChunks );
+		for ( int start = 0; start < candidates.size(); start += chunkSize )
+		{
+			final int first = start;
+			final int last = Math.min( candidates.size(), start + chunkSize );
+			futures.add( service.submit( new Callable< Void >()
+			{
+				@Override
+				public Void call()
+				{
+					for ( int i = first; i < last; ++i )
+					{
+						final Entry[] pair = candidates.get( i );
+						overlaps[ i ] = M.intersects( pair[ 0 ].area, pair[ 1 ].area );
+					}
+					return null;
+				}
+			} ) );
+		}
+		for ( final Future< Void > f : futures )
+			f.get();
+
+		final ArrayList< Entry[] > pairs = new ArrayList< Entry[] >();
+		for ( int i = 0; i < overlaps.length; ++i )
+			if ( overlaps[ i ] )
+				pairs.add( candidates.get( i ) );
+		return pairs;
+	}
+
+	final static protected void add( final List< Entry[] > pairs, final List< AbstractAffineTile2D< ? >[] > tilePairs )
+	{
+		final Entry[][] sorted = pairs.toArray( new Entry[ pairs.size() ][] );
+		Arrays.sort( sorted, byIndices );
+		for ( final Entry[] pair : sorted )
+			tilePairs.add( new AbstractAffineTile2D< ? >[]{ pair[ 0 ].tile, pair[ 1 ].tile } );
+	}
+
+	final static protected void pair(
+			final ArrayList< Entry[] > candidates,
+			final List< AbstractAffineTile2D< ? >[] > tilePairs,
+			final boolean sloppyOverlapTest )
+	{
+		if ( sloppyOverlapTest )
+			add( candidates, tilePairs );
+		else
+		{
+			final ExecutorService service = ExecutorProvider.getExecutorService( 1 );
+			try
+			{
+				add( filter( candidates, service ), tilePairs );
+			}
+			catch ( final InterruptedException e )
+			{
+				e.printStackTrace();
+			}
+			catch ( final ExecutionException e )
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				service.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Search a {@link List} of tiles for overlapping pairs within the same
+	 * {@link Layer}.  Adds the pairs into tilePairs.
+	 *
+	 * @param tiles
+	 * @param tilePairs
+	 * @param sloppyOverlapTest compare bounding boxes only
+	 */
+	final static public void pairOverlappingTiles(
+			final List< ? extends AbstractAffineTile2D< ? > > tiles,
+			final List< AbstractAffineTile2D< ? >[] > tilePairs,
+			final boolean sloppyOverlapTest )
+	{
+		pair( candidates( tiles ), tilePairs, sloppyOverlapTest );
+	}
+
+	/**
+	 * Search two {@link List Lists} of tiles for overlapping pairs.  Adds the
+	 * pairs into tilePairs.
+	 *
+	 * @param tilesA
+	 * @param tilesB
+	 * @param tilePairs
+	 * @param sloppyOverlapTest compare bounding boxes only
+	 */
+	final static public void pairOverlappingTiles(
+			final List< ? extends AbstractAffineTile2D< ? > > tilesA,
+			final List< ? extends AbstractAffineTile2D< ? > > tilesB,
+			final List< AbstractAffineTile2D< ? >[] > tilePairs,
+			final boolean sloppyOverlapTest )
+	{
+		pair( candidates( tilesA, tilesB ), tilePairs, sloppyOverlapTest );
+	}
+}
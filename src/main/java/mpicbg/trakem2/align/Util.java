@@ -28,11 +28,17 @@ import ini.trakem2.Project;
 import ini.trakem2.display.Patch;
 import ini.trakem2.persistence.FSLoader;
 import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.IJError;
 import ini.trakem2.utils.Utils;
 
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -83,6 +89,112 @@ public class Util
 	}
 	
 	
+	/**
+	 * The file of the {@link Feature Features} of {@code id} in the TrakEM2
+	 * project folder, see {@link #serializeFeatures(Project, Object, String, long, Collection)}.
+	 * 
+	 * @param project
+	 * @param prefix
+	 * @param id
+	 * @return
+	 */
+	final static public String featuresPath(
+			final Project project,
+			final String prefix,
+			final long id )
+	{
+		final String name = prefix == null ? "features" : prefix + ".features";
+		
+		return new StringBuilder( project.getLoader().getUNUIdFolder() )
+			.append( "features.ser/" )
+			.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString();
+	}
+	
+	/**
+	 * The file of the {@link PointMatch PointMatches} from {@code id1} to
+	 * {@code id2} in the TrakEM2 project folder, see
+	 * {@link #serializePointMatches(Project, Object, String, long, long, Collection)}.
+	 * 
+	 * @param project
+	 * @param prefix
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	final static public String pointMatchesPath(
+			final Project project,
+			final String prefix,
+			final long id1,
+			final long id2 )
+	{
+		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
+		
+		return new StringBuilder( project.getLoader().getUNUIdFolder() )
+			.append( "pointmatches.ser/" )
+			.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString();
+	}
+	
+	/**
+	 * Write an object to a file, creating its folder if necessary; as
+	 * {@link Loader#serialize(Object, String)} but without a {@link Project},
+	 * for tasks that may run in another JVM.
+	 */
+	final static private boolean serialize( final Object ob, final String path )
+	{
+		try
+		{
+			final File fdir = new File( path ).getParentFile();
+			if ( null == fdir ) return false;
+			fdir.mkdirs();
+			if ( !fdir.exists() )
+			{
+				Utils.log2( "Could not create folder " + fdir.getAbsolutePath() );
+				return false;
+			}
+			final ObjectOutputStream out = new ObjectOutputStream( new FileOutputStream( path ) );
+			try
+			{
+				out.writeObject( ob );
+			}
+			finally
+			{
+				out.close();
+			}
+			return true;
+		}
+		catch ( final Exception e )
+		{
+			IJError.print( e );
+		}
+		return false;
+	}
+	
+	/**
+	 * Read an object from a file; as {@link Loader#deserialize(String)}.
+	 * Returns null if the file does not exist or cannot be read.
+	 */
+	final static private Object deserialize( final String path )
+	{
+		try
+		{
+			if ( !new File( path ).exists() ) return null;
+			final ObjectInputStream in = new ObjectInputStream( new FileInputStream( path ) );
+			try
+			{
+				return in.readObject();
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch ( final Exception e )
+		{
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
 	/**
 	 * Save a {@link Collection} of {@link Feature Features} to the TrakEM2
 	 * project folder.  The saved file contains a key {@link Object} which
@@ -105,15 +217,7 @@ public class Util
 		final ArrayList< Feature > list = new ArrayList< Feature >();
 		list.addAll( f );
 		
-		final String name = prefix == null ? "features" : prefix + ".features";
-		
-		final Loader loader = project.getLoader();
-		final Features fe = new Features( key, list );
-		return loader.serialize(
-				fe,
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+		return serialize( new Features( key, list ), featuresPath( project, prefix, id ) );
 	}
 
 	
@@ -137,14 +241,23 @@ public class Util
 			final String prefix,
 			final long id )
 	{
-		final String name = prefix == null ? "features" : prefix + ".features";
-		
-		final Loader loader = project.getLoader();
-
-		final Object ob = loader.deserialize(
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "features.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id ), name, ".ser" ) ).toString() );
+		return deserializeFeatures( featuresPath( project, prefix, id ), key );
+	}
+	
+	/**
+	 * Retrieve a {@link Collection} of {@link Feature Features} from a file
+	 * as given by {@link #featuresPath(Project, String, long)}, if its
+	 * contained key {@link Object#equals(Object) equals} key.
+	 * 
+	 * @param path
+	 * @param key
+	 * @return
+	 */
+	final static public ArrayList< Feature > deserializeFeatures(
+			final String path,
+			final Object key )
+	{
+		final Object ob = deserialize( path );
 		
 		if ( ob != null )
 		{
@@ -186,26 +299,39 @@ public class Util
 			final long id1,
 			final long id2,
 			final Collection< PointMatch > m )
+	{
+		return serializePointMatches(
+				pointMatchesPath( project, prefix, id1, id2 ),
+				pointMatchesPath( project, prefix, id2, id1 ),
+				key,
+				m );
+	}
+	
+	/**
+	 * Save a {@link Collection} of {@link PointMatch PointMatches} two-sided,
+	 * to files as given by
+	 * {@link #pointMatchesPath(Project, String, long, long)}.
+	 * 
+	 * @param path12
+	 * @param path21
+	 * @param key
+	 * @param m
+	 * @return
+	 */
+	final static public boolean serializePointMatches(
+			final String path12,
+			final String path21,
+			final Object key,
+			final Collection< PointMatch > m )
 	{
 		final ArrayList< PointMatch > list = new ArrayList< PointMatch >();
 		list.addAll( m );
 		final ArrayList< PointMatch > tsil = new ArrayList< PointMatch >();
 		PointMatch.flip( m, tsil );
 		
-		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
-		
-		final Loader loader = project.getLoader();
 		return
-			loader.serialize(
-				new PointMatches( key, list ),
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() ) &&
-			loader.serialize(
-				new PointMatches( key, tsil ),
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id2 ) + "_" + Long.toString( id1 ), name, ".ser" ) ).toString() );
+			serialize( new PointMatches( key, list ), path12 ) &&
+			serialize( new PointMatches( key, tsil ), path21 );
 	}
 	
 	
@@ -216,14 +342,14 @@ public class Util
 			final long id1,
 			final long id2 )
 	{
-		final String name = prefix == null ? "pointmatches" : prefix + ".pointmatches";
-		
-		final Loader loader = project.getLoader();
-		
-		final Object ob = loader.deserialize(
-				new StringBuilder( loader.getUNUIdFolder() )
-					.append( "pointmatches.ser/" )
-					.append( FSLoader.createIdPath( Long.toString( id1 ) + "_" + Long.toString( id2 ), name, ".ser" ) ).toString() );
+		return deserializePointMatches( pointMatchesPath( project, prefix, id1, id2 ), key );
+	}
+	
+	final static public ArrayList< PointMatch > deserializePointMatches(
+			final String path,
+			final Object key )
+	{
+		final Object ob = deserialize( path );
 		
 		if ( null != ob )
 		{
@@ -22,13 +22,12 @@
 package mpicbg.trakem2.align.concurrent;
 
 import ij.process.FloatProcessor;
-import ini.trakem2.display.Layer;
 import ini.trakem2.display.Patch;
-import ini.trakem2.utils.Filter;
 import java.awt.Rectangle;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -38,74 +37,195 @@ import mpicbg.models.ErrorStatistic;
 import mpicbg.models.InvertibleCoordinateTransform;
 import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
-import mpicbg.trakem2.align.AlignmentUtils;
 import mpicbg.trakem2.align.ElasticLayerAlignment;
 import mpicbg.trakem2.align.Util;
 import mpicbg.trakem2.transform.ExportBestFlatImage;
 import mpicbg.trakem2.util.Pair;
-import mpicbg.trakem2.util.Triple;
 
 /**
- *
+ * Block matching of a pair of layers, given their flat images and the
+ * coordinates of the mesh vertices to match, so that it references no
+ * {@link ini.trakem2.display.Layer} or {@link mpicbg.models.SpringMesh} and
+ * can be run by a worker in another JVM, see
+ * {@link ini.trakem2.parallel.FileQueueExecutorService}.  The
+ * {@link BlockMatchResults} refer to the vertices by their index, and
+ * {@link BlockMatchResults#getMatches12(List)} and
+ * {@link BlockMatchResults#getMatches21(List)} turn them back into matches
+ * of the vertices of the meshes.
  */
 public class BlockMatchPairCallable implements
         Callable<BlockMatchPairCallable.BlockMatchResults>, Serializable
 {
+    private static final long serialVersionUID = -3349721474652637218L;
+
+    /**
+     * The gray values of a flat image of a layer and its alpha mask,
+     * with values between [0..1].
+     */
+    public static class FlatImage implements Serializable
+    {
+        private static final long serialVersionUID = 5206183287446281531L;
+
+        public final int width, height;
+        public final float[] pixels, alpha;
+
+        public FlatImage(final FloatProcessor ip, final FloatProcessor alpha)
+        {
+            this.width = ip.getWidth();
+            this.height = ip.getHeight();
+            this.pixels = (float[]) ip.getPixels();
+            this.alpha = (float[]) alpha.getPixels();
+        }
+
+        FloatProcessor getImage()
+        {
+            return new FloatProcessor(width, height, pixels, null);
+        }
+
+        FloatProcessor getMask()
+        {
+            return new FloatProcessor(width, height, alpha, null);
+        }
+    }
 
     public static class BlockMatchResults implements Serializable
     {
-        public Collection<? extends Point> v1, v2;
-        public final Collection<PointMatch> pm12, pm21;
-        public final boolean layer1Fixed, layer2Fixed;
-        public final Triple<Integer, Integer, AbstractModel<?>> pair;
-
-        public BlockMatchResults(final Collection<? extends Point> v1,
-                                 final Collection<? extends Point> v2,
-                                 final Collection<PointMatch> pm12,
-                                 final Collection<PointMatch> pm21,
-                                 final boolean layer1Fixed,
-                                 final boolean layer2Fixed,
-                                 final Triple<Integer, Integer, AbstractModel<?>> pair)
+        private static final long serialVersionUID = -1047265613425016917L;
+
+        /** Matches whose source points are copies of the vertices, and the indices of those vertices. */
+        private final ArrayList<PointMatch> pm12, pm21;
+        private final int[] sources12, sources21;
+        /** World coordinates of all vertices after matching, null for a fixed layer. */
+        private final double[][] w1, w2;
+
+        BlockMatchResults(final ArrayList<PointMatch> pm12,
+                          final int[] sources12,
+                          final double[][] w1,
+                          final ArrayList<PointMatch> pm21,
+                          final int[] sources21,
+                          final double[][] w2)
         {
-            this.v1 = v1;
-            this.v2 = v2;
             this.pm12 = pm12;
+            this.sources12 = sources12;
+            this.w1 = w1;
             this.pm21 = pm21;
-            this.layer1Fixed = layer1Fixed;
-            this.layer2Fixed = layer2Fixed;
-            this.pair = pair;
+            this.sources21 = sources21;
+            this.w2 = w2;
+        }
+
+        /**
+         * The matches from layer 1 to layer 2, with the given vertices as
+         * source points; these must be the vertices passed to the callable,
+         * in the same order.  Their world coordinates are set to what
+         * matching left them at, as if matched in place.
+         */
+        public ArrayList<PointMatch> getMatches12(final List<? extends Point> v1)
+        {
+            return restore(pm12, sources12, w1, v1);
+        }
+
+        /** The matches from layer 2 to layer 1, see {@link #getMatches12(List)}. */
+        public ArrayList<PointMatch> getMatches21(final List<? extends Point> v2)
+        {
+            return restore(pm21, sources21, w2, v2);
+        }
+
+        static private ArrayList<PointMatch> restore(final ArrayList<PointMatch> pms,
+                                                     final int[] sources,
+                                                     final double[][] w,
+                                                     final List<? extends Point> vertices)
+        {
+            if (null != w)
+            {
+                for (int i = 0; i < w.length; ++i)
+                {
+                    final double[] vw = vertices.get(i).getW();
+                    System.arraycopy(w[i], 0, vw, 0, vw.length);
+                }
+            }
+            final ArrayList<PointMatch> matches = new ArrayList<PointMatch>(pms.size());
+            for (int i = 0; i < pms.size(); ++i)
+            {
+                final PointMatch pm = pms.get(i);
+                matches.add(new PointMatch(vertices.get(sources[i]), pm.getP2(), pm.getWeights()));
+            }
+            return matches;
         }
     }
 
-    private final Layer layer1, layer2;
+    private final FlatImage image1, image2;
     private final boolean layer1Fixed, layer2Fixed;
-    private final Filter<Patch> filter;
     private final ElasticLayerAlignment.Param param;
-    private final Collection<? extends Point> v1, v2;
-    private final Rectangle box;
-    private final Triple<Integer, Integer, AbstractModel<?>> pair;
-
+    private final AbstractModel<?> model;
+    /** Local and world coordinates of the vertices of each mesh. */
+    private final double[][] l1, w1, l2, w2;
 
-    public BlockMatchPairCallable(final Triple<Integer, Integer, AbstractModel<?>> pair,
-                                  final List<Layer> layerRange,
+    /**
+     * @param model the transform of layer 2 to layer 1, as pre-aligned
+     * @param image1 flat image of layer 1, see {@link #makeFlatImage(List, Rectangle, double)}
+     * @param image2 flat image of layer 2
+     * @param sourcePoints1 the vertices of the mesh of layer 1, matched unless the layer is fixed
+     * @param sourcePoints2 the vertices of the mesh of layer 2, matched unless the layer is fixed
+     */
+    public BlockMatchPairCallable(final AbstractModel<?> model,
+                                  final FlatImage image1,
+                                  final FlatImage image2,
                                   final boolean layer1Fixed,
                                   final boolean layer2Fixed,
-                                  final Filter<Patch> filter,
                                   final ElasticLayerAlignment.Param param,
                                   final Collection< ? extends Point > sourcePoints1,
-                                  final Collection< ? extends Point > sourcePoints2,
-                                  final Rectangle box)
+                                  final Collection< ? extends Point > sourcePoints2)
     {
-        this.pair = pair;
-        layer1 = layerRange.get(pair.a);
-        layer2 = layerRange.get(pair.b);
+        this.model = model;
+        this.image1 = image1;
+        this.image2 = image2;
         this.layer1Fixed = layer1Fixed;
         this.layer2Fixed = layer2Fixed;
-        this.filter = filter;
         this.param = param;
-        v1 = sourcePoints1;
-        v2 = sourcePoints2;
-        this.box = box;
+        l1 = new double[sourcePoints1.size()][];
+        w1 = new double[l1.length][];
+        copy(sourcePoints1, l1, w1);
+        l2 = new double[sourcePoints2.size()][];
+        w2 = new double[l2.length][];
+        copy(sourcePoints2, l2, w2);
+    }
+
+    static private void copy(final Collection<? extends Point> points, final double[][] l, final double[][] w)
+    {
+        int i = 0;
+        for (final Point p : points)
+        {
+            l[i] = p.getL().clone();
+            w[i] = p.getW().clone();
+            ++i;
+        }
+    }
+
+    static private ArrayList<Point> points(final double[][] l, final double[][] w)
+    {
+        final ArrayList<Point> points = new ArrayList<Point>(l.length);
+        for (int i = 0; i < l.length; ++i)
+            points.add(new Point(l[i].clone(), w[i].clone()));
+        return points;
+    }
+
+    static private int[] sources(final List<PointMatch> pms, final List<Point> points)
+    {
+        final IdentityHashMap<Point, Integer> index = new IdentityHashMap<Point, Integer>();
+        for (int i = 0; i < points.size(); ++i)
+            index.put(points.get(i), i);
+        final int[] sources = new int[pms.size()];
+        for (int i = 0; i < sources.length; ++i)
+            sources[i] = index.get(pms.get(i).getP1());
+        return sources;
+    }
+
+    static private double[][] world(final List<Point> points)
+    {
+        final double[][] w = new double[points.size()][];
+        for (int i = 0; i < w.length; ++i)
+            w[i] = points.get(i).getW();
+        return w;
     }
 
     @Override
@@ -114,16 +234,11 @@ public class BlockMatchPairCallable implements
         final ArrayList< PointMatch > pm12 = new ArrayList< PointMatch >();
         final ArrayList< PointMatch > pm21 = new ArrayList< PointMatch >();
 
-        System.out.println("BMC rev 0: " + pair.a + " " + pair.b);
+        final FloatProcessor ip1 = image1.getImage();
+        final FloatProcessor ip1Mask = image1.getMask();
+        final FloatProcessor ip2 = image2.getImage();
+        final FloatProcessor ip2Mask = image2.getMask();
 
-        final Pair< FloatProcessor, FloatProcessor > pair1 = makeFlatImage( layer1, AlignmentUtils.filterPatches( layer1, filter ), box, param.layerScale );
-        final Pair< FloatProcessor, FloatProcessor > pair2 = makeFlatImage( layer2, AlignmentUtils.filterPatches( layer2, filter ), box, param.layerScale );
-        
-        final FloatProcessor ip1 = pair1.a;
-        final FloatProcessor ip1Mask = pair1.b;
-        final FloatProcessor ip2 = pair2.a;
-        final FloatProcessor ip2Mask = pair2.b;
-        
         final AbstractModel< ? > localSmoothnessFilterModel =
                 Util.createModel(param.localModelIndex);
 
@@ -135,9 +250,12 @@ public class BlockMatchPairCallable implements
         final double localRegionSigma = param.layerScale * param.localRegionSigma;
         final double maxLocalEpsilon = param.layerScale * param.maxLocalEpsilon;
 
+        int[] sources12 = new int[0], sources21 = new int[0];
+        double[][] world1 = null, world2 = null;
+
         if (!layer1Fixed)
         {
-
+            final ArrayList<Point> v1 = points(l1, w1);
 
             BlockMatching.matchByMaximalPMCC(
                     ip1,
@@ -145,7 +263,7 @@ public class BlockMatchPairCallable implements
                     ip1Mask,
                     ip2Mask,
                     1.0,
-                    ((InvertibleCoordinateTransform) pair.c).createInverse(),
+                    ((InvertibleCoordinateTransform) model).createInverse(),
                     blockRadius,
                     blockRadius,
                     searchRadius,
@@ -167,17 +285,22 @@ public class BlockMatchPairCallable implements
                 localSmoothnessFilterModel.localSmoothnessFilter( pm12, pm12, localRegionSigma,
                         maxLocalEpsilon, param.maxLocalTrust );
             }
+
+            sources12 = sources(pm12, v1);
+            world1 = world(v1);
         }
 
         if (!layer2Fixed)
         {
+            final ArrayList<Point> v2 = points(l2, w2);
+
             BlockMatching.matchByMaximalPMCC(
                     ip2,
                     ip1,
                     ip2Mask,
                     ip1Mask,
                     1.0f,
-                    pair.c,
+                    model,
                     blockRadius,
                     blockRadius,
                     searchRadius,
@@ -198,12 +321,12 @@ public class BlockMatchPairCallable implements
             {
                 localSmoothnessFilterModel.localSmoothnessFilter( pm21, pm21, localRegionSigma, maxLocalEpsilon, param.maxLocalTrust );
             }
-        }
-
-//        Utils.log( pair.a + " <> " + pair.b + " spring constant = " + springConstant );
 
+            sources21 = sources(pm21, v2);
+            world2 = world(v2);
+        }
 
-        return new BlockMatchResults(v1, v2, pm12, pm21, layer1Fixed, layer2Fixed, pair);
+        return new BlockMatchResults(pm12, sources12, world1, pm21, sources21, world2);
     }
     
     /**
@@ -214,13 +337,12 @@ public class BlockMatchPairCallable implements
      * The alpha channel is returned with values between [0..1]
      * 
      * 
-     * @param layer
      * @param patches
      * @param box
      * @param scale
      * @return
      */
-    private Pair< FloatProcessor, FloatProcessor > makeFlatImage( final Layer layer, final List<Patch> patches, final Rectangle box, final double scale )
+    public static FlatImage makeFlatImage( final List<Patch> patches, final Rectangle box, final double scale )
     {    	
     	final Pair< FloatProcessor, FloatProcessor > pair = new ExportBestFlatImage( patches, box, 0, scale ).makeFlatFloatGrayImageAndAlpha();
     	
@@ -230,6 +352,6 @@ public class BlockMatchPairCallable implements
     		alpha[i] = alpha[i] / 255f;
     	}
     	
-    	return pair;
+    	return new FlatImage( pair.a, pair.b );
     }
 }
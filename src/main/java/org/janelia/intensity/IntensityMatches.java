@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package org.janelia.intensity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Growable packed buffer of 1D intensity correspondences (p, q, weight)
+ * that replaces a {@link List} of {@link PointMatch PointMatches} with one
+ * {@link Point} pair each.  Intensities are stored as float because they
+ * are sampled from float images anyway, weights as double.
+ */
+public class IntensityMatches
+{
+	protected float[] p;
+	protected float[] q;
+	protected double[] w;
+	protected int size = 0;
+
+	public IntensityMatches( final int initialCapacity )
+	{
+		p = new float[ initialCapacity ];
+		q = new float[ initialCapacity ];
+		w = new double[ initialCapacity ];
+	}
+
+	public IntensityMatches()
+	{
+		this( 64 );
+	}
+
+	final public void add( final float p, final float q, final double w )
+	{
+		if ( size == this.p.length )
+		{
+			final int capacity = Math.max( 16, size + ( size >> 1 ) );
+			this.p = Arrays.copyOf( this.p, capacity );
+			this.q = Arrays.copyOf( this.q, capacity );
+			this.w = Arrays.copyOf( this.w, capacity );
+		}
+		this.p[ size ] = p;
+		this.q[ size ] = q;
+		this.w[ size ] = w;
+		++size;
+	}
+
+	final public int size()
+	{
+		return size;
+	}
+
+	final public float getP( final int i )
+	{
+		return p[ i ];
+	}
+
+	final public float getQ( final int i )
+	{
+		return q[ i ];
+	}
+
+	final public double getWeight( final int i )
+	{
+		return w[ i ];
+	}
+
+	final public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * Create {@link PointMatch PointMatches} for filters that need them.
+	 */
+	public ArrayList< PointMatch > toPointMatches()
+	{
+		final ArrayList< PointMatch > matches = new ArrayList< PointMatch >( size );
+		for ( int i = 0; i < size; ++i )
+			matches.add( new PointMatch( new Point( new double[]{ p[ i ] } ), new Point( new double[]{ q[ i ] } ), w[ i ] ) );
+		return matches;
+	}
+}
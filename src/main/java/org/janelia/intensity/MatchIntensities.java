@@ -47,9 +47,12 @@ import java.awt.Rectangle;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -68,8 +71,6 @@ import mpicbg.models.PointMatch;
 import mpicbg.models.Tile;
 import mpicbg.models.TileConfiguration;
 import mpicbg.models.TranslationModel1D;
-import net.imglib2.img.list.ListImg;
-import net.imglib2.img.list.ListRandomAccess;
 import net.imglib2.util.ValuePair;
 
 /**
@@ -81,94 +82,98 @@ public class MatchIntensities implements TPlugIn
 {
 	final private class Matcher implements Runnable
 	{
-		final private Rectangle roi;
 		final private ValuePair< Patch, Patch > patchPair;
 		final private HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles;
 		final private PointMatchFilter filter;
-		final private double scale;
+		final private RenderCache renderCache;
 		final private int numCoefficients;
 
 		public Matcher(
-				final Rectangle roi,
 				final ValuePair< Patch, Patch > patchPair,
 				final HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles,
 				final PointMatchFilter filter,
-				final double scale,
+				final RenderCache renderCache,
 				final int numCoefficients )
 		{
-			this.roi = roi;
 			this.patchPair = patchPair;
 			this.coefficientsTiles = coefficientsTiles;
 			this.filter = filter;
-			this.scale = scale;
+			this.renderCache = renderCache;
 			this.numCoefficients = numCoefficients;
 		}
 
 		@Override
 		public void run()
+		{
+			try
+			{
+				match();
+			}
+			finally
+			{
+				renderCache.release( patchPair );
+			}
+		}
+
+		private void match()
 		{
 			final Patch p1 = patchPair.getA();
 			final Patch p2 = patchPair.getB();
 
-			final Rectangle box1 = p1.getBoundingBox().intersection( roi );
-
 			/* get the coefficient tiles */
 			final ArrayList< Tile< ? > > p1CoefficientsTiles = coefficientsTiles.get( p1 );
 
-			/* render intersection */
-			final Rectangle box2 = p2.getBoundingBox();
-			final Rectangle box = box1.intersection( box2 );
+			/* get the renderings, both are in the same grid */
+			final RenderCache.Rendered r1 = renderCache.get( p1 );
+			final RenderCache.Rendered r2 = renderCache.get( p2 );
+			final Rectangle box = r1.box.intersection( r2.box );
+			if ( box.isEmpty() )
+				return;
 
-			final int w = ( int ) ( box.width * scale + 0.5 );
-			final int h = ( int ) ( box.height * scale + 0.5 );
-			final int n = w * h;
-
-			final FloatProcessor pixels1 = new FloatProcessor( w, h );
-			final FloatProcessor weights1 = new FloatProcessor( w, h );
-			final ColorProcessor coefficients1 = new ColorProcessor( w, h );
-			final FloatProcessor pixels2 = new FloatProcessor( w, h );
-			final FloatProcessor weights2 = new FloatProcessor( w, h );
-			final ColorProcessor coefficients2 = new ColorProcessor( w, h );
-
-			Render.render( p1, numCoefficients, numCoefficients, pixels1, weights1, coefficients1, box.x, box.y, scale );
-			Render.render( p2, numCoefficients, numCoefficients, pixels2, weights2, coefficients2, box.x, box.y, scale );
+			final FloatProcessor pixels1 = r1.pixels;
+			final FloatProcessor weights1 = r1.weights;
+			final ColorProcessor coefficients1 = r1.coefficients;
+			final FloatProcessor pixels2 = r2.pixels;
+			final FloatProcessor weights2 = r2.weights;
+			final ColorProcessor coefficients2 = r2.coefficients;
 
 			/*
 			 * generate a matrix of all coefficients in p1 to all
-			 * coefficients in p2 to store matches
+			 * coefficients in p2 to store matches, packed per coefficient
+			 * pair to avoid a PointMatch per pixel
 			 */
-			final ArrayList< ArrayList< PointMatch > > list = new ArrayList< ArrayList< PointMatch > >();
-			for ( int i = 0; i < numCoefficients * numCoefficients * numCoefficients * numCoefficients; ++i )
-				list.add( new ArrayList< PointMatch >() );
-			final ListImg< ArrayList< PointMatch > > matrix = new ListImg< ArrayList< PointMatch > >( list, numCoefficients * numCoefficients, numCoefficients * numCoefficients );
-			final ListRandomAccess< ArrayList< PointMatch > > ra = matrix.randomAccess();
+			final int numCoefficients2 = numCoefficients * numCoefficients;
+			final IntensityMatches[] samples = new IntensityMatches[ numCoefficients2 * numCoefficients2 ];
 
 			/*
-			 * iterate over all pixels and feed matches into the match
-			 * matrix
+			 * iterate over all pixels of the intersection and feed matches
+			 * into the match matrix
 			 */
-			for ( int i = 0; i < n; ++i )
+			for ( int y = box.y; y < box.y + box.height; ++y )
 			{
-				final int c1 = coefficients1.get( i );
-				if ( c1 > 0 )
+				int i1 = ( y - r1.box.y ) * r1.box.width + box.x - r1.box.x;
+				int i2 = ( y - r2.box.y ) * r2.box.width + box.x - r2.box.x;
+				for ( int x = 0; x < box.width; ++x, ++i1, ++i2 )
 				{
-					final int c2 = coefficients2.get( i );
-					if ( c2 > 0 )
+					final int c1 = coefficients1.get( i1 );
+					if ( c1 > 0 )
 					{
-						final double w1 = weights1.getf( i );
-						if ( w1 > 0 )
+						final int c2 = coefficients2.get( i2 );
+						if ( c2 > 0 )
 						{
-							final double w2 = weights2.getf( i );
-							if ( w2 > 0 )
+							final double w1 = weights1.getf( i1 );
+							if ( w1 > 0 )
 							{
-								final double p = pixels1.getf( i );
-								final double q = pixels2.getf( i );
-								final PointMatch pq = new PointMatch( new Point( new double[] { p } ), new Point( new double[] { q } ), w1 * w2 );
-
-								/* first label is 1 */
-								ra.setPosition( c1 - 1, 0 );
-								ra.setPosition( c2 - 1, 1 );
-								ra.get().add( pq );
+								final double w2 = weights2.getf( i2 );
+								if ( w2 > 0 )
+								{
+									/* first label is 1 */
+									final int k = ( c2 - 1 ) * numCoefficients2 + c1 - 1;
+									IntensityMatches s = samples[ k ];
+									if ( s == null )
+										samples[ k ] = s = new IntensityMatches();
+									s.add( pixels1.getf( i1 ), pixels2.getf( i2 ), w1 * w2 );
+								}
 							}
 						}
 					}
@@ -176,33 +181,38 @@ public class MatchIntensities implements TPlugIn
 			}
 
 			/* filter matches */
-			final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
-			for ( final ArrayList< PointMatch > candidates : matrix )
+			final ArrayList< ArrayList< PointMatch > > matrix = new ArrayList< ArrayList< PointMatch > >( samples.length );
+			for ( int k = 0; k < samples.length; ++k )
 			{
-				inliers.clear();
-				filter.filter( candidates, inliers );
-				candidates.clear();
-				candidates.addAll( inliers );
+				final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
+				final IntensityMatches candidates = samples[ k ];
+				if ( candidates != null )
+				{
+					if ( filter instanceof RansacRegressionReduceFilter )
+						( ( RansacRegressionReduceFilter )filter ).filter( candidates, inliers );
+					else
+						filter.filter( candidates.toPointMatches(), inliers );
+					samples[ k ] = null;
+				}
+				matrix.add( inliers );
 			}
 
 			/* get the coefficient tiles of p2 */
 			final ArrayList< Tile< ? > > p2CoefficientsTiles = coefficientsTiles.get( p2 );
 
 			/* connect tiles across patches */
-			for ( int i = 0; i < numCoefficients * numCoefficients; ++i )
+			for ( int i = 0; i < numCoefficients2; ++i )
 			{
 				final Tile< ? > t1 = p1CoefficientsTiles.get( i );
-				ra.setPosition( i, 0 );
-				for ( int j = 0; j < numCoefficients * numCoefficients; ++j )
+				for ( int j = 0; j < numCoefficients2; ++j )
 				{
-					ra.setPosition( j, 1 );
-					final ArrayList< PointMatch > matches = ra.get();
+					final ArrayList< PointMatch > matches = matrix.get( j * numCoefficients2 + i );
 					if ( matches.size() > 0 )
 					{
 						final Tile< ? > t2 = p2CoefficientsTiles.get( j );
 						synchronized ( MatchIntensities.this )
 						{
-							t1.connect( t2, ra.get() );
+							t1.connect( t2, matches );
 							IJ.log( "Connected patch " + p1.getId() + ", coefficient " + i + "  +  patch " + p2.getId() + ", coefficient " + j + " by " + matches.size() + " samples." );
 						}
 					}
@@ -220,6 +230,7 @@ public class MatchIntensities implements TPlugIn
 	static protected int radius = 5;
 	static protected int iterations = 2000;
 	static protected double scale = -1;
+	static protected int windowSize = 0;
 
 	private Layer currentLayer( final Object... params )
 	{
@@ -342,6 +353,7 @@ public class MatchIntensities implements TPlugIn
         gd.addNumericField( "scale_regularization :", lambda1, 2, 6, "" );
         gd.addNumericField( "translation_regularization :", lambda2, 2, 6, "" );
         gd.addNumericField( "smoothness_regularization :", neighborWeight, 2, 6, "" );
+        gd.addNumericField( "solve_window :", windowSize, 0, 6, "layers (0 for all at once)" );
         gd.showDialog();
 
         if ( gd.wasCanceled() )
@@ -356,10 +368,11 @@ public class MatchIntensities implements TPlugIn
         lambda1 = gd.getNextNumber();
         lambda2 = gd.getNextNumber();
         neighborWeight = gd.getNextNumber();
+        windowSize = ( int )gd.getNextNumber();
 
 		try
 		{
-			run( layers, radius, scale, numCoefficients, lambda1, lambda2, neighborWeight, getRoi( layerset ) );
+			run( layers, radius, scale, numCoefficients, lambda1, lambda2, neighborWeight, getRoi( layerset ), windowSize );
 		}
 		catch ( final InterruptedException e )
 		{
@@ -382,61 +395,24 @@ public class MatchIntensities implements TPlugIn
     }
 
 
-    /**
-     * @param layers
-     * @param radius
-     * @param scale
-     * @param numCoefficients
-     * @param lambda1
-     * @param lambda2
-     * @param neighborWeight
-     * @param roi
-     */
-	public < M extends Model< M > & Affine1D< M > > void run(
-			final List< Layer > layers,
+	/**
+	 * Collect pairs of overlapping patches that are at most radius layers
+	 * apart, both in layers [firstLayerIndex, lastLayerIndex].  Pairs of two
+	 * patches in <code>fixed</code> are skipped because they do not
+	 * constrain anything.
+	 */
+	protected ArrayList< ValuePair< Patch, Patch > > collectPatchPairs(
+			final List< Patch > patches,
+			final Set< Patch > fixed,
 			final int radius,
-			final double scale,
-			final int numCoefficients,
-			final double lambda1,
-			final double lambda2,
-			final double neighborWeight,
-			final Rectangle roi ) throws InterruptedException, ExecutionException
+			final int firstLayerIndex,
+			final int lastLayerIndex,
+			final Rectangle roi )
 	{
-		final int firstLayerIndex = layerset.getLayerIndex( layers.get( 0 ).getId() );
-		final int lastLayerIndex = layerset.getLayerIndex( layers.get( layers.size() - 1 ).getId() );
-
-		// final PointMatchFilter filter = new RansacRegressionFilter();
-		final PointMatchFilter filter = new RansacRegressionReduceFilter();
-
-		/* collect patches */
-		Utils.log( "Collecting patches ... " );
-		final ArrayList< Patch > patches = new ArrayList< Patch >();
-		for ( final Layer layer : layers )
-			patches.addAll( ( Collection )layer.getDisplayables( Patch.class, roi ) );
-
-		/* delete existing intensity coefficients */
-		Utils.log( "Clearing existing intensity maps ... " );
-		for ( final Patch p : patches )
-			p.clearIntensityMap();
-
-		/* generate coefficient tiles for all patches
-		 * TODO consider offering alternative models */
-		final HashMap< Patch, ArrayList< Tile< ? extends M > > > coefficientsTiles =
-				( HashMap ) generateCoefficientsTiles(
-						patches,
-						new InterpolatedAffineModel1D< InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >, IdentityModel >(
-								new InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >(
-										new AffineModel1D(), new TranslationModel1D(), lambda1 ),
-								new IdentityModel(), lambda2 ),
-						numCoefficients * numCoefficients );
-
 		/* completed patches */
 		final HashSet< Patch > completedPatches = new HashSet< Patch >();
 
-		/* collect patch pairs */
-		Utils.log( "Collecting patch pairs ... " );
 		final ArrayList< ValuePair< Patch, Patch > > patchPairs = new ArrayList< ValuePair< Patch, Patch > >();
-
 		for ( final Patch p1 : patches )
 		{
 			completedPatches.add( p1 );
@@ -463,9 +439,48 @@ public class MatchIntensities implements TPlugIn
 				if ( completedPatches.contains( p2 ) )
 					continue;
 
+				if ( fixed.contains( p1 ) && fixed.contains( p2 ) )
+					continue;
+
 				patchPairs.add( new ValuePair< Patch, Patch >( p1, p2 ) );
 			}
 		}
+		return patchPairs;
+	}
+
+	/**
+	 * Match intensities of all patch pairs and connect their coefficient
+	 * tiles.
+	 */
+	protected void matchPatchPairs(
+			final List< Patch > patches,
+			final ArrayList< ValuePair< Patch, Patch > > patchPairs,
+			final HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles,
+			final PointMatchFilter filter,
+			final double scale,
+			final int numCoefficients,
+			final Rectangle roi ) throws InterruptedException, ExecutionException
+	{
+		/*
+		 * order pairs by the position of their patches in the layer
+		 * ordered patch list, so that renderings are reused while they are
+		 * cached and can be dropped soon after
+		 */
+		final HashMap< Patch, Integer > patchIndices = new HashMap< Patch, Integer >();
+		for ( int i = 0; i < patches.size(); ++i )
+			patchIndices.put( patches.get( i ), i );
+		Collections.sort( patchPairs, new Comparator< ValuePair< Patch, Patch > >()
+		{
+			@Override
+			public int compare( final ValuePair< Patch, Patch > o1, final ValuePair< Patch, Patch > o2 )
+			{
+				final int a1 = patchIndices.get( o1.getA() ), a2 = patchIndices.get( o2.getA() );
+				if ( a1 != a2 )
+					return a1 < a2 ? -1 : 1;
+				final int b1 = patchIndices.get( o1.getB() ), b2 = patchIndices.get( o2.getB() );
+				return b1 < b2 ? -1 : b1 == b2 ? 0 : 1;
+			}
+		} );
 
 		final int numThreads = Integer.parseInt(
 				layerset.getProperty(
@@ -474,60 +489,77 @@ public class MatchIntensities implements TPlugIn
 
 		Utils.log( "Matching intensities using " + numThreads + " threads ... " );
 
+		final RenderCache renderCache = new RenderCache( patchPairs, roi, scale, numCoefficients, RenderCache.defaultMaxBytes() );
 		final ExecutorService exec = Executors.newFixedThreadPool( numThreads );
 		final ArrayList< Future< ? > > futures = new ArrayList< Future< ? > >();
-		for ( final ValuePair< Patch, Patch > patchPair : patchPairs )
+		try
 		{
-			futures.add(
-					exec.submit(
-							new Matcher(
-									roi,
-									patchPair,
-									( HashMap )coefficientsTiles,
-									filter,
-									scale,
-									numCoefficients ) ) );
-		}
-
-		for ( final Future< ? > future : futures )
-			future.get();
+			for ( final ValuePair< Patch, Patch > patchPair : patchPairs )
+			{
+				/* wait until the renderings fit into memory */
+				renderCache.reserve( patchPair );
+				futures.add(
+						exec.submit(
+								new Matcher(
+										patchPair,
+										coefficientsTiles,
+										filter,
+										renderCache,
+										numCoefficients ) ) );
+			}
 
-		/* connect tiles within patches */
-		Utils.log( "Connecting coefficient tiles in the same patch  ... " );
-		for ( final Patch p1 : completedPatches )
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		finally
 		{
-			/* get the coefficient tiles */
-			final ArrayList< Tile< ? extends M > > p1CoefficientsTiles = coefficientsTiles.get( p1 );
+			exec.shutdown();
+		}
+	}
 
-			for ( int y = 1; y < numCoefficients; ++y )
+	/**
+	 * Connect the coefficient tiles of a patch with their direct neighbors.
+	 */
+	final static protected void connectCoefficientsTiles(
+			final ArrayList< ? extends Tile< ? > > p1CoefficientsTiles,
+			final int numCoefficients,
+			final double neighborWeight )
+	{
+		for ( int y = 1; y < numCoefficients; ++y )
+		{
+			final int yr = numCoefficients * y;
+			final int yr1 = yr - numCoefficients;
+			for ( int x = 0; x < numCoefficients; ++x )
 			{
-				final int yr = numCoefficients * y;
-				final int yr1 = yr - numCoefficients;
-				for ( int x = 0; x < numCoefficients; ++x )
-				{
-					identityConnect( p1CoefficientsTiles.get( yr1 + x ), p1CoefficientsTiles.get( yr + x ), neighborWeight );
-				}
+				identityConnect( p1CoefficientsTiles.get( yr1 + x ), p1CoefficientsTiles.get( yr + x ), neighborWeight );
 			}
-			for ( int y = 0; y < numCoefficients; ++y )
+		}
+		for ( int y = 0; y < numCoefficients; ++y )
+		{
+			final int yr = numCoefficients * y;
+			for ( int x = 1; x < numCoefficients; ++x )
 			{
-				final int yr = numCoefficients * y;
-				for ( int x = 1; x < numCoefficients; ++x )
-				{
-					final int yrx = yr + x;
-					identityConnect( p1CoefficientsTiles.get( yrx ), p1CoefficientsTiles.get( yrx - 1 ), neighborWeight );
-				}
+				final int yrx = yr + x;
+				identityConnect( p1CoefficientsTiles.get( yrx ), p1CoefficientsTiles.get( yrx - 1 ), neighborWeight );
 			}
 		}
+	}
 
-		/* optimize */
-		Utils.log( "Optimizing ... " );
+	/**
+	 * Optimize all coefficient tiles, keeping those of <code>fixed</code>
+	 * patches fixed.
+	 */
+	final static protected void optimize(
+			final HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles,
+			final Set< Patch > fixed )
+	{
 		final TileConfiguration tc = new TileConfiguration();
-		for ( final ArrayList< Tile< ? extends M > > coefficients : coefficientsTiles.values() )
+		for ( final Entry< Patch, ArrayList< Tile< ? > > > entry : coefficientsTiles.entrySet() )
 		{
-			// for ( final Tile< ? > t : coefficients )
-			// if ( t.getMatches().size() == 0 )
-			// IJ.log( "bang" );
-			tc.addTiles( coefficients );
+			tc.addTiles( entry.getValue() );
+			if ( fixed.contains( entry.getKey() ) )
+				for ( final Tile< ? > t : entry.getValue() )
+					tc.fixTile( t );
 		}
 
 		try
@@ -544,47 +576,236 @@ public class MatchIntensities implements TPlugIn
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+	}
 
-		/* save coefficients */
+	/**
+	 * Save the coefficients of a patch into the trakem2.its folder.
+	 */
+	final static protected void saveCoefficients(
+			final Patch p,
+			final ArrayList< ? extends Tile< ? > > tiles,
+			final int numCoefficients,
+			final String itsDir )
+	{
 		final double[] ab = new double[ 2 ];
-		final FSLoader loader = ( FSLoader ) layerset.getProject().getLoader();
-		final String itsDir = loader.getUNUIdFolder() + "trakem2.its/";
-		for ( final Entry< Patch, ArrayList< Tile< ? extends M > > > entry : coefficientsTiles.entrySet() )
+		final FloatProcessor as = new FloatProcessor( numCoefficients, numCoefficients );
+		final FloatProcessor bs = new FloatProcessor( numCoefficients, numCoefficients );
+
+		final double min = p.getMin();
+		final double max = p.getMax();
+
+		for ( int i = 0; i < numCoefficients * numCoefficients; ++i )
 		{
-			final FloatProcessor as = new FloatProcessor( numCoefficients, numCoefficients );
-			final FloatProcessor bs = new FloatProcessor( numCoefficients, numCoefficients );
+			final Tile< ? > t = tiles.get( i );
+			final Affine1D< ? > affine = ( Affine1D< ? > )t.getModel();
+			affine.toArray( ab );
 
-			final Patch p = entry.getKey();
+			/* coefficients mapping into existing [min, max] */
+			as.setf( i, ( float ) ab[ 0 ] );
+			bs.setf( i, ( float ) ( ( max - min ) * ab[ 1 ] + min - ab[ 0 ] * min ) );
+		}
+		final ImageStack coefficientsStack = new ImageStack( numCoefficients, numCoefficients );
+		coefficientsStack.addSlice( as );
+		coefficientsStack.addSlice( bs );
 
-			final double min = p.getMin();
-			final double max = p.getMax();
+		final String itsPath = itsDir + FSLoader.createIdPath( Long.toString( p.getId() ), "it", ".tif" );
+		new File( itsPath ).getParentFile().mkdirs();
+		IJ.saveAs( new ImagePlus( "", coefficientsStack ), "tif", itsPath );
+	}
 
-			final ArrayList< Tile< ? extends M > > tiles = entry.getValue();
-			for ( int i = 0; i < numCoefficients * numCoefficients; ++i )
-			{
-				final Tile< ? extends M > t = tiles.get( i );
-				final Affine1D< ? > affine = t.getModel();
-				affine.toArray( ab );
+	final static protected InterpolatedAffineModel1D< InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >, IdentityModel > createTemplate(
+			final double lambda1,
+			final double lambda2 )
+	{
+		/* TODO consider offering alternative models */
+		return new InterpolatedAffineModel1D< InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >, IdentityModel >(
+				new InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >(
+						new AffineModel1D(), new TranslationModel1D(), lambda1 ),
+				new IdentityModel(), lambda2 );
+	}
 
-				/* coefficients mapping into existing [min, max] */
-				as.setf( i, ( float ) ab[ 0 ] );
-				bs.setf( i, ( float ) ( ( max - min ) * ab[ 1 ] + min - ab[ 0 ] * min ) );
-			}
-			final ImageStack coefficientsStack = new ImageStack( numCoefficients, numCoefficients );
-			coefficientsStack.addSlice( as );
-			coefficientsStack.addSlice( bs );
+	protected ArrayList< Patch > collectPatches( final int firstLayerIndex, final int lastLayerIndex, final Rectangle roi )
+	{
+		final ArrayList< Patch > patches = new ArrayList< Patch >();
+		for ( int i = firstLayerIndex; i <= lastLayerIndex; ++i )
+			patches.addAll( ( Collection )layerset.getLayer( i ).getDisplayables( Patch.class, roi ) );
+		return patches;
+	}
 
-			final String itsPath = itsDir + FSLoader.createIdPath( Long.toString( p.getId() ), "it", ".tif" );
-			new File( itsPath ).getParentFile().mkdirs();
-			IJ.saveAs( new ImagePlus( "", coefficientsStack ), "tif", itsPath );
-		}
+	/**
+	 * Save coefficients, release cached images and regenerate mipmaps of
+	 * solved patches.
+	 */
+	final protected void commit(
+			final HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles,
+			final Collection< Patch > patches,
+			final int numCoefficients,
+			final ArrayList< Future< Boolean > > mipmapFutures )
+	{
+		final FSLoader loader = ( FSLoader ) layerset.getProject().getLoader();
+		final String itsDir = loader.getUNUIdFolder() + "trakem2.its/";
+		for ( final Patch p : patches )
+			saveCoefficients( p, coefficientsTiles.get( p ), numCoefficients, itsDir );
 
 		/* update mipmaps */
 		for ( final Patch p : patches )
-			p.getProject().getLoader().decacheImagePlus(p.getId());
-		final ArrayList< Future< Boolean > > mipmapFutures = new ArrayList< Future< Boolean > >();
+			p.getProject().getLoader().decacheImagePlus( p.getId() );
 		for ( final Patch p : patches )
 			mipmapFutures.add( p.updateMipMaps() );
+	}
+
+	/**
+	 * @param layers
+	 * @param radius
+	 * @param scale
+	 * @param numCoefficients
+	 * @param lambda1
+	 * @param lambda2
+	 * @param neighborWeight
+	 * @param roi
+	 */
+	public void run(
+			final List< Layer > layers,
+			final int radius,
+			final double scale,
+			final int numCoefficients,
+			final double lambda1,
+			final double lambda2,
+			final double neighborWeight,
+			final Rectangle roi ) throws InterruptedException, ExecutionException
+	{
+		run( layers, radius, scale, numCoefficients, lambda1, lambda2, neighborWeight, roi, 0 );
+	}
+
+	/**
+	 * Match intensities and solve for the coefficients of all patches in
+	 * <code>layers</code>.
+	 *
+	 * With a <code>windowSize</code> smaller than the number of layers, the
+	 * layers are solved in overlapping blocks of <code>windowSize</code>
+	 * layers instead of all at once.  Each block keeps the coefficients of
+	 * the last <code>radius</code> already solved layers fixed as boundary
+	 * condition, and the last <code>radius</code> layers of a block are
+	 * solved again in the next block.  Coefficients are written to the
+	 * trakem2.its folder and coefficient tiles released as soon as a layer
+	 * no longer serves as boundary, so memory is bounded by the window size.
+	 * The result approximates the global solution.
+	 *
+	 * @param layers
+	 * @param radius
+	 * @param scale
+	 * @param numCoefficients
+	 * @param lambda1
+	 * @param lambda2
+	 * @param neighborWeight
+	 * @param roi
+	 * @param windowSize number of layers solved at once, &le;0 for all
+	 */
+	public void run(
+			final List< Layer > layers,
+			final int radius,
+			final double scale,
+			final int numCoefficients,
+			final double lambda1,
+			final double lambda2,
+			final double neighborWeight,
+			final Rectangle roi,
+			final int windowSize ) throws InterruptedException, ExecutionException
+	{
+		final int firstLayerIndex = layerset.getLayerIndex( layers.get( 0 ).getId() );
+		final int lastLayerIndex = layerset.getLayerIndex( layers.get( layers.size() - 1 ).getId() );
+		final int numLayers = lastLayerIndex - firstLayerIndex + 1;
+
+		// final PointMatchFilter filter = new RansacRegressionFilter();
+		final PointMatchFilter filter = new RansacRegressionReduceFilter();
+
+		final InterpolatedAffineModel1D< InterpolatedAffineModel1D< AffineModel1D, TranslationModel1D >, IdentityModel > template =
+				createTemplate( lambda1, lambda2 );
+
+		/* layers solved in one block and layers finally solved per block */
+		final int window = windowSize <= 0 || windowSize >= numLayers ? numLayers : windowSize;
+		final int step = window == numLayers ? numLayers : Math.max( 1, window - radius );
+
+		/* solved coefficient tiles of layers that serve as boundary */
+		final HashMap< Patch, ArrayList< Tile< ? > > > boundaryTiles = new HashMap< Patch, ArrayList< Tile< ? > > >();
+		final ArrayList< Future< Boolean > > mipmapFutures = new ArrayList< Future< Boolean > >();
+		int clearedLayerIndex = firstLayerIndex - 1;
+
+		for ( int c = firstLayerIndex; c <= lastLayerIndex; c += step )
+		{
+			final int blockLast = Math.min( lastLayerIndex, c + window - 1 );
+			final int commitLast = blockLast == lastLayerIndex ? lastLayerIndex : c + step - 1;
+			final int fixedFirst = Math.max( firstLayerIndex, c - radius );
+
+			if ( window < numLayers )
+				Utils.log( "Solving layers " + c + " to " + blockLast + " ... " );
+
+			/* collect patches */
+			Utils.log( "Collecting patches ... " );
+			final ArrayList< Patch > fixedPatches = collectPatches( fixedFirst, c - 1, roi );
+			final ArrayList< Patch > blockPatches = collectPatches( c, blockLast, roi );
+			final ArrayList< Patch > patches = new ArrayList< Patch >( fixedPatches );
+			patches.addAll( blockPatches );
+			final HashSet< Patch > fixed = new HashSet< Patch >( fixedPatches );
+
+			/* delete existing intensity coefficients */
+			Utils.log( "Clearing existing intensity maps ... " );
+			if ( blockLast > clearedLayerIndex )
+			{
+				for ( final Patch p : collectPatches( clearedLayerIndex + 1, blockLast, roi ) )
+					p.clearIntensityMap();
+				clearedLayerIndex = blockLast;
+			}
+
+			/* generate coefficient tiles for all patches, boundary patches start from their solution */
+			final HashMap< Patch, ArrayList< Tile< ? > > > coefficientsTiles =
+					( HashMap )generateCoefficientsTiles( blockPatches, template, numCoefficients * numCoefficients );
+			for ( final Patch p : fixedPatches )
+			{
+				final ArrayList< Tile< ? > > tiles = new ArrayList< Tile< ? > >();
+				for ( final Tile< ? > t : boundaryTiles.get( p ) )
+					tiles.add( new Tile( t.getModel().copy() ) );
+				coefficientsTiles.put( p, tiles );
+			}
+
+			/* collect patch pairs */
+			Utils.log( "Collecting patch pairs ... " );
+			final ArrayList< ValuePair< Patch, Patch > > patchPairs =
+					collectPatchPairs( patches, fixed, radius, fixedFirst, blockLast, roi );
+
+			matchPatchPairs( patches, patchPairs, coefficientsTiles, filter, scale, numCoefficients, roi );
+
+			/* connect tiles within patches */
+			Utils.log( "Connecting coefficient tiles in the same patch  ... " );
+			for ( final Patch p1 : blockPatches )
+				connectCoefficientsTiles( coefficientsTiles.get( p1 ), numCoefficients, neighborWeight );
+
+			/* optimize */
+			Utils.log( "Optimizing ... " );
+			optimize( coefficientsTiles, fixed );
+
+			/* keep the solution of committed layers as boundary for the next block */
+			for ( final Patch p : blockPatches )
+			{
+				final int layerIndex = layerset.getLayerIndex( p.getLayer().getId() );
+				if ( layerIndex <= commitLast )
+					boundaryTiles.put( p, coefficientsTiles.get( p ) );
+			}
+
+			/*
+			 * save boundary layers that are not needed anymore, only then,
+			 * because saved coefficients are applied when patches are
+			 * rendered
+			 */
+			final int nextFixedFirst = commitLast == lastLayerIndex ? lastLayerIndex + 1 : Math.max( firstLayerIndex, commitLast + 1 - radius );
+			final ArrayList< Patch > done = new ArrayList< Patch >();
+			for ( final Patch p : boundaryTiles.keySet() )
+				if ( layerset.getLayerIndex( p.getLayer().getId() ) < nextFixedFirst )
+					done.add( p );
+			commit( boundaryTiles, done, numCoefficients, mipmapFutures );
+			for ( final Patch p : done )
+				boundaryTiles.remove( p );
+		}
 
 		for ( final Future< Boolean > f : mipmapFutures )
 			f.get();
@@ -24,9 +24,11 @@
  */
 package org.janelia.intensity;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 
 import mpicbg.models.AffineModel1D;
 import mpicbg.models.Model;
@@ -101,4 +103,161 @@ public class RansacRegressionReduceFilter implements PointMatchFilter
 		}
 	}
 
+	/**
+	 * Weighted linear regression <code>q = a * p + b</code> over the samples
+	 * <code>indices[0..n)</code>, as {@link AffineModel1D#fit} does it.
+	 *
+	 * @return false if the samples do not define a line
+	 */
+	final static protected boolean fit( final IntensityMatches matches, final int[] indices, final int n, final double[] ab )
+	{
+		double ws = 0, pc = 0, qc = 0;
+		for ( int k = 0; k < n; ++k )
+		{
+			final int i = indices[ k ];
+			final double w = matches.w[ i ];
+			ws += w;
+			pc += w * matches.p[ i ];
+			qc += w * matches.q[ i ];
+		}
+		if ( ws == 0 )
+			return false;
+		pc /= ws;
+		qc /= ws;
+
+		double pp = 0, pq = 0;
+		for ( int k = 0; k < n; ++k )
+		{
+			final int i = indices[ k ];
+			final double w = matches.w[ i ];
+			final double dp = matches.p[ i ] - pc;
+			pp += w * dp * dp;
+			pq += w * dp * ( matches.q[ i ] - qc );
+		}
+		if ( pp == 0 )
+			return false;
+		ab[ 0 ] = pq / pp;
+		ab[ 1 ] = qc - ab[ 0 ] * pc;
+		return true;
+	}
+
+	/**
+	 * Collect all samples closer than <code>maxEpsilon</code> to the line
+	 * into <code>inliers</code>.
+	 *
+	 * @return number of inliers
+	 */
+	final protected int test( final IntensityMatches matches, final double[] ab, final int[] inliers )
+	{
+		int n = 0;
+		for ( int i = 0; i < matches.size; ++i )
+			if ( Math.abs( ab[ 0 ] * matches.p[ i ] + ab[ 1 ] - matches.q[ i ] ) < maxEpsilon )
+				inliers[ n++ ] = i;
+		return n;
+	}
+
+	final protected boolean isGood( final int numInliers, final int numCandidates )
+	{
+		return numInliers >= minNumInliers && numInliers >= minInlierRatio * numCandidates;
+	}
+
+	/**
+	 * Same as {@link #filter(List, Collection)} but operates on packed
+	 * samples, so that no {@link PointMatch} is created per sample.  Follows
+	 * {@link Model#filterRansac}: RANSAC with local re-fit on the inliers of
+	 * each hypothesis, then iterative removal of samples farther than
+	 * <code>maxTrust</code> times the median residual.  Thread safe, unlike
+	 * the {@link PointMatch} variant which shares {@link #model}.
+	 */
+	public void filter( final IntensityMatches candidates, final Collection< PointMatch > inliers )
+	{
+		inliers.clear();
+		final int n = candidates.size();
+		if ( n < 2 )
+			return;
+
+		final Random rnd = new Random( 69997 );
+		final int[] indices = new int[ n ];
+		final int[] tempIndices = new int[ n ];
+		final int[] bestIndices = new int[ n ];
+		int numBest = 0;
+		final double[] ab = new double[ 2 ];
+		final int[] pair = new int[ 2 ];
+
+		/* RANSAC */
+		for ( int it = 0; it < iterations; ++it )
+		{
+			pair[ 0 ] = rnd.nextInt( n );
+			do
+				pair[ 1 ] = rnd.nextInt( n );
+			while ( pair[ 1 ] == pair[ 0 ] );
+			if ( !fit( candidates, pair, 2, ab ) )
+				continue;
+
+			int numInliers = 0;
+			int numTempInliers = test( candidates, ab, tempIndices );
+			boolean good = isGood( numTempInliers, n );
+			while ( good && numInliers < numTempInliers )
+			{
+				numInliers = numTempInliers;
+				if ( !fit( candidates, tempIndices, numTempInliers, ab ) )
+				{
+					good = false;
+					break;
+				}
+				numTempInliers = test( candidates, ab, tempIndices );
+				good = isGood( numTempInliers, n );
+			}
+			if ( good && numTempInliers > numBest )
+			{
+				numBest = numTempInliers;
+				System.arraycopy( tempIndices, 0, bestIndices, 0, numBest );
+			}
+		}
+		if ( numBest == 0 )
+			return;
+
+		/* robust iterative refinement */
+		final double[] residuals = new double[ numBest ];
+		System.arraycopy( bestIndices, 0, indices, 0, numBest );
+		int numInliers, numFiltered = numBest;
+		do
+		{
+			numInliers = numFiltered;
+			if ( !fit( candidates, indices, numInliers, ab ) )
+				return;
+			for ( int k = 0; k < numInliers; ++k )
+			{
+				final int i = indices[ k ];
+				residuals[ k ] = Math.abs( ab[ 0 ] * candidates.p[ i ] + ab[ 1 ] - candidates.q[ i ] );
+			}
+			System.arraycopy( indices, 0, tempIndices, 0, numInliers );
+			final double[] sorted = Arrays.copyOf( residuals, numInliers );
+			Arrays.sort( sorted );
+			final int m = numInliers / 2;
+			final double median = ( numInliers & 1 ) == 0 ? 0.5 * ( sorted[ m - 1 ] + sorted[ m ] ) : sorted[ m ];
+			final double t = median * maxTrust;
+			numFiltered = 0;
+			for ( int k = 0; k < numInliers; ++k )
+				if ( residuals[ k ] <= t )
+					indices[ numFiltered++ ] = tempIndices[ k ];
+		}
+		while ( numInliers > numFiltered );
+		if ( numInliers < minNumInliers || !fit( candidates, indices, numInliers, ab ) )
+			return;
+
+		double min = candidates.p[ indices[ 0 ] ], max = min;
+		for ( int k = 1; k < numInliers; ++k )
+		{
+			final double x = candidates.p[ indices[ k ] ];
+			if ( x < min )
+				min = x;
+			else if ( x > max )
+				max = x;
+		}
+
+		inliers.add( new PointMatch( new Point( new double[]{ min } ), new Point( new double[]{ ab[ 0 ] * min + ab[ 1 ] } ) ) );
+		inliers.add( new PointMatch( new Point( new double[]{ max } ), new Point( new double[]{ ab[ 0 ] * max + ab[ 1 ] } ) ) );
+	}
+
 }
@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * TrakEM2 plugin for ImageJ.
+ * %%
+ * Copyright (C) 2005 - 2022 Albert Cardona, Stephan Saalfeld and others.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package org.janelia.intensity;
+
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ini.trakem2.display.Patch;
+import ini.trakem2.persistence.Loader;
+import ini.trakem2.utils.Utils;
+
+import java.awt.Rectangle;
+import java.util.Collection;
+import java.util.HashMap;
+
+import net.imglib2.util.ValuePair;
+
+/**
+ * Renders every {@link Patch} only once for all pairs that it participates
+ * in, and keeps the rendering only as long as pairs that need it are
+ * pending.  Patches are rendered into a grid that is shared by all patches
+ * (world coordinates multiplied by scale, rounded to full pixels), so that
+ * the overlap of two patches can be cut from their renderings without
+ * resampling.
+ *
+ * {@link #reserve(ValuePair)} blocks until the renderings of a pair fit into the
+ * memory budget, which bounds the memory used by concurrent pairs.  The
+ * budget is soft: a pair is admitted when no other pair is in flight even if
+ * its renderings alone exceed the budget, because waiting could not make room
+ * for it.  Such admissions are logged; lower the scale if they are frequent.
+ */
+public class RenderCache
+{
+	/** A {@link Patch} rendered at a grid box. */
+	final static public class Rendered
+	{
+		/** in grid (scaled world) pixel coordinates */
+		final public Rectangle box;
+		final public FloatProcessor pixels;
+		final public FloatProcessor weights;
+		final public ColorProcessor coefficients;
+
+		Rendered( final Rectangle box )
+		{
+			this.box = box;
+			pixels = new FloatProcessor( box.width, box.height );
+			weights = new FloatProcessor( box.width, box.height );
+			coefficients = new ColorProcessor( box.width, box.height );
+		}
+	}
+
+	final protected class Entry
+	{
+		final Patch patch;
+		final Rectangle box;
+		final long bytes;
+		int references = 0;
+		boolean reserved = false;
+		Rendered rendered = null;
+
+		Entry( final Patch patch )
+		{
+			this.patch = patch;
+			final Rectangle world = patch.getBoundingBox().intersection( roi );
+			final int x0 = ( int )Math.floor( world.x * scale );
+			final int y0 = ( int )Math.floor( world.y * scale );
+			final int x1 = ( int )Math.ceil( ( world.x + world.width ) * scale );
+			final int y1 = ( int )Math.ceil( ( world.y + world.height ) * scale );
+			box = new Rectangle( x0, y0, Math.max( 0, x1 - x0 ), Math.max( 0, y1 - y0 ) );
+			/* float pixels, float weights, int coefficients */
+			bytes = 12L * box.width * box.height;
+		}
+
+		/* synchronized on the Entry so that different patches render concurrently */
+		synchronized Rendered render()
+		{
+			if ( rendered == null )
+			{
+				patch.getProject().getLoader().releaseToFit( bytes );
+				final Rendered r = new Rendered( box );
+				Render.render(
+						patch,
+						numCoefficients,
+						numCoefficients,
+						r.pixels,
+						r.weights,
+						r.coefficients,
+						box.x / scale,
+						box.y / scale,
+						scale );
+				rendered = r;
+			}
+			return rendered;
+		}
+	}
+
+	final protected HashMap< Patch, Entry > entries = new HashMap< Patch, Entry >();
+	final protected Rectangle roi;
+	final protected double scale;
+	final protected int numCoefficients;
+	final protected long maxBytes;
+	protected long bytes = 0;
+	protected int numPairsInFlight = 0;
+
+	/**
+	 * @param pairs all pairs that will be requested, for reference counting
+	 * @param roi world coordinates of the region to render
+	 * @param scale
+	 * @param numCoefficients
+	 * @param maxBytes memory budget for renderings, exceeded only by a single
+	 *   pair in flight whose renderings do not fit
+	 */
+	public RenderCache(
+			final Collection< ? extends ValuePair< Patch, Patch > > pairs,
+			final Rectangle roi,
+			final double scale,
+			final int numCoefficients,
+			final long maxBytes )
+	{
+		this.roi = roi;
+		this.scale = scale;
+		this.numCoefficients = numCoefficients;
+		this.maxBytes = maxBytes;
+		for ( final ValuePair< Patch, Patch > pair : pairs )
+		{
+			entry( pair.getA() ).references++;
+			entry( pair.getB() ).references++;
+		}
+	}
+
+	final protected Entry entry( final Patch patch )
+	{
+		Entry entry = entries.get( patch );
+		if ( entry == null )
+		{
+			entry = new Entry( patch );
+			entries.put( patch, entry );
+		}
+		return entry;
+	}
+
+	final protected long missingBytes( final Entry entry )
+	{
+		return entry.reserved ? 0 : entry.bytes;
+	}
+
+	/**
+	 * Wait until the renderings of both patches of a pair fit into the
+	 * memory budget and account for them.  If no other pair is in flight,
+	 * the pair is admitted regardless, and logged if it exceeds the budget,
+	 * so that renderings kept for pairs not yet reserved can never block
+	 * progress.  Every reserved pair must be
+	 * {@link #release(ValuePair) released}.
+	 */
+	synchronized public void reserve( final ValuePair< Patch, Patch > pair ) throws InterruptedException
+	{
+		final Entry a = entries.get( pair.getA() );
+		final Entry b = entries.get( pair.getB() );
+		long missing = missingBytes( a ) + ( a == b ? 0 : missingBytes( b ) );
+		while ( missing > 0 && numPairsInFlight > 0 && bytes + missing > maxBytes )
+		{
+			wait();
+			missing = missingBytes( a ) + ( a == b ? 0 : missingBytes( b ) );
+		}
+		if ( missing > 0 && bytes + missing > maxBytes )
+			Utils.log2( "Intensity matching: rendering " + a.patch + " and " + b.patch + " exceeds the budget of " + maxBytes / ( 1024 * 1024 ) + "MB by " + ( bytes + missing - maxBytes ) / ( 1024 * 1024 ) + "MB" );
+		bytes += missing;
+		a.reserved = true;
+		b.reserved = true;
+		++numPairsInFlight;
+	}
+
+	/**
+	 * Get the rendering of a reserved {@link Patch}, rendering it if
+	 * necessary.
+	 */
+	public Rendered get( final Patch patch )
+	{
+		final Entry entry;
+		synchronized ( this )
+		{
+			entry = entries.get( patch );
+		}
+		return entry.render();
+	}
+
+	final protected void release( final Patch patch )
+	{
+		final Entry entry = entries.get( patch );
+		if ( --entry.references == 0 )
+		{
+			entries.remove( patch );
+			synchronized ( entry )
+			{
+				entry.rendered = null;
+			}
+			bytes -= entry.bytes;
+		}
+	}
+
+	/**
+	 * Release a reserved pair.  Renderings are dropped after the last pair
+	 * that uses them has been released.
+	 */
+	synchronized public void release( final ValuePair< Patch, Patch > pair )
+	{
+		release( pair.getA() );
+		release( pair.getB() );
+		--numPairsInFlight;
+		notifyAll();
+	}
+
+	/** Bytes currently reserved for renderings. */
+	synchronized public long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * A memory budget for renderings that leaves the {@link Loader} its
+	 * minimal free memory and half of the rest for image caches.
+	 */
+	static public long defaultMaxBytes()
+	{
+		final long max = Runtime.getRuntime().maxMemory() - Loader.MIN_FREE_BYTES;
+		final long budget = Math.max( 64L * 1024 * 1024, max / 2 );
+		Utils.log2( "Intensity matching render budget: " + budget / ( 1024 * 1024 ) + "MB" );
+		return budget;
+	}
+}
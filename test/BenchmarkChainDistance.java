@@ -0,0 +1,78 @@
+package test;
+
+import java.util.Random;
+
+import ini.trakem2.analysis.ChainDistance;
+import ini.trakem2.vector.Editions;
+import ini.trakem2.vector.VectorString3D;
+
+/** Time {@link Editions#getDistance()} and {@link ChainDistance#distance} on all pairs of synthetic chains,
+ *  forwards and with the second one reversed, and report the largest difference of their distances.
+ *  The chains come in families of variations of the same walk, as homologous lineages would. */
+public class BenchmarkChainDistance
+{
+	static final int numChains = 40, familySize = 5;
+	static final int numPoints = 300;
+	static final double delta = 1;
+	static final double wi = 1.1, wd = 1.1, wm = 1;
+
+	static public final void main( final String[] args ) throws Exception
+	{
+		final Random rnd = new Random( 1 );
+		final VectorString3D[] vs = new VectorString3D[ numChains ], reversed = new VectorString3D[ numChains ];
+		double[][] walk = null;
+		for ( int i = 0; i < numChains; ++i )
+		{
+			if ( 0 == i % familySize ) walk = TestChainDistance.makeWalk( rnd, numPoints / 2, 2 );
+			final double[][] p = TestChainDistance.jitter( rnd, walk );
+			vs[ i ] = new VectorString3D( p[ 0 ], p[ 1 ], p[ 2 ], false );
+			vs[ i ].resample( delta );
+			reversed[ i ] = vs[ i ].makeReversedCopy();
+		}
+		final int numPairs = numChains * ( numChains - 1 );
+		final double[] expected = new double[ numPairs ], found = new double[ numPairs ];
+		final ChainDistance cd = new ChainDistance();
+
+		long tEditions = 0, tKernel = 0, band = 0;
+		for ( int run = 0; run < 2; ++run )
+		{
+			/* the first run warms up */
+			long t = System.nanoTime();
+			int k = 0;
+			for ( int i = 0; i < numChains; ++i )
+				for ( int j = i + 1; j < numChains; ++j )
+				{
+					expected[ k++ ] = new Editions( vs[ i ], vs[ j ], delta, false, wi, wd, wm ).getDistance();
+					expected[ k++ ] = new Editions( vs[ i ], reversed[ j ], delta, false, wi, wd, wm ).getDistance();
+				}
+			tEditions = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			k = 0;
+			band = 0;
+			for ( int i = 0; i < numChains; ++i )
+			{
+				cd.set( 0, vs[ i ], false );
+				for ( int j = i + 1; j < numChains; ++j )
+				{
+					cd.set( 1, vs[ j ], false );
+					found[ k++ ] = cd.distance( delta, wi, wd, wm );
+					band += cd.getBand();
+					cd.set( 1, vs[ j ], true );
+					found[ k++ ] = cd.distance( delta, wi, wd, wm );
+					band += cd.getBand();
+				}
+			}
+			tKernel = System.nanoTime() - t;
+		}
+
+		double maxDiff = 0;
+		for ( int k = 0; k < numPairs; ++k )
+			maxDiff = Math.max( maxDiff, Math.abs( expected[ k ] - found[ k ] ) );
+
+		System.out.println( String.format( "%d pairs of %d-point chains", numPairs, vs[ 0 ].length() ) );
+		System.out.println( String.format( "  Editions:      %.3f ms per pair", tEditions / 1e6 / numPairs ) );
+		System.out.println( String.format( "  ChainDistance: %.3f ms per pair, mean band half-width %.1f", tKernel / 1e6 / numPairs, ( double )band / numPairs ) );
+		System.out.println( String.format( "  speedup: %.2fx  max difference: %s", ( double )tEditions / tKernel, maxDiff ) );
+	}
+}
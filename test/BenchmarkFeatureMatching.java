@@ -0,0 +1,70 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import mpicbg.ij.FeatureTransform;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+import mpicbg.trakem2.align.FeatureIndex;
+
+/** Compare recall and speed of {@link FeatureIndex} with the exhaustive {@link FeatureTransform#matchFeatures}. */
+public class BenchmarkFeatureMatching
+{
+	static final int numFeatures = 5000;
+	static final int dim = 128;
+	static final double rod = 0.92;
+
+	static float[] randomDescriptor( final Random rnd )
+	{
+		final float[] d = new float[ dim ];
+		for ( int k = 0; k < dim; ++k )
+			d[ k ] = rnd.nextFloat();
+		return d;
+	}
+
+	static public final void main( final String[] args )
+	{
+		final Random rnd = new Random( 1 );
+
+		/* half of the features of the second tile are noisy copies of features of the first */
+		final ArrayList< Feature > fs1 = new ArrayList< Feature >();
+		final ArrayList< Feature > fs2 = new ArrayList< Feature >();
+		for ( int i = 0; i < numFeatures; ++i )
+		{
+			final float[] d1 = randomDescriptor( rnd );
+			fs1.add( new Feature( 1, 0, new double[]{ i, 0 }, d1 ) );
+			final float[] d2 = i % 2 == 0 ? d1.clone() : randomDescriptor( rnd );
+			for ( int k = 0; k < dim; ++k )
+				d2[ k ] += 0.05f * ( float )rnd.nextGaussian();
+			fs2.add( new Feature( 1, 0, new double[]{ i, 1 }, d2 ) );
+		}
+
+		final ArrayList< PointMatch > exact = new ArrayList< PointMatch >();
+		long t = System.currentTimeMillis();
+		FeatureTransform.matchFeatures( fs1, fs2, exact, rod );
+		final long tExact = System.currentTimeMillis() - t;
+
+		t = System.currentTimeMillis();
+		final FeatureIndex index = new FeatureIndex( fs2 );
+		final long tBuild = System.currentTimeMillis() - t;
+
+		final ArrayList< PointMatch > approximate = new ArrayList< PointMatch >();
+		t = System.currentTimeMillis();
+		index.matchFeatures( fs1, approximate, rod );
+		final long tApproximate = System.currentTimeMillis() - t;
+
+		final HashSet< String > exactKeys = new HashSet< String >();
+		for ( final PointMatch pm : exact )
+			exactKeys.add( pm.getP1().getL()[ 0 ] + " " + pm.getP2().getL()[ 0 ] );
+		int found = 0;
+		for ( final PointMatch pm : approximate )
+			if ( exactKeys.contains( pm.getP1().getL()[ 0 ] + " " + pm.getP2().getL()[ 0 ] ) )
+				++found;
+
+		System.out.println( "exact:       " + exact.size() + " matches in " + tExact + " ms" );
+		System.out.println( "approximate: " + approximate.size() + " matches in " + tApproximate + " ms (index built in " + tBuild + " ms)" );
+		System.out.println( "recall:      " + ( exact.size() == 0 ? 1.0 : ( double )found / exact.size() ) );
+	}
+}
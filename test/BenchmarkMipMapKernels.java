@@ -0,0 +1,122 @@
+package test;
+
+import java.util.Random;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import ini.trakem2.persistence.MipMapKernels;
+import mpicbg.trakem2.util.Downsampler;
+
+/** Compare {@link MipMapKernels} with {@link Downsampler} on random images, for speed and for equality of results. */
+public class BenchmarkMipMapKernels
+{
+	static final int width = 4096, height = 4096;
+	static final int warmup = 10, iterations = 20;
+
+	static interface Kernel
+	{
+		public Object run();
+	}
+
+	static long time( final Kernel kernel )
+	{
+		for ( int i = 0; i < warmup; ++i )
+			kernel.run();
+		final long t = System.nanoTime();
+		for ( int i = 0; i < iterations; ++i )
+			kernel.run();
+		return ( System.nanoTime() - t ) / iterations;
+	}
+
+	static void report( final String name, final Kernel reference, final Kernel kernel, final double maxDiff )
+	{
+		final long tr = time( reference );
+		final long tk = time( kernel );
+		System.out.println( String.format( "%-8s Downsampler: %7.2f ms  MipMapKernels: %7.2f ms  speedup: %5.2fx  max difference: %s",
+				name, tr / 1e6, tk / 1e6, ( double )tr / tk, maxDiff ) );
+	}
+
+	static public final void main( final String[] args )
+	{
+		final Random rnd = new Random( 1 );
+		final int n = width * height;
+
+		final byte[] bytes = new byte[ n ];
+		rnd.nextBytes( bytes );
+		final ByteProcessor bp = new ByteProcessor( width, height, bytes, null );
+		final byte[] b1 = ( byte[] )Downsampler.downsampleByteProcessor( bp ).getPixels();
+		final byte[] b2 = MipMapKernels.halve( bytes, width, height );
+		double d = 0;
+		for ( int i = 0; i < b1.length; ++i )
+			d = Math.max( d, Math.abs( ( b1[ i ] & 0xff ) - ( b2[ i ] & 0xff ) ) );
+		report( "GRAY8", new Kernel()
+		{
+			@Override
+			public Object run() { return Downsampler.downsampleByteProcessor( bp ); }
+		}, new Kernel()
+		{
+			@Override
+			public Object run() { return MipMapKernels.halve( bytes, width, height ); }
+		}, d );
+
+		final short[] shorts = new short[ n ];
+		for ( int i = 0; i < n; ++i )
+			shorts[ i ] = ( short )rnd.nextInt( 65536 );
+		final ShortProcessor sp = new ShortProcessor( width, height, shorts, null );
+		final short[] s1 = ( short[] )Downsampler.downsampleShort( sp ).a.getPixels();
+		final short[] s2 = MipMapKernels.halve( shorts, width, height );
+		d = 0;
+		for ( int i = 0; i < s1.length; ++i )
+			d = Math.max( d, Math.abs( ( s1[ i ] & 0xffff ) - ( s2[ i ] & 0xffff ) ) );
+		report( "GRAY16", new Kernel()
+		{
+			@Override
+			public Object run() { return Downsampler.downsampleShort( sp ); }
+		}, new Kernel()
+		{
+			@Override
+			public Object run() { return MipMapKernels.halve( shorts, width, height ); }
+		}, d );
+
+		final float[] floats = new float[ n ];
+		for ( int i = 0; i < n; ++i )
+			floats[ i ] = rnd.nextFloat();
+		final FloatProcessor fp = new FloatProcessor( width, height, floats, null );
+		final float[] f1 = ( float[] )Downsampler.downsampleFloat( fp ).a.getPixels();
+		final float[] f2 = MipMapKernels.halve( floats, width, height );
+		d = 0;
+		for ( int i = 0; i < f1.length; ++i )
+			d = Math.max( d, Math.abs( f1[ i ] - f2[ i ] ) );
+		report( "GRAY32", new Kernel()
+		{
+			@Override
+			public Object run() { return Downsampler.downsampleFloat( fp ); }
+		}, new Kernel()
+		{
+			@Override
+			public Object run() { return MipMapKernels.halve( floats, width, height ); }
+		}, d );
+
+		final int[] ints = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+			ints[ i ] = 0xff000000 | rnd.nextInt( 0x1000000 );
+		final ColorProcessor cp = new ColorProcessor( width, height, ints );
+		final int[] c1 = ( int[] )Downsampler.downsampleColor( cp ).a.getPixels();
+		final int[] c2 = MipMapKernels.halveRGB( ints, width, height );
+		d = 0;
+		for ( int i = 0; i < c1.length; ++i )
+			for ( int shift = 0; shift < 24; shift += 8 )
+				d = Math.max( d, Math.abs( ( ( c1[ i ] >> shift ) & 0xff ) - ( ( c2[ i ] >> shift ) & 0xff ) ) );
+		report( "RGB", new Kernel()
+		{
+			@Override
+			public Object run() { return Downsampler.downsampleColor( cp ); }
+		}, new Kernel()
+		{
+			@Override
+			public Object run() { return MipMapKernels.halveRGB( ints, width, height ); }
+		}, d );
+	}
+}
@@ -0,0 +1,105 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mpicbg.models.Spring;
+import mpicbg.models.SpringMesh;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.Vertex;
+import mpicbg.trakem2.align.ConcurrentSpringMeshOptimizer;
+
+/** Compare {@link ConcurrentSpringMeshOptimizer} with {@link SpringMesh#optimizeMeshes} on a synthetic stack,
+ *  in time and in the resulting vertex positions. */
+public class BenchmarkSpringMeshOptimizer
+{
+	static final int numLayers = 200;
+	static final int numNeighbors = 2;
+	static final int resolution = 16;
+	static final int width = 512, height = 512;
+	static final double stiffness = 0.1, maxStretch = 2000, damp = 0.9;
+	/** Both optimizers stop at a mean spring error of 0.01 px, so their solutions may differ by a fraction of a pixel. */
+	static final double tolerance = 0.5;
+
+	static ArrayList< SpringMesh > makeStack( final ConcurrentSpringMeshOptimizer[] optimizer, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< SpringMesh > meshes = new ArrayList< SpringMesh >();
+		final double[][] offsets = new double[ numLayers ][ 2 ];
+		for ( int i = 0; i < numLayers; ++i )
+		{
+			meshes.add( new SpringMesh( resolution, width, height, stiffness, maxStretch, damp ) );
+			offsets[ i ][ 0 ] = rnd.nextGaussian() * 5;
+			offsets[ i ][ 1 ] = rnd.nextGaussian() * 5;
+		}
+		optimizer[ 0 ] = new ConcurrentSpringMeshOptimizer( meshes, stiffness, maxStretch, damp );
+
+		/* correspondences with a smooth random deformation per layer pair */
+		for ( int a = 0; a < numLayers; ++a )
+		{
+			for ( int b = a + 1; b < Math.min( numLayers, a + 1 + numNeighbors ); ++b )
+			{
+				final double springConstant = 1.0 / ( b - a );
+				for ( final Vertex p1 : meshes.get( a ).getVertices() )
+				{
+					final double[] l = p1.getL();
+					final double[] q = new double[]{
+							l[ 0 ] + offsets[ b ][ 0 ] - offsets[ a ][ 0 ] + Math.sin( l[ 1 ] / 50.0 ),
+							l[ 1 ] + offsets[ b ][ 1 ] - offsets[ a ][ 1 ] + Math.cos( l[ 0 ] / 50.0 ) };
+					final Vertex p2 = new Vertex( new mpicbg.models.Point( q ) );
+					p1.addSpring( p2, new Spring( 0, springConstant ) );
+					meshes.get( b ).addPassiveVertex( p2 );
+					optimizer[ 0 ].addSpring( a, p1, b, p2, springConstant );
+				}
+			}
+		}
+
+		for ( final SpringMesh mesh : meshes )
+			mesh.init( new TranslationModel2D() );
+
+		return meshes;
+	}
+
+	static public final void main( final String[] args ) throws Exception
+	{
+		final ConcurrentSpringMeshOptimizer[] optimizer = new ConcurrentSpringMeshOptimizer[ 1 ];
+
+		final ArrayList< SpringMesh > reference = makeStack( optimizer, 1 );
+		long t = System.currentTimeMillis();
+		SpringMesh.optimizeMeshes( reference, 0.01, 1000, 200, false );
+		System.out.println( "SpringMesh.optimizeMeshes: " + ( System.currentTimeMillis() - t ) + " ms" );
+
+		final ArrayList< SpringMesh > meshes = makeStack( optimizer, 1 );
+		final ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		t = System.currentTimeMillis();
+		optimizer[ 0 ].optimize( 0.01, 1000, 200, service );
+		System.out.println( "ConcurrentSpringMeshOptimizer: " + ( System.currentTimeMillis() - t ) + " ms" );
+		service.shutdown();
+
+		/* compare vertex positions relative to the first vertex of the first layer */
+		final double[] r0 = reference.get( 0 ).getVertices().get( 0 ).getW();
+		final double[] m0 = meshes.get( 0 ).getVertices().get( 0 ).getW();
+		double maxDiff = 0;
+		for ( int i = 0; i < numLayers; ++i )
+		{
+			final ArrayList< Vertex > r = reference.get( i ).getVertices();
+			final ArrayList< Vertex > m = meshes.get( i ).getVertices();
+			for ( int j = 0; j < r.size(); ++j )
+			{
+				final double[] rw = r.get( j ).getW();
+				final double[] mw = m.get( j ).getW();
+				maxDiff = Math.max( maxDiff, Math.abs( ( rw[ 0 ] - r0[ 0 ] ) - ( mw[ 0 ] - m0[ 0 ] ) ) );
+				maxDiff = Math.max( maxDiff, Math.abs( ( rw[ 1 ] - r0[ 1 ] ) - ( mw[ 1 ] - m0[ 1 ] ) ) );
+			}
+		}
+		System.out.println( "maximal relative vertex difference: " + maxDiff + " px" );
+		if ( maxDiff > tolerance )
+		{
+			System.out.println( "FAILED: the solutions differ by more than " + tolerance + " px" );
+			System.exit( 1 );
+		}
+		System.out.println( "OK" );
+	}
+}
@@ -0,0 +1,114 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import ini.trakem2.display.Node;
+import ini.trakem2.display.NodeArrays;
+import ini.trakem2.display.Treeline;
+
+/** Memory and traversal time of a synthetic skeleton stored as {@link Node} instances and as {@link NodeArrays}. */
+public class BenchmarkTreeStorage
+{
+	static final int numNodes = 1000000;
+	static final int branchEvery = 50;
+	static final int iterations = 10;
+
+	static long usedMemory()
+	{
+		final Runtime rt = Runtime.getRuntime();
+		for ( int i = 0; i < 4; ++i )
+		{
+			System.gc();
+			try { Thread.sleep( 50 ); } catch ( final InterruptedException e ) {}
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/** A random walk with a branch every few nodes, starting at any earlier node. */
+	static Node< Float > makeSkeleton( final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< Node< Float > > nodes = new ArrayList< Node< Float > >( numNodes );
+		final Node< Float > root = new Treeline.RadiusNode( 0, 0, null, 1 );
+		nodes.add( root );
+		Node< Float > last = root;
+		for ( int i = 1; i < numNodes; ++i )
+		{
+			final Node< Float > parent = 0 == i % branchEvery ? nodes.get( rnd.nextInt( nodes.size() ) ) : last;
+			final Node< Float > child = new Treeline.RadiusNode(
+					parent.getX() + ( float )rnd.nextGaussian() * 10,
+					parent.getY() + ( float )rnd.nextGaussian() * 10,
+					null,
+					rnd.nextFloat() * 5 );
+			parent.add( child, Node.MAX_EDGE_CONFIDENCE );
+			nodes.add( child );
+			last = child;
+		}
+		return root;
+	}
+
+	static double cableOfNodes( final Node< Float > root )
+	{
+		double cable = 0;
+		for ( final Node< Float > nd : root.getSubtreeNodes() )
+		{
+			final Node< Float > parent = nd.getParent();
+			if ( null == parent )
+				continue;
+			final double dx = nd.getX() - parent.getX(), dy = nd.getY() - parent.getY();
+			cable += Math.sqrt( dx * dx + dy * dy );
+		}
+		return cable;
+	}
+
+	static double cableOfArrays( final NodeArrays< Float > na )
+	{
+		double cable = 0;
+		for ( int i = 0; i < na.size(); ++i )
+		{
+			final int p = na.parent[ i ];
+			if ( -1 == p )
+				continue;
+			final double dx = na.x[ i ] - na.x[ p ], dy = na.y[ i ] - na.y[ p ];
+			cable += Math.sqrt( dx * dx + dy * dy );
+		}
+		return cable;
+	}
+
+	static public final void main( final String[] args )
+	{
+		final long m0 = usedMemory();
+		final Node< Float > root = makeSkeleton( 1 );
+		final long m1 = usedMemory();
+		final HashSet< Node< Float > > cache = new HashSet< Node< Float > >( root.getSubtreeNodes() );
+		final long m2 = usedMemory();
+		final NodeArrays< Float > na = new NodeArrays< Float >( root );
+		final long m3 = usedMemory();
+
+		System.out.println( String.format( "%d nodes; bytes per node:", na.size() ) );
+		System.out.println( String.format( "  Node instances:      %6.1f", ( double )( m1 - m0 ) / numNodes ) );
+		System.out.println( String.format( "  HashSet of nodes:    %6.1f", ( double )( m2 - m1 ) / numNodes ) );
+		System.out.println( String.format( "  NodeArrays:          %6.1f (including the array of nodes)", ( double )( m3 - m2 ) / numNodes ) );
+
+		double c1 = 0, c2 = 0;
+		for ( int i = 0; i < 3; ++i )
+		{
+			c1 = cableOfNodes( root );
+			c2 = cableOfArrays( na );
+		}
+		long t = System.nanoTime();
+		for ( int i = 0; i < iterations; ++i )
+			c1 = cableOfNodes( root );
+		final long tn = ( System.nanoTime() - t ) / iterations;
+		t = System.nanoTime();
+		for ( int i = 0; i < iterations; ++i )
+			c2 = cableOfArrays( na );
+		final long ta = ( System.nanoTime() - t ) / iterations;
+
+		System.out.println( String.format( "cable length traversal: nodes %.2f ms, arrays %.2f ms, speedup %.2fx, difference %g",
+				tn / 1e6, ta / 1e6, ( double )tn / ta, Math.abs( c1 - c2 ) ) );
+		System.out.println( "(kept alive: " + cache.size() + ")" );
+	}
+}
@@ -0,0 +1,135 @@
+package test;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ini.trakem2.analysis.AllToAll;
+import ini.trakem2.analysis.Compare;
+import ini.trakem2.utils.Worker;
+import ini.trakem2.vector.VectorString3D;
+
+/** Interrupt an {@link AllToAll#topMatches} comparison halfway, resume it from its checkpoint,
+ *  and check that it gives the best matches of the full matrix of {@link Compare#scoreAllToAll}
+ *  without comparing again the rows completed before the interruption. */
+public class TestAllToAll
+{
+	static final int n = 24, k = 5;
+	static final double delta = 1;
+	static final int distance_type = 2, max_mut = 5;
+	static final float min_chunk = 0.5f;
+
+	/** Quits after a number of checks. */
+	static class QuitAfter extends Worker
+	{
+		final AtomicInteger checks = new AtomicInteger();
+		final int max;
+		QuitAfter( final int max )
+		{
+			super( "quit after " + max, true );
+			this.max = max;
+		}
+		@Override
+		public void run() {}
+		@Override
+		public boolean hasQuitted() { return checks.incrementAndGet() > max; }
+	}
+
+	/** A random walk of 20 to 40 steps, resampled. */
+	static VectorString3D makeChain( final Random rnd ) throws Exception
+	{
+		final int len = 20 + rnd.nextInt( 21 );
+		final double[] x = new double[ len ], y = new double[ len ], z = new double[ len ];
+		x[ 0 ] = rnd.nextDouble() * 50;
+		y[ 0 ] = rnd.nextDouble() * 50;
+		z[ 0 ] = rnd.nextDouble() * 50;
+		for ( int i = 1; i < len; ++i )
+		{
+			x[ i ] = x[ i - 1 ] + 1 + rnd.nextDouble() * 2;
+			y[ i ] = y[ i - 1 ] + rnd.nextGaussian();
+			z[ i ] = z[ i - 1 ] + rnd.nextGaussian();
+		}
+		final VectorString3D vs = new VectorString3D( x, y, z, false );
+		vs.resample( delta );
+		return vs;
+	}
+
+	static AllToAll create( final VectorString3D[] vs )
+	{
+		return new AllToAll( vs, distance_type, delta, false, max_mut, min_chunk, true, false );
+	}
+
+	static public final void main( final String[] args ) throws Exception
+	{
+		final Random rnd = new Random( 7 );
+		final VectorString3D[] vs = new VectorString3D[ n ];
+		for ( int i = 0; i < n; ++i ) vs[ i ] = makeChain( rnd );
+		int nErrors = 0;
+
+		final float[][] scores = Compare.scoreAllToAll( vs, distance_type, delta, false, max_mut, min_chunk, true, false, null );
+
+		final File checkpoint = new File( System.getProperty( "java.io.tmpdir" ), "trakem2-test-alltoall-" + System.nanoTime() + ".checkpoint" );
+		try
+		{
+			/* quit halfway through the pairs */
+			final int n_pairs = n * ( n - 1 ) / 2;
+			final AllToAll first = create( vs );
+			if ( null != first.topMatches( k, checkpoint, 0, new QuitAfter( n_pairs / 2 ) ) )
+			{
+				System.out.println( "ERROR the interrupted comparison returned matches" );
+				++nErrors;
+			}
+			if ( !checkpoint.exists() )
+			{
+				System.out.println( "ERROR no checkpoint was saved on quitting" );
+				++nErrors;
+			}
+
+			/* resume */
+			final AllToAll second = create( vs );
+			final AllToAll.TopMatches top = second.topMatches( k, checkpoint, 0, null );
+			if ( null == top )
+			{
+				System.out.println( "FAILED: the resumed comparison returned no matches" );
+				System.exit( 1 );
+			}
+			if ( second.stats.pairs.get() >= n_pairs )
+			{
+				System.out.println( "ERROR the resumed comparison compared all " + second.stats.pairs.get() + " pairs again" );
+				++nErrors;
+			}
+
+			/* the best matches of every row of the full matrix */
+			for ( int i = 0; i < n; ++i )
+			{
+				final boolean[] taken = new boolean[ n ];
+				taken[ i ] = true;
+				final AllToAll.Match[] ms = top.getMatches( i );
+				if ( k != ms.length )
+				{
+					System.out.println( "ERROR chain " + i + " has " + ms.length + " matches instead of " + k );
+					++nErrors;
+					continue;
+				}
+				for ( int m = 0; m < k; ++m )
+				{
+					int best = -1;
+					for ( int j = 0; j < n; ++j )
+						if ( !taken[ j ] && ( -1 == best || scores[ i ][ j ] < scores[ i ][ best ] ) ) best = j;
+					taken[ best ] = true;
+					if ( ms[ m ].index != best || ms[ m ].score != scores[ i ][ best ] )
+					{
+						System.out.println( "ERROR chain " + i + ", match " + m + ": " + ms[ m ].index + " with " + ms[ m ].score + " instead of " + best + " with " + scores[ i ][ best ] );
+						++nErrors;
+					}
+				}
+			}
+		}
+		finally
+		{
+			checkpoint.delete();
+		}
+
+		System.out.println( 0 == nErrors ? "OK" : "FAILED with " + nErrors + " errors" );
+	}
+}
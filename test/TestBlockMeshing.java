@@ -0,0 +1,249 @@
+package test;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.scijava.vecmath.Point3f;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij3d.Volume;
+import ini.trakem2.Project;
+import ini.trakem2.display.AreaList;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.utils.AreaUtils;
+import ini.trakem2.utils.ImgLibVolume;
+import ini.trakem2.utils.MCCube;
+import ini.trakem2.utils.TriangleBuffer;
+import mpicbg.imglib.container.shapelist.ShapeList;
+import mpicbg.imglib.container.shapelist.ShapeListCached;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.integer.ByteType;
+
+/** Mesh a volume block by block with {@link MCCube#getTriangles(byte[], byte[], int, int, int, int, int, int, int, TriangleBuffer)},
+ *  as {@link AreaUtils#generateTriangleBuffer} does, and check that the triangles are exactly those of
+ *  {@link MCCube#getTriangles(Volume, int)} over the whole volume, for blocks of any size; and that
+ *  {@link TriangleBuffer#drainToList()} gives the same list as {@link TriangleBuffer#toList()}.
+ *  Check that {@link AreaUtils.Edges} rasterizes polygons as {@link Area#contains(double, double)} and a {@link ShapeList} do,
+ *  also with edges and vertices on pixel coordinates; and that {@link AreaUtils#generateTriangles} gives the same triangles
+ *  for an {@link AreaList} above and below {@link AreaUtils#BLOCK_MESHING_MIN_VOXELS}. */
+public class TestBlockMeshing
+{
+	static final int w = 37, h = 29, d = 11;
+	static final int value = 127;
+
+	/** A wobbly, noisy cylinder along z. */
+	static byte[][] makeVolume( final Random rnd )
+	{
+		final byte[][] data = new byte[ d ][ w * h ];
+		for ( int z = 0; z < d; ++z )
+			for ( int i = 0; i < w * h; ++i )
+			{
+				final double r = Math.hypot( i % w - 18, i / w - 14 );
+				if ( r < 10 + 3 * Math.sin( z ) + rnd.nextDouble() * 2 ) data[ z ][ i ] = ( byte )value;
+			}
+		return data;
+	}
+
+	/** The ( bw + 1 ) * ( bh + 1 ) values of slice z from x0, y0, zero outside the volume. */
+	static byte[] slice( final byte[][] data, final int z, final int x0, final int y0, final int bw, final int bh )
+	{
+		final byte[] s = new byte[ ( bw + 1 ) * ( bh + 1 ) ];
+		if ( z < 0 || z >= d ) return s;
+		for ( int y = 0; y <= bh; ++y )
+			for ( int x = 0; x <= bw; ++x )
+			{
+				final int xs = x0 + x, ys = y0 + y;
+				if ( xs >= 0 && ys >= 0 && xs < w && ys < h ) s[ x + y * ( bw + 1 ) ] = data[ z ][ xs + ys * w ];
+			}
+		return s;
+	}
+
+	/** The triangles as sorted strings of the bits of their vertices. */
+	static List< String > keys( final List< Point3f > list )
+	{
+		final ArrayList< String > keys = new ArrayList< String >();
+		for ( int i = 0; i < list.size(); i += 3 )
+		{
+			final StringBuilder sb = new StringBuilder();
+			for ( int j = 0; j < 3; ++j )
+			{
+				final Point3f p = list.get( i + j );
+				sb.append( Float.floatToIntBits( p.x ) ).append( ',' ).append( Float.floatToIntBits( p.y ) ).append( ',' ).append( Float.floatToIntBits( p.z ) ).append( ';' );
+			}
+			keys.add( sb.toString() );
+		}
+		Collections.sort( keys );
+		return keys;
+	}
+
+	/** A union of random polygons minus another, with vertices on pixel coordinates, or on half pixels. */
+	static Area makeArea( final Random rnd, final int size, final boolean integer )
+	{
+		final Area a = new Area();
+		for ( int k = 0; k < 4; ++k )
+		{
+			final Path2D.Double path = new Path2D.Double();
+			final int n = 3 + rnd.nextInt( 5 );
+			for ( int i = 0; i < n; ++i )
+			{
+				final double x = rnd.nextInt( size ) + ( integer ? 0 : 0.5 ), y = rnd.nextInt( size ) + ( integer ? 0 : 0.5 );
+				if ( 0 == i )
+					path.moveTo( x, y );
+				else
+					path.lineTo( x, y );
+			}
+			path.closePath();
+			if ( 3 == k )
+				a.subtract( new Area( path ) );
+			else
+				a.add( new Area( path ) );
+		}
+		/* axis-aligned edges along pixel rows and columns */
+		final int x = rnd.nextInt( size ), y = rnd.nextInt( size );
+		a.add( new Area( new Polygon( new int[]{ x, x + 1 + rnd.nextInt( 20 ), x + 1 + rnd.nextInt( 20 ), x }, new int[]{ y, y, y + 1 + rnd.nextInt( 20 ), y + 1 + rnd.nextInt( 20 ) }, 4 ) ) );
+		return a;
+	}
+
+	/** The pixels of {@link AreaUtils.Edges#fill}, {@link Area#contains(double, double)} and of a {@link ShapeList} of the area. */
+	static int compareRasters( final Area area, final int size, final String name ) throws Exception
+	{
+		int nErrors = 0;
+		final byte[] pix = new byte[ size * size ];
+		new AreaUtils.Edges( area ).fill( pix, new Rectangle( 0, 0, size, size ) );
+		final ShapeList< ByteType > shapeList = new ShapeListCached< ByteType >( new int[]{ size, size, 1 }, new ByteType(), 32 );
+		shapeList.addShape( area, new ByteType( ( byte )value ), new int[]{ 0 } );
+		final ImgLibVolume< ByteType > shapes = new ImgLibVolume< ByteType >( new Image< ByteType >( shapeList, shapeList.getBackground(), "shapes" ), new float[ 3 ] );
+		for ( int y = 0; y < size; ++y )
+			for ( int x = 0; x < size; ++x )
+			{
+				final boolean edges = 0 != pix[ x + y * size ], contains = area.contains( x, y ), shape = 0 != shapes.load( x, y, 0 );
+				if ( edges != contains || edges != shape )
+				{
+					System.out.println( "ERROR " + name + ": pixel " + x + ", " + y + " is " + edges + " by edges, " + contains + " by contains and " + shape + " in a ShapeList" );
+					++nErrors;
+				}
+			}
+		return nErrors;
+	}
+
+	/** The triangles of an {@link AreaList} with the blocks and with a {@link ShapeList}. */
+	static int compareMeshes( final AreaList al, final int resample )
+	{
+		final long min = AreaUtils.BLOCK_MESHING_MIN_VOXELS;
+		try
+		{
+			AreaUtils.BLOCK_MESHING_MIN_VOXELS = Long.MAX_VALUE;
+			final List< Point3f > whole = al.generateTriangles( 1, resample );
+			AreaUtils.BLOCK_MESHING_MIN_VOXELS = 0;
+			final List< Point3f > blocks = al.generateTriangles( 1, resample );
+			if ( null == whole || null == blocks || whole.isEmpty() )
+			{
+				System.out.println( "ERROR resample " + resample + ": no mesh" );
+				return 1;
+			}
+			if ( !keys( whole ).equals( keys( blocks ) ) )
+			{
+				System.out.println( "ERROR resample " + resample + ": " + blocks.size() + " vertices in blocks instead of " + whole.size() + ", or different ones" );
+				return 1;
+			}
+			return 0;
+		}
+		finally
+		{
+			AreaUtils.BLOCK_MESHING_MIN_VOXELS = min;
+		}
+	}
+
+	static public final void main( final String[] args ) throws Exception
+	{
+		final byte[][] data = makeVolume( new Random( 3 ) );
+		int nErrors = 0;
+
+		final ImageStack stack = new ImageStack( w, h );
+		for ( int z = 0; z < d; ++z ) stack.addSlice( "", new ByteProcessor( w, h, data[ z ], null ) );
+		final List< Point3f > reference = MCCube.getTriangles( new Volume( new ImagePlus( "volume", stack ), new boolean[]{ true, true, true } ), 1 );
+		final List< String > expected = keys( reference );
+		if ( reference.isEmpty() )
+		{
+			System.out.println( "FAILED: the volume has no triangles" );
+			System.exit( 1 );
+		}
+
+		/* blocks start at -1, to include the faces at the borders of the volume */
+		for ( final int bs : new int[]{ 5, 8, 64 } )
+			for ( final int bsz : new int[]{ 1, 3, 50 } )
+			{
+				final TriangleBuffer tb = new TriangleBuffer();
+				for ( int bz = -1; bz <= d; bz += bsz )
+					for ( int by = -1; by <= h; by += bs )
+						for ( int bx = -1; bx <= w; bx += bs )
+						{
+							final int bw = Math.min( bs, w - bx + 1 ), bh = Math.min( bs, h - by + 1 ), bd = Math.min( bsz, d - bz + 1 );
+							for ( int z = bz; z < bz + bd; ++z )
+								MCCube.getTriangles( slice( data, z, bx, by, bw, bh ), slice( data, z + 1, bx, by, bw, bh ), bw, bh, bx, by, z, value, 1, tb );
+						}
+				final List< Point3f > list = tb.toList();
+				if ( !expected.equals( keys( list ) ) )
+				{
+					System.out.println( "ERROR blocks of " + bs + "x" + bs + "x" + bsz + ": " + tb.size() + " vertices instead of " + reference.size() + ", or different ones" );
+					++nErrors;
+				}
+				if ( !list.equals( tb.drainToList() ) || !tb.isEmpty() )
+				{
+					System.out.println( "ERROR blocks of " + bs + "x" + bs + "x" + bsz + ": drainToList differs from toList" );
+					++nErrors;
+				}
+			}
+
+		/* rasterizing areas */
+		final Random rnd = new Random( 11 );
+		for ( int k = 0; k < 200; ++k )
+			nErrors += compareRasters( makeArea( rnd, 60, 0 == k % 2 ), 64, "area " + k );
+
+		/* an AreaList larger than a block, with an empty layer, meshed both ways */
+		final File dir = new File( System.getProperty( "java.io.tmpdir" ), "trakem2-test-block-meshing" );
+		dir.mkdirs();
+		final Project project = Project.newFSProject( "blank", null, dir.getAbsolutePath() + "/", false );
+		try
+		{
+			final LayerSet ls = project.getRootLayerSet();
+			final AreaList al = new AreaList( project, "areas", 0, 0 );
+			ls.add( al );
+			for ( int z = 0; z < 12; ++z )
+			{
+				final Layer layer = new Layer( project, z, 1, ls );
+				ls.add( layer );
+				if ( 5 == z ) continue;
+				final Area a = new Area();
+				for ( int i = 0; i < 3; ++i )
+				{
+					final Area part = makeArea( rnd, 100, 0 == z % 2 );
+					part.transform( AffineTransform.getTranslateInstance( rnd.nextInt( 500 ), rnd.nextInt( 500 ) ) );
+					a.add( part );
+				}
+				al.addArea( layer.getId(), a );
+			}
+			al.calculateBoundingBox( null );
+			nErrors += compareMeshes( al, 1 );
+			nErrors += compareMeshes( al, 2 );
+		}
+		finally
+		{
+			project.getLoader().setChanged( false );
+			project.destroy();
+		}
+
+		System.out.println( 0 == nErrors ? "OK" : "FAILED with " + nErrors + " errors" );
+	}
+}
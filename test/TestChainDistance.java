@@ -0,0 +1,199 @@
+package test;
+
+import java.util.Random;
+
+import ini.trakem2.analysis.ChainDistance;
+import ini.trakem2.vector.Editions;
+import ini.trakem2.vector.VectorString3D;
+
+/** Check that {@link ChainDistance#distance} equals {@link Editions#getDistance()} for chains resampled by
+ *  {@link VectorString3D}, forwards and reversed, and the full edit matrix for any band it starts with;
+ *  and that {@link ChainDistance#resample} places its points {@code delta} apart on the polyline. */
+public class TestChainDistance
+{
+	static final double delta = 1;
+	static final double wi = 1.1, wd = 1.1, wm = 1;
+
+	static int nErrors = 0;
+
+	static void check( final boolean b, final String message )
+	{
+		if ( !b )
+		{
+			System.out.println( "ERROR " + message );
+			++nErrors;
+		}
+	}
+
+	/** A smooth random walk of {@code len} points with steps of about {@code step}. */
+	static double[][] makeWalk( final Random rnd, final int len, final double step )
+	{
+		final double[][] p = new double[ 3 ][ len ];
+		double dx = 1, dy = 0, dz = 0;
+		for ( int i = 1; i < len; ++i )
+		{
+			dx += rnd.nextGaussian() * 0.3;
+			dy += rnd.nextGaussian() * 0.3;
+			dz += rnd.nextGaussian() * 0.3;
+			final double s = step * ( 0.5 + rnd.nextDouble() ) / Math.sqrt( dx * dx + dy * dy + dz * dz );
+			p[ 0 ][ i ] = p[ 0 ][ i - 1 ] + dx * s;
+			p[ 1 ][ i ] = p[ 1 ][ i - 1 ] + dy * s;
+			p[ 2 ][ i ] = p[ 2 ][ i - 1 ] + dz * s;
+		}
+		return p;
+	}
+
+	static VectorString3D makeChain( final Random rnd, final int len ) throws Exception
+	{
+		final double[][] p = makeWalk( rnd, len, 2 );
+		final VectorString3D vs = new VectorString3D( p[ 0 ], p[ 1 ], p[ 2 ], false );
+		vs.resample( delta );
+		return vs;
+	}
+
+	/** The edit matrix in full, for the chains in the slots of {@code cd}. */
+	static double fullDistance( final ChainDistance cd )
+	{
+		final int n = cd.length( 0 ), m = cd.length( 1 );
+		final double[][] v1 = vectors( cd, 0 ), v2 = vectors( cd, 1 );
+		final double[][] matrix = new double[ n + 1 ][ m + 1 ];
+		for ( int i = 0; i <= n; ++i ) matrix[ i ][ 0 ] = i * delta;
+		for ( int j = 0; j <= m; ++j ) matrix[ 0 ][ j ] = j * delta;
+		for ( int i = 1; i <= n; ++i )
+			for ( int j = 1; j <= m; ++j )
+			{
+				final double dx = v1[ 0 ][ i - 1 ] - v2[ 0 ][ j - 1 ], dy = v1[ 1 ][ i - 1 ] - v2[ 1 ][ j - 1 ], dz = v1[ 2 ][ i - 1 ] - v2[ 2 ][ j - 1 ];
+				final double mut = matrix[ i - 1 ][ j - 1 ] + wm * Math.sqrt( dx * dx + dy * dy + dz * dz );
+				final double del = matrix[ i - 1 ][ j ] + wd * delta;
+				final double ins = matrix[ i ][ j - 1 ] + wi * delta;
+				matrix[ i ][ j ] = Math.min( mut, Math.min( del, ins ) );
+			}
+		return matrix[ n ][ m ];
+	}
+
+	/** The vectors between consecutive points, the first one being zero. */
+	static double[][] vectors( final ChainDistance cd, final int slot )
+	{
+		final int n = cd.length( slot );
+		final double[][] v = new double[ 3 ][ n ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double[] p = cd.getPoints( slot, d );
+			for ( int i = 1; i < n; ++i ) v[ d ][ i ] = p[ i ] - p[ i - 1 ];
+		}
+		return v;
+	}
+
+	static boolean equal( final double a, final double b )
+	{
+		return Math.abs( a - b ) <= 1e-9 * Math.max( 1, Math.abs( b ) );
+	}
+
+	/** Every point but the last {@code delta} away from the previous one, and all on the polyline in order. */
+	static void checkResampled( final ChainDistance cd, final double[][] p, final int n, final String name )
+	{
+		final int k = cd.length( 0 );
+		final double[] x = cd.getPoints( 0, 0 ), y = cd.getPoints( 0, 1 ), z = cd.getPoints( 0, 2 );
+		check( k > 0 && x[ 0 ] == p[ 0 ][ 0 ] && y[ 0 ] == p[ 1 ][ 0 ] && z[ 0 ] == p[ 2 ][ 0 ], name + ": does not start at the first point" );
+		check( k > 0 && x[ k - 1 ] == p[ 0 ][ n - 1 ] && y[ k - 1 ] == p[ 1 ][ n - 1 ] && z[ k - 1 ] == p[ 2 ][ n - 1 ], name + ": does not end at the last point" );
+		int s = 0;
+		for ( int i = 1; i < k; ++i )
+		{
+			final double d = Math.sqrt( ( x[ i ] - x[ i - 1 ] ) * ( x[ i ] - x[ i - 1 ] ) + ( y[ i ] - y[ i - 1 ] ) * ( y[ i ] - y[ i - 1 ] ) + ( z[ i ] - z[ i - 1 ] ) * ( z[ i ] - z[ i - 1 ] ) );
+			check( i == k - 1 ? d <= delta + 1e-9 : Math.abs( d - delta ) < 1e-9, name + ": point " + i + " is " + d + " away from the previous one" );
+			/* the first segment from the current one that contains the point */
+			boolean found = false;
+			for ( ; s < n - 1 && !found; )
+			{
+				final double ax = p[ 0 ][ s + 1 ] - p[ 0 ][ s ], ay = p[ 1 ][ s + 1 ] - p[ 1 ][ s ], az = p[ 2 ][ s + 1 ] - p[ 2 ][ s ];
+				final double bx = x[ i ] - p[ 0 ][ s ], by = y[ i ] - p[ 1 ][ s ], bz = z[ i ] - p[ 2 ][ s ];
+				final double cx = ay * bz - az * by, cy = az * bx - ax * bz, cz = ax * by - ay * bx;
+				final double a2 = ax * ax + ay * ay + az * az, t = ( ax * bx + ay * by + az * bz ) / a2;
+				if ( t >= -1e-9 && t <= 1 + 1e-9 && cx * cx + cy * cy + cz * cz <= 1e-18 * a2 * Math.max( 1, bx * bx + by * by + bz * bz ) ) found = true;
+				else ++s;
+			}
+			check( found, name + ": point " + i + " is not on the polyline after point " + ( i - 1 ) );
+		}
+	}
+
+	static public final void main( final String[] args ) throws Exception
+	{
+		final Random rnd = new Random( 7 );
+		final ChainDistance cd = new ChainDistance();
+
+		/* against Editions, on chains of similar and of very different lengths */
+		for ( int k = 0; k < 60; ++k )
+		{
+			final VectorString3D vs1 = makeChain( rnd, 10 + rnd.nextInt( 150 ) ),
+			                     vs2 = 0 == k % 3 ? makeChain( rnd, 5 + rnd.nextInt( 20 ) ) : makeChain( rnd, 10 + rnd.nextInt( 150 ) );
+			for ( int r = 0; r < 4; ++r )
+			{
+				final boolean rev1 = 0 != ( r & 1 ), rev2 = 0 != ( r & 2 );
+				final VectorString3D a = rev1 ? vs1.makeReversedCopy() : vs1, b = rev2 ? vs2.makeReversedCopy() : vs2;
+				final double expected = new Editions( a, b, delta, false, wi, wd, wm ).getDistance();
+				/* points read after Editions, which may resample them */
+				cd.set( 0, a, false );
+				cd.set( 1, b, false );
+				final double d = cd.distance( delta, wi, wd, wm );
+				check( equal( d, expected ), "pair " + k + ", orientation " + r + ": distance " + d + " instead of " + expected );
+				if ( 0 == r ) continue;
+				/* the same as reversed copies, reversing while copying */
+				cd.set( 0, rev1 ? vs1.makeReversedCopy() : vs1, false );
+				cd.set( 1, rev2 ? vs2.makeReversedCopy() : vs2, false );
+				final double dc = cd.distance( delta, wi, wd, wm );
+				cd.set( 0, vs1, rev1 );
+				cd.set( 1, vs2, rev2 );
+				final double dr = cd.distance( delta, wi, wd, wm );
+				check( dr == dc, "pair " + k + ", orientation " + r + ": distance " + dr + " reversing while copying instead of " + dc );
+			}
+		}
+
+		/* the band grows until exact, starting from any width, for identical, similar and unrelated chains */
+		final int initialBand = ChainDistance.INITIAL_BAND;
+		try
+		{
+			for ( int k = 0; k < 200; ++k )
+			{
+				ChainDistance.INITIAL_BAND = rnd.nextInt( 20 );
+				final double[][] p1 = makeWalk( rnd, 2 + rnd.nextInt( 60 ), 1.5 );
+				cd.resample( 0, p1[ 0 ], p1[ 1 ], p1[ 2 ], p1[ 0 ].length, delta );
+				if ( 0 == k % 4 )
+					cd.resample( 1, p1[ 0 ], p1[ 1 ], p1[ 2 ], p1[ 0 ].length, delta );
+				else
+				{
+					final double[][] p2 = 1 == k % 4 ? jitter( rnd, p1 ) : makeWalk( rnd, 1 + rnd.nextInt( 80 ), 1.5 );
+					cd.resample( 1, p2[ 0 ], p2[ 1 ], p2[ 2 ], p2[ 0 ].length, delta );
+				}
+				final double d = cd.distance( delta, wi, wd, wm ), expected = fullDistance( cd );
+				check( d == expected, "chains " + k + " of " + cd.length( 0 ) + " and " + cd.length( 1 ) + " points with initial band " + ChainDistance.INITIAL_BAND + ": distance " + d + " instead of " + expected );
+			}
+		}
+		finally
+		{
+			ChainDistance.INITIAL_BAND = initialBand;
+		}
+
+		/* resampling */
+		for ( int k = 0; k < 100; ++k )
+		{
+			final double[][] p = makeWalk( rnd, 2 + rnd.nextInt( 40 ), 0.2 + rnd.nextDouble() * 4 );
+			cd.resample( 0, p[ 0 ], p[ 1 ], p[ 2 ], p[ 0 ].length, delta );
+			checkResampled( cd, p, p[ 0 ].length, "polyline " + k );
+		}
+		final double[][] line = { { 0, 2.5 }, { 0, 0 }, { 0, 0 } };
+		check( 4 == cd.resample( 0, line[ 0 ], line[ 1 ], line[ 2 ], 2, delta ), "a line 2.5 long resampled to " + cd.length( 0 ) + " points instead of 4" );
+		check( 1 == cd.resample( 0, line[ 0 ], line[ 1 ], line[ 2 ], 1, delta ), "a single point resampled to " + cd.length( 0 ) + " points" );
+
+		System.out.println( 0 == nErrors ? "OK" : "FAILED with " + nErrors + " errors" );
+	}
+
+	/** The same walk, each point moved a little. */
+	static double[][] jitter( final Random rnd, final double[][] p )
+	{
+		final double[][] q = new double[ 3 ][ p[ 0 ].length ];
+		for ( int d = 0; d < 3; ++d )
+			for ( int i = 0; i < q[ d ].length; ++i )
+				q[ d ][ i ] = p[ d ][ i ] + rnd.nextGaussian() * 0.2;
+		return q;
+	}
+}
@@ -0,0 +1,178 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import ini.trakem2.Project;
+import ini.trakem2.analysis.ConnectivityIndex;
+import ini.trakem2.display.Connector;
+import ini.trakem2.display.Displayable;
+import ini.trakem2.display.Layer;
+import ini.trakem2.display.LayerSet;
+import ini.trakem2.display.Node;
+import ini.trakem2.display.Treeline;
+
+/** Compare the {@link ConnectivityIndex} with {@link Connector#getOrigins()} and {@link Connector#getTargets()}
+ *  after adding, moving and removing treelines and connectors. */
+public class TestConnectivityIndex
+{
+	static final int numTreelines = 200;
+	static final int numConnectors = 400;
+	static final float size = 2000;
+
+	static Treeline makeTreeline( final Project project, final Layer layer, final Random rnd )
+	{
+		final Treeline t = new Treeline( project, "treeline" );
+		layer.getParent().add( t );
+		float x = rnd.nextFloat() * size, y = rnd.nextFloat() * size;
+		final Treeline.RadiusNode root = new Treeline.RadiusNode( x, y, layer, 5 );
+		t.setRoot( root );
+		Node< Float > parent = root;
+		for ( int i = 0; i < 10; ++i )
+		{
+			x += rnd.nextGaussian() * 50;
+			y += rnd.nextGaussian() * 50;
+			final Treeline.RadiusNode nd = new Treeline.RadiusNode( x, y, layer, 5 );
+			parent.add( nd, Node.MAX_EDGE_CONFIDENCE );
+			parent = nd;
+		}
+		t.calculateBoundingBox( layer );
+		layer.getParent().updateBucket( t, layer );
+		return t;
+	}
+
+	static Connector makeConnector( final Project project, final Layer layer, final List< Treeline > ts, final Random rnd )
+	{
+		final Connector c = new Connector( project, "connector" );
+		layer.getParent().add( c );
+		/* start and end on nodes of random treelines */
+		final Node< Float > a = randomNode( ts.get( rnd.nextInt( ts.size() ) ), rnd );
+		final float[] p = world( ts, a );
+		c.setRoot( new Connector.ConnectorNode( p[ 0 ], p[ 1 ], layer, 10 ) );
+		for ( int i = 1 + rnd.nextInt( 3 ); i > 0; --i )
+		{
+			final float[] q = world( ts, randomNode( ts.get( rnd.nextInt( ts.size() ) ), rnd ) );
+			c.addTarget( q[ 0 ], q[ 1 ], layer.getId(), 10 );
+		}
+		c.calculateBoundingBox( layer );
+		layer.getParent().updateBucket( c, layer );
+		return c;
+	}
+
+	static Node< Float > randomNode( final Treeline t, final Random rnd )
+	{
+		final ArrayList< Node< Float > > nodes = new ArrayList< Node< Float > >( t.getRoot().getSubtreeNodes() );
+		return nodes.get( rnd.nextInt( nodes.size() ) );
+	}
+
+	static float[] world( final List< Treeline > ts, final Node< Float > nd )
+	{
+		for ( final Treeline t : ts )
+		{
+			if ( t.getRoot().getSubtreeNodes().contains( nd ) )
+			{
+				final float[] p = new float[]{ nd.getX(), nd.getY() };
+				t.getAffineTransform().transform( p, 0, p, 0, 1 );
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/** Returns the number of connectors whose indexed origins or targets differ from a direct lookup. */
+	static int compare( final LayerSet ls, final String step )
+	{
+		final ConnectivityIndex index = ls.getConnectivityIndex();
+		int nErrors = 0;
+		final Set< Connector > outgoing = new HashSet< Connector >();
+		for ( final Connector c : ls.getAll( Connector.class ) )
+		{
+			final Set< Displayable > origins = c.getOrigins();
+			if ( !origins.equals( index.getOrigins( c ) ) )
+			{
+				System.out.println( "ERROR " + step + ": origins of #" + c.getId() + " " + origins + " != " + index.getOrigins( c ) );
+				++nErrors;
+			}
+			if ( !c.getTargets().equals( index.getTargets( c ) ) )
+			{
+				System.out.println( "ERROR " + step + ": targets of #" + c.getId() + " " + c.getTargets() + " != " + index.getTargets( c ) );
+				++nErrors;
+			}
+			for ( final Displayable o : origins )
+				if ( !index.getOutgoing( o ).contains( c ) )
+				{
+					System.out.println( "ERROR " + step + ": #" + c.getId() + " is not outgoing of #" + o.getId() );
+					++nErrors;
+				}
+			outgoing.add( c );
+		}
+		/* no connectors that were removed */
+		for ( final ConnectivityIndex.Edge e : index.getEdges() )
+			if ( !outgoing.contains( e.connector ) )
+			{
+				System.out.println( "ERROR " + step + ": edge of removed connector #" + e.connector.getId() );
+				++nErrors;
+			}
+		System.out.println( step + ": " + nErrors + " errors" );
+		return nErrors;
+	}
+
+	static public final void main( final String[] args ) throws Exception
+	{
+		final File dir = new File( System.getProperty( "java.io.tmpdir" ), "trakem2-test-connectivity" );
+		dir.mkdirs();
+		final Project project = Project.newFSProject( "blank", null, dir.getAbsolutePath() + "/", false );
+		final LayerSet ls = project.getRootLayerSet();
+		final Layer layer = new Layer( project, 0, 1, ls );
+		ls.add( layer );
+		layer.recreateBuckets();
+		ls.recreateBuckets( true );
+
+		final Random rnd = new Random( 1 );
+		final ArrayList< Treeline > ts = new ArrayList< Treeline >();
+		for ( int i = 0; i < numTreelines; ++i )
+			ts.add( makeTreeline( project, layer, rnd ) );
+		final ArrayList< Connector > cs = new ArrayList< Connector >();
+		for ( int i = 0; i < numConnectors; ++i )
+			cs.add( makeConnector( project, layer, ts, rnd ) );
+
+		int nErrors = compare( ls, "added" );
+
+		/* move some treelines away from their connectors, and some onto others */
+		for ( int i = 0; i < numTreelines / 4; ++i )
+		{
+			final Treeline t = ts.get( rnd.nextInt( ts.size() ) );
+			t.translate( rnd.nextGaussian() * 100, rnd.nextGaussian() * 100, false );
+		}
+		nErrors += compare( ls, "moved treelines" );
+
+		/* move some connectors */
+		for ( int i = 0; i < numConnectors / 4; ++i )
+		{
+			final Connector c = cs.get( rnd.nextInt( cs.size() ) );
+			c.translate( rnd.nextGaussian() * 20, rnd.nextGaussian() * 20, false );
+		}
+		nErrors += compare( ls, "moved connectors" );
+
+		/* remove treelines and connectors */
+		for ( int i = 0; i < numTreelines / 10; ++i )
+			ls.remove( ts.remove( rnd.nextInt( ts.size() ) ) );
+		for ( int i = 0; i < numConnectors / 10; ++i )
+			ls.remove( cs.remove( rnd.nextInt( cs.size() ) ) );
+		nErrors += compare( ls, "removed" );
+
+		/* add more, and query twice without changes in between */
+		for ( int i = 0; i < numConnectors / 10; ++i )
+			cs.add( makeConnector( project, layer, ts, rnd ) );
+		nErrors += compare( ls, "added again" );
+		nErrors += compare( ls, "unchanged" );
+
+		System.out.println( 0 == nErrors ? "OK" : "FAILED with " + nErrors + " errors" );
+		project.getLoader().setChanged( false );
+		project.destroy();
+	}
+}
@@ -0,0 +1,153 @@
+package test;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ini.trakem2.parallel.FileQueueExecutorProvider;
+import ini.trakem2.parallel.FileQueueExecutorService;
+import ini.trakem2.parallel.FileQueueWorker;
+
+/** Run a {@link FileQueueWorker} in a second JVM on this machine and submit to it through a
+ *  {@link FileQueueExecutorProvider} in every way an ExecutorService offers; recover a job
+ *  whose worker died; and check that all services of the provider share one queue. */
+public class TestFileQueueExecutor
+{
+	static final String jvm = ManagementFactory.getRuntimeMXBean().getName();
+
+	/** Returns the square of its number and the JVM it ran in. */
+	static class Square implements Callable< Object[] >, Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		final int i;
+		Square( final int i ) { this.i = i; }
+		public Object[] call() { return new Object[]{ i * i, ManagementFactory.getRuntimeMXBean().getName() }; }
+	}
+
+	/** Creates a file. */
+	static class Touch implements Runnable, Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		final String path;
+		Touch( final File file ) { this.path = file.getAbsolutePath(); }
+		public void run()
+		{
+			try { new File( path ).createNewFile(); }
+			catch ( final Exception e ) { throw new RuntimeException( e ); }
+		}
+	}
+
+	static int nErrors = 0;
+
+	static void check( final boolean b, final String message )
+	{
+		if ( !b )
+		{
+			System.out.println( "ERROR " + message );
+			++nErrors;
+		}
+	}
+
+	static boolean remote( final Object[] result )
+	{
+		return !jvm.equals( result[ 1 ] );
+	}
+
+	static int countMonitors()
+	{
+		int n = 0;
+		for ( final Thread t : Thread.getAllStackTraces().keySet() )
+			if ( t.getName().equals( "FileQueueExecutorService monitor" ) ) ++n;
+		return n;
+	}
+
+	static void delete( final File f )
+	{
+		final File[] files = f.listFiles();
+		if ( null != files ) for ( final File g : files ) delete( g );
+		f.delete();
+	}
+
+	static public final void main( final String[] args ) throws Exception
+	{
+		final File dir = new File( System.getProperty( "java.io.tmpdir" ), "trakem2-test-queue-" + System.nanoTime() );
+		dir.mkdirs();
+		final FileQueueExecutorProvider provider = new FileQueueExecutorProvider( dir, 1000, 3 );
+		Process worker = null;
+		try
+		{
+			final ExecutorService service = provider.getService( 1 );
+
+			/* a job whose worker died: claimed long ago, never finished */
+			final Future< Object[] > lost = service.submit( new Square( 9 ) );
+			final File[] queued = new File( dir, FileQueueExecutorService.PENDING ).listFiles();
+			check( null != queued && 1 == queued.length, "the job is not in the queue" );
+			final String name = queued[ 0 ].getName();
+			final File claimed = new File( new File( dir, FileQueueExecutorService.RUNNING ), name.replace( FileQueueExecutorService.JOB_SUFFIX, ".dead" + FileQueueExecutorService.JOB_SUFFIX ) );
+			check( queued[ 0 ].renameTo( claimed ), "could not claim the job" );
+			claimed.setLastModified( 1000 );
+
+			/* a worker JVM with two threads */
+			worker = new ProcessBuilder( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getPath(),
+					"-cp", System.getProperty( "java.class.path" ),
+					FileQueueWorker.class.getName(), dir.getAbsolutePath(), "2" ).inheritIO().start();
+
+			final Object[] recovered = lost.get( 60, TimeUnit.SECONDS );
+			check( 81 == ( Integer )recovered[ 0 ] && remote( recovered ), "the lost job was not run again by the worker" );
+
+			/* submit */
+			final Object[] r = service.submit( new Square( 3 ) ).get( 60, TimeUnit.SECONDS );
+			check( 9 == ( Integer )r[ 0 ] && remote( r ), "submit did not run in the worker" );
+
+			/* execute and submit of Runnables */
+			final File touched = new File( dir, "touched" ), submitted = new File( dir, "submitted" );
+			service.execute( new Touch( touched ) );
+			service.submit( new Touch( submitted ) ).get( 60, TimeUnit.SECONDS );
+			check( submitted.exists(), "submit of a Runnable did not run" );
+			for ( int i = 0; i < 600 && !touched.exists(); ++i ) Thread.sleep( 100 );
+			check( touched.exists(), "execute did not run" );
+
+			/* invokeAll and invokeAny */
+			final List< Square > tasks = new ArrayList< Square >();
+			for ( int i = 0; i < 20; ++i ) tasks.add( new Square( i ) );
+			final List< Future< Object[] > > fus = service.invokeAll( tasks );
+			for ( int i = 0; i < 20; ++i )
+			{
+				final Object[] ri = fus.get( i ).get();
+				check( i * i == ( Integer )ri[ 0 ] && remote( ri ), "invokeAll task " + i + " did not run in the worker" );
+			}
+			final Object[] any = service.invokeAny( tasks.subList( 0, 3 ) );
+			check( remote( any ), "invokeAny did not run in the worker" );
+
+			/* not serializable: runs here */
+			final Object[] local = service.submit( new Callable< Object[] >()
+			{
+				public Object[] call() { return new Object[]{ 0, jvm }; }
+			} ).get();
+			check( !remote( local ), "a non-serializable task did not run locally" );
+
+			/* all services share the queue; shutting one down leaves the others working */
+			final ExecutorService other = provider.getService( 0.5f );
+			check( 1 == countMonitors(), countMonitors() + " monitor threads instead of 1" );
+			service.shutdown();
+			check( service.awaitTermination( 60, TimeUnit.SECONDS ) && service.isTerminated(), "the service did not terminate" );
+			final Object[] after = other.submit( new Square( 5 ) ).get( 60, TimeUnit.SECONDS );
+			check( 25 == ( Integer )after[ 0 ], "another service stopped working after a shutdown" );
+			other.shutdown();
+		}
+		finally
+		{
+			if ( null != worker ) worker.destroy();
+			delete( dir );
+		}
+
+		System.out.println( 0 == nErrors ? "OK" : "FAILED with " + nErrors + " errors" );
+		System.exit( 0 == nErrors ? 0 : 1 );
+	}
+}
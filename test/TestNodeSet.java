@@ -0,0 +1,134 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import ini.trakem2.display.Node;
+import ini.trakem2.display.NodeIndex;
+import ini.trakem2.display.Treeline;
+
+/** Compare the open addressing {@link NodeIndex.NodeSet} with an identity set under random additions and removals,
+ *  many of which leave removed slots behind; removing through its iterator; growing from empty to many nodes;
+ *  and check that modifying it outside of an iterator is detected. */
+public class TestNodeSet
+{
+	static int nErrors = 0;
+
+	static void check( final boolean b, final String message )
+	{
+		if ( !b )
+		{
+			System.out.println( "ERROR " + message );
+			++nErrors;
+		}
+	}
+
+	static Set< Node< Float > > identitySet()
+	{
+		return Collections.newSetFromMap( new IdentityHashMap< Node< Float >, Boolean >() );
+	}
+
+	/** Same size, same nodes by iteration and by contains, and each node iterated once. */
+	static void compare( final NodeIndex.NodeSet< Float > set, final Set< Node< Float > > expected, final List< Node< Float > > all, final String when )
+	{
+		check( set.size() == expected.size(), when + ": " + set.size() + " nodes instead of " + expected.size() );
+		final Set< Node< Float > > seen = identitySet();
+		for ( final Node< Float > nd : set )
+		{
+			check( seen.add( nd ), when + ": a node was iterated twice" );
+			check( expected.contains( nd ), when + ": iterated a node that is not in the set" );
+		}
+		check( seen.size() == expected.size(), when + ": iterated " + seen.size() + " nodes instead of " + expected.size() );
+		for ( final Node< Float > nd : all )
+			check( set.contains( nd ) == expected.contains( nd ), when + ": contains is wrong for a node" );
+	}
+
+	static public final void main( final String[] args )
+	{
+		final Random rnd = new Random( 5 );
+
+		/* equal nodes are still different nodes */
+		final List< Node< Float > > all = new ArrayList< Node< Float > >();
+		for ( int i = 0; i < 5000; ++i ) all.add( new Treeline.RadiusNode( i % 10, i % 7, null, 0 ) );
+
+		final NodeIndex.NodeSet< Float > set = new NodeIndex.NodeSet< Float >( null );
+		final Set< Node< Float > > expected = identitySet();
+
+		/* growth, one node at a time */
+		for ( int i = 0; i < 3000; ++i )
+		{
+			final Node< Float > nd = all.get( i );
+			check( set.add( nd ), "adding a new node returned false" );
+			expected.add( nd );
+			check( !set.add( nd ), "adding a node twice returned true" );
+		}
+		compare( set, expected, all, "after growing" );
+
+		/* random additions and removals, which leave removed slots among the occupied ones */
+		for ( int k = 0; k < 100000; ++k )
+		{
+			final Node< Float > nd = all.get( rnd.nextInt( all.size() ) );
+			if ( rnd.nextBoolean() )
+				check( set.add( nd ) == expected.add( nd ), "add disagrees" );
+			else
+				check( set.remove( nd ) == expected.remove( nd ), "remove disagrees" );
+			if ( 0 == k % 10000 ) compare( set, expected, all, "after " + k + " random changes" );
+		}
+		compare( set, expected, all, "after random changes" );
+
+		/* remove all and add them again into the slots marked as removed */
+		for ( final Node< Float > nd : all ) set.remove( nd );
+		check( set.isEmpty(), "not empty after removing all" );
+		compare( set, identitySet(), all, "after removing all" );
+		expected.clear();
+		for ( int i = 0; i < 1000; ++i )
+		{
+			set.add( all.get( i ) );
+			expected.add( all.get( i ) );
+		}
+		compare( set, expected, all, "after adding into removed slots" );
+
+		/* removal while iterating */
+		for ( final Iterator< Node< Float > > it = set.iterator(); it.hasNext(); )
+		{
+			final Node< Float > nd = it.next();
+			if ( rnd.nextBoolean() )
+			{
+				it.remove();
+				expected.remove( nd );
+			}
+		}
+		compare( set, expected, all, "after removing while iterating" );
+		try
+		{
+			final Iterator< Node< Float > > it = set.iterator();
+			it.next();
+			it.remove();
+			it.remove();
+			check( false, "removing twice through an iterator did not fail" );
+		}
+		catch ( final IllegalStateException e ) {}
+
+		/* changes outside of an iterator */
+		try
+		{
+			final Iterator< Node< Float > > it = set.iterator();
+			it.next();
+			set.add( all.get( all.size() - 1 ) );
+			it.next();
+			check( false, "a change while iterating was not detected" );
+		}
+		catch ( final ConcurrentModificationException e ) {}
+
+		set.clear();
+		compare( set, identitySet(), all, "after clear" );
+
+		System.out.println( 0 == nErrors ? "OK" : "FAILED with " + nErrors + " errors" );
+	}
+}
@@ -0,0 +1,109 @@
+package test;
+
+import java.util.Random;
+
+import lenscorrection.NonLinearTransform;
+
+/** Compare {@link NonLinearTransform#applyInPlace(double[])} with the kernel expansion
+ *  of {@link mpicbg.trakem2.transform.NonLinearCoordinateTransform}, written out with Math.pow,
+ *  and check that copies of a model share their {@link NonLinearTransform.TransformField}. */
+public class TestNonLinearTransform
+{
+	static final int width = 200;
+	static final int height = 150;
+
+	static NonLinearTransform makeTransform( final int dimension, final Random rnd )
+	{
+		final int length = ( dimension + 1 ) * ( dimension + 2 ) / 2;
+		final double[][] coeffs = new double[ 4 ][ length ];
+		for ( int i = 0; i < length; ++i )
+		{
+			coeffs[ 0 ][ i ] = rnd.nextGaussian();
+			coeffs[ 1 ][ i ] = rnd.nextGaussian();
+			coeffs[ 2 ][ i ] = rnd.nextDouble();
+			coeffs[ 3 ][ i ] = 1 + rnd.nextDouble();
+		}
+		return new NonLinearTransform( coeffs, width, height );
+	}
+
+	/** The kernel expansion as in NonLinearCoordinateTransform: for each degree i, x^j y^(i-j) for j from i down to 0,
+	 *  normalized, and a constant 100 last.  Returns the transformed location and, as third value, the sum of the
+	 *  magnitudes of the terms, against which rounding is measured. */
+	static double[] expected( final NonLinearTransform t, final double x, final double y )
+	{
+		final double[][] c = t.getCoefficients();
+		final int length = c[ 0 ].length;
+		final double[] expanded = new double[ length ];
+		int counter = 0;
+		for ( int i = 1; i <= t.getDimension(); ++i )
+			for ( int j = i; j >= 0; --j )
+				expanded[ counter++ ] = Math.pow( x, j ) * Math.pow( y, i - j );
+		for ( int i = 0; i < length - 1; ++i )
+			expanded[ i ] = ( expanded[ i ] - c[ 2 ][ i ] ) / c[ 3 ][ i ];
+		expanded[ length - 1 ] = 100;
+		final double[] r = new double[ 3 ];
+		for ( int i = 0; i < length; ++i )
+		{
+			r[ 0 ] += expanded[ i ] * c[ 0 ][ i ];
+			r[ 1 ] += expanded[ i ] * c[ 1 ][ i ];
+			r[ 2 ] += Math.abs( expanded[ i ] * c[ 0 ][ i ] ) + Math.abs( expanded[ i ] * c[ 1 ][ i ] );
+		}
+		return r;
+	}
+
+	static public final void main( final String[] args )
+	{
+		final Random rnd = new Random( 0 );
+		int nErrors = 0;
+
+		for ( int dimension = 1; dimension <= 6; ++dimension )
+		{
+			final NonLinearTransform t = makeTransform( dimension, rnd );
+			for ( int k = 0; k < 1000; ++k )
+			{
+				final double x = rnd.nextDouble() * 2 * width - width / 2;
+				final double y = rnd.nextDouble() * 2 * height - height / 2;
+				final double[] e = expected( t, x, y );
+				final double[] location = { x, y };
+				t.applyInPlace( location );
+				final double tolerance = 1e-12 * Math.max( 1, e[ 2 ] );
+				if ( Math.abs( location[ 0 ] - e[ 0 ] ) > tolerance || Math.abs( location[ 1 ] - e[ 1 ] ) > tolerance )
+				{
+					System.out.println( "ERROR dimension " + dimension + " at " + x + ", " + y + ": " + location[ 0 ] + ", " + location[ 1 ] + " != " + e[ 0 ] + ", " + e[ 1 ] );
+					++nErrors;
+				}
+			}
+
+			/* the field holds the transformed pixels */
+			final NonLinearTransform.TransformField field = t.getTransformField();
+			for ( int y = 0, i = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x, i += 2 )
+				{
+					final double[] location = { x, y };
+					t.applyInPlace( location );
+					if ( field.data[ i ] != ( float )location[ 0 ] || field.data[ i + 1 ] != ( float )location[ 1 ] )
+					{
+						System.out.println( "ERROR dimension " + dimension + ": field at " + x + ", " + y + " is " + field.data[ i ] + ", " + field.data[ i + 1 ] );
+						++nErrors;
+					}
+				}
+
+			/* copies share the field, changed models don't */
+			final NonLinearTransform copy = t.copy();
+			if ( copy.getTransformField() != field )
+			{
+				System.out.println( "ERROR dimension " + dimension + ": a copy does not share the field" );
+				++nErrors;
+			}
+			final double[][] beta = new double[ t.getCoefficients()[ 0 ].length ][ 2 ];
+			copy.setBeta( beta );
+			if ( copy.getTransformField() == field )
+			{
+				System.out.println( "ERROR dimension " + dimension + ": a changed copy shares the field" );
+				++nErrors;
+			}
+		}
+
+		System.out.println( 0 == nErrors ? "OK" : "FAILED with " + nErrors + " errors" );
+	}
+}
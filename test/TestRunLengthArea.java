@@ -0,0 +1,163 @@
+package test;
+
+import ij.process.ByteProcessor;
+import ini.trakem2.utils.RunLengthArea;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.util.Random;
+
+/** Check that {@link RunLengthArea}, which rasterizes AreaLists in {@link ini.trakem2.display.AreaList#exportAsLabels},
+ *  sets exactly the pixels whose centers are inside the {@link Area}; that clipping to a rectangle keeps the pixels
+ *  within it; and that rasterizing the results of {@link Area} boolean operations gives the same pixels as combining
+ *  the rasterized operands. */
+public class TestRunLengthArea
+{
+	static final int size = 200;
+
+	/** A random polygon with non-integer vertices, so that no pixel center lies on an edge. */
+	static Area makePolygon( final Random rnd )
+	{
+		final Path2D.Double path = new Path2D.Double();
+		final double cx = 40 + rnd.nextDouble() * ( size - 80 ), cy = 40 + rnd.nextDouble() * ( size - 80 );
+		final int n = 3 + rnd.nextInt( 10 );
+		for ( int i = 0; i < n; ++i )
+		{
+			final double angle = 2 * Math.PI * i / n, r = 5 + rnd.nextDouble() * 35;
+			final double x = cx + r * Math.cos( angle ) + 0.123, y = cy + r * Math.sin( angle ) + 0.321;
+			if ( 0 == i )
+				path.moveTo( x, y );
+			else
+				path.lineTo( x, y );
+		}
+		path.closePath();
+		return new Area( path );
+	}
+
+	static ByteProcessor rasterize( final RunLengthArea runs )
+	{
+		final ByteProcessor bp = new ByteProcessor( size, size );
+		runs.fill( bp, 0, 0, 1 );
+		return bp;
+	}
+
+	static boolean op( final int op, final boolean a, final boolean b )
+	{
+		switch ( op )
+		{
+		case 0: return a || b;
+		case 1: return a && b;
+		case 2: return a && !b;
+		default: return a != b;
+		}
+	}
+
+	static Area op( final int op, final Area a, final Area b )
+	{
+		final Area r = new Area( a );
+		switch ( op )
+		{
+		case 0: r.add( b ); break;
+		case 1: r.intersect( b ); break;
+		case 2: r.subtract( b ); break;
+		default: r.exclusiveOr( b ); break;
+		}
+		return r;
+	}
+
+	static final String[] opNames = { "add", "intersect", "subtract", "exclusiveOr" };
+
+	static public final void main( final String[] args )
+	{
+		final Random rnd = new Random( 1 );
+		int nErrors = 0;
+
+		for ( int k = 0; k < 200; ++k )
+		{
+			final Area a = makePolygon( rnd );
+			final RunLengthArea runs = RunLengthArea.fromArea( a, null, null );
+
+			/* the pixels whose centers are inside */
+			final ByteProcessor bp = rasterize( runs );
+			long count = 0;
+			for ( int y = 0; y < size; ++y )
+				for ( int x = 0; x < size; ++x )
+				{
+					final boolean inside = a.contains( x + 0.5, y + 0.5 );
+					if ( inside )
+						++count;
+					if ( inside != ( 0 != bp.get( x, y ) ) )
+					{
+						System.out.println( "ERROR polygon " + k + ": pixel " + x + ", " + y + " is " + ( inside ? "inside" : "outside" ) );
+						++nErrors;
+					}
+				}
+			if ( count != runs.getPixelCount() )
+			{
+				System.out.println( "ERROR polygon " + k + ": " + runs.getPixelCount() + " pixels instead of " + count );
+				++nErrors;
+			}
+
+			/* clipping keeps the pixels within the clip, and an area outside of it is empty */
+			final Rectangle clip = new Rectangle( rnd.nextInt( size / 2 ), rnd.nextInt( size / 2 ), rnd.nextInt( size / 2 ), rnd.nextInt( size / 2 ) );
+			final ByteProcessor bpc = rasterize( RunLengthArea.fromArea( a, null, clip ) );
+			int nClipped = 0;
+			for ( int y = 0; y < size; ++y )
+				for ( int x = 0; x < size; ++x )
+					if ( ( clip.contains( x, y ) && 0 != bp.get( x, y ) ) != ( 0 != bpc.get( x, y ) ) )
+						++nClipped;
+			if ( nClipped > 0 )
+			{
+				System.out.println( "ERROR polygon " + k + ": clipped to " + clip + " differs at " + nClipped + " pixels" );
+				++nErrors;
+			}
+			if ( !RunLengthArea.fromArea( a, null, new Rectangle( -size, 0, size, size ) ).isEmpty() )
+			{
+				System.out.println( "ERROR polygon " + k + ": not empty when clipped outside" );
+				++nErrors;
+			}
+
+			/* transforming while converting is the same as converting the transformed area */
+			final AffineTransform aff = new AffineTransform();
+			aff.translate( -10.25, 7.75 );
+			aff.rotate( 0.3, size / 2, size / 2 );
+			aff.scale( 0.8, 0.8 );
+			if ( !RunLengthArea.fromArea( a, aff, null ).equals( RunLengthArea.fromArea( a.createTransformedArea( aff ), null, null ) ) )
+			{
+				System.out.println( "ERROR polygon " + k + ": converting with a transform differs" );
+				++nErrors;
+			}
+
+			/* boolean operations of Areas, rasterized, against the combined rasters */
+			final Area b = makePolygon( rnd );
+			final ByteProcessor bpb = rasterize( RunLengthArea.fromArea( b, null, null ) );
+			for ( int op = 0; op < 4; ++op )
+			{
+				final ByteProcessor bpr = rasterize( RunLengthArea.fromArea( op( op, a, b ), null, null ) );
+				int nDiff = 0;
+				for ( int y = 0; y < size; ++y )
+					for ( int x = 0; x < size; ++x )
+						if ( op( op, 0 != bp.get( x, y ), 0 != bpb.get( x, y ) ) != ( 0 != bpr.get( x, y ) ) )
+							++nDiff;
+				if ( nDiff > 0 )
+				{
+					System.out.println( "ERROR polygons " + k + ": " + opNames[ op ] + " differs at " + nDiff + " pixels" );
+					++nErrors;
+				}
+			}
+		}
+
+		/* empty and degenerate areas */
+		if ( !RunLengthArea.fromArea( new Area(), null, null ).isEmpty() ||
+				!RunLengthArea.fromArea( new Area( new Polygon( new int[]{ 0, 10, 20 }, new int[]{ 0, 0, 0 }, 3 ) ), null, null ).isEmpty() )
+		{
+			System.out.println( "ERROR: empty areas are not empty" );
+			++nErrors;
+		}
+
+		System.out.println( 0 == nErrors ? "OK" : "FAILED with " + nErrors + " errors" );
+	}
+}